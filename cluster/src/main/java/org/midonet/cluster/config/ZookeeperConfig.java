@@ -64,4 +64,20 @@ public interface ZookeeperConfig {
      */
     @ConfigBool(key = "curator_enabled", defaultValue = false)
     Boolean getCuratorEnabled();
+
+    /**
+     * Whether ZOOM transactions detect concurrent modifications only through
+     * the versions of the nodes they write, retrying when they conflict,
+     * rather than through a lock node.
+     */
+    @ConfigBool(key = "zoom_optimistic_transactions", defaultValue = false)
+    Boolean getZoomOptimisticTransactions();
+
+    /**
+     * Whether ZOOM writes protobuf messages in the binary wire format rather
+     * than in the text format. Nodes that predate the binary format can't
+     * read it, so it must be enabled only once every node is upgraded.
+     */
+    @ConfigBool(key = "zoom_binary_messages", defaultValue = false)
+    Boolean getZoomBinaryMessages();
 }
@@ -15,15 +15,18 @@
  */
 package org.midonet.cluster.data.storage
 
-import java.io.StringWriter
-import java.util.concurrent.Executors
+import java.io.{ByteArrayOutputStream, StringWriter}
+import java.util.concurrent.{Executors, ThreadLocalRandom, TimeUnit, TimeoutException}
+import java.util.zip.{Deflater, Inflater}
 import java.util.{ConcurrentModificationException, List => JList}
 
 import scala.async.Async.async
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
 import scala.collection.{Set, mutable}
-import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
+import scala.util.Success
 
 import com.google.common.collect.ArrayListMultimap
 import com.google.protobuf.{Message, TextFormat}
@@ -89,11 +92,33 @@ import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
  *
  * declareBinding(Port.class, "peerId", CLEAR,
  * Port.class, "peerId", CLEAR);
+ *
+ * By default, each transaction creates a sequential node under the locks
+ * path to learn the current zxid, and fails as soon as it reads an object
+ * modified after it started. An optimistic mapper skips this and relies
+ * only on the versions of the nodes it writes, all of which are checked
+ * when the transaction commits: a transaction that fails because of a
+ * concurrent modification is retried after a random backoff, up to
+ * OptimisticAttempts times.
+ *
+ * Protobuf messages are written in the text format unless binaryMessages is
+ * set, in which case they are written in the wire format, which only this
+ * version and later ones can read. Both formats are always read, so binary
+ * messages must be enabled only once every node has been upgraded.
  */
 class ZookeeperObjectMapper(private val basePath: String,
-                            private val curator: CuratorFramework)
+                            private val curator: CuratorFramework,
+                            private val optimistic: Boolean,
+                            private val binaryMessages: Boolean)
                             extends Storage {
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+
+    def this(basePath: String, curator: CuratorFramework,
+             optimistic: Boolean) =
+        this(basePath, curator, optimistic, false)
+
+    def this(basePath: String, curator: CuratorFramework) =
+        this(basePath, curator, false)
     @volatile private var built = false
 
     private val locksPath = basePath + "/zoomlocks/lock"
@@ -104,6 +129,16 @@ class ZookeeperObjectMapper(private val basePath: String,
     private implicit val executionContext =
         ExecutionContext.fromExecutorService(executor)
 
+    /* Whether transactions load the objects they need in parallel. */
+    @volatile private[storage] var prefetchReads = true
+
+    /* How long a transaction waits for a read issued in the background: a
+     * read that takes longer than Curator waits for a connection will only
+     * complete once the connection is back, if ever. */
+    private val readTimeout = FiniteDuration(
+        curator.getZookeeperClient.getConnectionTimeoutMs,
+        TimeUnit.MILLISECONDS)
+
     private val classToIdGetter =
         new mutable.HashMap[Class[_], IdGetter]()
     private val simpleNameToClass =
@@ -132,8 +167,12 @@ class ZookeeperObjectMapper(private val basePath: String,
         // Create an ephemeral node so that we can get Zookeeper's current
         // ZXID. This will allow us to determine if any of the nodes we read
         // have been modified since the TransactionManager was created, allowing
-        // us to ensure a consistent read across multiple nodes.
-        private val (lockPath: String, zxid: Long) = try {
+        // us to ensure a consistent read across multiple nodes. Optimistic
+        // transactions leave this to the version checks of the commit.
+        private val (lockPath, zxid) =
+            if (optimistic) (null, Long.MaxValue) else acquireLock()
+
+        private def acquireLock(): (String, Long) = try {
             val path = curator.create().creatingParentsIfNeeded()
                 .withMode(CreateMode.EPHEMERAL_SEQUENTIAL).forPath(locksPath)
             val stat = new Stat()
@@ -144,6 +183,124 @@ class ZookeeperObjectMapper(private val basePath: String,
                 "Could not acquire current zxid.", ex)
         }
 
+        // Reads of the objects the operations are expected to load, issued
+        // in the background by prefetch().
+        private val prefetched =
+            new mutable.HashMap[Key[_], Future[(Array[Byte], Stat)]]()
+
+        private def read(clazz: Class[_], id: ObjId): (Array[Byte], Stat) = {
+            val stat = new Stat()
+            val data = try {
+                curator.getData.storingStatIn(stat).forPath(getPath(clazz, id))
+            } catch {
+                case nne: NoNodeException =>
+                    throw new NotFoundException(clazz, id)
+                case ex: Exception =>
+                    throw new InternalObjectMapperException(ex)
+            }
+            (data, stat)
+        }
+
+        private def readInBackground(key: Key[_]): Unit = {
+            if (objCache.contains(key) || prefetched.contains(key))
+                return
+            val p = Promise[(Array[Byte], Stat)]()
+            val cb = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           evt: CuratorEvent): Unit = {
+                    KeeperException.Code.get(evt.getResultCode) match {
+                        case KeeperException.Code.OK =>
+                            p.success((evt.getData, evt.getStat))
+                        case KeeperException.Code.NONODE =>
+                            p.failure(new NotFoundException(key.clazz, key.id))
+                        case code =>
+                            p.failure(new InternalObjectMapperException(
+                                KeeperException.create(code, evt.getPath)))
+                    }
+                }
+            }
+            try {
+                curator.getData.inBackground(cb)
+                       .forPath(getPath(key.clazz, key.id))
+                prefetched(key) = p.future
+            } catch {
+                // Leave it to the operation to read the object.
+                case ex: Exception =>
+            }
+        }
+
+        /**
+         * Loads in parallel the objects that the operations will need. The
+         * objects updated or deleted by the operations, and those referenced
+         * by the objects they create or update, are read first. Once those
+         * have arrived, the objects that the updated and deleted objects
+         * used to reference are read. A transaction thus waits for two round
+         * trips rather than one per object, except for cascading deletes.
+         *
+         * The objects are loaded and checked as the operations run, so that
+         * errors are reported as they would be without prefetching.
+         */
+        def prefetch(ops: Seq[PersistenceOp]): Unit = {
+            def registered(clazz: Class[_]) = classToIdGetter.contains(clazz)
+            val targets = new mutable.ArrayBuffer[(Key[_], Boolean)]()
+            for (op <- ops) op match {
+                case CreateOp(obj) =>
+                    prefetchReferences(obj, _ => true)
+                case UpdateOp(obj, _) if registered(obj.getClass) =>
+                    val key = Key(obj.getClass, getObjectId(obj))
+                    readInBackground(key)
+                    targets += ((key, false))
+                    prefetchReferences(obj, _ => true)
+                case DeleteOp(clazz, id) if registered(clazz) =>
+                    val key = Key(clazz, id)
+                    readInBackground(key)
+                    targets += ((key, true))
+                case _ => // Rejected by the operation.
+            }
+
+            for ((key, deleted) <- targets;
+                 read <- prefetched.get(key) if awaitRead(read)) {
+                read.value match {
+                    case Some(Success((data, _))) =>
+                        try {
+                            prefetchReferences(deserialize(data, key.clazz),
+                                               _.hasBackReference || !deleted)
+                        } catch {
+                            case ex: Exception => // Reported by the operation.
+                        }
+                    case _ =>
+                }
+            }
+        }
+
+        /**
+         * Waits for a read issued in the background, returning false if it
+         * doesn't complete within the read timeout. The connection is then
+         * stalled, so the other reads in flight are dropped too and the
+         * operations read the objects synchronously instead, which fail
+         * as Curator gives up on the connection.
+         */
+        private def awaitRead(read: Future[_]): Boolean = {
+            try {
+                Await.ready(read, readTimeout)
+                true
+            } catch {
+                case ex: TimeoutException =>
+                    log.warn("Prefetched read did not complete in {}, " +
+                             "reading synchronously", readTimeout)
+                    prefetched.clear()
+                    false
+            }
+        }
+
+        private def prefetchReferences(obj: Any,
+                                       filter: FieldBinding => Boolean) {
+            for (bdg <- allBindings.get(obj.getClass).asScala if filter(bdg);
+                 thatId <- bdg.getFwdReferenceAsList(obj).asScala) {
+                readInBackground(Key(bdg.getReferencedClass, thatId))
+            }
+        }
+
         /**
          * Gets the specified object from the internal cache. If not found,
          * loads it from Zookeeper and caches it.
@@ -166,15 +323,9 @@ class ZookeeperObjectMapper(private val basePath: String,
 
         private def getWithVersion[T](clazz: Class[T],
                                       id: ObjId): ObjWithVersion[T] = {
-            val stat = new Stat()
-            val path = getPath(clazz, id)
-            val data = try {
-                curator.getData.storingStatIn(stat).forPath(path)
-            } catch {
-                case nne: NoNodeException =>
-                    throw new NotFoundException(clazz, id)
-                case ex: Exception =>
-                    throw new InternalObjectMapperException(ex)
+            val (data, stat) = prefetched.remove(Key(clazz, id)) match {
+                case Some(read) if awaitRead(read) => read.value.get.get
+                case _ => read(clazz, id)
             }
 
             if (stat.getMzxid > zxid) {
@@ -332,14 +483,14 @@ class ZookeeperObjectMapper(private val basePath: String,
 
             for ((Key(clazz, id), ObjWithVersion(obj, _)) <- toCreate) {
                 val path = getPath(clazz, id)
-                txn = txn.create()
-                    .forPath(path, serialize(obj.asInstanceOf[Obj])).and()
+                val data = serialize(obj.asInstanceOf[Obj], binaryMessages)
+                txn = txn.create().forPath(path, data).and()
             }
 
             for ((Key(clazz, id), ObjWithVersion(obj, ver)) <- toUpdate) {
                 val path = getPath(clazz, id)
-                txn = txn.setData().withVersion(ver)
-                    .forPath(path, serialize(obj.asInstanceOf[Obj])).and()
+                val data = serialize(obj.asInstanceOf[Obj], binaryMessages)
+                txn = txn.setData().withVersion(ver).forPath(path, data).and()
             }
 
             for ((Key(clazz, id), ver) <- objsToDelete) {
@@ -362,7 +513,7 @@ class ZookeeperObjectMapper(private val basePath: String,
             }
         }
 
-        def releaseLock(): Unit = try {
+        def releaseLock(): Unit = if (lockPath ne null) try {
             curator.delete().forPath(lockPath)
         } catch {
             // Not much we can do. Fortunately, it's ephemeral.
@@ -642,7 +793,27 @@ class ZookeeperObjectMapper(private val basePath: String,
         assertBuilt()
         if (ops.isEmpty) return
 
+        var attempt = 1
+        while (optimistic && attempt < OptimisticAttempts) {
+            try {
+                tryMulti(ops)
+                return
+            } catch {
+                case cme: ConcurrentModificationException =>
+                    log.debug(s"Transaction attempt $attempt failed due " +
+                              "to a concurrent modification, retrying.")
+                    Thread.sleep(ThreadLocalRandom.current.nextLong(
+                        OptimisticBackoffMs << attempt))
+                    attempt += 1
+            }
+        }
+        tryMulti(ops)
+    }
+
+    private def tryMulti(ops: Seq[PersistenceOp]): Unit = {
         val manager = new TransactionManager
+        if (prefetchReads)
+            manager.prefetch(ops)
         ops.foreach {
             case CreateOp(obj) => manager.create(obj)
             case UpdateOp(obj, validator) => manager.update(obj, validator)
@@ -781,14 +952,85 @@ object ZookeeperObjectMapper {
 
     private val jsonFactory = new JsonFactory(new ObjectMapper())
 
-    private[storage] def serialize(obj: Obj): Array[Byte] ={
+    /* Binary messages are stored in the protobuf wire format behind a two
+     * byte header: a zero byte, which can't start a message in the text
+     * format, followed by the encoding of the message. Nodes without the
+     * header are parsed as text, so that the nodes written in the text
+     * format, by this version or older ones, can still be read. */
+    private[storage] final val EncodingMarker: Byte = 0
+    private[storage] final val BinaryEncoding: Byte = 1
+    private[storage] final val DeflatedEncoding: Byte = 2
+
+    /* Messages whose wire format is larger than this are deflated. */
+    private[storage] final val DeflateThreshold = 1024
+
+    /* The number of times an optimistic transaction is attempted, and the
+     * base of the exponential backoff between attempts. */
+    private[storage] final val OptimisticAttempts = 8
+    private[storage] final val OptimisticBackoffMs = 2L
+
+    private val defaultInstances = new TrieMap[Class[_], Message]
+
+    private[storage] def serialize(obj: Obj,
+                                   binaryMessages: Boolean = false)
+    : Array[Byte] = {
         obj match {
-            case msg: Message => serializeMessage(msg)
+            case msg: Message if binaryMessages => serializeMessage(msg)
+            case msg: Message => msg.toString.getBytes
             case pojo => serializePojo(pojo)
         }
     }
 
-    private def serializeMessage(msg: Message) = msg.toString.getBytes
+    private[storage] def serializeMessage(msg: Message): Array[Byte] = {
+        val bytes = msg.toByteArray
+        if (bytes.length > DeflateThreshold) {
+            val deflated = deflate(bytes)
+            if (deflated.length < bytes.length)
+                return withHeader(DeflatedEncoding, deflated)
+        }
+        withHeader(BinaryEncoding, bytes)
+    }
+
+    private def withHeader(encoding: Byte, bytes: Array[Byte]) = {
+        val data = new Array[Byte](bytes.length + 2)
+        data(0) = EncodingMarker
+        data(1) = encoding
+        System.arraycopy(bytes, 0, data, 2, bytes.length)
+        data
+    }
+
+    private def deflate(bytes: Array[Byte]): Array[Byte] = {
+        val deflater = new Deflater(Deflater.BEST_SPEED)
+        try {
+            deflater.setInput(bytes)
+            deflater.finish()
+            val out = new ByteArrayOutputStream(bytes.length / 2)
+            val buf = new Array[Byte](4096)
+            while (!deflater.finished())
+                out.write(buf, 0, deflater.deflate(buf))
+            out.toByteArray
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private def inflate(data: Array[Byte], offset: Int): Array[Byte] = {
+        val inflater = new Inflater()
+        try {
+            inflater.setInput(data, offset, data.length - offset)
+            val out = new ByteArrayOutputStream(data.length * 4)
+            val buf = new Array[Byte](4096)
+            while (!inflater.finished()) {
+                val n = inflater.inflate(buf)
+                if (n == 0 && (inflater.needsInput || inflater.needsDictionary))
+                    throw new IllegalArgumentException("Truncated data")
+                out.write(buf, 0, n)
+            }
+            out.toByteArray
+        } finally {
+            inflater.end()
+        }
+    }
 
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
@@ -821,11 +1063,26 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
-        builder.build().asInstanceOf[T]
+    private[storage] def deserializeMessage[T](data: Array[Byte],
+                                               clazz: Class[T]): T = {
+        val default = defaultInstances.getOrElseUpdate(clazz,
+            clazz.getMethod("getDefaultInstance").invoke(null)
+                 .asInstanceOf[Message])
+        if (data.length < 2 || data(0) != EncodingMarker) {
+            val builder = default.newBuilderForType()
+            TextFormat.merge(new String(data), builder)
+            return builder.build().asInstanceOf[T]
+        }
+        val parser = default.getParserForType
+        data(1) match {
+            case BinaryEncoding =>
+                parser.parseFrom(data, 2, data.length - 2).asInstanceOf[T]
+            case DeflatedEncoding =>
+                parser.parseFrom(inflate(data, 2)).asInstanceOf[T]
+            case encoding =>
+                throw new IllegalArgumentException(
+                    s"Unknown message encoding $encoding")
+        }
     }
 
     private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
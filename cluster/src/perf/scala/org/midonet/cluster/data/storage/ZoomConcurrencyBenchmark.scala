@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.{Callable, ExecutorService, Executors, TimeUnit}
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Devices.{Network, Port}
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+
+/**
+ * Measures how the throughput of ZOOM transactions scales with the number of
+ * concurrent `writers`, against an in-process ZooKeeper server. In each
+ * invocation every writer creates a port on its own network and then
+ * deletes it, so the writers only contend for the ZooKeeper server and, when
+ * `optimistic` is not set, for the parent node of the lock nodes.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class ZoomConcurrencyBenchmark {
+
+    @Param(Array("1", "4", "16"))
+    var writers: Int = _
+
+    @Param(Array("false", "true"))
+    var optimistic: Boolean = _
+
+    var server: TestingServer = _
+    var zoom: ZookeeperObjectMapper = _
+    var executor: ExecutorService = _
+    var tasks: java.util.List[Callable[Unit]] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        val curator = CuratorFrameworkFactory.newClient(
+            server.getConnectString, new RetryOneTime(1000))
+        curator.start()
+
+        zoom = new ZookeeperObjectMapper("/zoom", curator, optimistic)
+        zoom.registerClass(classOf[Network])
+        zoom.registerClass(classOf[Port])
+        zoom.declareBinding(
+            classOf[Network], "port_ids", DeleteAction.CASCADE,
+            classOf[Port], "network_id", DeleteAction.CLEAR)
+        zoom.build()
+
+        executor = Executors.newFixedThreadPool(writers)
+        tasks = new java.util.ArrayList[Callable[Unit]]()
+        for (_ <- 0 until writers) {
+            val network = Network.newBuilder.setId(randomUuidProto).build()
+            zoom.create(network)
+            tasks.add(new Callable[Unit] {
+                override def call(): Unit = createAndDeletePort(network.getId)
+            })
+        }
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        executor.shutdown()
+        server.close()
+    }
+
+    private def createAndDeletePort(networkId: Commons.UUID): Unit = {
+        val port = Port.newBuilder.setId(randomUuidProto)
+                                  .setNetworkId(networkId).build()
+        zoom.create(port)
+        zoom.delete(classOf[Port], port.getId)
+    }
+
+    @Benchmark
+    def createAndDeletePorts(): Unit = {
+        val results = executor.invokeAll(tasks)
+        var i = 0
+        while (i < results.size()) {
+            results.get(i).get()
+            i += 1
+        }
+    }
+}
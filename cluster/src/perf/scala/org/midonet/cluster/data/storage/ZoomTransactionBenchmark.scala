@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Devices.{Chain, Network, Port}
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+
+/**
+ * Measures a ZOOM transaction that moves the inbound filter of the `ports`
+ * ports of a network from one chain to another, against an in-process
+ * ZooKeeper server. Each update reads the port and both chains, either one
+ * after the other or, when `prefetch` is set, in parallel.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class ZoomTransactionBenchmark {
+
+    @Param(Array("1", "16", "64"))
+    var ports: Int = _
+
+    @Param(Array("false", "true"))
+    var prefetch: Boolean = _
+
+    var server: TestingServer = _
+    var zoom: ZookeeperObjectMapper = _
+
+    var chains: Array[Commons.UUID] = _
+    var portTemplates: Seq[Port] = _
+    var flip = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer
+        val curator = CuratorFrameworkFactory.newClient(
+            server.getConnectString, new RetryOneTime(1000))
+        curator.start()
+
+        zoom = new ZookeeperObjectMapper("/zoom", curator)
+        zoom.registerClass(classOf[Network])
+        zoom.registerClass(classOf[Chain])
+        zoom.registerClass(classOf[Port])
+        zoom.declareBinding(
+            classOf[Network], "port_ids", DeleteAction.CASCADE,
+            classOf[Port], "network_id", DeleteAction.CLEAR)
+        zoom.declareBinding(
+            classOf[Port], "inbound_filter_id", DeleteAction.CLEAR,
+            classOf[Chain], "port_ids", DeleteAction.CLEAR)
+        zoom.build()
+        zoom.prefetchReads = prefetch
+
+        val network = Network.newBuilder.setId(randomUuidProto).build()
+        chains = Array.fill(2)(randomUuidProto)
+        portTemplates = Seq.fill(ports) {
+            Port.newBuilder.setId(randomUuidProto)
+                           .setNetworkId(network.getId).build()
+        }
+        zoom.multi(Seq(CreateOp(network)) ++
+                   chains.map(id => CreateOp(Chain.newBuilder.setId(id)
+                                                             .build())) ++
+                   portTemplates.map(CreateOp))
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        server.close()
+    }
+
+    @Benchmark
+    def updatePorts(): Unit = {
+        val chain = chains(flip)
+        flip ^= 1
+        zoom.multi(portTemplates.map(port => UpdateOp(
+            port.toBuilder.setInboundFilterId(chain).build())))
+    }
+}
@@ -26,12 +26,15 @@ import scala.concurrent.Await.result
 import scala.concurrent.duration.Duration
 
 import com.google.common.collect.Multimap
+import com.google.protobuf.Message
 
 import org.scalatest.{BeforeAndAfterAll, FlatSpec}
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.data.storage.StorageEval.EvalResult.TestItem
 import org.midonet.cluster.data.storage.StorageEval.{BulkUpdateEval, BulkUpdateEvalOrBuilder, EvalResult}
+import org.midonet.cluster.data.storage.StorageTester.{ProtoPort, ProtoRule}
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper.{deserializeMessage, serializeMessage}
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Devices.{Network, Port, Rule}
 import org.midonet.cluster.util.UUIDUtil.randomUuidProto
@@ -395,6 +398,52 @@ trait StorageBulkCrudTest extends FlatSpec
     }
 
 
+    /**
+     * Compares the size of the node data of a message, and the time it takes
+     * to serialize and deserialize it TRIAL_SIZE times, when the message is
+     * stored in the text format or in the binary format of the
+     * ZookeeperObjectMapper.
+     */
+    def compareMessageEncodings(name: String, msg: Message,
+                                result: EvalResult.Builder) {
+        val testItem = result.addTestItemBuilder()
+        testItem.setItemName(s"$name message encodings")
+        val clazz = msg.getClass
+        val formats = Seq[(String, Message => Array[Byte])](
+            "text" -> (_.toString.getBytes), "binary" -> serializeMessage)
+        for ((format, serialize) <- formats) {
+            val data = serialize(msg)
+            assert(deserializeMessage(data, clazz) == msg)
+            val serStart = System.currentTimeMillis()
+            for (_ <- 1 to TRIAL_SIZE) serialize(msg)
+            val deserStart = System.currentTimeMillis()
+            for (_ <- 1 to TRIAL_SIZE) deserializeMessage(data, clazz)
+            val end = System.currentTimeMillis()
+
+            testItem.addDataBuilder().setProperty(s"$format bytes")
+                                     .setValue(data.length.toString)
+            testItem.addDataBuilder().setProperty(s"$format serialize")
+                                     .setLatencyMilliSec(deserStart - serStart)
+            testItem.addDataBuilder().setProperty(s"$format deserialize")
+                                     .setLatencyMilliSec(end - deserStart)
+        }
+        testItem.setTestStatus(TestItem.TestStatus.SUCCESS)
+    }
+
+    "Message encodings" should "be compared for size and speed" ignore {
+        val test = experimentCommonSettings
+        val result = getResultsBuilder(test)
+        val network = Network.newBuilder.setId(randomUuidProto)
+                                        .setName("network")
+        compareMessageEncodings("Network", network.build(), result)
+        for (_ <- 1 to 1000) network.addPortIds(randomUuidProto)
+        compareMessageEncodings("1K ports network", network.build(), result)
+        compareMessageEncodings("Port", ProtoPort(network.build()), result)
+        compareMessageEncodings(
+            "Rule", ProtoRule(Rule.Action.ACCEPT, randomUuidProto), result)
+        collectTest(test)
+    }
+
     "Empty layout" should "be tested for read/write latency" ignore {
         val test = experimentCommonSettings
         val result = getResultsBuilder(test)
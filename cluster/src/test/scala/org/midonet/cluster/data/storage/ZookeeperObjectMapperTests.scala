@@ -16,12 +16,17 @@
 package org.midonet.cluster.data.storage
 
 import java.util.UUID
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import com.google.protobuf.TextFormat
 import org.junit.runner.RunWith
 import org.midonet.cluster.data.storage.FieldBinding.DeleteAction._
 import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest._
+import org.midonet.cluster.models.Devices.Network
 import org.midonet.cluster.util.CuratorTestFramework
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{Matchers, Suite}
 
@@ -39,7 +44,11 @@ class ZookeeperObjectMapperTests extends Suite
     private var zom: ZookeeperObjectMapper = _
 
     override protected def setup(): Unit = {
-        zom = new ZookeeperObjectMapper(ZK_ROOT, curator)
+        zom = createMapper(optimistic = false)
+    }
+
+    private def createMapper(optimistic: Boolean) = {
+        val zom = new ZookeeperObjectMapper(ZK_ROOT, curator, optimistic)
 
         List(classOf[PojoBridge], classOf[PojoRouter], classOf[PojoPort],
              classOf[PojoChain], classOf[PojoRule]).foreach {
@@ -74,6 +83,7 @@ class ZookeeperObjectMapperTests extends Suite
                            classOf[PojoPort], "ruleIds", CLEAR)
 
         zom.build()
+        zom
     }
 
     def await[T](f: Future[T]) =
@@ -179,6 +189,73 @@ class ZookeeperObjectMapperTests extends Suite
         }
     }
 
+    def testMultiWithUpdateOfMissingReference() {
+        val chain = PojoChain()
+        val bridge = PojoBridge()
+        zom.create(bridge)
+        try {
+            zom.multi(List(UpdateOp(PojoBridge(id = bridge.id,
+                                               inChainId = chain.id))))
+            fail("Bridge update should fail due to missing chain.")
+        } catch {
+            case nfe: NotFoundException =>
+                nfe.clazz should be(classOf[PojoChain])
+                nfe.id should equal(chain.id)
+        }
+    }
+
+    def testMultiWithoutPrefetching() {
+        zom.prefetchReads = false
+        testMultiCreateUpdateAndDelete()
+        testMultiUpdateAndCascadingDelete()
+    }
+
+    def testMultiWithStalledPrefetching() {
+        val chain = PojoChain(name = "chain1")
+        val bridge = PojoBridge(name = "bridge1")
+        zom.multi(List(CreateOp(chain), CreateOp(bridge)))
+
+        // Block the event thread, which completes the background reads.
+        val blocked = new CountDownLatch(1)
+        val released = new CountDownLatch(1)
+        curator.checkExists().inBackground(new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       evt: CuratorEvent): Unit = {
+                blocked.countDown()
+                released.await()
+            }
+        }).forPath(ZK_ROOT)
+        blocked.await()
+
+        try {
+            zom.update(PojoBridge(id = bridge.id, name = "bridge2",
+                                  inChainId = chain.id))
+        } finally {
+            released.countDown()
+        }
+
+        val updatedBridge = await(zom.get(classOf[PojoBridge], bridge.id))
+        updatedBridge.name shouldBe "bridge2"
+        val updatedChain = await(zom.get(classOf[PojoChain], chain.id))
+        updatedChain.bridgeIds.asScala should equal(List(bridge.id))
+    }
+
+    def testOptimisticConcurrentCreates() {
+        implicit val es = ExecutionContext.global
+        val optimisticZom = createMapper(optimistic = true)
+        val bridge = PojoBridge()
+        optimisticZom.create(bridge)
+
+        val ports = List.fill(8)(PojoPort(bridgeId = bridge.id))
+        val creates = ports.map(port => Future(optimisticZom.create(port)))
+        Await.result(Future.sequence(creates),
+                     Duration.create(10, TimeUnit.SECONDS))
+
+        val updatedBridge = await(zom.get(classOf[PojoBridge], bridge.id))
+        updatedBridge.portIds.asScala should contain theSameElementsAs
+            ports.map(_.id)
+    }
+
     def testMultiIdGet() {
         implicit val es = ExecutionContext.global
         val chains = List("chain0", "chain1", "chain2").map(PojoChain)
@@ -189,6 +266,65 @@ class ZookeeperObjectMapperTests extends Suite
         )
         twoChains.map(_.name) should equal(List("chain0", "chain1"))
     }
+
+    def testMessageEncodings() {
+        val network = Network.newBuilder.setId(randomUuidProto)
+                                        .setName("network").build()
+        val data = ZookeeperObjectMapper.serialize(network,
+                                                   binaryMessages = true)
+        data(0) shouldBe ZookeeperObjectMapper.EncodingMarker
+        data(1) shouldBe ZookeeperObjectMapper.BinaryEncoding
+        ZookeeperObjectMapper.deserialize(data, classOf[Network]) shouldBe network
+
+        val large = network.toBuilder
+        for (_ <- 1 to 100) large.addPortIds(network.getId)
+        val largeData = ZookeeperObjectMapper.serialize(
+            large.build(), binaryMessages = true)
+        largeData(1) shouldBe ZookeeperObjectMapper.DeflatedEncoding
+        largeData.length should be < large.build().getSerializedSize
+        ZookeeperObjectMapper.deserialize(
+            largeData, classOf[Network]) shouldBe large.build()
+    }
+
+    def testReadMessagesInTextFormat() {
+        val network = Network.newBuilder.setId(randomUuidProto)
+                                        .setName("network").build()
+        ZookeeperObjectMapper.deserialize(
+            network.toString.getBytes, classOf[Network]) shouldBe network
+        ZookeeperObjectMapper.deserialize(
+            Array[Byte](), classOf[Network]) shouldBe
+            Network.getDefaultInstance
+    }
+
+    def testWriteMessagesInTextFormat() {
+        def networkMapper(binaryMessages: Boolean) = {
+            val zom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                                optimistic = false,
+                                                binaryMessages)
+            zom.registerClass(classOf[Network])
+            zom.build()
+            zom
+        }
+        val textZom = networkMapper(binaryMessages = false)
+        val binaryZom = networkMapper(binaryMessages = true)
+
+        val network = Network.newBuilder.setId(randomUuidProto)
+                                        .setName("network").build()
+        textZom.create(network)
+
+        // Nodes that predate the binary format parse the data as text.
+        val data = curator.getData.forPath(
+            textZom.getPath(classOf[Network], network.getId))
+        val builder = Network.newBuilder
+        TextFormat.merge(new String(data), builder)
+        builder.build() shouldBe network
+
+        // Binary and text mappers read what each other write.
+        await(binaryZom.get(classOf[Network], network.getId)) shouldBe network
+        val renamed = network.toBuilder.setName("renamed").build()
+        binaryZom.update(renamed)
+        await(textZom.get(classOf[Network], network.getId)) shouldBe renamed
+    }
 }
 
 private object ZookeeperObjectMapperTests {
@@ -900,6 +900,17 @@ public interface DataClient {
      */
     Set<String> tenantsGetAll() throws StateAccessException;
 
+    /**
+     * Adds the bridges, routers, chains and port groups that are missing
+     * from the index of their tenants, which the find-by-tenant methods
+     * rely on. Needed for the devices created before the index was
+     * maintained.
+     *
+     * @return The number of devices added to the index
+     */
+    int tenantsBuildIndex()
+            throws StateAccessException, SerializationException;
+
     /**
      * Get the current write version.
      *
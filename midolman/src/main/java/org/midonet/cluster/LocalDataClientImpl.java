@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,8 +33,6 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
-import com.google.common.base.Strings;
-
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -84,6 +81,7 @@ import org.midonet.midolman.host.state.HostZkManager;
 import org.midonet.midolman.rules.RuleList;
 import org.midonet.midolman.serialization.SerializationException;
 import org.midonet.midolman.serialization.Serializer;
+import org.midonet.midolman.state.BaseZkManager;
 import org.midonet.midolman.state.Directory;
 import org.midonet.midolman.state.DirectoryCallback;
 import org.midonet.midolman.state.InvalidStateOperationException;
@@ -113,18 +111,23 @@ import org.midonet.midolman.state.zkManagers.BridgeZkManager.BridgeConfig;
 import org.midonet.midolman.state.zkManagers.ChainZkManager;
 import org.midonet.midolman.state.zkManagers.ConfigGetter;
 import org.midonet.midolman.state.zkManagers.HealthMonitorZkManager;
+import org.midonet.midolman.state.zkManagers.HealthMonitorZkManager.HealthMonitorConfig;
 import org.midonet.midolman.state.zkManagers.IpAddrGroupZkManager;
 import org.midonet.midolman.state.zkManagers.LoadBalancerZkManager;
+import org.midonet.midolman.state.zkManagers.LoadBalancerZkManager.LoadBalancerConfig;
 import org.midonet.midolman.state.zkManagers.PoolHealthMonitorZkManager.PoolHealthMonitorConfig;
 import org.midonet.midolman.state.zkManagers.PoolHealthMonitorZkManager.PoolHealthMonitorConfig.HealthMonitorConfigWithId;
 import org.midonet.midolman.state.zkManagers.PoolHealthMonitorZkManager.PoolHealthMonitorConfig.LoadBalancerConfigWithId;
 import org.midonet.midolman.state.zkManagers.PoolHealthMonitorZkManager.PoolHealthMonitorConfig.PoolMemberConfigWithId;
 import org.midonet.midolman.state.zkManagers.PoolHealthMonitorZkManager.PoolHealthMonitorConfig.VipConfigWithId;
 import org.midonet.midolman.state.zkManagers.PoolMemberZkManager;
+import org.midonet.midolman.state.zkManagers.PoolMemberZkManager.PoolMemberConfig;
 import org.midonet.midolman.state.zkManagers.PoolZkManager;
 import org.midonet.midolman.state.zkManagers.PortGroupZkManager;
+import org.midonet.midolman.state.zkManagers.PortGroupZkManager.PortGroupConfig;
 import org.midonet.midolman.state.zkManagers.PortSetZkManager;
 import org.midonet.midolman.state.zkManagers.PortZkManager;
+import org.midonet.midolman.state.zkManagers.ResourceType;
 import org.midonet.midolman.state.zkManagers.RouteZkManager;
 import org.midonet.midolman.state.zkManagers.RouterZkManager;
 import org.midonet.midolman.state.zkManagers.RuleZkManager;
@@ -314,15 +317,36 @@ public class LocalDataClientImpl implements DataClient {
         return bgps;
     }
 
+    /**
+     * Gets the ids of the devices of a type that may belong to a tenant,
+     * for the caller to filter by tenant. These are read from the tenant
+     * index, or are all the devices under the given path until the index
+     * is built.
+     */
+    private List<UUID> findTenantResources(ResourceType type, String tenantId,
+                                           BaseZkManager manager,
+                                           String devicesPath)
+            throws StateAccessException {
+        if (tenantZkManager.isIndexBuilt()) {
+            return tenantZkManager.listResources(type, tenantId);
+        }
+        return manager.getUuidList(devicesPath);
+    }
+
     public List<Bridge> bridgesFindByTenant(String tenantId)
         throws StateAccessException, SerializationException {
         log.debug("bridgesFindByTenant entered: tenantId={}", tenantId);
 
-        List<Bridge> bridges = bridgesGetAll();
-
-        for (Iterator<Bridge> it = bridges.iterator(); it.hasNext();) {
-            if (!it.next().hasTenantId(tenantId)) {
-                it.remove();
+        List<Bridge> bridges = new ArrayList<>();
+        List<UUID> ids = findTenantResources(
+                ResourceType.BRIDGE, tenantId, bridgeZkManager,
+                pathBuilder.getBridgesPath());
+        for (Map.Entry<UUID, BridgeConfig> entry :
+                bridgeZkManager.getAll(ids).entrySet()) {
+            Bridge bridge = Converter.fromBridgeConfig(entry.getValue());
+            bridge.setId(entry.getKey());
+            if (bridge.hasTenantId(tenantId)) {
+                bridges.add(bridge);
             }
         }
 
@@ -536,15 +560,10 @@ public class LocalDataClientImpl implements DataClient {
         BridgeZkManager.BridgeConfig bridgeConfig = Converter.toBridgeConfig(
             bridge);
 
+        // Also creates the tenant and adds the bridge to its index.
         List<Op> ops =
                 bridgeZkManager.prepareBridgeCreate(bridge.getId(),
                                                     bridgeConfig);
-
-        // Create the top level directories for
-        String tenantId = bridge.getProperty(Bridge.Property.tenant_id);
-        if (!Strings.isNullOrEmpty(tenantId)) {
-            ops.addAll(tenantZkManager.prepareCreate(tenantId));
-        }
         zkManager.multi(ops);
 
         log.debug("bridgesCreate exiting: bridge={}", bridge);
@@ -575,12 +594,13 @@ public class LocalDataClientImpl implements DataClient {
         log.debug("bridgesGetAll entered");
         List<Bridge> bridges = new ArrayList<>();
 
-        for (UUID id :
-            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath())) {
-            Bridge bridge = bridgesGet(id);
-            if (bridge != null) {
-                bridges.add(bridge);
-            }
+        List<UUID> ids =
+            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath());
+        for (Map.Entry<UUID, BridgeConfig> entry :
+                bridgeZkManager.getAll(ids).entrySet()) {
+            Bridge bridge = Converter.fromBridgeConfig(entry.getValue());
+            bridge.setId(entry.getKey());
+            bridges.add(bridge);
         }
 
         log.debug("bridgesGetAll exiting: {} bridges found", bridges.size());
@@ -664,12 +684,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getChainsPath();
         if (zkManager.exists(path)) {
-            Set<String> chainIds = zkManager.getChildren(path);
-            for (String id : chainIds) {
-                Chain chain = chainsGet(UUID.fromString(id));
-                if (chain != null) {
-                    chains.add(chain);
-                }
+            List<UUID> chainIds = chainZkManager.getUuidList(path);
+            for (Map.Entry<UUID, ChainZkManager.ChainConfig> entry :
+                    chainZkManager.getAll(chainIds).entrySet()) {
+                Chain chain = Converter.fromChainConfig(entry.getValue());
+                chain.setId(entry.getKey());
+                chains.add(chain);
             }
         }
 
@@ -716,15 +736,9 @@ public class LocalDataClientImpl implements DataClient {
         ChainZkManager.ChainConfig chainConfig =
                 Converter.toChainConfig(chain);
 
+        // Also creates the tenant and adds the chain to its index.
         List<Op> ops =
                 chainZkManager.prepareCreate(chain.getId(), chainConfig);
-
-        // Create the top level directories for
-        String tenantId = chain.getProperty(Chain.Property.tenant_id);
-        if (!Strings.isNullOrEmpty(tenantId)) {
-            ops.addAll(tenantZkManager.prepareCreate(tenantId));
-        }
-
         zkManager.multi(ops);
 
         log.debug("chainsCreate exiting: chain={}", chain);
@@ -766,11 +780,9 @@ public class LocalDataClientImpl implements DataClient {
 
         List<TunnelZone> tunnelZones = new ArrayList<>();
 
-        for (UUID id : ids) {
-            TunnelZone zone = tunnelZonesGet(id);
-            if (zone != null) {
-                tunnelZones.add(zone);
-            }
+        for (Map.Entry<UUID, TunnelZone.Data> entry :
+                zonesZkManager.getAll(ids).entrySet()) {
+            tunnelZones.add(new TunnelZone(entry.getKey(), entry.getValue()));
         }
 
         return tunnelZones;
@@ -919,10 +931,16 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
         log.debug("chainsFindByTenant entered: tenantId={}", tenantId);
 
-        List<Chain> chains = chainsGetAll();
-        for (Iterator<Chain> it = chains.iterator(); it.hasNext();) {
-            if (!it.next().hasTenantId(tenantId)) {
-                it.remove();
+        List<Chain> chains = new ArrayList<>();
+        List<UUID> ids = findTenantResources(
+                ResourceType.CHAIN, tenantId, chainZkManager,
+                pathBuilder.getChainsPath());
+        for (Map.Entry<UUID, ChainZkManager.ChainConfig> entry :
+                chainZkManager.getAll(ids).entrySet()) {
+            Chain chain = Converter.fromChainConfig(entry.getValue());
+            chain.setId(entry.getKey());
+            if (chain.hasTenantId(tenantId)) {
+                chains.add(chain);
             }
         }
 
@@ -1424,8 +1442,11 @@ public class LocalDataClientImpl implements DataClient {
 
         Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
         List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            ports.add(portsGet(id));
+        for (Map.Entry<UUID, PortConfig> entry :
+                portZkManager.getAll(ids).entrySet()) {
+            Port<?, ?> port = Converter.fromPortConfig(entry.getValue());
+            port.setId(entry.getKey());
+            ports.add(port);
         }
 
         return ports;
@@ -1461,12 +1482,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPortsPath();
         if (zkManager.exists(path)) {
-            Set<String> portIds = zkManager.getChildren(path);
-            for (String id : portIds) {
-                Port<?, ?> port = portsGet(UUID.fromString(id));
-                if (port != null) {
-                    ports.add(port);
-                }
+            List<UUID> portIds = portZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PortConfig> entry :
+                    portZkManager.getAll(portIds).entrySet()) {
+                Port<?, ?> port = Converter.fromPortConfig(entry.getValue());
+                port.setId(entry.getKey());
+                ports.add(port);
             }
         }
 
@@ -1517,8 +1538,11 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
         Set<UUID> portIds = portZkManager.getPortGroupPortIds(portGroupId);
         List<Port<?, ?>> ports = new ArrayList<>(portIds.size());
-        for (UUID portId : portIds) {
-            ports.add(portsGet(portId));
+        for (Map.Entry<UUID, PortConfig> entry :
+                portZkManager.getAll(portIds).entrySet()) {
+            Port<?, ?> port = Converter.fromPortConfig(entry.getValue());
+            port.setId(entry.getKey());
+            ports.add(port);
         }
 
         return ports;
@@ -1557,11 +1581,11 @@ public class LocalDataClientImpl implements DataClient {
         Set<UUID> ids = ipAddrGroupZkManager.getAllIds();
 
         List<IpAddrGroup> groups = new ArrayList<>();
-        for (UUID id : ids) {
-            IpAddrGroupZkManager.IpAddrGroupConfig config =
-                    ipAddrGroupZkManager.get(id);
-            IpAddrGroup group = Converter.fromIpAddrGroupConfig(config);
-            group.setId(id);
+        for (Map.Entry<UUID, IpAddrGroupZkManager.IpAddrGroupConfig> entry :
+                ipAddrGroupZkManager.getAll(ids).entrySet()) {
+            IpAddrGroup group =
+                Converter.fromIpAddrGroupConfig(entry.getValue());
+            group.setId(entry.getKey());
             groups.add(group);
         }
         return groups;
@@ -1596,10 +1620,17 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
         log.debug("portGroupsFindByTenant entered: tenantId={}", tenantId);
 
-        List<PortGroup> portGroups = portGroupsGetAll();
-        for (Iterator<PortGroup> it = portGroups.iterator(); it.hasNext();) {
-            if (!it.next().hasTenantId(tenantId)) {
-                it.remove();
+        List<PortGroup> portGroups = new ArrayList<>();
+        List<UUID> ids = findTenantResources(
+                ResourceType.PORT_GROUP, tenantId, portGroupZkManager,
+                pathBuilder.getPortGroupsPath());
+        for (Map.Entry<UUID, PortGroupConfig> entry :
+                portGroupZkManager.getAll(ids).entrySet()) {
+            PortGroup portGroup =
+                Converter.fromPortGroupConfig(entry.getValue());
+            portGroup.setId(entry.getKey());
+            if (portGroup.hasTenantId(tenantId)) {
+                portGroups.add(portGroup);
             }
         }
 
@@ -1661,15 +1692,10 @@ public class LocalDataClientImpl implements DataClient {
         PortGroupZkManager.PortGroupConfig portGroupConfig =
                 Converter.toPortGroupConfig(portGroup);
 
+        // Also creates the tenant and adds the port group to its index.
         List<Op> ops =
                 portGroupZkManager.prepareCreate(portGroup.getId(),
                         portGroupConfig);
-
-        String tenantId = portGroup.getProperty(PortGroup.Property.tenant_id);
-        if (!Strings.isNullOrEmpty(tenantId)) {
-            ops.addAll(tenantZkManager.prepareCreate(tenantId));
-        }
-
         zkManager.multi(ops);
 
         log.debug("portGroupsCreate exiting: portGroup={}", portGroup);
@@ -1704,12 +1730,13 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPortGroupsPath();
         if (zkManager.exists(path)) {
-            Set<String> portGroupIds = zkManager.getChildren(path);
-            for (String id : portGroupIds) {
-                PortGroup portGroup = portGroupsGet(UUID.fromString(id));
-                if (portGroup != null) {
-                    portGroups.add(portGroup);
-                }
+            List<UUID> portGroupIds = portGroupZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PortGroupConfig> entry :
+                    portGroupZkManager.getAll(portGroupIds).entrySet()) {
+                PortGroup portGroup =
+                    Converter.fromPortGroupConfig(entry.getValue());
+                portGroup.setId(entry.getKey());
+                portGroups.add(portGroup);
             }
         }
 
@@ -1867,13 +1894,14 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getLoadBalancersPath();
         if (zkManager.exists(path)) {
-            Set<String> loadBalancerIds = zkManager.getChildren(path);
-            for (String id : loadBalancerIds) {
+            List<UUID> loadBalancerIds =
+                loadBalancerZkManager.getUuidList(path);
+            for (Map.Entry<UUID, LoadBalancerConfig> entry :
+                    loadBalancerZkManager.getAll(loadBalancerIds).entrySet()) {
                 LoadBalancer loadBalancer =
-                    loadBalancerGet(UUID.fromString(id));
-                if (loadBalancer != null) {
-                    loadBalancers.add(loadBalancer);
-                }
+                    Converter.fromLoadBalancerConfig(entry.getValue());
+                loadBalancer.setId(entry.getKey());
+                loadBalancers.add(loadBalancer);
             }
         }
 
@@ -2122,13 +2150,15 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getHealthMonitorsPath();
         if (zkManager.exists(path)) {
-            Set<String> healthMonitorIds = zkManager.getChildren(path);
-            for (String id : healthMonitorIds) {
-                HealthMonitor healthMonitor
-                    = healthMonitorGet(UUID.fromString(id));
-                if (healthMonitor != null) {
-                    healthMonitors.add(healthMonitor);
-                }
+            List<UUID> healthMonitorIds =
+                healthMonitorZkManager.getUuidList(path);
+            for (Map.Entry<UUID, HealthMonitorConfig> entry :
+                    healthMonitorZkManager.getAll(healthMonitorIds)
+                                          .entrySet()) {
+                HealthMonitor healthMonitor =
+                    Converter.fromHealthMonitorConfig(entry.getValue());
+                healthMonitor.setId(entry.getKey());
+                healthMonitors.add(healthMonitor);
             }
         }
 
@@ -2339,12 +2369,13 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPoolMembersPath();
         if (zkManager.exists(path)) {
-            Set<String> poolMemberIds = zkManager.getChildren(path);
-            for (String id : poolMemberIds) {
-                PoolMember poolMember = poolMemberGet(UUID.fromString(id));
-                if (poolMember != null) {
-                    poolMembers.add(poolMember);
-                }
+            List<UUID> poolMemberIds = poolMemberZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PoolMemberConfig> entry :
+                    poolMemberZkManager.getAll(poolMemberIds).entrySet()) {
+                PoolMember poolMember =
+                    Converter.fromPoolMemberConfig(entry.getValue());
+                poolMember.setId(entry.getKey());
+                poolMembers.add(poolMember);
             }
         }
 
@@ -2576,12 +2607,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getPoolsPath();
         if (zkManager.exists(path)) {
-            Set<String> poolIds = zkManager.getChildren(path);
-            for (String id : poolIds) {
-                Pool pool = poolGet(UUID.fromString(id));
-                if (pool != null) {
-                    pools.add(pool);
-                }
+            List<UUID> poolIds = poolZkManager.getUuidList(path);
+            for (Map.Entry<UUID, PoolZkManager.PoolConfig> entry :
+                    poolZkManager.getAll(poolIds).entrySet()) {
+                Pool pool = Converter.fromPoolConfig(entry.getValue());
+                pool.setId(entry.getKey());
+                pools.add(pool);
             }
         }
 
@@ -2814,12 +2845,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getVipsPath();
         if (zkManager.exists(path)) {
-            Set<String> vipIds = zkManager.getChildren(path);
-            for (String id : vipIds) {
-                VIP vip = vipGet(UUID.fromString(id));
-                if (vip != null) {
-                    vips.add(vip);
-                }
+            List<UUID> vipIds = vipZkManager.getUuidList(path);
+            for (Map.Entry<UUID, VipZkManager.VipConfig> entry :
+                    vipZkManager.getAll(vipIds).entrySet()) {
+                VIP vip = Converter.fromVipConfig(entry.getValue());
+                vip.setId(entry.getKey());
+                vips.add(vip);
             }
         }
 
@@ -2871,8 +2902,11 @@ public class LocalDataClientImpl implements DataClient {
 
         List<UUID> routeIds = routeZkManager.list(routerId);
         List<Route> routes = new ArrayList<>();
-        for (UUID id : routeIds) {
-            routes.add(routesGet(id));
+        for (Map.Entry<UUID, org.midonet.midolman.layer3.Route> entry :
+                routeZkManager.getAll(routeIds).entrySet()) {
+            Route route = Converter.fromRouteConfig(entry.getValue());
+            route.setId(entry.getKey());
+            routes.add(route);
         }
         return routes;
 
@@ -2891,12 +2925,12 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getRoutersPath();
         if (zkManager.exists(path)) {
-            Set<String> routerIds = zkManager.getChildren(path);
-            for (String id : routerIds) {
-                Router router = routersGet(UUID.fromString(id));
-                if (router != null) {
-                    routers.add(router);
-                }
+            List<UUID> routerIds = routerZkManager.getUuidList(path);
+            for (Map.Entry<UUID, RouterZkManager.RouterConfig> entry :
+                    routerZkManager.getAll(routerIds).entrySet()) {
+                Router router = Converter.fromRouterConfig(entry.getValue());
+                router.setId(entry.getKey());
+                routers.add(router);
             }
         }
 
@@ -2943,15 +2977,10 @@ public class LocalDataClientImpl implements DataClient {
         RouterZkManager.RouterConfig routerConfig =
                 Converter.toRouterConfig(router);
 
+        // Also creates the tenant and adds the router to its index.
         List<Op> ops =
                 routerZkManager.prepareRouterCreate(router.getId(),
                         routerConfig);
-
-        // Create the top level directories
-        String tenantId = router.getProperty(Router.Property.tenant_id);
-        if (!Strings.isNullOrEmpty(tenantId)) {
-            ops.addAll(tenantZkManager.prepareCreate(tenantId));
-        }
         zkManager.multi(ops);
 
         log.debug("routersCreate ex.ing: router={}", router);
@@ -2980,11 +3009,16 @@ public class LocalDataClientImpl implements DataClient {
         SerializationException {
         log.debug("routersFindByTenant entered: tenantId={}", tenantId);
 
-        List<Router> routers = routersGetAll();
-
-        for (Iterator<Router> it = routers.iterator(); it.hasNext();) {
-            if (!it.next().hasTenantId(tenantId)) {
-                it.remove();
+        List<Router> routers = new ArrayList<>();
+        List<UUID> ids = findTenantResources(
+                ResourceType.ROUTER, tenantId, routerZkManager,
+                pathBuilder.getRoutersPath());
+        for (Map.Entry<UUID, RouterZkManager.RouterConfig> entry :
+                routerZkManager.getAll(ids).entrySet()) {
+            Router router = Converter.fromRouterConfig(entry.getValue());
+            router.setId(entry.getKey());
+            if (router.hasTenantId(tenantId)) {
+                routers.add(router);
             }
         }
 
@@ -3029,13 +3063,17 @@ public class LocalDataClientImpl implements DataClient {
     public List<Rule<?, ?>> rulesFindByChain(UUID chainId)
             throws StateAccessException, SerializationException {
         List<UUID> ruleIds = ruleZkManager.getRuleList(chainId).getRuleList();
+        List<org.midonet.midolman.rules.Rule> configs =
+            ruleZkManager.get(ruleIds);
         List<Rule<?, ?>> rules = new ArrayList<>();
 
-        int position = 1;
-        for (UUID id : ruleIds) {
-            Rule<?,?> rule = rulesGet(id);
-            rule.setPosition(position);
-            position++;
+        for (int i = 0; i < ruleIds.size(); i++) {
+            if (configs.get(i) == null) {
+                continue;
+            }
+            Rule<?,?> rule = Converter.fromRuleConfig(configs.get(i));
+            rule.setId(ruleIds.get(i));
+            rule.setPosition(i + 1);
             rules.add(rule);
         }
         return rules;
@@ -3082,6 +3120,12 @@ public class LocalDataClientImpl implements DataClient {
         return tenantZkManager.list();
     }
 
+    @Override
+    public int tenantsBuildIndex()
+            throws StateAccessException, SerializationException {
+        return tenantZkManager.buildIndex();
+    }
+
     /**
      * Get the current write version.
      *
@@ -3218,12 +3262,15 @@ public class LocalDataClientImpl implements DataClient {
 
         String path = pathBuilder.getVtepsPath();
         if (zkManager.exists(path)) {
-            Set<String> vtepIps = zkManager.getChildren(path);
-            for (String vtepIp : vtepIps) {
-                VTEP vtep = vtepGet(IPv4Addr.fromString(vtepIp));
-                if (vtep != null) {
-                    vteps.add(vtep);
-                }
+            List<IPv4Addr> ips = new ArrayList<>();
+            for (String vtepIp : zkManager.getChildren(path)) {
+                ips.add(IPv4Addr.fromString(vtepIp));
+            }
+            for (Map.Entry<IPv4Addr, VtepZkManager.VtepConfig> entry :
+                    vtepZkManager.getAll(ips).entrySet()) {
+                VTEP vtep = Converter.fromVtepConfig(entry.getValue());
+                vtep.setId(entry.getKey());
+                vteps.add(vtep);
             }
         }
 
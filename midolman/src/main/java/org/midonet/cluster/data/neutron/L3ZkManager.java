@@ -146,8 +146,8 @@ public class L3ZkManager extends BaseZkManager {
         if (config == null)
             return;
 
-        ops.addAll(chainZkManager.prepareDelete(config.inboundFilter));
-        ops.addAll(chainZkManager.prepareDelete(config.outboundFilter));
+        chainZkManager.prepareDelete(ops, config.inboundFilter);
+        chainZkManager.prepareDelete(ops, config.outboundFilter);
 
         ops.addAll(routerZkManager.prepareRouterDelete(id));
 
@@ -203,13 +203,11 @@ public class L3ZkManager extends BaseZkManager {
             networkZkManager.prepareUpdateNeutronPort(ops, port);
 
             if (bpConfig.inboundFilter != null) {
-                ops.addAll(chainZkManager.prepareDelete(
-                    bpConfig.inboundFilter));
+                chainZkManager.prepareDelete(ops, bpConfig.inboundFilter);
             }
 
             if (bpConfig.outboundFilter != null) {
-                ops.addAll(chainZkManager.prepareDelete(
-                    bpConfig.outboundFilter));
+                chainZkManager.prepareDelete(ops, bpConfig.outboundFilter);
             }
 
             networkZkManager.prepareDeleteDhcpHostEntries(ops, port);
@@ -231,11 +231,11 @@ public class SecurityGroupZkManager extends BaseZkManager {
         throws SerializationException, StateAccessException {
         // Delete all the rules in the chain plus the chain itself
         if (cfg.inboundFilter != null) {
-            ops.addAll(chainZkManager.prepareDelete(cfg.inboundFilter));
+            chainZkManager.prepareDelete(ops, cfg.inboundFilter);
         }
 
         if (cfg.outboundFilter != null) {
-            ops.addAll(chainZkManager.prepareDelete(cfg.outboundFilter));
+            chainZkManager.prepareDelete(ops, cfg.outboundFilter);
         }
     }
 
@@ -291,10 +291,10 @@ public class SecurityGroupZkManager extends BaseZkManager {
 
         // Delete the chains
         UUID inboundChainId = group.getPropertyUuid(RuleDirection.EGRESS);
-        ops.addAll(chainZkManager.prepareDelete(inboundChainId));
+        chainZkManager.prepareDelete(ops, inboundChainId);
 
         UUID outboundChainId = group.getPropertyUuid(RuleDirection.INGRESS);
-        ops.addAll(chainZkManager.prepareDelete(outboundChainId));
+        chainZkManager.prepareDelete(ops, outboundChainId);
 
         String path = paths.getNeutronSecurityGroupPath(sgId);
         ops.add(zk.getDeleteOp(path));
@@ -16,6 +16,7 @@
 
 package org.midonet.midolman.config;
 
+import org.midonet.config.ConfigBool;
 import org.midonet.config.ConfigGroup;
 import org.midonet.config.ConfigInt;
 
@@ -37,6 +38,21 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    /**
+     * Caps the bytes read from a datapath socket per wakeup, on top of
+     * msgs_per_batch. Zero means no cap.
+     */
+    @ConfigInt(key = "bytes_per_batch", defaultValue = 0)
+    public int getMaxBytesPerBatch();
+
+    /**
+     * How many datagrams to receive from a datapath socket with each system
+     * call. Above one, the sockets are drained with recvmmsg(), where the C
+     * library provides it, into a 64KB buffer per datagram.
+     */
+    @ConfigInt(key = "msgs_per_read", defaultValue = 1)
+    public int getMessagesPerRead();
+
     /**
      * The wildcard flows have idle times, so the table should take care of itself. Having a smaller table (a limited
      * size table) means that the system would be potentially evicting valid flows often, causing more simulations and
@@ -62,4 +78,7 @@ public interface DatapathConfig {
 
     @ConfigInt(key = "vtep_incoming_burst_capacity", defaultValue = 2000)
     public int getVtepIncomingBurstCapacity();
+
+    @ConfigBool(key = "enable_megaflows", defaultValue = false)
+    public boolean getMegaflowsEnabled();
 }
@@ -77,12 +77,30 @@ public interface MidolmanConfig
     @ConfigInt(key = "idle_flow_tolerance_interval", defaultValue = 10000)
     public int getIdleFlowToleranceInterval();
 
+    @ConfigInt(key = "idle_flow_dump_threshold", defaultValue = 256)
+    public int getIdleFlowDumpThreshold();
+
+    @ConfigString(key = "flow_state_encoding", defaultValue = "protobuf")
+    public String getFlowStateEncoding();
+
     @ConfigBool(key = "enable_dashboard", defaultValue = false)
     public boolean getDashboardEnabled();
 
     @ConfigString(key = "jetty_xml", defaultValue = "/etc/midolman/jetty/etc/jetty.xml")
     public String pathToJettyXml();
 
+    @ConfigGroup(CassandraConfig.GROUP_NAME)
+    @ConfigInt(key = "flow_state_write_queue_size", defaultValue = 65536)
+    public int getFlowStateWriteQueueSize();
+
+    @ConfigGroup(CassandraConfig.GROUP_NAME)
+    @ConfigInt(key = "flow_state_write_batch_size", defaultValue = 128)
+    public int getFlowStateWriteBatchSize();
+
+    @ConfigGroup(CassandraConfig.GROUP_NAME)
+    @ConfigInt(key = "flow_state_write_flush_interval", defaultValue = 50)
+    public int getFlowStateWriteFlushInterval();
+
     @ConfigGroup("bridge")
     @ConfigInt(key = "mac_port_mapping_expire_millis", defaultValue = 30000)
     public int getMacPortMappingExpireMillis();
@@ -95,4 +113,7 @@ public interface MidolmanConfig
 
     @ConfigString(key = "input_channel_threading", defaultValue = "one_to_many")
     public String getInputChannelThreading();
+
+    @ConfigString(key = "flow_key_interning", defaultValue = "weak")
+    public String getFlowKeyInterning();
 }
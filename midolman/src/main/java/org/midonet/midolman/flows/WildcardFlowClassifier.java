@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.midonet.sdn.flows.ManagedWildcardFlow;
+import org.midonet.sdn.flows.WildcardMatch;
+
+/**
+ * A tuple space search classifier for wildcard flows. There is one table
+ * (a tuple) per wildcard pattern, i.e., per set of fields used by the
+ * matches it contains. A lookup projects the packet's match over the pattern
+ * of each tuple and probes the tuple's hash table with the projection.
+ *
+ * Tuples are kept sorted by the best (lowest) priority of the flows they
+ * contain, so a lookup can stop as soon as no remaining tuple can contain a
+ * flow that beats the current hit. The projection is never materialized: the
+ * probe key computes its hash code and equality directly over the fields of
+ * the source match.
+ *
+ * The classifier supports a single writer (the FlowController) and any
+ * number of concurrent readers.
+ */
+public class WildcardFlowClassifier implements WildcardTablesProvider {
+
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int CONCURRENCY_LEVEL = 1;
+    private static final Tuple[] NO_TUPLES = new Tuple[0];
+
+    private static final Comparator<Tuple> BY_PRIORITY =
+        new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple t1, Tuple t2) {
+                return Integer.compare(t1.bestPriority, t2.bestPriority);
+            }
+        };
+
+    private static final ThreadLocal<ProjectedKey> probe =
+        new ThreadLocal<ProjectedKey>() {
+            @Override
+            protected ProjectedKey initialValue() {
+                return new ProjectedKey();
+            }
+        };
+
+    private final int tupleCapacity;
+    private final TupleMap tuples;
+    private volatile Tuple[] sortedTuples = NO_TUPLES;
+
+    public WildcardFlowClassifier(int initialTuples, int tupleCapacity) {
+        this.tupleCapacity = tupleCapacity;
+        this.tuples = new TupleMap(initialTuples);
+    }
+
+    @Override
+    public Map<WildcardMatch, ManagedWildcardFlow> addTable(
+            Set<WildcardMatch.Field> pattern) {
+        Map<WildcardMatch, ManagedWildcardFlow> table = tuples.get(pattern);
+        if (table == null) {
+            table = new Tuple(pattern);
+            tuples.put(pattern, table);
+        }
+        return table;
+    }
+
+    @Override
+    public Map<Set<WildcardMatch.Field>,
+               Map<WildcardMatch, ManagedWildcardFlow>> tables() {
+        return tuples;
+    }
+
+    public int numTuples() {
+        return sortedTuples.length;
+    }
+
+    public void clear() {
+        tuples.clear();
+        sortedTuples = NO_TUPLES;
+    }
+
+    /**
+     * Returns the wildcard flow with the best priority matching the given
+     * match, or null if there is none. This method doesn't allocate and
+     * doesn't mark any field of the match as seen.
+     */
+    public ManagedWildcardFlow lookup(WildcardMatch wcMatch) {
+        Tuple[] snapshot = sortedTuples;
+        ProjectedKey key = probe.get();
+        key.source = wcMatch;
+        Set<WildcardMatch.Field> usedFields = wcMatch.getUsedFields();
+        ManagedWildcardFlow wildFlow = null;
+        try {
+            for (int i = 0; i < snapshot.length; ++i) {
+                Tuple tuple = snapshot[i];
+                if (wildFlow != null &&
+                        tuple.bestPriority >= wildFlow.getPriority())
+                    break;
+                if (!usedFields.containsAll(tuple.pattern))
+                    continue;
+                key.fields = tuple.pattern;
+                ManagedWildcardFlow candidate = tuple.get(key);
+                if (candidate != null &&
+                        (wildFlow == null ||
+                         candidate.getPriority() < wildFlow.getPriority()))
+                    wildFlow = candidate;
+            }
+        } finally {
+            key.source = null;
+            key.fields = null;
+        }
+        return wildFlow;
+    }
+
+    private synchronized void sortTuples() {
+        Tuple[] sorted = tuples.values().toArray(NO_TUPLES);
+        Arrays.sort(sorted, BY_PRIORITY);
+        sortedTuples = sorted;
+    }
+
+    /**
+     * A probe key standing for the projection of a match over the pattern of
+     * a tuple. It is only meant to be passed to Map.get(), which compares it
+     * against the keys stored in the tuple by calling its equals() method.
+     */
+    private static final class ProjectedKey {
+        Set<WildcardMatch.Field> fields;
+        WildcardMatch source;
+
+        @Override
+        public int hashCode() {
+            return source.projectedHashCode(fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WildcardMatch &&
+                   source.projectedEquals(fields, (WildcardMatch) o);
+        }
+    }
+
+    private final class TupleMap
+            extends ConcurrentHashMap<Set<WildcardMatch.Field>,
+                                      Map<WildcardMatch, ManagedWildcardFlow>> {
+
+        TupleMap(int initialCapacity) {
+            super(initialCapacity, LOAD_FACTOR, CONCURRENCY_LEVEL);
+        }
+
+        @Override
+        public Map<WildcardMatch, ManagedWildcardFlow> put(
+                Set<WildcardMatch.Field> pattern,
+                Map<WildcardMatch, ManagedWildcardFlow> table) {
+            Map<WildcardMatch, ManagedWildcardFlow> old = super.put(pattern, table);
+            sortTuples();
+            return old;
+        }
+
+        @Override
+        public Map<WildcardMatch, ManagedWildcardFlow> remove(Object pattern) {
+            Map<WildcardMatch, ManagedWildcardFlow> old = super.remove(pattern);
+            if (old != null)
+                sortTuples();
+            return old;
+        }
+    }
+
+    /**
+     * The table of wildcard flows for a given pattern. It keeps track of the
+     * best priority among its flows and of how many flows have it, so that
+     * the tuples are re-sorted only when the best priority changes.
+     */
+    private final class Tuple
+            extends ConcurrentHashMap<WildcardMatch, ManagedWildcardFlow> {
+
+        final Set<WildcardMatch.Field> pattern;
+        volatile int bestPriority = Integer.MAX_VALUE;
+        private int flowsWithBestPriority = 0;
+
+        Tuple(Set<WildcardMatch.Field> pattern) {
+            super(tupleCapacity, LOAD_FACTOR, CONCURRENCY_LEVEL);
+            this.pattern = EnumSet.copyOf(pattern);
+        }
+
+        @Override
+        public ManagedWildcardFlow put(WildcardMatch wcMatch,
+                                       ManagedWildcardFlow wildFlow) {
+            ManagedWildcardFlow old = super.put(wcMatch, wildFlow);
+            if (old != null) {
+                updateBestPriority();
+                return old;
+            }
+            int priority = wildFlow.getPriority();
+            if (priority < bestPriority) {
+                bestPriority = priority;
+                flowsWithBestPriority = 1;
+                sortTuples();
+            } else if (priority == bestPriority) {
+                flowsWithBestPriority++;
+            }
+            return null;
+        }
+
+        @Override
+        public ManagedWildcardFlow remove(Object wcMatch) {
+            ManagedWildcardFlow old = super.remove(wcMatch);
+            if (old != null && old.getPriority() == bestPriority &&
+                    --flowsWithBestPriority == 0)
+                updateBestPriority();
+            return old;
+        }
+
+        private void updateBestPriority() {
+            int best = Integer.MAX_VALUE;
+            int count = 0;
+            for (ManagedWildcardFlow wildFlow : values()) {
+                int p = wildFlow.getPriority();
+                if (p < best) {
+                    best = p;
+                    count = 1;
+                } else if (p == best) {
+                    count++;
+                }
+            }
+            bestPriority = best;
+            flowsWithBestPriority = count;
+            sortTuples();
+        }
+    }
+}
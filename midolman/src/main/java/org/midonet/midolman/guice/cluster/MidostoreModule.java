@@ -39,8 +39,10 @@ public class MidostoreModule extends PrivateModule {
         @Inject
         CuratorFramework curator;
         @Override public Storage get() {
-            return new ZookeeperObjectMapper(cfg.getZkRootPath() + "/zoom",
-                                             curator);
+            return new ZookeeperObjectMapper(
+                cfg.getZkRootPath() + "/zoom", curator,
+                cfg.getZoomOptimisticTransactions(),
+                cfg.getZoomBinaryMessages());
         }
     }
 
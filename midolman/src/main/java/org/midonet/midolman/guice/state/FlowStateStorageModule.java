@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.guice.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.*;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
@@ -22,9 +23,11 @@ import com.google.inject.name.Names;
 import org.midonet.cassandra.CassandraClient;
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.guice.zookeeper.ZKConnectionProvider;
+import org.midonet.midolman.services.FlowStateStorageService;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
+import org.midonet.midolman.state.FlowStateStorageWriter;
 import org.midonet.util.eventloop.Reactor;
 
 
@@ -34,15 +37,25 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZKConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
+        bind(CassandraClient.class).toProvider(CassandraClientProvider.class)
+                .in(Singleton.class);
+        bind(FlowStateStorageWriter.class)
+                .toProvider(FlowStateStorageWriterProvider.class)
+                .in(Singleton.class);
         bind(FlowStateStorageFactory.class).toProvider(FlowStateStorageFactoryProvider.class)
                 .asEagerSingleton();
         expose(FlowStateStorageFactory.class);
+
+        // Starts and stops the writer along with the other agent services.
+        bind(FlowStateStorageService.class).in(Singleton.class);
+        expose(FlowStateStorageService.class);
     }
 
-    private static class FlowStateStorageFactoryProvider implements Provider<FlowStateStorageFactory> {
+    private static class CassandraClientProvider implements Provider<CassandraClient> {
         @Inject
         MidolmanConfig config;
 
@@ -51,26 +64,61 @@ public class FlowStateStorageModule extends PrivateModule {
         Reactor reactor;
 
         @Override
-        public FlowStateStorageFactory get() {
+        public CassandraClient get() {
             CassandraClient cass = new CassandraClient(
                     config.getCassandraServers(), config.getCassandraCluster(),
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return cass;
+        }
+    }
+
+    private static class FlowStateStorageWriterProvider implements Provider<FlowStateStorageWriter> {
+        @Inject
+        MidolmanConfig config;
+
+        @Inject
+        CassandraClient cass;
+
+        @Inject
+        MetricRegistry metricRegistry;
+
+        @Override
+        public FlowStateStorageWriter get() {
+            return new FlowStateStorageWriter(
+                    cass, config.getFlowStateWriteQueueSize(),
+                    config.getFlowStateWriteBatchSize(),
+                    config.getFlowStateWriteFlushInterval(), metricRegistry);
+        }
+    }
+
+    private static class FlowStateStorageFactoryProvider implements Provider<FlowStateStorageFactory> {
+        @Inject
+        CassandraClient cass;
+
+        @Inject
+        FlowStateStorageWriter writer;
+
+        @Override
+        public FlowStateStorageFactory get() {
+            return new FlowStateStorageFactoryImpl(cass, writer);
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateStorageWriter writer;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           FlowStateStorageWriter writer) {
             this.cass = cass;
+            this.writer = writer;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, writer);
         }
     }
 }
@@ -36,6 +36,7 @@ public class BlockingTransactorDatapathConnection implements ManagedDatapathConn
     public final String name;
     private final MidolmanConfig config;
     private final BufferPool sendPool;
+    private boolean exportsSendPool = false;
     private Thread thread;
     private OvsDatapathConnection conn = null;
 
@@ -85,6 +86,7 @@ public class BlockingTransactorDatapathConnection implements ManagedDatapathConn
     private void setUp() throws IOException {
         log.info("Starting datapath connection: {}", name);
         conn = OvsDatapathConnection.create(new Netlink.Address(0), sendPool);
+        exportsSendPool = sendPool.registerAsMXBean(name);
         conn.getChannel().configureBlocking(true);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
         this.thread = startTransactorThread(name);
@@ -92,6 +94,9 @@ public class BlockingTransactorDatapathConnection implements ManagedDatapathConn
 
     public void stop() throws Exception {
         log.info("Stopping datapath connection: {}", name);
+        if (exportsSendPool)
+            sendPool.unregisterAsMXBean();
+        exportsSendPool = false;
         try {
             conn.getChannel().close();
         } catch (IOException e) {}
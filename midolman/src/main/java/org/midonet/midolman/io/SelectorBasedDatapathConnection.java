@@ -46,6 +46,7 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
     private SelectLoop readLoop;
     private SelectLoop writeLoop;
     private BufferPool sendPool;
+    private boolean exportsSendPool = false;
     private OvsDatapathConnection conn = null;
     private final boolean singleThreaded;
     private final Bucket bucket;
@@ -126,9 +127,13 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
                                        startLoop(writeLoop, name + ".write");
 
         conn = OvsDatapathConnection.create(new Netlink.Address(0), sendPool);
+        exportsSendPool = sendPool.registerAsMXBean(name);
 
         conn.getChannel().configureBlocking(false);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
+        if (config.getMaxBytesPerBatch() > 0)
+            conn.setMaxBatchIoBytes(config.getMaxBytesPerBatch());
+        conn.setDatagramsPerRead(config.getMessagesPerRead());
 
         readLoop.register(
                 conn.getChannel(),
@@ -173,6 +178,9 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
 
             conn.getChannel().close();
         } finally {
+            if (exportsSendPool)
+                sendPool.unregisterAsMXBean();
+            exportsSendPool = false;
             conn = null;
             writeLoop = null;
             readLoop = null;
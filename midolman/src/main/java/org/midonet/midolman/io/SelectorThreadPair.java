@@ -90,6 +90,9 @@ public class SelectorThreadPair {
 
         conn.getChannel().configureBlocking(false);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
+        if (config.getMaxBytesPerBatch() > 0)
+            conn.setMaxBatchIoBytes(config.getMaxBytesPerBatch());
+        conn.setDatagramsPerRead(config.getMessagesPerRead());
 
         readLoop.register(
                 conn.getChannel(),
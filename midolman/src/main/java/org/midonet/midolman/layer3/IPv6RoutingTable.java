@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv6Addr;
+
+/**
+ * An IPv6 routing table over a compressed multibit trie, keyed by the upper
+ * and lower words of the destination addresses. It holds the routes whose
+ * {@link Route#isIPv6()} is true. See {@link MultibitTrie} for the details.
+ *
+ * Routers don't build one yet: the router simulation only forwards IPv4,
+ * and keeps IPv6 routes out of its table. Forwarding IPv6 also needs IPv6
+ * addresses on router ports, a neighbour cache resolved through NDP, ICMPv6
+ * errors and the tagging of IPv6 flows by route and destination.
+ */
+public class IPv6RoutingTable extends MultibitTrie
+                              implements RoutingTableIfc<IPv6Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger(IPv6RoutingTable.class);
+
+    public IPv6RoutingTable() {
+        super(true);
+    }
+
+    @Override
+    protected long dstUpper(Route rt) {
+        return rt.dstNetworkAddr6.upperWord();
+    }
+
+    @Override
+    protected long dstLower(Route rt) {
+        return rt.dstNetworkAddr6.lowerWord();
+    }
+
+    @Override
+    protected long srcUpper(Route rt) {
+        return rt.srcNetworkAddr6 == null ? 0L : rt.srcNetworkAddr6.upperWord();
+    }
+
+    @Override
+    protected long srcLower(Route rt) {
+        return rt.srcNetworkAddr6 == null ? 0L : rt.srcNetworkAddr6.lowerWord();
+    }
+
+    @Override
+    public List<Route> lookup(IPv6Addr src, IPv6Addr dst) {
+        log.debug("lookup: src {} dst {} in table with {} routes",
+                  src, dst, numRoutes);
+
+        List<Route> ret = lookup(src.upperWord(), src.lowerWord(),
+                                 dst.upperWord(), dst.lowerWord());
+
+        log.debug("lookup: return {} for src {} dst {}", ret, src, dst);
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "IPv6RoutingTable [numRoutes=" + numRoutes + "]";
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.packets.IPv4Addr;
+
+/**
+ * An IPv4 routing table over a compressed multibit trie, which replaces the
+ * binary RoutingTable. See {@link MultibitTrie} for the details.
+ */
+public class MultibitRoutingTable extends MultibitTrie
+                                  implements RoutingTableIfc<IPv4Addr> {
+
+    private final static Logger log =
+        LoggerFactory.getLogger(MultibitRoutingTable.class);
+
+    public MultibitRoutingTable() {
+        super(false);
+    }
+
+    @Override
+    protected long dstUpper(Route rt) {
+        return (long) rt.dstNetworkAddr << 32;
+    }
+
+    @Override
+    protected long dstLower(Route rt) {
+        return 0L;
+    }
+
+    @Override
+    protected long srcUpper(Route rt) {
+        return (long) rt.srcNetworkAddr << 32;
+    }
+
+    @Override
+    protected long srcLower(Route rt) {
+        return 0L;
+    }
+
+    @Override
+    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return lookup(src.toInt(), dst.toInt());
+    }
+
+    public List<Route> lookup(int src, int dst) {
+        if (log.isDebugEnabled()) {
+            log.debug("lookup: src {} dst {} in table with {} routes",
+                      IPv4Addr.intToString(src), IPv4Addr.intToString(dst),
+                      numRoutes);
+        }
+
+        List<Route> ret = lookup((long) src << 32, 0L, (long) dst << 32, 0L);
+
+        if (log.isDebugEnabled()) {
+            log.debug("lookup: return {} for src {} dst {}", ret,
+                      IPv4Addr.intToString(src), IPv4Addr.intToString(dst));
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "MultibitRoutingTable [numRoutes=" + numRoutes + "]";
+    }
+}
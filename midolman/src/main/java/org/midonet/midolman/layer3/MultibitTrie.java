@@ -0,0 +1,402 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A compressed multibit trie of routes, in the manner of poptrie, keyed by
+ * destination prefixes of up to 128 bits held in two longs: the upper and
+ * lower words of an IPv6 address, or an IPv4 address in the top 32 bits of
+ * the upper word. Every node of the trie consumes 8 bits of the destination
+ * address, so a lookup visits at most 4 nodes for IPv4 and 16 for IPv6. A
+ * node holds the prefixes whose length ends within its 8 bits, expanded over
+ * the 256 slots of the node. Both the children of a node and the runs of
+ * slots resolving to the same prefix are compressed with bitmaps, and are
+ * indexed by counting the bits set in them.
+ *
+ * The lookup has the semantics of the {@link RoutingTable}: it returns the
+ * routes of minimum weight matching the source address among the routes of
+ * the longest prefix matching the destination, falling back to shorter
+ * prefixes when none of them match the source. The routes of minimum weight
+ * of a prefix are computed when its routes change, so the lookup doesn't
+ * allocate as long as those routes match any source, which is the common
+ * case. Otherwise, the lookup allocates the list of the routes matching the
+ * source. The lists returned by the lookup are unmodifiable.
+ *
+ * Like the RoutingTable, this class isn't thread-safe: it must not be
+ * modified while other threads look up routes in it.
+ */
+abstract class MultibitTrie {
+
+    private static final int STRIDE = 8;
+    private static final int SLOTS = 1 << STRIDE;
+
+    private static final Prefix[] NO_PREFIXES = new Prefix[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    /**
+     * The routes to a destination prefix.
+     */
+    private static final class Prefix {
+        final long upper;
+        final long lower;
+        final int length;
+        final Set<Route> routes = new HashSet<>();
+        /* The longest prefix held by the same node that covers this one. */
+        Prefix covering;
+        /* The routes of minimum weight, when all the routes match any source. */
+        List<Route> anySource = Collections.emptyList();
+
+        Prefix(long upper, long lower, int length) {
+            this.upper = upper;
+            this.lower = lower;
+            this.length = length;
+        }
+
+        void routesChanged() {
+            List<Route> best = new ArrayList<>(routes.size());
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.srcNetworkLength != 0) {
+                    anySource = null;
+                    return;
+                }
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    best.add(rt);
+                    minWeight = rt.weight;
+                } else if (rt.weight == minWeight) {
+                    best.add(rt);
+                }
+            }
+            anySource = Collections.unmodifiableList(best);
+        }
+    }
+
+    /**
+     * A node of the trie. The slots of the node are compressed into runs of
+     * slots resolving to the same prefix: bit i of leafMap is set when slot
+     * i starts a run, and the prefix of the run is kept in leaves. Likewise,
+     * bit i of childMap is set when slot i has a child in children.
+     */
+    private static final class Node {
+        final int depth;
+        /* The prefixes held by this node, sorted by length. */
+        final List<Prefix> prefixes = new ArrayList<>();
+        final long[] leafMap = new long[SLOTS / 64];
+        Prefix[] leaves = NO_PREFIXES;
+        final long[] childMap = new long[SLOTS / 64];
+        Node[] children = NO_NODES;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+
+        Prefix leaf(int slot) {
+            return leaves.length == 0 ? null : leaves[rank(leafMap, slot) - 1];
+        }
+
+        Node child(int slot) {
+            return (childMap[slot >>> 6] & (1L << slot)) == 0
+                   ? null : children[rank(childMap, slot) - 1];
+        }
+
+        void addChild(int slot, Node child) {
+            int index = rank(childMap, slot);
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, index);
+            System.arraycopy(children, index, grown, index + 1,
+                             children.length - index);
+            grown[index] = child;
+            children = grown;
+            childMap[slot >>> 6] |= 1L << slot;
+        }
+
+        void removeChild(int slot) {
+            int index = rank(childMap, slot) - 1;
+            Node[] shrunk = new Node[children.length - 1];
+            System.arraycopy(children, 0, shrunk, 0, index);
+            System.arraycopy(children, index + 1, shrunk, index,
+                             shrunk.length - index);
+            children = shrunk;
+            childMap[slot >>> 6] &= ~(1L << slot);
+        }
+
+        boolean isEmpty() {
+            return prefixes.isEmpty() && children.length == 0;
+        }
+
+        /**
+         * Expands the prefixes of this node over its slots, shorter prefixes
+         * first so that longer ones overwrite them, and compresses the slots
+         * back into runs.
+         */
+        void rebuildLeaves(Prefix[] slots) {
+            for (int i = 0; i < SLOTS; i++)
+                slots[i] = null;
+            for (Prefix prefix : prefixes) {
+                int span = span(prefix.length, depth);
+                int start = slot(prefix.upper, prefix.lower, depth) & ~(span - 1);
+                prefix.covering = slots[start];
+                for (int i = start; i < start + span; i++)
+                    slots[i] = prefix;
+            }
+
+            for (int i = 0; i < leafMap.length; i++)
+                leafMap[i] = 0L;
+            if (prefixes.isEmpty()) {
+                leaves = NO_PREFIXES;
+                return;
+            }
+            int runs = 1;
+            for (int i = 1; i < SLOTS; i++)
+                if (slots[i] != slots[i - 1])
+                    runs++;
+            leaves = new Prefix[runs];
+            int run = -1;
+            for (int i = 0; i < SLOTS; i++) {
+                if (i == 0 || slots[i] != slots[i - 1]) {
+                    leafMap[i >>> 6] |= 1L << i;
+                    leaves[++run] = slots[i];
+                }
+            }
+        }
+    }
+
+    /* Counts the bits set in the map up to and including the given slot. */
+    private static int rank(long[] map, int slot) {
+        int word = slot >>> 6;
+        int rank = Long.bitCount(map[word] & (-1L >>> (63 - (slot & 63))));
+        for (int i = 0; i < word; i++)
+            rank += Long.bitCount(map[i]);
+        return rank;
+    }
+
+    private static int slot(long upper, long lower, int depth) {
+        return depth < 64 / STRIDE
+               ? (int) (upper >>> (64 - STRIDE * (depth + 1))) & (SLOTS - 1)
+               : (int) (lower >>> (128 - STRIDE * (depth + 1))) & (SLOTS - 1);
+    }
+
+    private static int depthOf(int length) {
+        return length == 0 ? 0 : (length - 1) / STRIDE;
+    }
+
+    /* The number of slots of a node at the given depth covered by a prefix. */
+    private static int span(int length, int depth) {
+        return 1 << (STRIDE * (depth + 1) - length);
+    }
+
+    /* The mask of the first length bits of a word. */
+    private static long mask(int length) {
+        return length <= 0 ? 0L : length >= 64 ? -1L : -1L << (64 - length);
+    }
+
+    static boolean matches(long upper, long lower, long prefixUpper,
+                           long prefixLower, int length) {
+        return ((upper ^ prefixUpper) & mask(length)) == 0 &&
+               ((lower ^ prefixLower) & mask(length - 64)) == 0;
+    }
+
+    private final boolean ipv6;
+    private final int width;
+    private final Node root = new Node(0);
+    private final Prefix[] scratch = new Prefix[SLOTS];
+    protected int numRoutes = 0;
+
+    protected MultibitTrie(boolean ipv6) {
+        this.ipv6 = ipv6;
+        this.width = ipv6 ? 128 : 32;
+    }
+
+    /* The words of the destination and source addresses of a route. */
+    protected abstract long dstUpper(Route rt);
+
+    protected abstract long dstLower(Route rt);
+
+    protected abstract long srcUpper(Route rt);
+
+    protected abstract long srcLower(Route rt);
+
+    public void addRoute(Route rt) {
+        checkRoute(rt);
+        int length = rt.dstNetworkLength;
+        long upper = dstUpper(rt) & mask(length);
+        long lower = dstLower(rt) & mask(length - 64);
+        int depth = depthOf(length);
+
+        Node node = root;
+        for (int d = 0; d < depth; d++) {
+            int slot = slot(upper, lower, d);
+            Node child = node.child(slot);
+            if (child == null) {
+                child = new Node(d + 1);
+                node.addChild(slot, child);
+            }
+            node = child;
+        }
+
+        Prefix prefix = find(node, upper, lower, length);
+        boolean added = false;
+        if (prefix == null) {
+            prefix = new Prefix(upper, lower, length);
+            int i = 0;
+            while (i < node.prefixes.size() &&
+                   node.prefixes.get(i).length <= length)
+                i++;
+            node.prefixes.add(i, prefix);
+            added = true;
+        }
+        if (prefix.routes.add(rt)) {
+            numRoutes++;
+            prefix.routesChanged();
+        }
+        if (added)
+            node.rebuildLeaves(scratch);
+    }
+
+    public void deleteRoute(Route rt) {
+        checkRoute(rt);
+        int length = rt.dstNetworkLength;
+        long upper = dstUpper(rt) & mask(length);
+        long lower = dstLower(rt) & mask(length - 64);
+        int depth = depthOf(length);
+
+        Node[] path = new Node[depth + 1];
+        Node node = root;
+        path[0] = node;
+        for (int d = 0; d < depth && node != null; d++) {
+            node = node.child(slot(upper, lower, d));
+            path[d + 1] = node;
+        }
+        if (node == null)
+            return;
+
+        Prefix prefix = find(node, upper, lower, length);
+        if (prefix == null || !prefix.routes.remove(rt))
+            return;
+        numRoutes--;
+        prefix.routesChanged();
+        if (!prefix.routes.isEmpty())
+            return;
+
+        node.prefixes.remove(prefix);
+        node.rebuildLeaves(scratch);
+        for (int d = depth; d > 0 && path[d].isEmpty(); d--)
+            path[d - 1].removeChild(slot(upper, lower, d - 1));
+    }
+
+    private void checkRoute(Route rt) {
+        if (rt.isIPv6() != ipv6) {
+            throw new IllegalArgumentException(
+                "Route " + rt + " doesn't belong to an IPv" +
+                (ipv6 ? "6" : "4") + " routing table");
+        }
+        if (rt.dstNetworkLength < 0 || rt.dstNetworkLength > width) {
+            throw new IllegalArgumentException(
+                "Invalid destination prefix length in route " + rt);
+        }
+    }
+
+    private static Prefix find(Node node, long upper, long lower, int length) {
+        for (Prefix prefix : node.prefixes)
+            if (prefix.length == length && prefix.upper == upper &&
+                prefix.lower == lower)
+                return prefix;
+        return null;
+    }
+
+    protected List<Route> lookup(long srcUpper, long srcLower,
+                                 long dstUpper, long dstLower) {
+        Prefix match = null;
+        Node node = root;
+        int depth = 0;
+        while (node != null) {
+            int slot = slot(dstUpper, dstLower, depth);
+            Prefix leaf = node.leaf(slot);
+            if (leaf != null)
+                match = leaf;
+            node = node.child(slot);
+            depth++;
+        }
+
+        if (match == null)
+            return Collections.emptyList();
+        List<Route> ret = routesFrom(match, srcUpper, srcLower);
+        return ret.isEmpty()
+               ? lookupShorter(srcUpper, srcLower, dstUpper, dstLower) : ret;
+    }
+
+    /**
+     * Walks every prefix matching the destination, from the longest to the
+     * shortest, until one has routes matching the source. The path to each
+     * node is walked again from the root rather than kept in an array, so
+     * that concurrent lookups need no buffer of their own: it is at most 16
+     * nodes deep.
+     */
+    private List<Route> lookupShorter(long srcUpper, long srcLower,
+                                      long dstUpper, long dstLower) {
+        int depth = 0;
+        for (Node node = root; node != null; depth++)
+            node = node.child(slot(dstUpper, dstLower, depth));
+        for (int d = depth - 1; d >= 0; d--) {
+            Node node = root;
+            for (int i = 0; i < d; i++)
+                node = node.child(slot(dstUpper, dstLower, i));
+            for (Prefix prefix = node.leaf(slot(dstUpper, dstLower, d));
+                 prefix != null; prefix = prefix.covering) {
+                List<Route> ret = routesFrom(prefix, srcUpper, srcLower);
+                if (!ret.isEmpty())
+                    return ret;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /* The routes of minimum weight of a prefix matching the source. */
+    private List<Route> routesFrom(Prefix prefix, long srcUpper,
+                                   long srcLower) {
+        if (prefix.anySource != null)
+            return prefix.anySource;
+
+        List<Route> ret = new ArrayList<>(prefix.routes.size());
+        int minWeight = Integer.MAX_VALUE;
+        for (Route rt : prefix.routes) {
+            if (matches(srcUpper, srcLower, srcUpper(rt), srcLower(rt),
+                        rt.srcNetworkLength)) {
+                if (rt.weight < minWeight) {
+                    ret.clear();
+                    ret.add(rt);
+                    minWeight = rt.weight;
+                } else if (rt.weight == minWeight) {
+                    ret.add(rt);
+                }
+            }
+        }
+        return ret.isEmpty() ? Collections.<Route>emptyList()
+                             : Collections.unmodifiableList(ret);
+    }
+
+    public int numRoutes() {
+        return numRoutes;
+    }
+}
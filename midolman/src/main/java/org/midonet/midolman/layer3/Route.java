@@ -26,6 +26,8 @@ import org.codehaus.jackson.annotate.JsonPropertyOrder;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
 
 
 @JsonPropertyOrder(alphabetic=true)
@@ -53,6 +55,10 @@ public class Route implements Serializable {
     public int weight;
     public String attributes;
     public UUID routerId;
+    // The network addresses of IPv6 routes, whose prefix lengths are kept in
+    // srcNetworkLength and dstNetworkLength. Null for IPv4 routes.
+    public IPv6Addr srcNetworkAddr6;
+    public IPv6Addr dstNetworkAddr6;
 
     public Route(int srcNetworkAddr, int srcNetworkLength, int dstNetworkAddr,
             int dstNetworkLength, NextHop nextHop, UUID nextHopPort,
@@ -80,6 +86,15 @@ public class Route implements Serializable {
                 weight, null, routerId);
     }
 
+    public Route(IPv6Subnet srcSubnet, IPv6Subnet dstSubnet,
+                 NextHop nextHop, UUID nextHopPortId, int weight,
+                 UUID routerId) {
+        this(0, srcSubnet.getPrefixLen(), 0, dstSubnet.getPrefixLen(),
+             nextHop, nextHopPortId, NO_GATEWAY, weight, null, routerId);
+        this.srcNetworkAddr6 = srcSubnet.getAddress();
+        this.dstNetworkAddr6 = dstSubnet.getAddress();
+    }
+
     // Default constructor for the Jackson deserialization.
     public Route() {
         super();
@@ -111,6 +126,27 @@ public class Route implements Serializable {
         this.nextHopGateway = IPv4Addr.stringToInt(addr);
     }
 
+    public String getSrcNetworkAddr6() {
+        return srcNetworkAddr6 == null ? null : srcNetworkAddr6.toString();
+    }
+
+    public void setSrcNetworkAddr6(String addr) {
+        this.srcNetworkAddr6 = addr == null ? null : IPv6Addr.fromString(addr);
+    }
+
+    public String getDstNetworkAddr6() {
+        return dstNetworkAddr6 == null ? null : dstNetworkAddr6.toString();
+    }
+
+    public void setDstNetworkAddr6(String addr) {
+        this.dstNetworkAddr6 = addr == null ? null : IPv6Addr.fromString(addr);
+    }
+
+    @JsonIgnore
+    public boolean isIPv6() {
+        return dstNetworkAddr6 != null;
+    }
+
     public boolean isEquivalentRoute(Object other) {
         if (other == null)
             return false;
@@ -123,6 +159,8 @@ public class Route implements Serializable {
                 Objects.equal(this.srcNetworkLength, rt.srcNetworkLength) &&
                 Objects.equal(this.dstNetworkAddr, rt.dstNetworkAddr) &&
                 Objects.equal(this.dstNetworkLength, rt.dstNetworkLength) &&
+                Objects.equal(this.srcNetworkAddr6, rt.srcNetworkAddr6) &&
+                Objects.equal(this.dstNetworkAddr6, rt.dstNetworkAddr6) &&
                 Objects.equal(this.nextHopPort, rt.nextHopPort) &&
                 Objects.equal(this.routerId, rt.routerId));
     }
@@ -142,7 +180,9 @@ public class Route implements Serializable {
                 && Objects.equal(this.nextHopGateway, rt.nextHopGateway)
                 && Objects.equal(this.weight, rt.weight)
                 && Objects.equal(this.attributes, rt.attributes)
-                && Objects.equal(this.routerId, rt.routerId));
+                && Objects.equal(this.routerId, rt.routerId)
+                && Objects.equal(this.srcNetworkAddr6, rt.srcNetworkAddr6)
+                && Objects.equal(this.dstNetworkAddr6, rt.dstNetworkAddr6));
     }
 
     @Override
@@ -150,15 +190,25 @@ public class Route implements Serializable {
         return Objects.hashCode(srcNetworkAddr, srcNetworkLength,
                                 dstNetworkAddr, dstNetworkLength, nextHop,
                                 nextHopPort, nextHopGateway, weight, attributes,
-                                routerId);
+                                routerId, srcNetworkAddr6, dstNetworkAddr6);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(IPv4Addr.intToString(srcNetworkAddr)).append("/");
-        sb.append(srcNetworkLength).append(",");
-        sb.append(IPv4Addr.intToString(dstNetworkAddr)).append("/");
+        if (isIPv6()) {
+            sb.append(srcNetworkAddr6 == null ? IPv6Addr.fromLong(0L, 0L)
+                                              : srcNetworkAddr6);
+        } else {
+            sb.append(IPv4Addr.intToString(srcNetworkAddr));
+        }
+        sb.append("/").append(srcNetworkLength).append(",");
+        if (isIPv6()) {
+            sb.append(dstNetworkAddr6);
+        } else {
+            sb.append(IPv4Addr.intToString(dstNetworkAddr));
+        }
+        sb.append("/");
         sb.append(dstNetworkLength).append(",");
         if (null != nextHop)
             sb.append(nextHop.toString());
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.rules;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPSubnet;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.sdn.flows.WildcardMatch;
+import org.midonet.util.Range;
+
+/**
+ * An index over the conditions of the rules of a chain which, for a given
+ * packet, narrows the rules to evaluate down to those whose condition may
+ * match it. The index is conservative: a rule is left out of the candidates
+ * only if its condition can't match the packet, so evaluating the candidates
+ * in order gives the same first match, and takes the same jumps, as
+ * evaluating every rule. Rules with conditions the index doesn't understand
+ * are always candidates.
+ *
+ * Rules are dispatched on the network protocol, the transport destination
+ * port, and the IPv4 source and destination addresses of the packet, the
+ * latter through binary tries over the subnets of the rules. The candidates
+ * are returned as a bit set, one bit per rule in chain order.
+ */
+public final class RuleIndex {
+
+    /** Chains with fewer rules than this are evaluated linearly. */
+    public static final int MIN_RULES = 8;
+
+    private static final int MAX_PORT = 0xffff;
+
+    private final int words;
+    private final long[] all;
+
+    private final long[] anyProto;
+    private final long[][] byProto = new long[256][];
+
+    private final int[] portBounds;
+    private final long[][] byPort;
+
+    private final SubnetTrie bySrc;
+    private final SubnetTrie byDst;
+
+    private final long[] connTrackRules;
+    private final long[] rewritingRules;
+    private final Condition[] conditions;
+
+    private RuleIndex(List<Rule> rules) {
+        int size = rules.size();
+        words = (size + 63) >>> 6;
+        all = new long[words];
+        conditions = new Condition[size];
+        connTrackRules = new long[words];
+        rewritingRules = new long[words];
+
+        long[] unconstrainedProto = new long[words];
+        long[] unconstrainedPort = new long[words];
+        TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        bySrc = new SubnetTrie(words);
+        byDst = new SubnetTrie(words);
+
+        for (int i = 0; i < size; i++) {
+            Rule rule = rules.get(i);
+            Condition cond = rule.getCondition();
+            conditions[i] = cond;
+            set(all, i);
+            if (cond.matchForwardFlow || cond.matchReturnFlow)
+                set(connTrackRules, i);
+            if (rule.getClass() != LiteralRule.class)
+                set(rewritingRules, i);
+
+            boolean indexable = cond.getClass() == Condition.class &&
+                                !cond.conjunctionInv;
+
+            if (indexable && cond.nwProto != null && !cond.nwProtoInv) {
+                int proto = cond.nwProto & 0xff;
+                if (byProto[proto] == null)
+                    byProto[proto] = new long[words];
+                set(byProto[proto], i);
+            } else {
+                set(unconstrainedProto, i);
+            }
+
+            if (indexable && cond.tpDst != null && !cond.tpDstInv) {
+                bounds.add(portStart(cond.tpDst));
+                if (portEnd(cond.tpDst) < MAX_PORT)
+                    bounds.add(portEnd(cond.tpDst) + 1);
+            } else {
+                set(unconstrainedPort, i);
+            }
+
+            bySrc.add(i, indexable && !cond.nwSrcInv ? cond.nwSrcIp : null);
+            byDst.add(i, indexable && !cond.nwDstInv ? cond.nwDstIp : null);
+        }
+
+        anyProto = unconstrainedProto;
+        for (int proto = 0; proto < byProto.length; proto++) {
+            byProto[proto] = (byProto[proto] == null) ? anyProto
+                                                      : or(byProto[proto], anyProto);
+        }
+
+        portBounds = new int[bounds.size()];
+        byPort = new long[portBounds.length][];
+        int segment = 0;
+        for (Integer bound : bounds) {
+            portBounds[segment] = bound;
+            byPort[segment] = unconstrainedPort.clone();
+            for (int i = 0; i < size; i++) {
+                Condition cond = conditions[i];
+                if (!get(unconstrainedPort, i) && portStart(cond.tpDst) <= bound
+                        && bound <= portEnd(cond.tpDst))
+                    set(byPort[segment], i);
+            }
+            segment++;
+        }
+
+        bySrc.seal();
+        byDst.seal();
+    }
+
+    /**
+     * Builds the index for the given rules, or returns null if the chain is
+     * too short or has no rule the index can dispatch on.
+     */
+    public static RuleIndex build(List<Rule> rules) {
+        if (rules.size() < MIN_RULES)
+            return null;
+        RuleIndex index = new RuleIndex(rules);
+        return index.isUseful() ? index : null;
+    }
+
+    /**
+     * Returns the rules which may match the given packet match. The caller
+     * owns the returned bit set.
+     */
+    public long[] candidates(WildcardMatch pktMatch) {
+        Byte proto = pktMatch.getNetworkProto();
+        long[] res = (proto == null) ? anyProto.clone()
+                                     : byProto[proto & 0xff].clone();
+        and(res, forPort(pktMatch.getDstPort()));
+        and(res, bySrc.lookup(pktMatch.getNetworkSrcIP()));
+        and(res, byDst.lookup(pktMatch.getNetworkDstIP()));
+        return res;
+    }
+
+    /**
+     * Returns the first candidate rule at or after the given position, or
+     * -1 if there is none.
+     */
+    public static int nextCandidate(long[] candidates, int from) {
+        int word = from >>> 6;
+        if (word >= candidates.length)
+            return -1;
+        long bits = candidates[word] & (-1L << from);
+        while (true) {
+            if (bits != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word == candidates.length)
+                return -1;
+            bits = candidates[word];
+        }
+    }
+
+    /**
+     * Whether the rule at the given position may change the packet match,
+     * in which case the candidates for the rules after it must be computed
+     * again.
+     */
+    public boolean mayRewrite(int rule) {
+        return get(rewritingRules, rule);
+    }
+
+    /**
+     * Evaluating a condition that matches on the flow direction looks up,
+     * and starts tracking, the packet's connection. This does the same for
+     * the skipped rules in [from, to), so that the connection tracking state
+     * ends up as it would after evaluating every rule. Returns whether the
+     * lookup was done, after which it needn't be repeated.
+     */
+    public boolean lookUpConnTrack(PacketContext pktCtx, int from, int to) {
+        int rule = nextCandidate(connTrackRules, from);
+        while (rule >= 0 && rule < to) {
+            if (conditions[rule].fragmentPolicy.accepts(
+                    pktCtx.wcmatch().getIpFragmentType())) {
+                pktCtx.state().isForwardFlow();
+                return true;
+            }
+            rule = nextCandidate(connTrackRules, rule + 1);
+        }
+        return false;
+    }
+
+    private boolean isUseful() {
+        return !Arrays.equals(anyProto, all) || portBounds.length > 1 ||
+               bySrc.isUseful() || byDst.isUseful();
+    }
+
+    private long[] forPort(Integer port) {
+        if (port == null || port < 0 || port > MAX_PORT)
+            return all;
+        int segment = Arrays.binarySearch(portBounds, port);
+        return byPort[segment >= 0 ? segment : -segment - 2];
+    }
+
+    private static int portStart(Range<Integer> range) {
+        return range.start() == null ? 0 : Math.max(0, range.start());
+    }
+
+    private static int portEnd(Range<Integer> range) {
+        return range.end() == null ? MAX_PORT : Math.min(MAX_PORT, range.end());
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static long[] or(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++)
+            a[i] |= b[i];
+        return a;
+    }
+
+    private static void and(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++)
+            a[i] &= b[i];
+    }
+
+    /**
+     * A binary trie over the IPv4 subnets of the rules. Each node that ends
+     * a subnet holds the rules matching on a subnet along its path, plus the
+     * rules that don't match on an IPv4 subnet, so a lookup returns the set
+     * of the deepest such node on the address' path.
+     */
+    private static final class SubnetTrie {
+
+        private static final class Node {
+            final Node[] children = new Node[2];
+            long[] rules;
+        }
+
+        private final Node root = new Node();
+        private final long[] unconstrained;
+        private boolean useful = false;
+
+        SubnetTrie(int words) {
+            unconstrained = new long[words];
+            root.rules = unconstrained;
+        }
+
+        void add(int rule, IPSubnet<?> subnet) {
+            if (!(subnet instanceof IPv4Subnet) ||
+                    subnet.getPrefixLen() < 0 || subnet.getPrefixLen() > 32) {
+                set(unconstrained, rule);
+                return;
+            }
+
+            int addr = ((IPv4Subnet) subnet).getIntAddress();
+            Node node = root;
+            for (int i = 0; i < subnet.getPrefixLen(); i++) {
+                int bit = (addr >>> (31 - i)) & 1;
+                if (node.children[bit] == null)
+                    node.children[bit] = new Node();
+                node = node.children[bit];
+            }
+            if (node == root) {
+                set(unconstrained, rule);
+                return;
+            }
+            if (node.rules == null)
+                node.rules = new long[unconstrained.length];
+            set(node.rules, rule);
+            useful = true;
+        }
+
+        /* Folds the rules of every subnet node into the nodes below it. */
+        void seal() {
+            seal(root, unconstrained);
+        }
+
+        private void seal(Node node, long[] above) {
+            if (node != root && node.rules != null)
+                above = or(node.rules, above);
+            for (Node child : node.children) {
+                if (child != null)
+                    seal(child, above);
+            }
+            if (node.rules == null)
+                node.rules = above;
+        }
+
+        boolean isUseful() {
+            return useful;
+        }
+
+        long[] lookup(IPAddr ip) {
+            if (!(ip instanceof IPv4Addr))
+                return unconstrained;
+            int addr = ((IPv4Addr) ip).toInt();
+            Node node = root;
+            long[] rules = root.rules;
+            for (int i = 0; i < 32; i++) {
+                node = node.children[(addr >>> (31 - i)) & 1];
+                if (node == null)
+                    break;
+                rules = node.rules;
+            }
+            return rules;
+        }
+    }
+}
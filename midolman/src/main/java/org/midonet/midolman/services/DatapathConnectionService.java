@@ -22,6 +22,7 @@ import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.io.DatapathConnectionPool;
+import org.midonet.odp.flows.FlowKeys;
 
 
 /**
@@ -35,9 +36,13 @@ public class DatapathConnectionService extends AbstractService {
     @Inject
     DatapathConnectionPool requestsConnPool;
 
+    @Inject
+    MidolmanConfig config;
+
     @Override
     protected void doStart() {
         try {
+            FlowKeys.useInterning(flowKeyInterning());
             requestsConnPool.start();
             notifyStarted();
         } catch (Exception e) {
@@ -46,6 +51,19 @@ public class DatapathConnectionService extends AbstractService {
         }
     }
 
+    private FlowKeys.Interning flowKeyInterning() {
+        String val = config.getFlowKeyInterning();
+        switch (val) {
+            case "weak":
+                return FlowKeys.Interning.WEAK;
+            case "bounded":
+                return FlowKeys.Interning.BOUNDED;
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown value for flow_key_interning: " + val);
+        }
+    }
+
     @Override
     protected void doStop() {
         try {
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.services;
+
+import com.google.common.util.concurrent.AbstractService;
+import com.google.inject.Inject;
+
+import org.midonet.midolman.state.FlowStateStorageWriter;
+
+/**
+ * Service that runs the thread writing the flow state keys to Cassandra,
+ * and that writes the keys still queued when stopped.
+ */
+public class FlowStateStorageService extends AbstractService {
+
+    @Inject
+    FlowStateStorageWriter writer;
+
+    @Override
+    protected void doStart() {
+        try {
+            writer.start();
+            notifyStarted();
+        } catch (Exception e) {
+            notifyFailed(e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        writer.stop();
+        notifyStopped();
+    }
+}
@@ -58,6 +58,9 @@ public class MidolmanService extends AbstractService {
     @Inject(optional = true)
     HostService hostService;
 
+    @Inject(optional = true)
+    FlowStateStorageService flowStateStorageService;
+
     private JmxReporter jmxReporter = null;
 
     @Override
@@ -121,7 +124,11 @@ public class MidolmanService extends AbstractService {
     }
 
     private List<AbstractService> services() {
-        ArrayList<AbstractService> services = new ArrayList<>(6);
+        ArrayList<AbstractService> services = new ArrayList<>(7);
+        // Stopped after the actors, so that it writes all the flow state
+        // they touched.
+        if (flowStateStorageService != null)
+            services.add(flowStateStorageService);
         services.add(datapathConnectionService);
         services.add(selectLoopService);
         if (hostService != null)
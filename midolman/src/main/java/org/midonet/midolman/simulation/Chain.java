@@ -28,6 +28,7 @@ import scala.collection.Map;
 import org.midonet.sdn.flows.WildcardMatch;
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleIndex;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.sdn.flows.FlowTagger;
@@ -35,14 +36,27 @@ import org.midonet.sdn.flows.FlowTagger;
 public class Chain {
     public final UUID id;
     private final List<Rule> rules;
+    private final RuleIndex index;
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
+        this(id, rules, jumpTargets, name, true);
+    }
+
+    /**
+     * @param indexed
+     *     Whether to build a RuleIndex over the rules, so that applying the
+     *     chain only evaluates the rules that may match the packet. Chains
+     *     that are too short for the index to pay off are never indexed.
+     */
+    public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
+                 String name, boolean indexed) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
+        this.index = indexed ? RuleIndex.build(this.rules) : null;
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
@@ -94,36 +108,72 @@ public class Chain {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        if (index == null) {
+            Iterator<Rule> iter = rules.iterator();
+            while (iter.hasNext() && res.action == Action.CONTINUE) {
+                process(iter.next(), context, ownerId, isPortFilter, res,
+                        depth, traversedChains);
+            }
+        } else {
+            processIndexed(context, ownerId, isPortFilter, res, depth,
+                           traversedChains);
+        }
+
+        assert res.action != Action.JUMP;
+    }
 
-            Rule r = iter.next();
-            r.process(context, res, ownerId, isPortFilter);
+    private void process(Rule r, PacketContext context, UUID ownerId,
+                         boolean isPortFilter, RuleResult res,
+                         int depth, List<UUID> traversedChains) {
+        r.process(context, res, ownerId, isPortFilter);
 
-            if (res.action == Action.JUMP) {
-                Chain jumpChain = getJumpTarget(res.jumpToChain);
-                if (null == jumpChain) {
-                    context.jlog().error("ignoring jump to chain {} : not found.",
-                                        res.jumpToChain, context);
+        if (res.action == Action.JUMP) {
+            Chain jumpChain = getJumpTarget(res.jumpToChain);
+            if (null == jumpChain) {
+                context.jlog().error("ignoring jump to chain {} : not found.",
+                                    res.jumpToChain, context);
+                res.action = Action.CONTINUE;
+            } else if (traversedChains.contains(jumpChain.id)) {
+                context.jlog().warn(
+                    "cannot jump from chain {} to chain {} -- already visited",
+                    this, jumpChain, context);
+                res.action = Action.CONTINUE;
+            } else {
+                // Apply the jump chain and return if it produces a
+                // decisive action. If not, on to the next rule.
+                jumpChain.apply(context, ownerId, isPortFilter,
+                                res, depth + 1, traversedChains);
+                if (res.action == Action.RETURN)
                     res.action = Action.CONTINUE;
-                } else if (traversedChains.contains(jumpChain.id)) {
-                    context.jlog().warn(
-                        "cannot jump from chain {} to chain {} -- already visited",
-                        this, jumpChain, context);
-                    res.action = Action.CONTINUE;
-                } else {
-                    // Apply the jump chain and return if it produces a
-                    // decisive action. If not, on to the next rule.
-                    jumpChain.apply(context, ownerId, isPortFilter,
-                                    res, depth + 1, traversedChains);
-                    if (res.action == Action.RETURN)
-                        res.action = Action.CONTINUE;
-                }
             }
         }
+    }
 
-        assert res.action != Action.JUMP;
+    /**
+     * Evaluates, in order, only the rules the index finds may match the
+     * packet. The candidates are computed again after a rule that may have
+     * changed the packet match, such as a NAT rule or a jump.
+     */
+    private void processIndexed(PacketContext context, UUID ownerId,
+                                boolean isPortFilter, RuleResult res,
+                                int depth, List<UUID> traversedChains) {
+        long[] candidates = index.candidates(context.wcmatch());
+        boolean lookedUpConnTrack = false;
+        int from = 0;
+        int next = RuleIndex.nextCandidate(candidates, 0);
+        while (next >= 0 && res.action == Action.CONTINUE) {
+            if (!lookedUpConnTrack)
+                lookedUpConnTrack = index.lookUpConnTrack(context, from, next);
+            process(rules.get(next), context, ownerId, isPortFilter, res,
+                    depth, traversedChains);
+            from = next + 1;
+            if (res.action == Action.CONTINUE && index.mayRewrite(next))
+                candidates = index.candidates(context.wcmatch());
+            next = RuleIndex.nextCandidate(candidates, from);
+        }
+        if (res.action == Action.CONTINUE && !lookedUpConnTrack)
+            index.lookUpConnTrack(context, from, rules.size());
     }
 
     /**
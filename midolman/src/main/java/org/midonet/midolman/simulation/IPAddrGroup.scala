@@ -15,12 +15,64 @@
  */
 package org.midonet.midolman.simulation
 
-import java.util.UUID
-import org.midonet.packets.IPAddr
-import scala.collection.JavaConversions
+import java.util.{Arrays, UUID}
+
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr}
+
+/**
+ * An IP address group, as referenced by the conditions of the rules. The
+ * addresses are kept in sorted primitive arrays, an int per IPv4 address and
+ * a pair of longs per IPv6 address, so that a membership test is a binary
+ * search that doesn't touch any boxed address. A new version of the group
+ * is derived from the previous one by merging in the addresses added and
+ * removed, see `updated`.
+ */
+class IPAddrGroup private (val id: UUID,
+                           private val v4: Array[Int],
+                           private val v6: Array[Long]) {
+
+    def this(id: UUID, addrs: Set[IPAddr]) =
+        this(id, IPAddrGroup.v4Array(addrs), IPAddrGroup.v6Array(addrs))
+
+    def contains(addr: IPAddr): Boolean = addr match {
+        case ip: IPv4Addr => Arrays.binarySearch(v4, ip.toInt) >= 0
+        case ip: IPv6Addr => IPAddrGroup.v6Search(v6, ip.upperWord,
+                                                  ip.lowerWord) >= 0
+        case _ => false
+    }
+
+    def size: Int = v4.length + v6.length / 2
+
+    /** The addresses of the group, built on demand. */
+    def addrs: Set[IPAddr] = {
+        val b = Set.newBuilder[IPAddr]
+        v4 foreach { b += new IPv4Addr(_) }
+        var i = 0
+        while (i < v6.length) {
+            b += new IPv6Addr(v6(i), v6(i + 1))
+            i += 2
+        }
+        b.result()
+    }
+
+    /**
+     * Returns a new version of this group, with the given addresses added
+     * and removed. The group is merged with the changes, in time linear in
+     * its size, rather than built again.
+     */
+    def updated(added: Iterable[IPAddr], removed: Iterable[IPAddr]): IPAddrGroup = {
+        if (added.isEmpty && removed.isEmpty)
+            return this
+        val all = added ++ removed
+        new IPAddrGroup(id,
+            IPAddrGroup.mergeV4(v4, IPAddrGroup.v4Array(added),
+                                IPAddrGroup.v4Array(removed)),
+            if (all.exists(_.isInstanceOf[IPv6Addr]))
+                IPAddrGroup.mergeV6(v6, IPAddrGroup.v6Array(added),
+                                    IPAddrGroup.v6Array(removed))
+            else v6)
+    }
 
-class IPAddrGroup(val id: UUID, val addrs: Set[IPAddr]) {
-    def contains(addr: IPAddr) = addrs.contains(addr)
     override def toString =
         "IPAddrGroup[id=%s, addrs=[%s]]".format(id, addrs.mkString(", "))
 }
@@ -32,4 +84,92 @@ object IPAddrGroup {
     def fromAddrs(id: UUID, addrs: Array[IPAddr]): IPAddrGroup = {
         new IPAddrGroup(id, addrs.toSet)
     }
+
+    private def v4Array(addrs: Iterable[IPAddr]): Array[Int] = {
+        val a = addrs.collect { case ip: IPv4Addr => ip.toInt }.toArray
+        Arrays.sort(a)
+        a
+    }
+
+    private def v6Array(addrs: Iterable[IPAddr]): Array[Long] = {
+        val sorted = addrs.collect { case ip: IPv6Addr => ip }.toArray
+                          .sortWith(compare(_, _) < 0)
+        val a = new Array[Long](sorted.length * 2)
+        var i = 0
+        while (i < sorted.length) {
+            a(2 * i) = sorted(i).upperWord
+            a(2 * i + 1) = sorted(i).lowerWord
+            i += 1
+        }
+        a
+    }
+
+    private def compare(a: IPv6Addr, b: IPv6Addr): Int =
+        compare(a.upperWord, a.lowerWord, b.upperWord, b.lowerWord)
+
+    private def compare(upperA: Long, lowerA: Long,
+                        upperB: Long, lowerB: Long): Int = {
+        val c = java.lang.Long.compare(upperA, upperB)
+        if (c != 0) c else java.lang.Long.compare(lowerA, lowerB)
+    }
+
+    /* Binary search over the (upper, lower) pairs of a sorted IPv6 array,
+     * returning the index of the pair or a negative value if absent. */
+    private def v6Search(a: Array[Long], upper: Long, lower: Long): Int = {
+        var lo = 0
+        var hi = a.length / 2 - 1
+        while (lo <= hi) {
+            val mid = (lo + hi) >>> 1
+            val c = compare(a(2 * mid), a(2 * mid + 1), upper, lower)
+            if (c < 0) lo = mid + 1
+            else if (c > 0) hi = mid - 1
+            else return mid
+        }
+        -1
+    }
+
+    private def mergeV4(base: Array[Int], added: Array[Int],
+                        removed: Array[Int]): Array[Int] = {
+        val res = new Array[Int](base.length + added.length)
+        var i, j, n = 0
+        while (i < base.length || j < added.length) {
+            val addr =
+                if (j == added.length || (i < base.length && base(i) <= added(j))) {
+                    if (j < added.length && base(i) == added(j))
+                        j += 1
+                    i += 1
+                    base(i - 1)
+                } else {
+                    j += 1
+                    added(j - 1)
+                }
+            if (Arrays.binarySearch(removed, addr) < 0 &&
+                    (n == 0 || res(n - 1) != addr)) {
+                res(n) = addr
+                n += 1
+            }
+        }
+        Arrays.copyOf(res, n)
+    }
+
+    private def mergeV6(base: Array[Long], added: Array[Long],
+                        removed: Array[Long]): Array[Long] = {
+        val res = new Array[Long](base.length + added.length)
+        var i, j, n = 0
+        while (i < base.length || j < added.length) {
+            val fromBase = j == added.length || (i < base.length &&
+                compare(base(i), base(i + 1), added(j), added(j + 1)) <= 0)
+            val (src, k) = if (fromBase) (base, i) else (added, j)
+            if (fromBase) i += 2 else j += 2
+            val upper = src(k)
+            val lower = src(k + 1)
+            if (v6Search(removed, upper, lower) < 0 &&
+                    (n == 0 || compare(res(n - 2), res(n - 1), upper, lower) != 0)) {
+                res(n) = upper
+                res(n + 1) = lower
+                n += 2
+            }
+        }
+        Arrays.copyOf(res, n)
+    }
 }
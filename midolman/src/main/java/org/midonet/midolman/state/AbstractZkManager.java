@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -143,31 +144,68 @@ public abstract class AbstractZkManager<K, CFG>
         if (data == null)
             return null;
 
-        CFG config = serializer.deserialize(data, getConfigClass());
-        if (config instanceof BaseConfig && key instanceof UUID) {
-            ((BaseConfig)config).id = (UUID)key;
-        }
-
-        return config;
+        return deserialize(key, data);
     }
 
     /**
-     * Gets the configs for the specified multiple resource IDs.
+     * Gets the configs for the specified multiple resource IDs. The reads
+     * are pipelined, so this takes about one round trip to ZooKeeper
+     * regardless of the number of keys.
      *
      * @param keys IDs of resources to be retrieved.
-     * @return A list of the config of requested resources
+     * @return A list of the config of requested resources, in the order of
+     *         the keys, with null for the resources that do not exist
      * @throws StateAccessException
      * @throws SerializationException
      */
     public List<CFG> get(Collection<K> keys)
             throws StateAccessException, SerializationException {
-        List<CFG> configs = new ArrayList<>(keys.size());
-        for (K key : keys) {
-            configs.add(get(key));
+        List<K> keyList = new ArrayList<>(keys);
+        List<String> paths = new ArrayList<>(keyList.size());
+        for (K key : keyList) {
+            paths.add(getConfigPath(key));
+        }
+
+        List<byte[]> data = zk.getAll(paths);
+        List<CFG> configs = new ArrayList<>(keyList.size());
+        for (int i = 0; i < keyList.size(); i++) {
+            configs.add(data.get(i) == null ?
+                        null : deserialize(keyList.get(i), data.get(i)));
         }
         return configs;
     }
 
+    /**
+     * Gets the configs of those of the specified resources that exist,
+     * as get(Collection) does.
+     *
+     * @param keys IDs of resources to be retrieved.
+     * @return The configs of the existing resources by ID, in the order
+     *         of the keys
+     */
+    public Map<K, CFG> getAll(Collection<K> keys)
+            throws StateAccessException, SerializationException {
+        List<CFG> configs = get(keys);
+        Map<K, CFG> configMap = new LinkedHashMap<>(configs.size());
+        int i = 0;
+        for (K key : keys) {
+            CFG config = configs.get(i++);
+            if (config != null) {
+                configMap.put(key, config);
+            }
+        }
+        return configMap;
+    }
+
+    private CFG deserialize(K key, byte[] data) throws SerializationException {
+        CFG config = serializer.deserialize(data, getConfigClass());
+        if (config instanceof BaseConfig && key instanceof UUID) {
+            ((BaseConfig)config).id = (UUID)key;
+        }
+
+        return config;
+    }
+
     /**
      * Gets the config for the specified resource ID asynchronously.
      *
@@ -61,6 +61,24 @@ public interface Directory {
     void asyncGet(String relativePath, DirectoryCallback<byte[]> data,
                   TypedWatcher watcher);
 
+    /**
+     * Gets the data of several nodes, pipelining the reads so that listing
+     * N nodes costs about one round trip instead of N.
+     *
+     * The calling thread blocks until the reads complete. The completions
+     * of asynchronous reads run on the ZooKeeper event thread, so when
+     * called from that thread, for instance from an asynchronous callback or
+     * from a watcher run without a reactor, the nodes are read one at a time
+     * instead. Any other thread may call it.
+     *
+     * @return The data of the nodes, in the order of relativePaths, with
+     *         null for the nodes that do not exist.
+     * @throws KeeperException.OperationTimeoutException if a read doesn't
+     *         complete within the session timeout.
+     */
+    List<byte[]> getAll(List<String> relativePaths)
+        throws KeeperException, InterruptedException;
+
     Set<String> getChildren(String relativePath, Runnable watcher)
             throws KeeperException, InterruptedException;
 
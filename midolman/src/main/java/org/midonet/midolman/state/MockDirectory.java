@@ -368,6 +368,13 @@ public class MockDirectory implements Directory {
         }
     }
 
+    @Override
+    public List<byte[]> getAll(List<String> relativePaths)
+            throws KeeperException, InterruptedException {
+        return ZkUtil.getAll(this, relativePaths, ZkUtil.MAX_PENDING_READS,
+                             ZkUtil.READ_TIMEOUT_MILLIS);
+    }
+
     @Override
     public Set<String> getChildren(String path, Runnable watcher)
         throws NoNodeException {
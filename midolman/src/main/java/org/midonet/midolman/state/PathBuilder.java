@@ -29,6 +29,7 @@ import org.midonet.packets.IPv4Addr;
 public class PathBuilder extends ZkPathManager {
 
     public static final String TENANTS_PATH = "tenants";
+    public static final String TENANT_INDEX_BUILT_PATH = "tenant_index_built";
     public static final String TRACED_CONDITIONS_PATH = "trace-conditions";
     public static final String LICENSES_PATH = "licenses";
 
@@ -49,6 +50,30 @@ public class PathBuilder extends ZkPathManager {
         return buildTenantsPath().append("/").append(id);
     }
 
+    public String getTenantResourcesPath(String id, String resourceType) {
+        return buildTenantResourcesPath(id, resourceType).toString();
+    }
+
+    private StringBuilder buildTenantResourcesPath(String id,
+                                                   String resourceType) {
+        return buildTenantPath(id).append("/").append(resourceType);
+    }
+
+    public String getTenantResourcePath(String id, String resourceType,
+                                        UUID resourceId) {
+        return buildTenantResourcesPath(id, resourceType).append("/")
+            .append(resourceId).toString();
+    }
+
+    /**
+     * Path of the node that marks the tenant index as complete, i.e. as
+     * covering the devices created before it was maintained.
+     */
+    public String getTenantIndexBuiltPath() {
+        return new StringBuilder(basePath).append("/")
+            .append(TENANT_INDEX_BUILT_PATH).toString();
+    }
+
     public String getTenantsPath() {
         return buildTenantsPath().toString();
     }
@@ -147,6 +147,10 @@ public class ZkConnection implements Watcher {
         return new ZkDirectory(this, "", Ids.OPEN_ACL_UNSAFE, reactor);
     }
 
+    public int getSessionTimeoutMillis() {
+        return sessionTimeoutMillis;
+    }
+
     public ZooKeeper getZooKeeper()  {
         synchronized (this) {
             if (zk == null) {
@@ -244,6 +244,13 @@ public class ZkDirectory implements Directory {
             null);
     }
 
+    @Override
+    public List<byte[]> getAll(List<String> relativePaths)
+            throws KeeperException, InterruptedException {
+        return ZkUtil.getAll(this, relativePaths, ZkUtil.MAX_PENDING_READS,
+                             zk.getSessionTimeoutMillis());
+    }
+
     @Override
     public Set<String> getChildren(String relativePath, Runnable watcher)
         throws KeeperException, InterruptedException {
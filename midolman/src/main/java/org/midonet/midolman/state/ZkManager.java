@@ -320,6 +320,20 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Gets the data of the nodes at the given paths in a single pipelined
+     * batch. See {@link Directory#getAll}.
+     */
+    public List<byte[]> getAll(List<String> paths)
+            throws StateAccessException {
+        try {
+            return zk.getAll(paths);
+        } catch (Exception ex) {
+            throw processException(
+                ex, "getting the nodes at " + paths.size() + " paths");
+        }
+    }
+
     public Map.Entry<byte[], Integer> getWithVersion(String path, Runnable watcher)
             throws StateAccessException {
         try {
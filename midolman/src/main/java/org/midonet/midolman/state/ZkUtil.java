@@ -15,9 +15,13 @@
  */
 package org.midonet.midolman.state;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Preconditions;
 
@@ -33,6 +37,17 @@ import org.apache.zookeeper.ZooDefs;
  */
 public class ZkUtil {
 
+    /**
+     * Maximum number of reads that getAll keeps in flight at once.
+     */
+    public static final int MAX_PENDING_READS = 128;
+
+    /**
+     * Time that getAll waits for a read to complete, when the directory
+     * has no session timeout to bound it.
+     */
+    public static final long READ_TIMEOUT_MILLIS = 30000L;
+
     private ZkUtil() {}
 
     /**
@@ -144,4 +159,97 @@ public class ZkUtil {
         Preconditions.checkNotNull(ops);
         return getErrorOp(ex.getResults(), ops);
     }
+
+    /**
+     * Whether the current thread is the event thread of a ZooKeeper client,
+     * which runs the watchers and the callbacks of asynchronous operations.
+     */
+    public static boolean isZkEventThread() {
+        return Thread.currentThread().getName().endsWith("-EventThread");
+    }
+
+    /**
+     * Gets the data of the nodes at the given paths, issuing the reads
+     * asynchronously with at most maxPendingReads of them in flight, and
+     * waits for all of them to complete.
+     *
+     * The completions of the reads run on the ZooKeeper event thread, which
+     * would deadlock waiting for them, so on that thread the nodes are read
+     * one at a time with synchronous reads.
+     *
+     * @param dir Directory to read from
+     * @param relativePaths paths of the nodes to read
+     * @param maxPendingReads maximum number of outstanding reads
+     * @param timeoutMillis time to wait for a read to complete
+     * @return The data of the nodes, in the order of relativePaths, with
+     *         null for the nodes that do not exist
+     * @throws KeeperException.OperationTimeoutException if a read takes
+     *         longer than timeoutMillis
+     * @throws KeeperException if any read fails for another reason
+     */
+    public static List<byte[]> getAll(Directory dir, List<String> relativePaths,
+                                      int maxPendingReads, long timeoutMillis)
+            throws KeeperException, InterruptedException {
+        if (isZkEventThread()) {
+            return getAllSync(dir, relativePaths);
+        }
+
+        final byte[][] results = new byte[relativePaths.size()][];
+        final Semaphore pending = new Semaphore(maxPendingReads);
+        final AtomicReference<KeeperException> error = new AtomicReference<>();
+
+        for (int i = 0; i < results.length && error.get() == null; i++) {
+            final int index = i;
+            if (!pending.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new KeeperException.OperationTimeoutException();
+            }
+            dir.asyncGet(relativePaths.get(i), new DirectoryCallback<byte[]>() {
+                @Override
+                public void onSuccess(byte[] data) {
+                    results[index] = data;
+                    pending.release();
+                }
+
+                @Override
+                public void onTimeout() {
+                    error.compareAndSet(
+                        null, new KeeperException.OperationTimeoutException());
+                    pending.release();
+                }
+
+                @Override
+                public void onError(KeeperException e) {
+                    // Nodes deleted since they were listed are skipped.
+                    if (!(e instanceof KeeperException.NoNodeException)) {
+                        error.compareAndSet(null, e);
+                    }
+                    pending.release();
+                }
+            }, null);
+        }
+
+        // Wait for the reads still in flight.
+        if (!pending.tryAcquire(maxPendingReads, timeoutMillis,
+                                TimeUnit.MILLISECONDS)) {
+            throw new KeeperException.OperationTimeoutException();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return Arrays.asList(results);
+    }
+
+    private static List<byte[]> getAllSync(Directory dir,
+                                           List<String> relativePaths)
+            throws KeeperException, InterruptedException {
+        byte[][] results = new byte[relativePaths.size()][];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                results[i] = dir.get(relativePaths.get(i), null);
+            } catch (KeeperException.NoNodeException e) {
+                // Nodes deleted since they were listed are skipped.
+            }
+        }
+        return Arrays.asList(results);
+    }
 }
@@ -121,6 +121,7 @@ public class BridgeZkManager
     private TunnelZkManager tunnelZkManager;
     private PortZkManager portZkManager;
     private ChainZkManager chainZkManager;
+    private TenantZkManager tenantZkManager;
 
     /**
      * Initializes a BridgeZkManager object with a ZooKeeper client and the root
@@ -140,6 +141,7 @@ public class BridgeZkManager
         tunnelZkManager = new TunnelZkManager(zk, paths, serializer);
         portZkManager = new PortZkManager(zk, paths, serializer);
         chainZkManager = new ChainZkManager(zk, paths, serializer);
+        tenantZkManager = new TenantZkManager(zk, paths, serializer);
     }
 
     @Override
@@ -201,6 +203,9 @@ public class BridgeZkManager
         ops.addAll(tunnelZkManager.prepareTunnelUpdate(tunnelKeyId, tunnelKey));
 
         ops.addAll(filterZkManager.prepareCreate(id));
+
+        tenantZkManager.prepareAddResource(ops, ResourceType.BRIDGE,
+                                           config.getTenantId(), id);
         return ops;
     }
 
@@ -269,6 +274,15 @@ public class BridgeZkManager
                     oldConfig.outboundFilter,
                     newConfig.outboundFilter,
                     id));
+
+            String oldTenantId = oldConfig.getTenantId();
+            String newTenantId = newConfig.getTenantId();
+            if (!Objects.equals(oldTenantId, newTenantId)) {
+                tenantZkManager.prepareRemoveResource(
+                    ops, ResourceType.BRIDGE, oldTenantId, id);
+                tenantZkManager.prepareAddResource(
+                    ops, ResourceType.BRIDGE, newTenantId, id);
+            }
         }
         return ops;
     }
@@ -339,6 +353,9 @@ public class BridgeZkManager
 
         ops.addAll(filterZkManager.prepareDelete(id));
 
+        tenantZkManager.prepareRemoveResource(ops, ResourceType.BRIDGE,
+                                              config.getTenantId(), id);
+
         return ops;
     }
 
@@ -59,6 +59,8 @@ public class ChainZkManager
     private final static Logger log =
         LoggerFactory.getLogger(ChainZkManager.class);
 
+    private final TenantZkManager tenantZkManager;
+
     /*
      * creates a back reference for the given type and device ID.
      */
@@ -167,6 +169,7 @@ public class ChainZkManager
     public ChainZkManager(ZkManager zk, PathBuilder paths,
                           Serializer serializer) {
         super(zk, paths, serializer);
+        tenantZkManager = new TenantZkManager(zk, paths, serializer);
     }
 
     @Override
@@ -207,6 +210,8 @@ public class ChainZkManager
                 Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
         ops.add(Op.create(paths.getChainBackRefsPath(id), null,
                 Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        tenantZkManager.prepareAddResource(ops, ResourceType.CHAIN,
+                                           config.getTenantId(), id);
     }
 
     /**
@@ -220,6 +225,23 @@ public class ChainZkManager
     public List<Op> prepareDelete(UUID id)
             throws StateAccessException, SerializationException {
         List<Op> ops = new ArrayList<>();
+        prepareDelete(ops, id);
+        return ops;
+    }
+
+    /**
+     * Adds to the list of operations those that delete a chain. Chains
+     * deleted together should be added to the same list, so that the tenant
+     * index directory they leave empty is deleted too.
+     *
+     * @param ops
+     *            The list of operations to add to
+     * @param id
+     *            Chain ID
+     * @throws org.midonet.midolman.state.StateAccessException
+     */
+    public void prepareDelete(List<Op> ops, UUID id)
+            throws StateAccessException, SerializationException {
         RuleZkManager ruleZkManager = new RuleZkManager(zk, paths, serializer);
         RouterZkManager routerZkManager =
                 new RouterZkManager(zk, paths, serializer);
@@ -274,7 +296,9 @@ public class ChainZkManager
         String chainPath = paths.getChainPath(id);
         log.debug("Preparing to delete: " + chainPath);
         ops.add(Op.delete(chainPath, -1));
-        return ops;
+
+        tenantZkManager.prepareRemoveResource(ops, ResourceType.CHAIN,
+                                              get(id).getTenantId(), id);
     }
 
     /**
@@ -58,6 +58,7 @@ public class PortGroupZkManager
 
     private final PortZkManager portDao;
     private final RuleZkManager ruleDao;
+    private final TenantZkManager tenantDao;
 
     public void getMembersAsync(UUID id,
                                 DirectoryCallback<Set<UUID>> cb,
@@ -83,6 +84,7 @@ public class PortGroupZkManager
         super(zk, paths, serializer);
         portDao = new PortZkManager(zk, paths, serializer);
         ruleDao = new RuleZkManager(zk, paths, serializer);
+        tenantDao = new TenantZkManager(zk, paths, serializer);
     }
 
     @Override
@@ -118,6 +120,9 @@ public class PortGroupZkManager
         ops.add(Op.create(paths.getPortGroupRulesPath(id), null,
                 Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
 
+        tenantDao.prepareAddResource(ops, ResourceType.PORT_GROUP,
+                                     config.getTenantId(), id);
+
         log.debug("PortGroupZkManager.prepareCreate: exiting");
         return ops;
     }
@@ -186,6 +191,8 @@ public class PortGroupZkManager
         ops.add(Op.delete(portsPath, -1));
         ops.add(Op.delete(paths.getPortGroupPath(id), -1));
 
+        tenantDao.prepareRemoveResource(ops, ResourceType.PORT_GROUP,
+                                        get(id).getTenantId(), id);
         return ops;
     }
 
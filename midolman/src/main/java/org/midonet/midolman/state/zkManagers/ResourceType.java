@@ -27,7 +27,8 @@ public enum ResourceType {
     ROUTER("router"),
     BRIDGE("bridge"),
     ROUTE("route"),
-    CHAIN("chain");
+    CHAIN("chain"),
+    PORT_GROUP("port_group");
 
     private final String name;
     ResourceType(String name) {
@@ -112,6 +112,7 @@ public class RouterZkManager
     PortZkManager portZkManager;
     ChainZkManager chainZkManager;
     LoadBalancerZkManager loadBalancerZkManager;
+    TenantZkManager tenantZkManager;
 
     private List<Op> updateLoadBalancerAssociation(UUID routerId,
                                                    RouterConfig oldConfig,
@@ -149,6 +150,7 @@ public class RouterZkManager
         portZkManager = new PortZkManager(zk, paths, serializer);
         loadBalancerZkManager = new LoadBalancerZkManager(zk, paths, serializer);
         chainZkManager = new ChainZkManager(zk, paths, serializer);
+        tenantZkManager = new TenantZkManager(zk, paths, serializer);
     }
 
     public List<Op> prepareClearRefsToChains(UUID id, UUID chainId)
@@ -255,6 +257,8 @@ public class RouterZkManager
             ops.addAll(updateLoadBalancerAssociation(id, null, config));
         }
 
+        tenantZkManager.prepareAddResource(ops, ResourceType.ROUTER,
+                                           config.getTenantId(), id);
         return ops;
     }
 
@@ -322,6 +326,8 @@ public class RouterZkManager
         log.debug("Preparing to delete: " + routerPath);
         ops.add(Op.delete(routerPath, -1));
         ops.addAll(filterZkManager.prepareDelete(id));
+        tenantZkManager.prepareRemoveResource(ops, ResourceType.ROUTER,
+                                              config.getTenantId(), id);
         return ops;
     }
 
@@ -15,27 +15,42 @@
  */
 package org.midonet.midolman.state.zkManagers;
 
+import com.google.common.base.Strings;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.Op;
 import org.apache.zookeeper.ZooDefs;
+import org.midonet.midolman.serialization.SerializationException;
 import org.midonet.midolman.serialization.Serializer;
 import org.midonet.midolman.state.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * Zk DAO for tenants.  This class used purely by the REST API.
+ *
+ * Besides the tenant nodes, it maintains an index of the bridges, routers,
+ * chains and port groups of each tenant, under
+ * tenants/[tenant ID]/[resource type]/[resource ID]. The device managers
+ * update it in the same operations that create and delete the devices.
+ * The index is only used once buildIndex() has marked it as built, which
+ * must wait until no API node of a version that doesn't maintain it is
+ * left, and adds the devices created before to it.
  */
 public class TenantZkManager extends BaseZkManager {
 
     private final static Logger log =
             LoggerFactory.getLogger(TenantZkManager.class);
 
+    // The index is never unbuilt, so a positive check is cached.
+    private volatile boolean indexBuilt = false;
+
     /**
      * Constructor to set ZooKeeper and base path.
      *
@@ -70,6 +85,171 @@ public class TenantZkManager extends BaseZkManager {
         return ops;
     }
 
+    /**
+     * Adds to the list of operations those that add the specified resource
+     * to the index of its tenant, creating the tenant if needed. Does
+     * nothing if the resource has no tenant.
+     */
+    public void prepareAddResource(List<Op> ops, ResourceType type,
+                                   String tenantId, UUID id)
+            throws StateAccessException {
+        if (Strings.isNullOrEmpty(tenantId)) {
+            return;
+        }
+
+        ops.addAll(prepareCreate(tenantId));
+
+        String resourcesPath =
+            paths.getTenantResourcesPath(tenantId, type.toString());
+        if (!zk.exists(resourcesPath)) {
+            ops.add(zk.getPersistentCreateOp(resourcesPath, null));
+        }
+        ops.add(zk.getPersistentCreateOp(
+            paths.getTenantResourcePath(tenantId, type.toString(), id), null));
+    }
+
+    /**
+     * Adds to the list of operations those that remove the specified
+     * resource from the index of its tenant, if it's indexed, along with
+     * the resource type and tenant directories it leaves empty. The tenant
+     * is kept until the index is built, as it may still have devices that
+     * predate the index.
+     */
+    public void prepareRemoveResource(List<Op> ops, ResourceType type,
+                                      String tenantId, UUID id)
+            throws StateAccessException {
+        if (Strings.isNullOrEmpty(tenantId)) {
+            return;
+        }
+
+        // The resource may have been created before the index was added.
+        String path =
+            paths.getTenantResourcePath(tenantId, type.toString(), id);
+        if (!zk.exists(path)) {
+            return;
+        }
+        ops.add(Op.delete(path, -1));
+
+        String resourcesPath =
+            paths.getTenantResourcesPath(tenantId, type.toString());
+        if (!deletesAllChildren(ops, resourcesPath)) {
+            return;
+        }
+        ops.add(Op.delete(resourcesPath, -1));
+
+        String tenantPath = paths.getTenantPath(tenantId);
+        if (isIndexBuilt() && deletesAllChildren(ops, tenantPath)) {
+            ops.add(Op.delete(tenantPath, -1));
+        }
+    }
+
+    /**
+     * Whether the list of operations deletes all the children of a node.
+     */
+    private boolean deletesAllChildren(List<Op> ops, String path)
+            throws StateAccessException {
+        Set<String> children = zk.getChildren(path);
+        if (children.size() > ops.size()) {
+            return false;
+        }
+
+        Set<String> deleted = new HashSet<>();
+        for (Op op : ops) {
+            if (ZkUtil.isDelete(op)) {
+                deleted.add(op.getPath());
+            }
+        }
+        for (String child : children) {
+            if (!deleted.contains(path + "/" + child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the IDs of the resources of the given type that belong to a
+     * tenant.
+     */
+    public List<UUID> listResources(ResourceType type, String tenantId)
+            throws StateAccessException {
+        String path = paths.getTenantResourcesPath(tenantId, type.toString());
+        if (zk.exists(path)) {
+            return getUuidList(path);
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Whether the tenant index covers all the devices, which is the case
+     * once buildIndex() completed. Until then, the devices of a tenant must
+     * be found by scanning all of them.
+     */
+    public boolean isIndexBuilt() throws StateAccessException {
+        if (!indexBuilt) {
+            indexBuilt = zk.exists(paths.getTenantIndexBuiltPath());
+        }
+        return indexBuilt;
+    }
+
+    /**
+     * Adds to the tenant index the bridges, routers, chains and port groups
+     * that are not in it yet, such as those created before it was maintained,
+     * and then marks the index as built.
+     *
+     * @return The number of resources added to the index
+     */
+    public int buildIndex()
+            throws StateAccessException, SerializationException {
+        int added =
+            buildIndex(ResourceType.BRIDGE, paths.getBridgesPath(),
+                       BridgeZkManager.BridgeConfig.class) +
+            buildIndex(ResourceType.ROUTER, paths.getRoutersPath(),
+                       RouterZkManager.RouterConfig.class) +
+            buildIndex(ResourceType.CHAIN, paths.getChainsPath(),
+                       ChainZkManager.ChainConfig.class) +
+            buildIndex(ResourceType.PORT_GROUP, paths.getPortGroupsPath(),
+                       PortGroupZkManager.PortGroupConfig.class);
+        zk.addPersistent_safe(paths.getTenantIndexBuiltPath(), null);
+        indexBuilt = true;
+        return added;
+    }
+
+    private int buildIndex(ResourceType type, String path,
+                           Class<? extends ConfigWithProperties> clazz)
+            throws StateAccessException, SerializationException {
+        if (!zk.exists(path)) {
+            return 0;
+        }
+
+        int added = 0;
+        for (UUID id : getUuidList(path)) {
+            ConfigWithProperties config;
+            try {
+                config = serializer.deserialize(zk.get(path + "/" + id),
+                                                clazz);
+            } catch (NoStatePathException ex) {
+                continue; // Deleted since it was listed.
+            }
+
+            String tenantId = config.getTenantId();
+            if (Strings.isNullOrEmpty(tenantId) || zk.exists(
+                    paths.getTenantResourcePath(tenantId, type.toString(),
+                                                id))) {
+                continue;
+            }
+
+            List<Op> ops = new ArrayList<>();
+            prepareAddResource(ops, type, tenantId, id);
+            zk.multi(ops);
+            added++;
+        }
+
+        log.info("Added {} {} resources to the tenant index", added, type);
+        return added;
+    }
+
     /**
      * Gets a list of all tenants.
      *
@@ -214,6 +214,11 @@ public class MmCtl {
         OptionBuilder.withDescription("List MidolMan agents in the system");
         mutuallyExclusiveOptions.addOption(OptionBuilder.create());
 
+        OptionBuilder.withLongOpt("build-tenant-index");
+        OptionBuilder.withDescription(
+                "Index the devices of each tenant created before upgrading");
+        mutuallyExclusiveOptions.addOption(OptionBuilder.create());
+
         // make sure that there is at least one.
         mutuallyExclusiveOptions.setRequired(true);
 
@@ -263,6 +268,21 @@ public class MmCtl {
         return MM_CTL_RET_CODE.SUCCESS.getResult();
     }
 
+    private MmCtlResult buildTenantIndex() {
+        log.debug("MmCtl.buildTenantIndex entered.");
+
+        try {
+            int added = dataClient.tenantsBuildIndex();
+            System.out.println("Indexed " + added + " devices.");
+        } catch (StateAccessException e) {
+            return MM_CTL_RET_CODE.STATE_ERROR.getResult(e);
+        } catch (Exception e) {
+            return MM_CTL_RET_CODE.UNKNOWN_ERROR.getResult(e);
+        }
+
+        return MM_CTL_RET_CODE.SUCCESS.getResult();
+    }
+
     private static Injector getInjector(String configFilePath) {
 
         AbstractModule commandModule = new AbstractModule() {
@@ -344,6 +364,9 @@ public class MmCtl {
             } else if (cl.hasOption("list-hosts")) {
                 res = mmctl.listHosts();
 
+            } else if (cl.hasOption("build-tenant-index")) {
+                res = mmctl.buildTenantIndex();
+
             } else {
                 // Only a programming error could cause this part to be
                 // executed.
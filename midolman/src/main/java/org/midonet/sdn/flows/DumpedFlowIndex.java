@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.odp.Flow;
+import org.midonet.odp.FlowMask;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.flows.FlowKey;
+
+/**
+ * Finds the flow of a datapath flow dump that a match installed by the agent
+ * became. The key of a dumped flow needn't equal the installed match: the
+ * datapath may return it masked by the flow's megaflow mask, and with keys
+ * the agent didn't set, such as those a newer datapath adds. So keys are
+ * compared by the masked bytes of their attributes, over the attributes of
+ * the installed match only, regardless of their order.
+ *
+ * The dumped flows are indexed for each set of attributes of the installed
+ * matches to look up, and a lookup tries each mask found in the dump, which
+ * are few: a mask is shared by all the megaflows made for the same fields.
+ */
+final class DumpedFlowIndex {
+
+    /* Large enough for any flow key, including a tunnel key */
+    private static final int KEY_BUFFER_SIZE = 512;
+    /* Large enough for the keys of any flow match */
+    private static final int ID_BUFFER_SIZE = 8192;
+
+    private final List<FlowMask> masks = new ArrayList<>();
+    private final Map<ByteBuffer, Flow> flows = new HashMap<>();
+    private final ByteBuffer keyBuf = ByteBuffer.allocate(KEY_BUFFER_SIZE);
+    private final ByteBuffer maskBuf = ByteBuffer.allocate(KEY_BUFFER_SIZE);
+    private final ByteBuffer idBuf = ByteBuffer.allocate(ID_BUFFER_SIZE);
+    private final int numDumped;
+
+    /**
+     * Indexes the dumped flows to look up the given installed matches.
+     */
+    DumpedFlowIndex(Collection<Flow> dumped,
+                    Collection<FlowMatch> installed) {
+        numDumped = dumped.size();
+        Set<BitSet> attrSets = new LinkedHashSet<>();
+        for (FlowMatch match : installed)
+            attrSets.add(attrsOf(match));
+
+        Map<FlowMask, Integer> maskIds = new HashMap<>();
+        for (Flow flow : dumped) {
+            FlowMask mask = flow.getMask();
+            Integer maskId = maskIds.get(mask);
+            if (maskId == null) {
+                maskId = masks.size();
+                maskIds.put(mask, maskId);
+                masks.add(mask);
+            }
+            for (BitSet attrs : attrSets) {
+                if (!identity(flow.getMatch(), attrs, mask, maskId))
+                    continue;
+                Flow other = flows.get(idBuf);
+                if (other == null || isUsedLater(flow, other)) {
+                    byte[] id = new byte[idBuf.remaining()];
+                    idBuf.get(id);
+                    flows.put(ByteBuffer.wrap(id), flow);
+                }
+            }
+        }
+    }
+
+    /** The number of flows in the dump. */
+    int size() {
+        return numDumped;
+    }
+
+    /**
+     * Returns the dumped flow the given installed match became, or null if
+     * it isn't in the dump.
+     */
+    Flow find(FlowMatch match) {
+        BitSet attrs = attrsOf(match);
+        for (int maskId = 0; maskId < masks.size(); maskId++) {
+            if (identity(match, attrs, masks.get(maskId), maskId)) {
+                Flow flow = flows.get(idBuf);
+                if (flow != null)
+                    return flow;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isUsedLater(Flow flow, Flow other) {
+        return flow.getLastUsedTime() != null &&
+               (other.getLastUsedTime() == null ||
+                flow.getLastUsedTime() > other.getLastUsedTime());
+    }
+
+    private static BitSet attrsOf(FlowMatch match) {
+        BitSet attrs = new BitSet();
+        for (FlowKey key : match.getKeys())
+            attrs.set(NetlinkMessage.unnest(key.attrId()));
+        return attrs;
+    }
+
+    private static FlowKey keyOf(List<FlowKey> keys, int attrId) {
+        for (int i = 0; i < keys.size(); i++) {
+            if (NetlinkMessage.unnest(keys.get(i).attrId()) == attrId)
+                return keys.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Writes to idBuf the bytes of the given attributes of a match, masked
+     * by a flow mask. An empty mask matches every attribute exactly, while a
+     * non empty one wildcards the attributes it lacks. Returns false if the
+     * match lacks one of the attributes.
+     */
+    private boolean identity(FlowMatch match, BitSet attrs, FlowMask mask,
+                             int maskId) {
+        List<FlowKey> keys = match.getKeys();
+        List<FlowKey> maskKeys = mask.getKeys();
+        ByteBuffer id = idBuf;
+        id.clear();
+        id.putInt(maskId);
+        for (int attr = attrs.nextSetBit(0); attr >= 0;
+             attr = attrs.nextSetBit(attr + 1)) {
+            FlowKey key = keyOf(keys, attr);
+            if (key == null)
+                return false;
+            id.putShort((short) attr);
+
+            FlowKey maskKey = null;
+            if (!maskKeys.isEmpty()) {
+                maskKey = keyOf(maskKeys, attr);
+                if (maskKey == null)
+                    continue;
+            }
+
+            keyBuf.clear();
+            key.serializeInto(keyBuf);
+            int length = keyBuf.position();
+            if (maskKey != null) {
+                maskBuf.clear();
+                maskKey.serializeInto(maskBuf);
+                int maskLength = Math.min(length, maskBuf.position());
+                for (int i = 0; i < maskLength; i++)
+                    keyBuf.put(i, (byte) (keyBuf.get(i) & maskBuf.get(i)));
+            }
+            keyBuf.flip();
+            id.put(keyBuf);
+        }
+        id.flip();
+        return true;
+    }
+}
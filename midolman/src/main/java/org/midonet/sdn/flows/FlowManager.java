@@ -16,12 +16,13 @@
 
 package org.midonet.sdn.flows;
 
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 import akka.event.LoggingBus;
@@ -46,13 +47,17 @@ import org.midonet.util.functors.Callback1;
  * Idle Time-out
  * This class guarantees that every wildcard flow that has an idle time-out set
  * will be evicted after idle time-out + delta.
- * We have two priority queues, one for hard time-out expiration and the other
- * for idle time-out expiration. They are ordered according to the time that
- * each flow has remaining.
+ * We have two timing wheels, one for hard time-out expiration and the other
+ * for idle time-out expiration. They index the flows by the time at which
+ * they are due to expire, so that scheduling and cancelling an expiration
+ * are constant time operations.
  * For idle time-out before deleting a wildcard flow, we get from the datapath
  * connection the lastUsedTime of each microflow until we find one whose
  * lastUsedTime < now - timeout. If that's the case, we extend the life of the
  * wildcard flow, otherwise we delete it.
+ * When the flows to query in a single check reach the flow dump threshold,
+ * the lastUsedTimes are instead taken from a single dump of the datapath flow
+ * table, which replaces one request per datapath flow.
  *
  * Idle Time-out expiration is an expensive operation. We won't accept
  * idle time-out < 5 s.
@@ -73,6 +78,12 @@ public class FlowManager {
     private int dpFlowRemoveBatchSize = 512;
     private int flowRequestsInFlight = 0;
     private long idleFlowToleranceInterval;
+    /* The number of datapath flows to query in one idle expiration check
+     * from which a flow dump is requested, or NO_LIMIT to never dump. */
+    private int flowDumpThreshold = NO_LIMIT;
+    /* The idle flows waiting for the flow dump in flight, or null */
+    private List<ManagedWildcardFlow> flowsAwaitingDump = null;
+    private long flowRequestsSaved = 0;
 
     public FlowManager(
             FlowManagerHelper flowManagerHelper,
@@ -112,15 +123,21 @@ public class FlowManager {
     public LinkedHashMap<FlowMatch, ManagedWildcardFlow> dpFlowTable =
         new LinkedHashMap<>((int)maxDpFlows);
 
-    //TODO(ross) size for the priority queue?
-    final int priorityQueueSize = 10000;
-    /* Priority queue to evict flows based on hard time-out */
-    private PriorityQueue<ManagedWildcardFlow> hardTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowHardTimeComparator());
+    /* The timing wheels span WHEEL_SLOTS * WHEEL_TICK_MILLIS, about a minute,
+     * which covers the usual hard and idle time-outs in a single rotation. */
+    static final int WHEEL_SLOTS = 1024;
+    static final long WHEEL_TICK_MILLIS = 64;
 
-    /* Priority queue to evict flows based on idle time-out */
-    private PriorityQueue<ManagedWildcardFlow> idleTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowIdleTimeComparator());
+    /* Timing wheel to evict flows based on hard time-out */
+    private FlowExpirationWheel hardTimeOutWheel =
+        new FlowExpirationWheel(WHEEL_SLOTS, WHEEL_TICK_MILLIS);
+
+    /* Timing wheel to evict flows based on idle time-out */
+    private FlowExpirationWheel idleTimeOutWheel =
+        new FlowExpirationWheel(WHEEL_SLOTS, WHEEL_TICK_MILLIS);
+
+    /* Reused to collect the flows taken out of the timing wheels */
+    private final List<ManagedWildcardFlow> expiredFlows = new ArrayList<>();
 
     private int numWildcardFlows = 0;
 
@@ -132,6 +149,21 @@ public class FlowManager {
         return numWildcardFlows;
     }
 
+    /**
+     * Sets the number of datapath flows to query in a single idle expiration
+     * check from which their lastUsedTimes are retrieved with a flow dump.
+     */
+    public void setFlowDumpThreshold(int flowDumpThreshold) {
+        this.flowDumpThreshold = flowDumpThreshold;
+    }
+
+    /**
+     * Returns how many getFlow requests were replaced by flow dumps.
+     */
+    public long getFlowRequestsSaved() {
+        return flowRequestsSaved;
+    }
+
     public int evictOldestFlows() {
         int evicted = 0;
         for (evicted=0; evicted < dpFlowRemoveBatchSize; evicted++) {
@@ -142,8 +174,8 @@ public class FlowManager {
     }
 
     public boolean evictOneFlow() {
-        ManagedWildcardFlow toEvict = !hardTimeOutQueue.isEmpty() ?
-                hardTimeOutQueue.poll() : idleTimeOutQueue.poll();
+        ManagedWildcardFlow toEvict = !hardTimeOutWheel.isEmpty() ?
+                hardTimeOutWheel.poll() : idleTimeOutWheel.poll();
 
         if (toEvict != null) {
             flowManagerHelper.removeWildcardFlow(toEvict);
@@ -195,11 +227,11 @@ public class FlowManager {
             if (wildFlow.getHardExpirationMillis() > 0) {
                 // timeout queue ref
                 wildFlow.ref();
-                hardTimeOutQueue.add(wildFlow);
+                hardTimeOutWheel.add(wildFlow, hardExpirationDate(wildFlow));
             } else if (wildFlow.getIdleExpirationMillis() > 0){
                 // timeout queue ref
                 wildFlow.ref();
-                idleTimeOutQueue.add(wildFlow);
+                idleTimeOutWheel.add(wildFlow, idleExpirationDate(wildFlow));
             }
             return true;
         }
@@ -252,6 +284,12 @@ public class FlowManager {
     public boolean remove(ManagedWildcardFlow wildFlow) {
         log.debug("Removing wildcard flow {}", wildFlow.getMatch());
 
+        if (hardTimeOutWheel.remove(wildFlow) ||
+                idleTimeOutWheel.remove(wildFlow)) {
+            // timeout queue ref
+            wildFlow.unref();
+        }
+
         Set<FlowMatch> dpFlowsToRemove = wildFlow.dpFlows();
         int removed = 0;
         for (FlowMatch flowMatch : dpFlowsToRemove) {
@@ -299,30 +337,33 @@ public class FlowManager {
             return false;
     }
 
+    private static long hardExpirationDate(ManagedWildcardFlow wildFlow) {
+        return wildFlow.getCreationTimeMillis() +
+               wildFlow.getHardExpirationMillis();
+    }
+
+    private static long idleExpirationDate(ManagedWildcardFlow wildFlow) {
+        return wildFlow.getLastUsedTimeMillis() +
+               wildFlow.getIdleExpirationMillis();
+    }
+
     private void checkHardTimeOutExpiration() {
-        ManagedWildcardFlow flowToExpire;
-        while ((flowToExpire = hardTimeOutQueue.peek()) != null) {
-            // since we remove the element lazily let's check if this el
-            // has already been removed
-            if(!isAlive(flowToExpire)) {
-                hardTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
-            }
-            long timeLived = System.currentTimeMillis() - flowToExpire.getCreationTimeMillis();
-            if (timeLived >= flowToExpire.getHardExpirationMillis()) {
-                hardTimeOutQueue.poll();
+        long now = System.currentTimeMillis();
+        hardTimeOutWheel.expire(now, expiredFlows);
+        for (int i = 0; i < expiredFlows.size(); ++i) {
+            ManagedWildcardFlow flowToExpire = expiredFlows.get(i);
+            // the flow may have been removed while another flow taken out of
+            // the wheel in this round was being expired
+            if (isAlive(flowToExpire)) {
                 flowManagerHelper.removeWildcardFlow(flowToExpire);
                 log.debug("Removing flow {} for hard expiration, expired {} ms ago",
                           flowToExpire.getMatch(),
-                          timeLived - flowToExpire.getHardExpirationMillis());
-                // timeout queue ref
-                flowToExpire.unref();
-            } else {
-                return;
+                          now - hardExpirationDate(flowToExpire));
             }
+            // timeout queue ref
+            flowToExpire.unref();
         }
+        expiredFlows.clear();
     }
 
     private void getKernelFlowsLastUsedTime(ManagedWildcardFlow flowToExpire) {
@@ -352,31 +393,60 @@ public class FlowManager {
             flowManagerHelper.removeWildcardFlow(flowToExpire);
     }
 
+    private void requestKernelFlowsDump(List<ManagedWildcardFlow> flows,
+                                        int nFlows) {
+        // a single dump refreshes the flows that become idle while another
+        // dump is in flight, as long as they're added before it completes
+        boolean inFlight = flowsAwaitingDump != null;
+        if (!inFlight)
+            flowsAwaitingDump = new ArrayList<>(nFlows);
+        for (int i = 0; i < nFlows; ++i) {
+            // the timeout queue ref becomes the dump callback ref
+            flowsAwaitingDump.add(flows.get(i));
+        }
+        if (!inFlight) {
+            flowRequestsInFlight++;
+            flowManagerHelper.getFlows(new UpdateLastUsedTimesCallback());
+        }
+    }
+
     private void checkIdleTimeExpiration() {
-        while (idleTimeOutQueue.peek() != null) {
-            ManagedWildcardFlow flowToExpire = idleTimeOutQueue.peek();
-            //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
-            // since we remove the element lazily let's check if this element
-            // has already been removed
+        long now = System.currentTimeMillis();
+        idleTimeOutWheel.expire(now, expiredFlows);
+        int nCandidates = 0;
+        int nDpFlowsToQuery = 0;
+        for (int i = 0; i < expiredFlows.size(); ++i) {
+            ManagedWildcardFlow flowToExpire = expiredFlows.get(i);
             if (!isAlive(flowToExpire)) {
-                idleTimeOutQueue.poll();
                 // timeout queue ref
                 flowToExpire.unref();
                 continue;
             }
-            long expirationDate = flowToExpire.getLastUsedTimeMillis() +
-                flowToExpire.getIdleExpirationMillis();
-            // if the flow expired we don't delete it immediately, first we query
-            // the kernel to get the updated lastUsedTime
-            if (System.currentTimeMillis() >= expirationDate) {
-                // remove it from the queue so we won't query it again
-                idleTimeOutQueue.poll();
+            long expirationDate = idleExpirationDate(flowToExpire);
+            // the last used time may have been updated since the flow was
+            // scheduled, in which case we just reschedule it
+            if (now < expirationDate) {
+                idleTimeOutWheel.add(flowToExpire, expirationDate);
+                continue;
+            }
+            // if the flow expired we don't delete it immediately, first we
+            // query the kernel to get the updated lastUsedTime
+            expiredFlows.set(nCandidates++, flowToExpire);
+            nDpFlowsToQuery += flowToExpire.dpFlows().size();
+        }
+
+        if (flowsAwaitingDump != null || (flowDumpThreshold != NO_LIMIT &&
+                                          nDpFlowsToQuery >= flowDumpThreshold)) {
+            requestKernelFlowsDump(expiredFlows, nCandidates);
+        } else {
+            for (int i = 0; i < nCandidates; ++i) {
+                ManagedWildcardFlow flowToExpire = expiredFlows.get(i);
                 getKernelFlowsLastUsedTime(flowToExpire);
                 // timeout queue ref
                 flowToExpire.unref();
-            }else
-                break;
+            }
         }
+        expiredFlows.clear();
 
         if (flowRequestsInFlight > 0) {
             log.debug("Number of getFlow requests in flight {}",
@@ -416,7 +486,7 @@ public class FlowManager {
 
     // used in test to manipulate flows idle/hard expiration time values
     public ManagedWildcardFlow oldestIdleFlow() {
-        return idleTimeOutQueue.peek();
+        return idleTimeOutWheel.peek();
     }
 
     public void flowMissing(FlowMatch flowMatch) {
@@ -427,35 +497,6 @@ public class FlowManager {
         }
     }
 
-    private abstract class WildcardFlowComparator implements Comparator<ManagedWildcardFlow> {
-
-        @Override
-        public int compare(ManagedWildcardFlow wildcardFlow,
-                           ManagedWildcardFlow wildcardFlow1) {
-            long now = System.currentTimeMillis();
-            long expirationTime1 = getExpirationTime(wildcardFlow, now);
-            long expirationTime2 = getExpirationTime(wildcardFlow1, now);
-
-            return (int) (expirationTime1-expirationTime2);
-        }
-
-        protected abstract long getExpirationTime(ManagedWildcardFlow flow, long now);
-    }
-
-    private class WildcardFlowHardTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getCreationTimeMillis() + flow.getHardExpirationMillis();
-        }
-    }
-
-    private class WildcardFlowIdleTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getLastUsedTimeMillis() + flow.getIdleExpirationMillis();
-        }
-    }
-
     Map<Set<WildcardMatch.Field>, Map<WildcardMatch, ManagedWildcardFlow>> getWildcardTables() {
         return wildcardTables.tables();
     }
@@ -466,6 +507,29 @@ public class FlowManager {
         return (wcMap != null) ? wcMap.get(wMatch) : null;
     }
 
+    /**
+     * Removes a wildcard flow whose lastUsedTime was refreshed from the kernel
+     * if it's idle, or schedules again its idle expiration otherwise.
+     */
+    private void expireOrReschedule(ManagedWildcardFlow wcFlow) {
+        long expirationDate = idleExpirationDate(wcFlow);
+        if (expirationDate - System.currentTimeMillis()
+            > idleFlowToleranceInterval) {
+            // add it back to the queue
+            // timeout queue ref
+            wcFlow.ref();
+            idleTimeOutWheel.add(wcFlow, expirationDate);
+
+        } else {
+            // we can expire it
+            flowManagerHelper.removeWildcardFlow(wcFlow);
+            log.debug(
+                "Removing flow {} for idle expiration, expired {} ms ago",
+                wcFlow.getMatch(),
+                System.currentTimeMillis() - expirationDate);
+        }
+    }
+
     /**
      * This callback is passed to flowsGet(). When flowsGet() returns with the
      * updated lastUsedTime we take a decision regarding the expiration of the
@@ -504,28 +568,82 @@ public class FlowManager {
 
             // is this the last kernel flow update that we are waiting?
             if (nMissingFlowUpdates == 0) {
-                long expirationDate = wcFlow.getLastUsedTimeMillis() +
-                    wcFlow.getIdleExpirationMillis();
-                if (expirationDate - System.currentTimeMillis()
-                    > idleFlowToleranceInterval) {
-                    // add it back to the queue
-                    // timeout queue ref
-                    wcFlow.ref();
-                    idleTimeOutQueue.add(wcFlow);
-
-                } else {
-                    // we can expire it
-                    flowManagerHelper.removeWildcardFlow(wcFlow);
-                    log.debug(
-                        "Removing flow {} for idle expiration, expired {} ms ago",
-                        wcFlow.getMatch(),
-                        System.currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
-                            + wcFlow.getIdleExpirationMillis()));
-                }
+                expireOrReschedule(wcFlow);
             }
 
             // getFlow callback ref
             wcFlow.unref();
         }
     }
+
+    /**
+     * This callback is passed to the flows dump. It updates the lastUsedTime
+     * of all the wildcard flows that were waiting for the dump and takes a
+     * decision regarding their expiration. If the dump failed, the flows
+     * fall back to querying their datapath flows one by one.
+     */
+    class UpdateLastUsedTimesCallback implements Callback1<Collection<Flow>> {
+
+        @Override
+        public void call(Collection<Flow> flowsGotFromKernel) {
+            List<ManagedWildcardFlow> wcFlows = flowsAwaitingDump;
+            flowsAwaitingDump = null;
+            flowRequestsInFlight--;
+
+            DumpedFlowIndex kernelFlows = null;
+            if (flowsGotFromKernel != null) {
+                List<FlowMatch> matches = new ArrayList<>();
+                for (int i = 0; i < wcFlows.size(); ++i)
+                    matches.addAll(wcFlows.get(i).dpFlows());
+                kernelFlows = new DumpedFlowIndex(flowsGotFromKernel, matches);
+            }
+
+            int nDpFlowsQueried = 0;
+            for (int i = 0; i < wcFlows.size(); ++i) {
+                ManagedWildcardFlow wcFlow = wcFlows.get(i);
+                if (isAlive(wcFlow)) {
+                    if (kernelFlows != null)
+                        nDpFlowsQueried += updateLastUsedTime(wcFlow, kernelFlows);
+                    else
+                        getKernelFlowsLastUsedTime(wcFlow);
+                }
+                // dump callback ref
+                wcFlow.unref();
+            }
+
+            if (nDpFlowsQueried > 1)
+                flowRequestsSaved += nDpFlowsQueried - 1;
+            log.debug("Refreshed {} idle wildcard flows from a dump of {} " +
+                      "datapath flows", wcFlows.size(),
+                      kernelFlows != null ? kernelFlows.size() : 0);
+        }
+
+        private int updateLastUsedTime(ManagedWildcardFlow wcFlow,
+                                       DumpedFlowIndex kernelFlows) {
+            int nDpFlows = 0;
+            Iterator<FlowMatch> it = wcFlow.dpFlows().iterator();
+            while (it.hasNext()) {
+                FlowMatch match = it.next();
+                if (!dpFlowTable.containsKey(match)) {
+                    // clean lazily the deleted kernel flows
+                    it.remove();
+                    continue;
+                }
+                nDpFlows++;
+                // a flow missing from the dump just doesn't extend the life
+                // of the wildcard flow
+                Flow flow = kernelFlows.find(match);
+                if (flow != null && flow.getLastUsedTime() != null &&
+                    flow.getLastUsedTime() > wcFlow.getLastUsedTimeMillis()) {
+                    wcFlow.setLastUsedTimeMillis(flow.getLastUsedTime());
+                }
+            }
+
+            if (nDpFlows == 0)
+                flowManagerHelper.removeWildcardFlow(wcFlow);
+            else
+                expireOrReschedule(wcFlow);
+            return nDpFlows;
+        }
+    }
 }
@@ -16,6 +16,8 @@
 
 package org.midonet.sdn.flows;
 
+import java.util.Collection;
+
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
 import org.midonet.util.functors.Callback1;
@@ -24,6 +26,12 @@ public interface FlowManagerHelper {
 
     public void getFlow(FlowMatch flowMatch, Callback1<Flow> getFlowCb);
 
+    /**
+     * Dumps all the flows of the datapath. The callback receives null if
+     * the dump failed.
+     */
+    public void getFlows(Callback1<Collection<Flow>> getFlowsCb);
+
     public void removeFlow(FlowMatch flowMatch);
 
     public void removeWildcardFlow(ManagedWildcardFlow flow);
@@ -193,6 +193,10 @@ public class WildcardMatch implements Cloneable {
         }
     }
 
+    public void propagateSeenFieldsOf(WildcardMatch that) {
+        this.seenFields.addAll(that.seenFields);
+    }
+
     /**
      * Resets the contents of this WildcardMatch setting them to the values
      * in <pre>that</pre>. The list of used fields will be cleared and all
@@ -609,104 +613,83 @@ public class WildcardMatch implements Cloneable {
         WildcardMatch that = (WildcardMatch) o;
 
         for (Field field : getUsedFields()) {
-            switch (field) {
-                case EtherType:
-                    if (!isEqual(field, that, etherType, that.etherType))
-                        return false;
-                    break;
-
-                case FragmentType:
-                    if (!isEqual(field, that, ipFragmentType, that.ipFragmentType))
-                        return false;
-                    break;
-
-                case EthDst:
-                    if (!isEqual(field, that, ethDst, that.ethDst))
-                        return false;
-                    break;
-
-                case EthSrc:
-                    if (!isEqual(field, that, ethSrc, that.ethSrc))
-                        return false;
-                    break;
-
-                case DstPort:
-                    if (!isEqual(field, that, dstPort, that.dstPort))
-                        return false;
-                    break;
-
-                case SrcPort:
-                    if (!isEqual(field, that, srcPort, that.srcPort))
-                        return false;
-                    break;
-
-                case InputPortNumber:
-                    if (!isEqual(field, that, inputPortNumber, that.inputPortNumber))
-                        return false;
-                    break;
-
-                case NetworkDst:
-                    if (!isEqual(field, that, networkDst, that.networkDst))
-                        return false;
-                    break;
-
-                case NetworkSrc:
-                    if (!isEqual(field, that, networkSrc, that.networkSrc))
-                        return false;
-                    break;
-
-                case NetworkProto:
-                    if (!isEqual(field, that, networkProto, that.networkProto))
-                        return false;
-                    break;
-
-                case NetworkTTL:
-                    if (!isEqual(field, that, networkTTL, that.networkTTL))
-                        return false;
-                    break;
-
-                case TunnelKey:
-                    if (!isEqual(field, that, tunnelKey, that.tunnelKey))
-                        return false;
-                    break;
-
-                case IcmpId:
-                    if (!isEqual(field, that, icmpId, that.icmpId))
-                        return false;
-                    break;
+            if (!that.usedFields.contains(field) || !fieldEquals(field, that))
+                return false;
+        }
 
-                case IcmpData:
-                    if (!isEqual(field, that, Objects.hashCode(this.icmpData),
-                                              Objects.hashCode(that.icmpData)))
-                        return false;
-                    break;
+        return true;
+    }
 
-                case VlanId:
-                    if (!isEqual(field, that, vlanIds, that.vlanIds))
-                        return false;
-                    break;
+    /**
+     * Tells whether <pre>that</pre> is equal to the projection of this match
+     * over the given fields, without materializing the projection. It yields
+     * the same result as <pre>project(fields).equals(that)</pre>, provided
+     * that this match uses all of the given fields.
+     */
+    public boolean projectedEquals(Set<Field> fields, WildcardMatch that) {
+        if (!that.usedFields.equals(fields))
+            return false;
 
-            }
+        for (Field field : fields) {
+            if (!fieldEquals(field, that))
+                return false;
         }
 
         return true;
     }
 
-    private <T> boolean isEqual(Field field, WildcardMatch that, T a, T b) {
-        if (usedFields.contains(field)) {
-            if (that.usedFields.contains(field))
-                return a != null ? a.equals(b) : b == null;
-            else
-                return false;
-        } else {
-            return !that.usedFields.contains(field);
+    private boolean fieldEquals(Field field, WildcardMatch that) {
+        switch (field) {
+            case EtherType:
+                return etherType == that.etherType;
+            case FragmentType:
+                return Objects.equals(ipFragmentType, that.ipFragmentType);
+            case EthDst:
+                return Objects.equals(ethDst, that.ethDst);
+            case EthSrc:
+                return Objects.equals(ethSrc, that.ethSrc);
+            case DstPort:
+                return dstPort == that.dstPort;
+            case SrcPort:
+                return srcPort == that.srcPort;
+            case InputPortNumber:
+                return inputPortNumber == that.inputPortNumber;
+            case NetworkDst:
+                return Objects.equals(networkDst, that.networkDst);
+            case NetworkSrc:
+                return Objects.equals(networkSrc, that.networkSrc);
+            case NetworkProto:
+                return networkProto == that.networkProto;
+            case NetworkTTL:
+                return networkTTL == that.networkTTL;
+            case TunnelKey:
+                return tunnelKey == that.tunnelKey;
+            case IcmpId:
+                return icmpId == that.icmpId;
+            case IcmpData:
+                return Objects.hashCode(icmpData) ==
+                       Objects.hashCode(that.icmpData);
+            case VlanId:
+                return Objects.equals(vlanIds, that.vlanIds);
+            default:
+                return true;
         }
     }
 
     @Override
     public int hashCode() {
-        int result = getUsedFields().hashCode();
-        for (Field field : getUsedFields()) {
+        return projectedHashCode(getUsedFields());
+    }
+
+    /**
+     * Computes the hash code that the projection of this match over the given
+     * fields would have, without materializing the projection. It yields the
+     * same result as <pre>project(fields).hashCode()</pre>, provided that this
+     * match uses all of the given fields.
+     */
+    public int projectedHashCode(Set<Field> fields) {
+        int result = fields.hashCode();
+        for (Field field : fields) {
             switch (field) {
                 case EtherType:
                     result = 31 * result + etherType;
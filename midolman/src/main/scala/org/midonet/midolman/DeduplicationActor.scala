@@ -16,7 +16,7 @@
 
 package org.midonet.midolman
 
-import java.util.{UUID, HashMap => JHashMap, List => JList}
+import java.util.{ArrayList, UUID, HashMap => JHashMap, List => JList}
 
 import akka.actor._
 import akka.event.LoggingReceive
@@ -36,6 +36,7 @@ import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateStorage, NatLeaser}
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp.flows.FlowAction
+import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.odp.{Datapath, FlowMatch, Packet}
 import org.midonet.packets.Ethernet
 import org.midonet.sdn.flows.WildcardMatch
@@ -44,7 +45,7 @@ import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent.ExecutionContextOps
 import org.slf4j.MDC
 
-import scala.collection.mutable
+import scala.collection.JavaConverters._
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
 import scala.util.{Failure, Success}
@@ -140,7 +141,9 @@ class DeduplicationActor(
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val megaflows: Boolean = false,
+            val flowStateEncoding: Int = FlowStatePackets.PROTOBUF_ENCODING)
             extends Actor with ActorLogWithoutPath {
 
     import org.midonet.midolman.DatapathController.DatapathReady
@@ -154,15 +157,14 @@ class DeduplicationActor(
     var datapath: Datapath = null
     var dpState: DatapathState = null
 
+    private var dpConns: Array[OvsDatapathConnection] = Array.empty
+
     implicit val dispatcher = this.context.system.dispatcher
     implicit val system = this.context.system
 
     // data structures to handle the duplicate packets.
-    protected val cookieToDpMatch = mutable.HashMap[Integer, FlowMatch]()
-    protected val dpMatchToCookie = mutable.HashMap[FlowMatch, Integer]()
-    protected val cookieToPendedPackets: mutable.MultiMap[Integer, Packet] =
-                                new mutable.HashMap[Integer, mutable.Set[Packet]]
-                                with mutable.MultiMap[Integer, Packet]
+    protected val pendingPackets = new PendingPackets()
+    private val removedPackets = new ArrayList[Packet]()
 
     protected val simulationExpireMillis = 5000L
 
@@ -198,15 +200,19 @@ class DeduplicationActor(
         case DatapathReady(dp, state) if null == datapath =>
             datapath = dp
             dpState = state
+            dpConns = dpConnPool.getAll.asScala.toArray
             replicator = new FlowStateReplicator(connTrackStateTable,
                 natStateTable,
                 storage,
                 dpState,
                 FlowController ! _,
-                datapath)
+                datapath,
+                metrics,
+                flowStateEncoding)
             pendingFlowStateBatches foreach (self ! _)
             workflow = new PacketWorkflow(dpState, datapath, clusterDataClient,
-                                          dpConnPool, actionsCache, replicator)
+                                          dpConnPool, actionsCache, replicator,
+                                          megaflows)
 
         case m: FlowStateBatch =>
             if (replicator ne null)
@@ -221,10 +227,16 @@ class DeduplicationActor(
             natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
             natLeaser.obliterateUnusedBlocks()
 
-            var i = 0
-            while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
-                i += 1
+            holdDatapathWrites()
+            try {
+                var i = 0
+                while (i < packets.length && packets(i) != null) {
+                    handlePacket(packets(i))
+                    i += 1
+                }
+                pushState()
+            } finally {
+                flushDatapathWrites()
             }
 
         case RestartWorkflow(pktCtx) =>
@@ -233,6 +245,7 @@ class DeduplicationActor(
                 metrics.packetsOnHold.dec()
                 pktCtx.log.debug("Restarting workflow")
                 runWorkflow(pktCtx)
+                pushState()
             } else {
                 pktCtx.log.warn("Tried to restart a non-idle PacketContext")
                 drop(pktCtx)
@@ -243,21 +256,48 @@ class DeduplicationActor(
         // executes the simulation method directly.
         case EmitGeneratedPacket(egressPort, ethernet, parentCookie) =>
             startWorkflow(Packet.fromEthernet(ethernet), Right(egressPort))
+            pushState()
+    }
+
+    // The flow state accumulated by the simulations is pushed to the peers
+    // once all of them ran, so that the state of the flows that go to the
+    // same hosts travels in the same messages. The state goes out on the
+    // connections that executed the packets, after them.
+    private def pushState(): Unit =
+        if (replicator ne null)
+            replicator.pushState()
+
+    // The flows created and the packets executed while handling a batch of
+    // packets are handed to the datapath connections at the end of the batch,
+    // so that they are written in as few datagrams as possible.
+    private def holdDatapathWrites(): Unit = {
+        var i = 0
+        while (i < dpConns.length) {
+            dpConns(i).holdWrites()
+            i += 1
+        }
+    }
+
+    private def flushDatapathWrites(): Unit = {
+        var i = 0
+        while (i < dpConns.length) {
+            val requests = dpConns(i).flushWrites()
+            if (requests > 0)
+                metrics.datapathRequestsPerBatch.update(requests)
+            i += 1
+        }
     }
 
-    // We return collection.Set so we can return an empty immutable set
-    // and a non-empty mutable set.
-    private def removePendingPacket(cookie: Int): collection.Set[Packet] = {
-        val pending = cookieToPendedPackets.remove(cookie)
-        if (pending.isDefined) {
-            log.debug(s"Remove ${pending.get.size} pending packet(s)")
-            val dpMatch = cookieToDpMatch.remove(cookie)
-            if (dpMatch.isDefined)
-                dpMatchToCookie.remove(dpMatch.get)
-            pending.get
+    // The removed packets are left in removedPackets, which the caller
+    // must clear.
+    private def removePendingPackets(cookie: Int): Int = {
+        val removed = pendingPackets.remove(cookie, removedPackets)
+        if (removed >= 0) {
+            log.debug(s"Remove $removed pending packet(s)")
+            removed
         } else {
             log.debug("No pending packets")
-            Set.empty
+            0
         }
     }
 
@@ -319,7 +359,8 @@ class DeduplicationActor(
             var dropped = 0
             if (pktCtx.ingressed) {
                 val cookie = pktCtx.cookieOrEgressPort.left.get
-                dropped = removePendingPacket(cookie).size
+                dropped = removePendingPackets(cookie)
+                removedPackets.clear()
             }
             metrics.packetsDropped.mark(dropped + 1)
         }
@@ -352,18 +393,22 @@ class DeduplicationActor(
 
     private def applyFlow(cookie: Int, pktCtx: PacketContext): Unit = {
         val actions = actionsCache.actions.get(pktCtx.packet.getMatch)
-        val pendingPackets = removePendingPacket(cookie)
-        val numPendingPackets = pendingPackets.size
+        val numPendingPackets = removePendingPackets(cookie)
         if (numPendingPackets > 0) {
             // Send all pended packets with the same action list (unless
             // the action list is empty, which is equivalent to dropping)
             if (actions.isEmpty) {
                 metrics.packetsProcessed.mark(numPendingPackets)
             } else {
-                log.debug(s"Sending ${pendingPackets.size} pended packets")
-                pendingPackets foreach (executePacket(_, actions))
+                log.debug(s"Sending $numPendingPackets pended packets")
+                var i = 0
+                while (i < numPendingPackets) {
+                    executePacket(removedPackets.get(i), actions)
+                    i += 1
+                }
                 metrics.pendedPackets.dec(numPendingPackets)
             }
+            removedPackets.clear()
         }
 
         if (!pktCtx.isStateMessage && actions.isEmpty) {
@@ -419,9 +464,10 @@ class DeduplicationActor(
             packetOut(1)
         } else if (FlowStatePackets.isStateMessage(packet)) {
             processPacket(packet)
-        } else dpMatchToCookie.get(flowMatch) match {
-            case None => processPacket(packet)
-            case Some(cookie) => makePending(packet, cookie)
+        } else if (pendingPackets.pend(packet)) {
+            madePending(packet)
+        } else {
+            processPacket(packet)
         }
     }
 
@@ -429,19 +475,15 @@ class DeduplicationActor(
     // cookie and start the packet workflow.
     private def processPacket(packet: Packet): Unit = {
         val newCookie = cookieGen.next
-        val flowMatch = packet.getMatch
-        dpMatchToCookie.put(flowMatch, newCookie)
-        cookieToDpMatch.put(newCookie, flowMatch)
-        cookieToPendedPackets.put(newCookie, mutable.Set.empty)
+        pendingPackets.track(newCookie, packet.getMatch)
         startWorkflow(packet, Left(newCookie))
     }
 
-    // There is a simulation in progress, so wait until it finishes and
-    // apply the resulting actions.
-    private def makePending(packet: Packet, cookie: Integer): Unit = {
-        log.debug("A matching packet with cookie {} is already " +
-                 "being handled", cookie)
-        cookieToPendedPackets.addBinding(cookie, packet)
+    // There is a simulation in progress, so the packet waits until it
+    // finishes to apply the resulting actions.
+    private def madePending(packet: Packet): Unit = {
+        log.debug("A matching packet for {} is already being handled",
+                  packet.getMatch)
         packetOut(1)
         giveUpWorkflows(waitingRoom.doExpirations())
     }
@@ -17,8 +17,7 @@
 package org.midonet.midolman
 
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.{ConcurrentHashMap => ConcHashMap}
-import java.util.{ArrayList, Set => JSet, Map => JMap}
+import java.util.{ArrayList, Collection => JCollection, Set => JSet}
 import javax.inject.Inject
 import scala.annotation.tailrec
 import scala.collection.JavaConversions._
@@ -33,10 +32,11 @@ import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.flows.WildcardTablesProvider
+import org.midonet.midolman.flows.WildcardFlowClassifier
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.FlowTablesGauge
+import org.midonet.midolman.monitoring.metrics.FlowTablesHistogram
 import org.midonet.midolman.monitoring.metrics.FlowTablesMeter
 import org.midonet.sdn.flows.{FlowTagger, FlowManagerHelper, ManagedWildcardFlow, WildcardFlow, WildcardMatch}
 import FlowTagger.FlowTag
@@ -129,62 +129,23 @@ object FlowController extends Referenceable {
 
     case class GetFlowFailed_(flowCallback: Callback1[Flow])
 
+    case class GetFlowsCompleted_(flows: JCollection[Flow],
+                                  flowsCallback: Callback1[JCollection[Flow]],
+                                  startNanos: Long)
+
     val MIN_WILDCARD_FLOW_CAPACITY = 4096
 
     // TODO(guillermo) tune these values
-    private val WILD_FLOW_TABLE_CONCURRENCY_LEVEL = 1
-    private val WILD_FLOW_TABLE_LOAD_FACTOR = 0.75f
     private val WILD_FLOW_TABLE_INITIAL_CAPACITY = 65536
     private val WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY = 256
 
-    private val wildcardTables: JMap[JSet[WildcardMatch.Field],
-                                        JMap[WildcardMatch, ManagedWildcardFlow]] =
-        new ConcHashMap[JSet[WildcardMatch.Field],
-                        JMap[WildcardMatch, ManagedWildcardFlow]](
+    private val wildcardTables = new WildcardFlowClassifier(
             WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY,
-            WILD_FLOW_TABLE_LOAD_FACTOR,
-            WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-    private val wildcardTablesProvider: WildcardTablesProvider =
-        new WildcardTablesProvider {
-            override def tables = wildcardTables
-
-            override def addTable(pattern: JSet[WildcardMatch.Field]) = {
-                var table = wildcardTables.get(pattern)
-                if (table == null) {
-                    table = new ConcHashMap[WildcardMatch, ManagedWildcardFlow](
-                                    WILD_FLOW_TABLE_INITIAL_CAPACITY,
-                                    WILD_FLOW_TABLE_LOAD_FACTOR,
-                                    WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-                    wildcardTables.put(pattern, table)
-                }
-                table
-            }
-        }
+            WILD_FLOW_TABLE_INITIAL_CAPACITY)
 
     def queryWildcardFlowTable(wildMatch: WildcardMatch)
-    : Option[ManagedWildcardFlow] = {
-        var wildFlow: ManagedWildcardFlow = null
-        wildMatch.doNotTrackSeenFields()
-        for (entry <- wildcardTables.entrySet()) {
-            val table = entry.getValue
-            val pattern = entry.getKey
-            val projectedFlowMatch = wildMatch.project(pattern)
-            if (projectedFlowMatch != null) {
-                val candidate = table.get(projectedFlowMatch)
-                if (null != candidate) {
-                    if (null == wildFlow)
-                        wildFlow = candidate
-                    else if (candidate.getPriority < wildFlow.getPriority)
-                        wildFlow = candidate
-                }
-            }
-        }
-        wildMatch.doTrackSeenFields()
-        Option(wildFlow)
-    }
-
+    : Option[ManagedWildcardFlow] =
+        Option(wildcardTables.lookup(wildMatch))
 
     private val invalidationHistory = new EventHistory[FlowTag](1024)
 
@@ -264,8 +225,10 @@ class FlowController extends Actor with ActorLogWithoutPath {
 
         flowManagerHelper = new FlowManagerInfoImpl()
         flowManager = new FlowManager(flowManagerHelper,
-            FlowController.wildcardTablesProvider ,maxDpFlows, maxWildcardFlows,
+            FlowController.wildcardTables, maxDpFlows, maxWildcardFlows,
             idleFlowToleranceInterval)
+        flowManager.setFlowDumpThreshold(
+            midolmanConfig.getIdleFlowDumpThreshold)
 
         wildFlowPool = new ArrayObjectPool[ManagedWildcardFlow](maxWildcardFlows) {
             override def allocate = new ManagedWildcardFlow(this)
@@ -348,7 +311,7 @@ class FlowController extends Actor with ActorLogWithoutPath {
 
         case RemoveWildcardFlow(wmatch) =>
             log.debug("Removing wcflow for match {}", wmatch)
-            wildcardTables.get(wmatch.getUsedFields) match {
+            wildcardTables.tables.get(wmatch.getUsedFields) match {
                 case null =>
                 case table => table.get(wmatch) match {
                     case null =>
@@ -368,6 +331,12 @@ class FlowController extends Actor with ActorLogWithoutPath {
 
         case GetFlowFailed_(callback) => callback.call(null)
 
+        case GetFlowsCompleted_(flows, callback, startNanos) =>
+            callback.call(flows)
+            metrics.idleExpirationLatency.update(
+                System.nanoTime() - startNanos, TimeUnit.NANOSECONDS)
+            metrics.currentDpFlows = flowManager.getNumDpFlows
+
         case FlowMissing_(flowMatch, callback) =>
             callback.call(null)
             flowManager.flowMissing(flowMatch)
@@ -527,6 +496,21 @@ class FlowController extends Actor with ActorLogWithoutPath {
             }
             datapathConnection(flowMatch).flowsGet(datapath, flowMatch, cb)
         }
+
+        def getFlows(flowsCallback: Callback1[JCollection[Flow]]) {
+            log.debug("requesting a dump of the datapath flows")
+            val startNanos = System.nanoTime()
+            val cb = new Callback[JSet[Flow]] {
+                def onError(ex: NetlinkException) {
+                    log.error("Got exception when trying to flowsEnumerate()", ex)
+                    self ! GetFlowsCompleted_(null, flowsCallback, startNanos)
+                }
+                def onSuccess(data: JSet[Flow]) {
+                    self ! GetFlowsCompleted_(data, flowsCallback, startNanos)
+                }
+            }
+            datapathConnPool.get(0).flowsEnumerate(datapath, cb)
+        }
     }
 
     class FlowTablesMetrics(val flowManager: FlowManager) {
@@ -551,6 +535,15 @@ class FlowController extends Actor with ActorLogWithoutPath {
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
+
+        val flowRequestsSavedMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "flowRequestsSavedByDumps"),
+                new Gauge[Long]{
+                    override def getValue = flowManager.getFlowRequestsSaved
+                })
+
+        val idleExpirationLatency = metricsRegistry.timer(name(
+                classOf[FlowTablesHistogram], "idleExpirationLatency"))
     }
 
 }
@@ -37,11 +37,70 @@ object HostRequestProxy {
                               weakNat: JMap[NatKey, NatBinding]) {
         def merge(other: FlowStateBatch): FlowStateBatch = {
             strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
+            weakConnTrack.addAll(other.weakConnTrack)
             strongNat.putAll(other.strongNat)
             weakNat.putAll(other.weakNat)
             this
         }
+
+        def size: Int = strongConnTrack.size + weakConnTrack.size +
+                        strongNat.size + weakNat.size
+
+        /**
+         * Splits this batch in `parts` partitions by key hash, so that each
+         * key is imported into a single shard, and hands each partition over
+         * to `emit` in batches of at most `maxKeys` keys.
+         */
+        def partition(parts: Int, maxKeys: Int)
+                     (emit: (Int, FlowStateBatch) => Unit): Unit = {
+            val batches = Array.fill(parts)(EmptyFlowStateBatch())
+            val sizes = new Array[Int](parts)
+
+            def partOf(k: AnyRef): Int = (k.hashCode & Int.MaxValue) % parts
+
+            def added(part: Int): Unit = {
+                sizes(part) += 1
+                if (sizes(part) == maxKeys) {
+                    emit(part, batches(part))
+                    batches(part) = EmptyFlowStateBatch()
+                    sizes(part) = 0
+                }
+            }
+
+            def splitConnTrack(keys: JSet[ConnTrackKey],
+                               to: FlowStateBatch => JSet[ConnTrackKey]): Unit = {
+                val it = keys.iterator()
+                while (it.hasNext) {
+                    val k = it.next()
+                    val part = partOf(k)
+                    to(batches(part)).add(k)
+                    added(part)
+                }
+            }
+
+            def splitNat(entries: JMap[NatKey, NatBinding],
+                         to: FlowStateBatch => JMap[NatKey, NatBinding]): Unit = {
+                val it = entries.entrySet().iterator()
+                while (it.hasNext) {
+                    val e = it.next()
+                    val part = partOf(e.getKey)
+                    to(batches(part)).put(e.getKey, e.getValue)
+                    added(part)
+                }
+            }
+
+            splitConnTrack(strongConnTrack, _.strongConnTrack)
+            splitConnTrack(weakConnTrack, _.weakConnTrack)
+            splitNat(strongNat, _.strongNat)
+            splitNat(weakNat, _.weakNat)
+
+            var i = 0
+            while (i < parts) {
+                if (sizes(i) > 0)
+                    emit(i, batches(i))
+                i += 1
+            }
+        }
     }
 
     def EmptyFlowStateBatch() = FlowStateBatch(new JHashSet[ConnTrackKey](),
@@ -84,19 +143,23 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         }
     }
 
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    /* The state of each port is handed over to the packet processing threads
+     * as soon as it has been fetched, rather than after the state of all the
+     * ports has been fetched and merged. */
+    private def stateForPorts(ports: Iterable[UUID]): Future[Iterable[FlowStateBatch]] =
+        Future.sequence(ports map { port =>
+            stateForPort(port) andThen {
+                case Success(stateBatch) => PacketsEntryPoint ! stateBatch
+            }
+        })
 
     override def receive = super.receive orElse {
         case h: Host =>
             belt.handle(() => {
                 val ps = h.ports.keySet -- lastPorts
                 stateForPorts(ps).andThen {
-                    case Success(stateBatch) =>
+                    case Success(_) =>
                         lastPorts = ps
-                        PacketsEntryPoint ! stateBatch
                     case Failure(e) =>
                         log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman
 
-import java.util.{List => JList, UUID}
+import java.util.{EnumSet, List => JList, UUID}
 
 import scala.collection.JavaConversions._
 import scala.reflect.ClassTag
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory
 import org.midonet.cluster.DataClient
 import org.midonet.cluster.client.Port
 import org.midonet.midolman.DeduplicationActor.ActionsCache
+import org.midonet.midolman.datapath.MegaflowMask
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.simulation.{Coordinator, PacketContext, DhcpImpl}
 import org.midonet.midolman.state.FlowStateReplicator
@@ -80,7 +81,8 @@ class PacketWorkflow(protected val dpState: DatapathState,
                      val dataClient: DataClient,
                      val dpConnPool: DatapathConnectionPool,
                      val actionsCache: ActionsCache,
-                     val replicator: FlowStateReplicator)
+                     val replicator: FlowStateReplicator,
+                     val megaflows: Boolean = false)
                     (implicit val system: ActorSystem)
         extends FlowTranslator with PacketHandler {
 
@@ -141,12 +143,9 @@ class PacketWorkflow(protected val dpState: DatapathState,
         }
     }
 
-    private def createFlow(context: PacketContext,
-                           wildFlow: WildcardFlow,
-                           newWildFlow: Option[WildcardFlow] = None) {
-        context.log.debug("Creating flow from {}", wildFlow)
-
-        val flowMatch = context.packet.getMatch
+    /** Builds the mask for a flow that matches all the fields of the packet,
+     *  except for the TCP flags. */
+    private def exactMask(flowMatch: FlowMatch): FlowMask = {
         val flowMask = new FlowMask()
         if (flowMatch.hasKey(OpenVSwitch.FlowKey.Attr.TcpFlags)) {
             // wildcard the TCP flags
@@ -164,6 +163,38 @@ class PacketWorkflow(protected val dpState: DatapathState,
                      addKey(FlowKeys.tcp(FlowMask.TCP_EXACT, FlowMask.TCP_EXACT)).
                      addKey(FlowKeys.tcpFlags(FlowMask.TCPFLAGS_ANY))
         }
+        flowMask
+    }
+
+    /** Builds the megaflow mask for a flow, out of the fields that were seen
+     *  while simulating the packet. The seen fields of a new wildcard flow are
+     *  completed with those of the packet context, so that later hits in the
+     *  wildcard flow table produce the same mask. */
+    private def megaflowMask(context: PacketContext, wildFlow: WildcardFlow,
+                             isNewWildFlow: Boolean): FlowMask = {
+        val seenFields = EnumSet.noneOf(classOf[WildcardMatch.Field])
+        if (isNewWildFlow) {
+            wildFlow.wcmatch.propagateSeenFieldsOf(context.origMatch)
+            wildFlow.wcmatch.propagateSeenFieldsOf(context.wcmatch)
+        } else {
+            seenFields.addAll(context.origMatch.getSeenFields)
+            seenFields.addAll(context.wcmatch.getSeenFields)
+        }
+        seenFields.addAll(wildFlow.wcmatch.getSeenFields)
+        MegaflowMask(context.packet.getMatch, seenFields, wildFlow.getActions)
+    }
+
+    private def createFlow(context: PacketContext,
+                           wildFlow: WildcardFlow,
+                           newWildFlow: Option[WildcardFlow] = None) {
+        context.log.debug("Creating flow from {}", wildFlow)
+
+        val flowMatch = context.packet.getMatch
+        val flowMask =
+            if (megaflows && MegaflowMask.isEligible(flowMatch))
+                megaflowMask(context, wildFlow, newWildFlow.isDefined)
+            else
+                exactMask(flowMatch)
 
         val dpFlow = new Flow(flowMatch, flowMask, wildFlow.getActions)
         try {
@@ -246,14 +277,14 @@ class PacketWorkflow(protected val dpState: DatapathState,
         if (!actions.isEmpty) {
             context.log.debug("Applying connection state")
             val outPort = context.outPortId
-            replicator.accumulateNewKeys(context.state.conntrackTx,
+            replicator.accumulateNewKeys(datapathConn(context),
+                                         context.state.conntrackTx,
                                          context.state.natTx,
                                          context.inputPort,
                                          if (context.toPortSet) null else outPort,
                                          if (context.toPortSet) outPort else null,
                                          context.flowTags,
                                          context.flowRemovedCallbacks)
-            replicator.pushState(datapathConn(context))
             context.state.conntrackTx.commit()
             context.state.natTx.commit()
     }
@@ -29,7 +29,7 @@ import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
-import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.{FlowStatePackets, FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
 import org.slf4j.LoggerFactory
@@ -42,6 +42,15 @@ object PacketsEntryPoint extends Referenceable {
     case object GetWorkers
 
     case class Workers(list: IndexedSeq[ActorRef])
+
+    val MAX_WORKERS = 64
+
+    val WORKER_DISPATCHER = "actors.packet-worker-dispatcher"
+    val FALLBACK_WORKER_DISPATCHER = "actors.pinned-dispatcher"
+
+    /* The most flow state keys imported from storage by a worker in one go,
+     * so that it gets to handle packets while a large import is underway. */
+    val IMPORT_CHUNK_SIZE = 4096
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
@@ -55,8 +64,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     private def NUM_WORKERS_=(n: Int) {
         if (n <= 0)
             _NUM_WORKERS = 1
-        else if (n > 16)
-            _NUM_WORKERS = 16
+        else if (n > MAX_WORKERS)
+            _NUM_WORKERS = MAX_WORKERS
         else
             _NUM_WORKERS = n
     }
@@ -103,6 +112,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         super.preStart()
         NUM_WORKERS = config.getSimulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
+        if (dpConnPool ne null)
+            metrics.trackDatapathErrors(dpConnPool)
 
         connTrackStateTable = new ShardedFlowStateTable(clock)
         natStateTable = new ShardedFlowStateTable(clock)
@@ -117,6 +128,27 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         }
     }
 
+    private lazy val flowStateEncoding: Int =
+        config.getFlowStateEncoding match {
+            case "compact" => FlowStatePackets.COMPACT_ENCODING
+            case "protobuf" => FlowStatePackets.PROTOBUF_ENCODING
+            case unknown =>
+                log.warn(s"Unknown flow_state_encoding '$unknown', " +
+                         "using protobuf")
+                FlowStatePackets.PROTOBUF_ENCODING
+        }
+
+    /* Akka configuration files edited before the packet worker dispatcher
+     * was introduced are kept on upgrade, so they may lack it. */
+    private lazy val workerDispatcher: String =
+        if (context.system.dispatchers.hasDispatcher(WORKER_DISPATCHER)) {
+            WORKER_DISPATCHER
+        } else {
+            log.warn(s"$WORKER_DISPATCHER is not configured, packet " +
+                     s"workers will use $FALLBACK_WORKER_DISPATCHER")
+            FALLBACK_WORKER_DISPATCHER
+        }
+
     private def shardLogger(t: AnyRef) =
         Logger(LoggerFactory.getLogger("org.midonet.state.table"))
 
@@ -130,7 +162,10 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int)).withDispatcher("actors.pinned-dispatcher")
+            counter.addAndGet(index, _: Int),
+            config.getMegaflowsEnabled,
+            flowStateEncoding)
+            .withDispatcher(workerDispatcher)
 
         context.actorOf(props, s"PacketProcessor-$index")
     }
@@ -148,7 +183,10 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
         case m: EmitGeneratedPacket => roundRobin(m)
 
-        case m: FlowStateBatch => broadcast(m)
+        case m: FlowStateBatch =>
+            m.partition(NUM_WORKERS, IMPORT_CHUNK_SIZE) {
+                (worker, batch) => workers(worker) ! batch
+            }
 
         case GetWorkers => sender ! Workers(workers)
     }
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{List => JList}
+
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.util.collection.ArrayObjectPool
+
+object PendingPackets {
+
+    /* An in-flight simulation: its cookie, the flow match of the packet
+     * that started it and the packets with the same match that arrived in
+     * the meantime. Entries are pooled, and keep their packet array when
+     * they're recycled. */
+    private final class Entry {
+        var cookie = 0
+        var flowMatch: FlowMatch = null
+        var packets = new Array[Packet](4)
+        var numPackets = 0
+
+        def add(packet: Packet): Unit = {
+            if (numPackets == packets.length) {
+                val grown = new Array[Packet](numPackets * 2)
+                System.arraycopy(packets, 0, grown, 0, numPackets)
+                packets = grown
+            }
+            packets(numPackets) = packet
+            numPackets += 1
+        }
+
+        def clear(): Unit = {
+            java.util.Arrays.fill(packets.asInstanceOf[Array[AnyRef]], 0,
+                                  numPackets, null)
+            numPackets = 0
+            flowMatch = null
+        }
+    }
+
+    private def mix(h: Int): Int = {
+        val x = h * 0x9E3779B9
+        x ^ (x >>> 16)
+    }
+}
+
+/**
+ * Tracks the packets that arrive while a simulation for their flow match is
+ * in progress, so that they can be executed with the simulation's actions
+ * once it completes.
+ *
+ * In-flight simulations are indexed both by cookie and by flow match in two
+ * open addressing tables with linear probing, keyed by the primitive cookie
+ * and by the flow match respectively. The entries and their packet arrays
+ * are recycled through an ObjectPool, so in the steady state tracking a
+ * simulation and pending packets on it doesn't allocate.
+ *
+ * This class is not thread safe, and all instances expected to be confined to
+ * a thread.
+ */
+final class PendingPackets(initialCapacity: Int = 1024) {
+    import PendingPackets._
+
+    private val pool = new ArrayObjectPool[Entry](initialCapacity) {
+        override def allocate = new Entry
+    }
+
+    private var capacity = nextPowerOfTwo(initialCapacity * 2)
+    private var byCookie = new Array[Entry](capacity)
+    private var byMatch = new Array[Entry](capacity)
+    private var numEntries = 0
+
+    /**
+     * Number of in-flight simulations.
+     */
+    def size: Int = numEntries
+
+    /**
+     * Starts tracking the simulation with the given cookie for the given
+     * flow match.
+     */
+    def track(cookie: Int, flowMatch: FlowMatch): Unit = {
+        if ((numEntries + 1) * 2 > capacity)
+            grow()
+        val entry = pool.take match {
+            case Some(e) => e
+            case None => new Entry
+        }
+        entry.cookie = cookie
+        entry.flowMatch = flowMatch
+        insert(byCookie, cookieSlot(entry.cookie), entry)
+        insert(byMatch, matchSlot(entry.flowMatch), entry)
+        numEntries += 1
+    }
+
+    /**
+     * Tells whether a simulation with the given cookie is being tracked.
+     */
+    def isTracked(cookie: Int): Boolean = findByCookie(cookie) >= 0
+
+    /**
+     * Pends a packet on the in-flight simulation for its flow match, if
+     * there's one. Returns whether the packet was pended.
+     */
+    def pend(packet: Packet): Boolean = {
+        val slot = findByMatch(packet.getMatch)
+        if (slot < 0) {
+            false
+        } else {
+            byMatch(slot).add(packet)
+            true
+        }
+    }
+
+    /**
+     * Stops tracking the simulation with the given cookie, appending the
+     * packets that were pending on it to `out`. Returns the number of pending
+     * packets, or -1 if the simulation wasn't tracked.
+     */
+    def remove(cookie: Int, out: JList[Packet]): Int = {
+        val slot = findByCookie(cookie)
+        if (slot < 0)
+            return -1
+        val entry = byCookie(slot)
+        delete(byCookie, slot)
+        delete(byMatch, slotInByMatch(entry))
+        numEntries -= 1
+        val numPackets = entry.numPackets
+        var i = 0
+        while (i < numPackets) {
+            out.add(entry.packets(i))
+            i += 1
+        }
+        entry.clear()
+        pool.offer(entry)
+        numPackets
+    }
+
+    /**
+     * Returns the packets pending on the simulation with the given cookie,
+     * or None if it isn't tracked. Allocates, meant for tests.
+     */
+    def pendingOn(cookie: Int): Option[Seq[Packet]] = {
+        val slot = findByCookie(cookie)
+        if (slot < 0) None
+        else {
+            val entry = byCookie(slot)
+            Some(entry.packets.take(entry.numPackets).toSeq)
+        }
+    }
+
+    private def cookieSlot(cookie: Int): Int = mix(cookie) & (capacity - 1)
+
+    private def matchSlot(flowMatch: FlowMatch): Int =
+        mix(flowMatch.hashCode) & (capacity - 1)
+
+    private def findByCookie(cookie: Int): Int = {
+        var slot = cookieSlot(cookie)
+        while (byCookie(slot) ne null) {
+            if (byCookie(slot).cookie == cookie)
+                return slot
+            slot = (slot + 1) & (capacity - 1)
+        }
+        -1
+    }
+
+    private def findByMatch(flowMatch: FlowMatch): Int = {
+        var slot = matchSlot(flowMatch)
+        while (byMatch(slot) ne null) {
+            val m = byMatch(slot).flowMatch
+            if ((m eq flowMatch) || m == flowMatch)
+                return slot
+            slot = (slot + 1) & (capacity - 1)
+        }
+        -1
+    }
+
+    /* There may be more than one simulation for the same match, so an
+     * entry is looked up by identity when deleting it. */
+    private def slotInByMatch(entry: Entry): Int = {
+        var slot = matchSlot(entry.flowMatch)
+        while (byMatch(slot) ne entry)
+            slot = (slot + 1) & (capacity - 1)
+        slot
+    }
+
+    private def insert(table: Array[Entry], from: Int, entry: Entry): Unit = {
+        var slot = from
+        while (table(slot) ne null)
+            slot = (slot + 1) & (capacity - 1)
+        table(slot) = entry
+    }
+
+    /* Backward shift deletion: moves back the entries that follow the
+     * deleted one in its probe sequence, so no tombstones are needed. */
+    private def delete(table: Array[Entry], deleted: Int): Unit = {
+        val mask = capacity - 1
+        var hole = deleted
+        var slot = (hole + 1) & mask
+        while (table(slot) ne null) {
+            val entry = table(slot)
+            val home = if (table eq byCookie) cookieSlot(entry.cookie)
+                       else matchSlot(entry.flowMatch)
+            // the entry can fill the hole unless its home slot lies
+            // cyclically in (hole, slot]
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table(hole) = entry
+                hole = slot
+            }
+            slot = (slot + 1) & mask
+        }
+        table(hole) = null
+    }
+
+    private def grow(): Unit = {
+        val oldByCookie = byCookie
+        capacity *= 2
+        byCookie = new Array[Entry](capacity)
+        byMatch = new Array[Entry](capacity)
+        var i = 0
+        while (i < oldByCookie.length) {
+            val entry = oldByCookie(i)
+            if (entry ne null) {
+                insert(byCookie, cookieSlot(entry.cookie), entry)
+                insert(byMatch, matchSlot(entry.flowMatch), entry)
+            }
+            i += 1
+        }
+    }
+
+    private def nextPowerOfTwo(value: Int) =
+        1 << (32 - Integer.numberOfLeadingZeros(value - 1))
+}
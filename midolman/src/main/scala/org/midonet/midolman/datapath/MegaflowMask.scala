@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.datapath
+
+import java.util.{EnumSet, List => JList, Set => JSet}
+
+import org.midonet.odp.{FlowMask, FlowMatch}
+import org.midonet.odp.flows._
+import org.midonet.packets.{TCP, UDP}
+import org.midonet.sdn.flows.WildcardMatch.Field
+
+/**
+ * Builds the datapath flow mask that turns a flow match into a megaflow,
+ * wildcarding the fields that the simulation didn't look at.
+ *
+ * The mask is only relaxed for IPv4 TCP and UDP packets without VLAN tags,
+ * which make up the bulk of the traffic. Any other match, or a match with
+ * keys this object doesn't know about, is not eligible and gets an empty
+ * mask, which the datapath treats as an exact match. Fields that the
+ * WildcardMatch doesn't track as seen (in port, tunnel, ethertype, IP protocol
+ * and fragment type) are always matched exactly, as are all the fields of
+ * the keys set by the flow's actions, because a set action carries whole
+ * keys with values copied from the packet that created the flow.
+ */
+object MegaflowMask {
+
+    /**
+     * Returns the mask for the given datapath flow match, given the fields
+     * seen during the simulation and the actions of the resulting flow.
+     */
+    def apply(flowMatch: FlowMatch, seenFields: JSet[Field],
+              actions: JList[FlowAction]): FlowMask = {
+        if (!isEligible(flowMatch))
+            return new FlowMask()
+
+        val fields = EnumSet.noneOf(classOf[Field])
+        fields.addAll(seenFields)
+        addRewrittenFields(actions, fields)
+
+        val mask = new FlowMask()
+        val keys = flowMatch.getKeys
+        var i = 0
+        while (i < keys.size()) {
+            mask.addKey(maskFor(keys.get(i), fields))
+            i += 1
+        }
+        mask
+    }
+
+    /**
+     * Tells whether the given flow match can be relaxed into a megaflow.
+     */
+    def isEligible(flowMatch: FlowMatch): Boolean = {
+        var l4 = false
+        val keys = flowMatch.getKeys
+        var i = 0
+        while (i < keys.size()) {
+            keys.get(i) match {
+                case ip: FlowKeyIPv4 =>
+                    if (ip.getFrag != 0 ||
+                        (ip.getProto != TCP.PROTOCOL_NUMBER &&
+                         ip.getProto != UDP.PROTOCOL_NUMBER))
+                        return false
+                case _: FlowKeyTCP | _: FlowKeyUDP =>
+                    l4 = true
+                case _: FlowKeyPriority | _: FlowKeyInPort |
+                     _: FlowKeyTunnel | _: FlowKeyEthernet |
+                     _: FlowKeyEtherType | _: FlowKeyTCPFlags =>
+                case _ =>
+                    return false
+            }
+            i += 1
+        }
+        l4
+    }
+
+    private def addRewrittenFields(actions: JList[FlowAction],
+                                   fields: JSet[Field]): Unit = {
+        if (actions eq null)
+            return
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case setKey: FlowActionSetKey => setKey.getFlowKey match {
+                    case _: FlowKeyEthernet =>
+                        fields.add(Field.EthSrc)
+                        fields.add(Field.EthDst)
+                    case _: FlowKeyIPv4 =>
+                        fields.add(Field.NetworkSrc)
+                        fields.add(Field.NetworkDst)
+                        fields.add(Field.NetworkTOS)
+                        fields.add(Field.NetworkTTL)
+                    case _: FlowKeyTCP | _: FlowKeyUDP =>
+                        fields.add(Field.SrcPort)
+                        fields.add(Field.DstPort)
+                    case _ =>
+                }
+                case _ =>
+            }
+            i += 1
+        }
+    }
+
+    private def maskFor(key: FlowKey, fields: JSet[Field]): FlowKey = {
+        def ether(f: Field) =
+            if (fields.contains(f)) FlowMask.ETHER_EXACT else FlowMask.ETHER_ANY
+        def ip(f: Field) =
+            if (fields.contains(f)) FlowMask.IP_EXACT else FlowMask.IP_ANY
+        def byte(f: Field) =
+            if (fields.contains(f)) FlowMask.BYTE_EXACT else FlowMask.BYTE_ANY
+        def port(f: Field) =
+            if (fields.contains(f)) FlowMask.TCP_EXACT else FlowMask.TCP_ANY
+
+        key match {
+            case _: FlowKeyPriority =>
+                FlowKeys.priority(FlowMask.PRIO_EXACT)
+            case _: FlowKeyInPort =>
+                FlowKeys.inPort(FlowMask.INPORT_EXACT)
+            case _: FlowKeyTunnel =>
+                FlowKeys.tunnel(-1L, FlowMask.IP_EXACT, FlowMask.IP_EXACT)
+            case _: FlowKeyEthernet =>
+                FlowKeys.ethernet(ether(Field.EthSrc), ether(Field.EthDst))
+            case _: FlowKeyEtherType =>
+                FlowKeys.etherType(FlowMask.ETHERTYPE_EXACT)
+            case _: FlowKeyIPv4 =>
+                FlowKeys.ipv4(ip(Field.NetworkSrc), ip(Field.NetworkDst),
+                              FlowMask.BYTE_EXACT, byte(Field.NetworkTOS),
+                              byte(Field.NetworkTTL), FlowMask.BYTE_EXACT)
+            case _: FlowKeyTCP =>
+                FlowKeys.tcp(port(Field.SrcPort), port(Field.DstPort))
+            case _: FlowKeyUDP =>
+                FlowKeys.udp(port(Field.SrcPort), port(Field.DstPort))
+            case _: FlowKeyTCPFlags =>
+                FlowKeys.tcpFlags(FlowMask.TCPFLAGS_ANY)
+        }
+    }
+}
@@ -250,16 +250,37 @@ class OneToManyDpConnManager(c: MidolmanConfig,
 
     private var upcallHandler: BatchCollector[Packet] = null
 
+    /* The send pool is exported over JMX while it has connections, so that
+     * a manager that is stopped and made again in the same JVM doesn't
+     * leave its pool registered under the name of the new one. */
+    private var numConnections = 0
+
     override def makeConnection(name: String, bucket: Bucket) = {
         if (!threadPair.isRunning)
             threadPair.start()
         val conn = threadPair.addConnection(bucket, sendPool)
         conn.getConnection.setUsingSharedNotificationHandler(true)
+        lock.lock()
+        try {
+            if (numConnections == 0)
+                sendPool.registerAsMXBean("upcall")
+            numConnections += 1
+        } finally {
+            lock.unlock()
+        }
         conn
     }
 
     override def stopConnection(conn: ManagedDatapathConnection) {
         threadPair.removeConnection(conn)
+        lock.lock()
+        try {
+            numConnections -= 1
+            if (numConnections == 0)
+                sendPool.unregisterAsMXBean()
+        } finally {
+            lock.unlock()
+        }
     }
 
     protected override def setUpcallHandler(conn: OvsDatapathConnection,
@@ -16,9 +16,13 @@
 
 package org.midonet.midolman.monitoring.metrics
 
+import scala.collection.JavaConverters._
+
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
+import org.midonet.midolman.io.DatapathConnectionPool
+
 class PacketPipelineMetrics(val registry: MetricRegistry) {
 
     val pendedPackets = registry.counter(name(
@@ -70,6 +74,33 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         classOf[PacketPipelineAccumulatedTime],
         "simulationAccumulatedTime"))
 
+    val flowStateMessagesSent = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowStateMessagesSent", "messages"))
+
+    val flowStateBytesSent = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowStateBytesSent", "bytes"))
+
+    val flowStatesPerMessage = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowStatesPerMessage"))
+
+    val datapathRequestsPerBatch = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "datapathRequestsPerBatch"))
+
+    /** Tracks the flow creations and packet executions sent to the datapath
+      * without waiting for a reply, which the datapath rejected. */
+    def trackDatapathErrors(pool: DatapathConnectionPool) {
+        registry.register(name(classOf[PacketPipelineGauge], "flowCreateErrors"),
+            new Gauge[Long] {
+                override def getValue =
+                    pool.getAll.asScala.map(_.flowCreateErrors).sum
+            })
+        registry.register(name(classOf[PacketPipelineGauge], "packetExecuteErrors"),
+            new Gauge[Long] {
+                override def getValue =
+                    pool.getAll.asScala.map(_.packetExecuteErrors).sum
+            })
+    }
+
     def wildcardTableHit(latency: Int) {
         wildcardTableHits.mark()
         wildcardTableHitLatency.update(latency)
@@ -88,6 +119,12 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    def flowStateMessageSent(flowStates: Int, bytes: Int) {
+        flowStateMessagesSent.mark()
+        flowStateBytesSent.mark(bytes)
+        flowStatesPerMessage.update(flowStates)
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.nio.ByteBuffer
+import java.util.{ArrayList, UUID}
+
+import com.google.protobuf.CodedOutputStream.{computeMessageSize,
+    computeRawVarint32Size, computeTagSize}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr}
+import org.midonet.rpc.{FlowStateProto => Proto}
+import org.midonet.util.FixedArrayOutputStream
+
+/**
+ * The state of a flow that waits to be pushed to its peers. Instances are
+ * recycled by the replicator once their state is pushed.
+ */
+final class PendingFlowState {
+    var ingressPort: UUID = _
+    var egressPort: UUID = _
+    var egressPortSet: UUID = _
+    var conntrackKey: ConnTrackKey = _
+    val natKeys = new ArrayList[NatKey]()
+    val natBindings = new ArrayList[NatBinding]()
+
+    def isEmpty = (conntrackKey eq null) && natKeys.isEmpty
+
+    def clear(): Unit = {
+        ingressPort = null
+        egressPort = null
+        egressPortSet = null
+        conntrackKey = null
+        natKeys.clear()
+        natBindings.clear()
+    }
+}
+
+/**
+ * Encodes state messages into the payload of a state packet. A message is
+ * started with begin(), followed by the FlowStates added with add(), which
+ * may carry only a range of the nat entries of a flow so that the state of a
+ * large flow can be split across messages. The sizes let the caller decide
+ * what fits in the payload before adding it.
+ */
+sealed abstract class FlowStateEncoder(val buffer: Array[Byte]) {
+
+    /** The encoding version, see FlowStatePackets. */
+    def version: Int
+
+    /** Starts a new message, discarding the current one. */
+    def begin(sender: UUID, epoch: Long): Unit
+
+    /** An upper bound of the size of the current message. */
+    def size: Int
+
+    /** The number of FlowStates in the current message. */
+    def numStates: Int
+
+    /** Whether a message of the given size fits in the buffer. */
+    def fits(messageSize: Int): Boolean
+
+    /** The size of a FlowState for the given flow, without nat entries. */
+    def stateSize(state: PendingFlowState, withConntrack: Boolean): Int
+
+    /** The size the i-th nat entry of the given flow adds to its FlowState. */
+    def natEntrySize(state: PendingFlowState, i: Int): Int
+
+    /** Adds a FlowState with the nat entries in [from, to) of a flow. */
+    def add(state: PendingFlowState, withConntrack: Boolean,
+            from: Int, to: Int): Unit
+
+    /** Writes the current message to the buffer, returning its length. */
+    def finish(): Int
+}
+
+/**
+ * Encodes the protobufs StateMessage of FlowStatePackets.PROTOBUF_ENCODING,
+ * prefixed by its length.
+ */
+final class ProtobufFlowStateEncoder(buffer: Array[Byte])
+        extends FlowStateEncoder(buffer) {
+    import FlowStatePackets._
+
+    private val NEW_STATE = Proto.StateMessage.NEW_STATE_FIELD_NUMBER
+    private val NAT_ENTRIES = Proto.FlowState.NAT_ENTRIES_FIELD_NUMBER
+    private val CONNTRACK_KEY = Proto.FlowState.CONNTRACK_KEY_FIELD_NUMBER
+    private val INGRESS_PORT = Proto.FlowState.INGRESS_PORT_FIELD_NUMBER
+    private val EGRESS_PORT = Proto.FlowState.EGRESS_PORT_FIELD_NUMBER
+    private val EGRESS_PORT_SET =
+        Proto.FlowState.EGRESS_PORT_SET_FIELD_NUMBER
+    /* The tag and the length of a FlowState, whose size is unknown until all
+     * of its nat entries are added, but is always below 2^14 bytes. */
+    private val STATE_OVERHEAD = computeTagSize(NEW_STATE) + 2
+
+    private val stream = new FixedArrayOutputStream(buffer)
+    private val message = Proto.StateMessage.newBuilder()
+    private val state = Proto.FlowState.newBuilder()
+    private val natEntry = Proto.NatEntry.newBuilder()
+
+    /* The nat entries of the last flow whose sizes were asked for */
+    private val natEntries = new ArrayList[Proto.NatEntry]()
+    private var natEntriesOf: PendingFlowState = _
+
+    private var messageSize = 0
+
+    override def version = PROTOBUF_ENCODING
+
+    override def begin(sender: UUID, epoch: Long): Unit = {
+        message.clear()
+        message.setSender(uuidToProto(sender))
+        message.setEpoch(epoch)
+        /* We don't expect ACKs, seq is unused for now */
+        message.setSeq(0x1)
+        messageSize = message.buildPartial().getSerializedSize
+        natEntries.clear()
+        natEntriesOf = null
+    }
+
+    override def size = messageSize
+
+    override def numStates = message.getNewStateCount
+
+    override def fits(messageSize: Int) =
+        messageSize + computeRawVarint32Size(messageSize) <= buffer.length
+
+    /* Sums the sizes of the fields set in the builder rather than building
+     * a FlowState, which this is called for once or twice per flow. */
+    override def stateSize(flow: PendingFlowState, withConntrack: Boolean) = {
+        buildState(flow, withConntrack)
+        var size = computeMessageSize(INGRESS_PORT, state.getIngressPort)
+        if (state.hasEgressPort)
+            size += computeMessageSize(EGRESS_PORT, state.getEgressPort)
+        else if (state.hasEgressPortSet)
+            size += computeMessageSize(EGRESS_PORT_SET,
+                                       state.getEgressPortSet)
+        if (state.hasConntrackKey)
+            size += computeMessageSize(CONNTRACK_KEY, state.getConntrackKey)
+        size + STATE_OVERHEAD
+    }
+
+    override def natEntrySize(flow: PendingFlowState, i: Int) = {
+        if (natEntriesOf ne flow) {
+            natEntries.clear()
+            natEntriesOf = flow
+        }
+        while (natEntries.size <= i) {
+            val j = natEntries.size
+            natEntry.clear()
+            natEntry.setK(natKeyToProto(flow.natKeys.get(j)))
+                    .setV(natBindingToProto(flow.natBindings.get(j)))
+            natEntries.add(natEntry.build())
+        }
+        val size = natEntries.get(i).getSerializedSize
+        computeTagSize(NAT_ENTRIES) + computeRawVarint32Size(size) + size
+    }
+
+    override def add(flow: PendingFlowState, withConntrack: Boolean,
+                     from: Int, to: Int): Unit = {
+        var size = stateSize(flow, withConntrack)
+        var i = from
+        while (i < to) {
+            size += natEntrySize(flow, i)
+            state.addNatEntries(natEntries.get(i))
+            i += 1
+        }
+        message.addNewState(state.build())
+        messageSize += size
+    }
+
+    override def finish(): Int = {
+        stream.reset()
+        val built = message.build()
+        built.writeDelimitedTo(stream)
+        val size = built.getSerializedSize
+        size + computeRawVarint32Size(size)
+    }
+
+    private def buildState(flow: PendingFlowState,
+                           withConntrack: Boolean): Unit = {
+        state.clear()
+        state.setIngressPort(uuidToProto(flow.ingressPort))
+        if (flow.egressPort ne null)
+            state.setEgressPort(uuidToProto(flow.egressPort))
+        else if (flow.egressPortSet ne null)
+            state.setEgressPortSet(uuidToProto(flow.egressPortSet))
+        if (withConntrack)
+            state.setConntrackKey(connTrackKeyToProto(flow.conntrackKey))
+    }
+}
+
+/**
+ * Encodes the fixed layout of FlowStatePackets.COMPACT_ENCODING, writing the
+ * keys straight into the buffer.
+ */
+final class CompactFlowStateEncoder(buffer: Array[Byte])
+        extends FlowStateEncoder(buffer) {
+    import CompactFlowStateCodec._
+
+    private val bb = ByteBuffer.wrap(buffer)
+    private var countPosition = 0
+    private var count = 0
+
+    override def version = FlowStatePackets.COMPACT_ENCODING
+
+    override def begin(sender: UUID, epoch: Long): Unit = {
+        bb.clear()
+        bb.put(FlowStatePackets.COMPACT_ENCODING.toByte)
+        writeUuid(bb, sender)
+        bb.putLong(epoch)
+        countPosition = bb.position
+        bb.putShort(0)
+        count = 0
+    }
+
+    override def size = bb.position
+
+    override def numStates = count
+
+    override def fits(messageSize: Int) = messageSize <= buffer.length
+
+    override def stateSize(flow: PendingFlowState, withConntrack: Boolean) = {
+        var size = 1 + UUID_SIZE + 2
+        if ((flow.egressPort ne null) || (flow.egressPortSet ne null))
+            size += UUID_SIZE
+        if (withConntrack)
+            size += connTrackKeySize(flow.conntrackKey)
+        size
+    }
+
+    override def natEntrySize(flow: PendingFlowState, i: Int) = NAT_ENTRY_SIZE
+
+    override def add(flow: PendingFlowState, withConntrack: Boolean,
+                     from: Int, to: Int): Unit = {
+        var flags = 0
+        if (withConntrack)
+            flags |= HAS_CONNTRACK_KEY
+        if (flow.egressPort ne null)
+            flags |= HAS_EGRESS_PORT
+        else if (flow.egressPortSet ne null)
+            flags |= HAS_EGRESS_PORT_SET
+        bb.put(flags.toByte)
+        writeUuid(bb, flow.ingressPort)
+        if (flow.egressPort ne null)
+            writeUuid(bb, flow.egressPort)
+        else if (flow.egressPortSet ne null)
+            writeUuid(bb, flow.egressPortSet)
+        if (withConntrack)
+            writeConnTrackKey(bb, flow.conntrackKey)
+        bb.putShort((to - from).toShort)
+        var i = from
+        while (i < to) {
+            writeNatKey(bb, flow.natKeys.get(i))
+            writeNatBinding(bb, flow.natBindings.get(i))
+            i += 1
+        }
+        count += 1
+    }
+
+    override def finish(): Int = {
+        bb.putShort(countPosition, count.toShort)
+        bb.position
+    }
+}
+
+/**
+ * The fixed layout of FlowStatePackets.COMPACT_ENCODING. All fields are big
+ * endian, and a message is made of:
+ *
+ *     version: u8 (= 1)
+ *     sender: uuid, epoch: u64
+ *     FlowState count: u16
+ *     FlowState*:
+ *         flags: u8 (HAS_CONNTRACK_KEY, HAS_EGRESS_PORT, HAS_EGRESS_PORT_SET)
+ *         ingress port: uuid
+ *         [egress port or egress port set: uuid]
+ *         [conntrack key: protocol u8, src ip, src port u16, dst ip,
+ *                         dst port u16, device uuid]
+ *         nat entry count: u16
+ *         nat entry*: type u8, protocol u8, src ipv4, src port u16,
+ *                     dst ipv4, dst port u16, device uuid,
+ *                     binding ipv4, binding port u16
+ *
+ * A uuid is 16 bytes, an ipv4 4 bytes, and an ip a version u8 (4 or 6)
+ * followed by 4 or 16 bytes. The nat key types are numbered as in the
+ * protobufs encoding.
+ */
+object CompactFlowStateCodec {
+    val HAS_CONNTRACK_KEY = 0x1
+    val HAS_EGRESS_PORT = 0x2
+    val HAS_EGRESS_PORT_SET = 0x4
+
+    val UUID_SIZE = 16
+    val NAT_ENTRY_SIZE = 1 + 1 + 4 + 2 + 4 + 2 + UUID_SIZE + 4 + 2
+
+    def ipSize(ip: IPAddr): Int = ip match {
+        case _: IPv4Addr => 1 + 4
+        case _ => 1 + 16
+    }
+
+    def connTrackKeySize(k: ConnTrackKey): Int =
+        1 + ipSize(k.networkSrc) + 2 + ipSize(k.networkDst) + 2 + UUID_SIZE
+
+    def writeUuid(bb: ByteBuffer, id: UUID): Unit = {
+        bb.putLong(id.getMostSignificantBits)
+        bb.putLong(id.getLeastSignificantBits)
+    }
+
+    def readUuid(bb: ByteBuffer): UUID = new UUID(bb.getLong, bb.getLong)
+
+    def skipUuid(bb: ByteBuffer): Unit = bb.position(bb.position + UUID_SIZE)
+
+    def writeIp(bb: ByteBuffer, ip: IPAddr): Unit = ip match {
+        case v4: IPv4Addr =>
+            bb.put(4.toByte)
+            bb.putInt(v4.addr)
+        case v6: IPv6Addr =>
+            bb.put(6.toByte)
+            bb.putLong(v6.upperWord)
+            bb.putLong(v6.lowerWord)
+        case _ => throw new IllegalArgumentException()
+    }
+
+    def readIp(bb: ByteBuffer): IPAddr = bb.get match {
+        case 4 => new IPv4Addr(bb.getInt)
+        case 6 => new IPv6Addr(bb.getLong, bb.getLong)
+        case v => throw new IllegalArgumentException(s"Unknown ip version $v")
+    }
+
+    def writeConnTrackKey(bb: ByteBuffer, k: ConnTrackKey): Unit = {
+        bb.put(k.networkProtocol)
+        writeIp(bb, k.networkSrc)
+        bb.putShort(k.icmpIdOrTransportSrc.toShort)
+        writeIp(bb, k.networkDst)
+        bb.putShort(k.icmpIdOrTransportDst.toShort)
+        writeUuid(bb, k.deviceId)
+    }
+
+    def readConnTrackKey(bb: ByteBuffer): ConnTrackKey = {
+        val protocol = bb.get
+        val src = readIp(bb)
+        val srcPort = bb.getShort & 0xFFFF
+        val dst = readIp(bb)
+        val dstPort = bb.getShort & 0xFFFF
+        ConnTrackKey(src, srcPort, dst, dstPort, protocol, readUuid(bb))
+    }
+
+    def writeNatKey(bb: ByteBuffer, k: NatKey): Unit = {
+        bb.put(FlowStatePackets.natKeyTypeToProto(k.keyType).getNumber.toByte)
+        bb.put(k.networkProtocol)
+        bb.putInt(k.networkSrc.addr)
+        bb.putShort(k.transportSrc.toShort)
+        bb.putInt(k.networkDst.addr)
+        bb.putShort(k.transportDst.toShort)
+        writeUuid(bb, k.deviceId)
+    }
+
+    def readNatKey(bb: ByteBuffer): NatKey = {
+        val keyType = Proto.NatKey.Type.valueOf(bb.get)
+        if (keyType eq null)
+            throw new IllegalArgumentException("Unknown nat key type")
+        val protocol = bb.get
+        val src = new IPv4Addr(bb.getInt)
+        val srcPort = bb.getShort & 0xFFFF
+        val dst = new IPv4Addr(bb.getInt)
+        val dstPort = bb.getShort & 0xFFFF
+        NatKey(FlowStatePackets.natKeyTypeFromProto(keyType), src, srcPort,
+               dst, dstPort, protocol, readUuid(bb))
+    }
+
+    def writeNatBinding(bb: ByteBuffer, v: NatBinding): Unit = {
+        bb.putInt(v.networkAddress.addr)
+        bb.putShort(v.transportPort.toShort)
+    }
+
+    def readNatBinding(bb: ByteBuffer): NatBinding =
+        NatBinding(new IPv4Addr(bb.getInt), bb.getShort & 0xFFFF)
+}
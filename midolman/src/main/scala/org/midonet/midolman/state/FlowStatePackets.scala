@@ -32,7 +32,7 @@ object FlowStatePackets {
      * Frame format for state replication messages:
      *
      *     +---------------------------------------+
-     *     | Payload (protobufs message)           |
+     *     | Payload (state message)               |
      *     +---------------------------------------+
      *     | UDP (arbitrary IANA-unnassigned port) |
      *     +---------------------------------------+
@@ -44,6 +44,17 @@ object FlowStatePackets {
      *     +---------------------------------------+
      */
     val TUNNEL_KEY = 0xFFFFFF
+
+    /**
+     * Encodings of the state message in the payload. The protobufs encoding
+     * is a length-delimited StateMessage. The compact encoding, described in
+     * CompactFlowStateCodec, starts with a version byte equal to
+     * COMPACT_ENCODING; a protobufs message can't start with that byte since
+     * a StateMessage is always longer than 1 byte. Agents accept both, and
+     * send the one they're configured to use.
+     */
+    val PROTOBUF_ENCODING = 0
+    val COMPACT_ENCODING = 1
     val SRC_MAC = MAC.fromString("AC:CA:BA:00:15:01")
     val DST_MAC = MAC.fromString("AC:CA:BA:00:15:02")
     val SRC_IP = IPv4Addr.fromString("169.254.15.1")
@@ -176,7 +187,11 @@ object FlowStatePackets {
         NatBinding(ipAddressFromProto(proto.getIp).asInstanceOf[IPv4Addr],
                    proto.getPort)
 
-    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+    /**
+     * Returns the payload of a state packet, or null if the addresses and
+     * ports of the packet don't match those of state packets.
+     */
+    def statePayload(p: Ethernet): Array[Byte] = {
         if (p.getDestinationMACAddress != DST_MAC ||
             p.getSourceMACAddress != SRC_MAC) {
             return null
@@ -189,9 +204,7 @@ object FlowStatePackets {
                     case udp: UDP if udp.getDestinationPort == UDP_PORT &&
                         udp.getSourcePort == UDP_PORT =>
                         udp.getPayload match {
-                            case d: Data =>
-                                val input = new ByteArrayInputStream(d.getData)
-                                Proto.StateMessage.parseDelimitedFrom(input)
+                            case d: Data => d.getData
                             case _ => null
                         }
 
@@ -201,4 +214,16 @@ object FlowStatePackets {
             case _ => null
         }
     }
+
+    def isCompactEncoding(payload: Array[Byte]): Boolean =
+        payload.length > 0 && payload(0) == COMPACT_ENCODING
+
+    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+        val payload = statePayload(p)
+        if (payload eq null)
+            null
+        else
+            Proto.StateMessage.parseDelimitedFrom(
+                new ByteArrayInputStream(payload))
+    }
 }
@@ -16,19 +16,21 @@
 
 package org.midonet.midolman.state
 
+import java.io.ByteArrayInputStream
+import java.nio.{BufferUnderflowException, ByteBuffer}
 import java.util.{UUID, List => JList, Set => JSet, Iterator => JIterator,
-                  HashSet => JHashSet, ArrayList}
+                  HashSet => JHashSet, HashMap => JHashMap, ArrayList}
 
 import scala.collection.mutable
 import akka.actor.ActorSystem
 
-import com.google.protobuf.MessageLite
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.client.Port
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.{NotYetException, UnderlayResolver}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.FlowState.FlowStateKey
@@ -47,7 +49,6 @@ import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.util.FixedArrayOutputStream
 import org.midonet.util.collection.Reducer
 import org.midonet.util.functors.Callback0
 
@@ -57,10 +58,11 @@ import org.midonet.util.functors.Callback0
  * Sample usage:
  *
  * <code>
- * replicator.accumulateNewKeys(natTx, conntrackTx, ingressPort, egressPort, null)
- * replicator.pushState()
+ * replicator.accumulateNewKeys(dpConn, natTx, conntrackTx, ingressPort, egressPort, null)
  * natTx.commit()
  * conntrackTx.commit()
+ * ...
+ * replicator.pushState()
  *
  * natTable.expireIdleEntries(interval, replicator.natRemover)
  * conntrackTable.expireIdleEntries(interval, replicator.conntrackRemover)
@@ -96,6 +98,21 @@ import org.midonet.util.functors.Callback0
  *
  *   5 Other threads' read operations will spill over to this shard for the
  *     received keys.
+ *
+ *          NOTES ON MESSAGE AGGREGATION
+ *          ****************************
+ *
+ * The state accumulated for the flows of a batch of packets is kept per
+ * datapath connection that executed their packets, and per set of peers,
+ * until pushState() is called. The state is sent on the same connection as
+ * the packets that produced it, after them. Each peer set then gets as many
+ * FlowStates as fit in a state message of at most MTU - OVERHEAD bytes, so
+ * that new connections towards the same hosts share tunnel packets. A
+ * FlowState too large to fit in a message on its own is split across several
+ * messages, keeping its conntrack key in the first one.
+ *
+ * Messages are sent in the encoding given by flowStateEncoding, and received
+ * in either encoding, see FlowStatePackets.
  */
 abstract class BaseFlowStateReplicator() {
     import FlowStatePackets._
@@ -106,27 +123,38 @@ abstract class BaseFlowStateReplicator() {
     def underlay: UnderlayResolver
     def datapath: Datapath
     protected def log: Logger
+    protected def metrics: PacketPipelineMetrics
+    protected def flowStateEncoding: Int
     protected def invalidateFlowsFor: (FlowStateKey) => Unit
     protected def getPort(id: UUID): Port
     protected def getPortSet(id: UUID): PortSet
     protected def getPortGroup(id: UUID): PortGroup
 
     /* Used for message building */
-    private[this] val txState = Proto.FlowState.newBuilder()
-    private[this] val txNatEntry = Proto.NatEntry.newBuilder()
-    private[this] val currentMessage = Proto.StateMessage.newBuilder()
+    private[this] var txState: PendingFlowState = _
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
-    private[this] val hostId = uuidToProto(underlay.host.id)
+    /* The state of the flows waiting to be pushed, by datapath connection and
+     * by set of peers. The sets used as keys are copies of txPeers, which is
+     * reused. The maps of each connection are kept across pushes. */
+    private[this] val pendingStates =
+        new JHashMap[OvsDatapathConnection,
+                     JHashMap[JSet[UUID], ArrayList[PendingFlowState]]]()
+    private[this] var txConn: OvsDatapathConnection = _
+    private[this] val freeStates = new ArrayList[PendingFlowState]()
+    private[this] var pendingTouches = false
 
     /* Used for packet building
      * FIXME(guillermo) - use MTU
      */
     private[this] val buffer = new Array[Byte](MTU - OVERHEAD)
-    private[this] val stream = new FixedArrayOutputStream(buffer)
+    private[this] lazy val encoder =
+        if (flowStateEncoding == COMPACT_ENCODING)
+            new CompactFlowStateEncoder(buffer)
+        else
+            new ProtobufFlowStateEncoder(buffer)
     private[this] val packet = {
         val udpShell = makeUdpShell(buffer)
         new Packet(udpShell, FlowMatches.fromEthernetPacket(udpShell))
@@ -137,7 +165,7 @@ abstract class BaseFlowStateReplicator() {
                            v: ConnTrackValue): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                txState.conntrackKey = k
             }
             log.debug("touch conntrack key: {}", k)
             storage.touchConnTrackKey(k, txIngressPort, txPorts.iterator())
@@ -154,9 +182,8 @@ abstract class BaseFlowStateReplicator() {
                            v: NatBinding): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push nat key: {}", k)
-                txNatEntry.clear()
-                txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                txState.natKeys.add(k)
+                txState.natBindings.add(v)
             }
             log.debug("touch nat key: {}", k)
             storage.touchNatKey(k, v, txIngressPort, txPorts.iterator())
@@ -168,14 +195,6 @@ abstract class BaseFlowStateReplicator() {
         }
     }
 
-    private def resetCurrentMessage() {
-        currentMessage.clear()
-        currentMessage.setSender(hostId)
-        currentMessage.setEpoch(underlay.host.epoch)
-        /* We don't expect ACKs, seq is unused for now */
-        currentMessage.setSeq(0x1)
-    }
-
     def importFromStorage(batch: FlowStateBatch) {
         importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.FORWARD_FLOW)
         importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
@@ -210,6 +229,8 @@ abstract class BaseFlowStateReplicator() {
      * EXPECTED CALLING THREADS: only the packet processing thread that owns
      * this replicator.
      *
+     * @param dp The datapath connection that executes the packet, on which the
+     *           new keys will be pushed.
      * @param natTx The nat table transaction to collect new keys from.
      * @param conntrackTx The conntrack table transaction to collect new keys
      *                    from.
@@ -230,7 +251,8 @@ abstract class BaseFlowStateReplicator() {
      *                         calculate the peers that should receive this keys.
      */
     @throws(classOf[NotYetException])
-    def accumulateNewKeys(conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
+    def accumulateNewKeys(dp: OvsDatapathConnection,
+                          conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
                           natTx: FlowStateTransaction[NatKey, NatBinding],
                           ingressPort: UUID, egressPort: UUID,
                           egressPortSet: UUID, tags: mutable.Set[FlowTag],
@@ -241,34 +263,50 @@ abstract class BaseFlowStateReplicator() {
         resolvePeers(ingressPort, egressPort, egressPortSet, txPeers, txPorts, tags)
         val hasPeers = !txPeers.isEmpty
 
-        if (hasPeers) {
-            txState.clear()
-            resetCurrentMessage()
-        }
+        if (hasPeers)
+            txState = newPendingState()
 
+        txConn = dp
         txIngressPort = ingressPort
         conntrackTx.fold(callbacks, _conntrackAdder)
         natTx.fold(callbacks, _natAdder)
+        pendingTouches = true
 
         if (hasPeers)
-            buildMessage(ingressPort, egressPort, egressPortSet)
+            addPendingState(ingressPort, egressPort, egressPortSet)
+    }
+
+    private def newPendingState(): PendingFlowState = {
+        val size = freeStates.size()
+        if (size > 0) freeStates.remove(size - 1) else new PendingFlowState
     }
 
-    def buildMessage(ingressPort: UUID, egressPort: UUID, egressPortSet: UUID): Unit =
-        if (txState.hasConntrackKey || txState.getNatEntriesCount > 0) {
-            txState.setIngressPort(uuidToProto(ingressPort))
+    private def addPendingState(ingressPort: UUID, egressPort: UUID,
+                                egressPortSet: UUID): Unit =
+        if (txState.isEmpty) {
+            freeStates.add(txState)
+        } else {
+            txState.ingressPort = ingressPort
             if (egressPort != null)
-                txState.setEgressPort(uuidToProto(egressPort))
+                txState.egressPort = egressPort
             else if (egressPortSet != null)
-                txState.setEgressPortSet(uuidToProto(egressPortSet))
+                txState.egressPortSet = egressPortSet
 
-            currentMessage.addNewState(txState.build())
-            pendingMessages.add((txPeers, currentMessage.build()))
+            var connStates = pendingStates.get(txConn)
+            if (connStates eq null) {
+                connStates = new JHashMap[JSet[UUID], ArrayList[PendingFlowState]]()
+                pendingStates.put(txConn, connStates)
+            }
+            var states = connStates.get(txPeers)
+            if (states eq null) {
+                states = new ArrayList[PendingFlowState]()
+                connStates.put(new JHashSet[UUID](txPeers), states)
+            }
+            states.add(txState)
         }
 
     private def hostsToActions(hosts: JSet[UUID]): JList[FlowAction] = {
         val actions = new ArrayList[FlowAction]()
-        var i = 0
         val hostsIt = hosts.iterator
         while (hostsIt.hasNext) {
             underlay.peerTunnelInfo(hostsIt.next()) match {
@@ -277,15 +315,16 @@ abstract class BaseFlowStateReplicator() {
                     actions.add(route.output)
                 case None =>
             }
-            i += 1
         }
         actions
     }
 
     /**
-     * Pushes all of the messages that were previously prepared by natRemover,
-     * conntrackRemover and accumulateNewKeys() to their destinations, using the
-     * given datapath connection.
+     * Pushes all of the state that was previously accumulated by
+     * accumulateNewKeys() to their destinations, each on the datapath
+     * connection it was accumulated for. The FlowStates for the same set of
+     * peers are packed into as few messages as possible, see the notes on
+     * message aggregation.
      *
      * Packets will be tunneled to their destinations using the usual TunnelZone
      * information and with tunnel key FlowStatePackets.TUNNEL_KEY
@@ -293,24 +332,115 @@ abstract class BaseFlowStateReplicator() {
      * EXPECTED CALLING THREADS: only the packet processing thread that owns
      * this replicator.
      */
-    def pushState(dp: OvsDatapathConnection) {
-        var i = pendingMessages.size() - 1
-        while (i >= 0) {
-            val (hosts, message) = pendingMessages.remove(i)
-            if (message.getSerializedSize <= buffer.length) {
-                stream.reset()
-                message.writeDelimitedTo(stream)
-                val actions = hostsToActions(hosts)
-                if (!actions.isEmpty)
-                    dp.packetsExecute(datapath, packet, actions)
-            } else {
-                // TODO(guillermo) partition messages
-                log.warn(s"Skipping state message, too large: $message")
+    def pushState() {
+        val conns = pendingStates.entrySet().iterator()
+        while (conns.hasNext) {
+            val c = conns.next()
+            val connStates = c.getValue
+            if (!connStates.isEmpty) {
+                val it = connStates.entrySet().iterator()
+                while (it.hasNext) {
+                    val e = it.next()
+                    val states = e.getValue
+                    val actions = hostsToActions(e.getKey)
+                    if (!actions.isEmpty)
+                        pushStates(c.getKey, states, actions)
+                    var i = 0
+                    while (i < states.size()) {
+                        states.get(i).clear()
+                        freeStates.add(states.get(i))
+                        i += 1
+                    }
+                }
+                connStates.clear()
             }
-            i -= 1
         }
 
-        storage.submit()
+        if (pendingTouches) {
+            storage.submit()
+            pendingTouches = false
+        }
+    }
+
+    private def pushStates(dp: OvsDatapathConnection,
+                           states: JList[PendingFlowState],
+                           actions: JList[FlowAction]): Unit = {
+        encoder.begin(underlay.host.id, underlay.host.epoch)
+        val headerSize = encoder.size
+        var i = 0
+        while (i < states.size()) {
+            val state = states.get(i)
+            val numNatEntries = state.natKeys.size()
+            var withConntrack = state.conntrackKey ne null
+            var from = 0
+            /* Add the state in pieces with as many nat entries as fit in a
+             * message on their own, which is all of them but for large
+             * nat sets. */
+            do {
+                var size = encoder.stateSize(state, withConntrack)
+                var to = from
+                while (to < numNatEntries && encoder.fits(
+                        headerSize + size + encoder.natEntrySize(state, to))) {
+                    size += encoder.natEntrySize(state, to)
+                    to += 1
+                }
+                if (to == from && !withConntrack)
+                    to += 1
+                if (encoder.numStates > 0 && !encoder.fits(encoder.size + size)) {
+                    send(dp, actions)
+                    encoder.begin(underlay.host.id, underlay.host.epoch)
+                }
+                encoder.add(state, withConntrack, from, to)
+                withConntrack = false
+                from = to
+            } while (from < numNatEntries)
+            i += 1
+        }
+        if (encoder.numStates > 0)
+            send(dp, actions)
+    }
+
+    private def send(dp: OvsDatapathConnection,
+                     actions: JList[FlowAction]): Unit = {
+        val size = encoder.finish()
+        dp.packetsExecute(datapath, packet, actions)
+        metrics.flowStateMessageSent(encoder.numStates, size)
+    }
+
+    /* Reads a message in the compact encoding, see CompactFlowStateCodec,
+     * applying the keys as they're read. */
+    private def acceptCompactState(bb: ByteBuffer) {
+        import CompactFlowStateCodec._
+
+        bb.get() // version
+        if (log.underlying.isDebugEnabled)
+            log.debug("Got state replication message from: {}",
+                      readUuid(bb.duplicate()))
+        skipUuid(bb) // sender
+        bb.getLong // epoch
+        var numStates = bb.getShort & 0xFFFF
+        while (numStates > 0) {
+            val flags = bb.get
+            skipUuid(bb) // ingress port
+            if ((flags & (HAS_EGRESS_PORT | HAS_EGRESS_PORT_SET)) != 0)
+                skipUuid(bb)
+            if ((flags & HAS_CONNTRACK_KEY) != 0) {
+                val k = readConnTrackKey(bb)
+                log.debug("got new conntrack key: {}", k)
+                conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
+                invalidateFlowsFor(k)
+            }
+            var numNatEntries = bb.getShort & 0xFFFF
+            while (numNatEntries > 0) {
+                val k = readNatKey(bb)
+                val v = readNatBinding(bb)
+                log.debug("Got new nat mapping: {} -> {}", k, v)
+                natTable.touch(k, v)
+                invalidateFlowsFor(k)
+                numNatEntries -= 1
+            }
+            numStates -= 1
+        }
     }
 
     private def acceptNewState(msg: Proto.StateMessage) {
@@ -349,14 +479,26 @@ abstract class BaseFlowStateReplicator() {
      */
     @throws(classOf[NotYetException])
     def accept(p: Ethernet) {
-        val msg = parseDatagram(p)
-        if (msg == null) {
+        val payload = statePayload(p)
+        if (payload eq null) {
             log.info("Ignoring unexpected packet: {}", p)
             return
         }
 
-        log.debug("Got state replication message from: {}", msg.getSender)
-        acceptNewState(msg)
+        if (isCompactEncoding(payload)) {
+            try {
+                acceptCompactState(ByteBuffer.wrap(payload))
+            } catch {
+                case e @ (_: BufferUnderflowException |
+                          _: IllegalArgumentException) =>
+                    log.info("Ignoring malformed state message", e)
+            }
+        } else {
+            val msg = Proto.StateMessage.parseDelimitedFrom(
+                new ByteArrayInputStream(payload))
+            log.debug("Got state replication message from: {}", msg.getSender)
+            acceptNewState(msg)
+        }
     }
 
     @throws(classOf[NotYetException])
@@ -427,7 +569,10 @@ class FlowStateReplicator(
         override val storage: FlowStateStorage,
         override val underlay: UnderlayResolver,
         override val invalidateFlowsFor: (FlowStateKey) => Unit,
-        override val datapath: Datapath)(implicit as: ActorSystem)
+        override val datapath: Datapath,
+        override val metrics: PacketPipelineMetrics,
+        override val flowStateEncoding: Int = FlowStatePackets.PROTOBUF_ENCODING)
+        (implicit as: ActorSystem)
         extends BaseFlowStateReplicator {
 
     override val log = Logger(LoggerFactory.getLogger("org.midonet.state.replication"))
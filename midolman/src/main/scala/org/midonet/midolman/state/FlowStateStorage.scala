@@ -16,9 +16,8 @@
 
 package org.midonet.midolman.state
 
-import java.lang.{Integer => JInt}
 import java.net.InetAddress
-import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
+import java.util.{ArrayList, UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
                   HashSet => JHashSet, Iterator => JIterator}
 import java.util.concurrent.{TimeoutException, TimeUnit}
 import scala.concurrent.{ExecutionContext, promise, Promise, Future}
@@ -26,8 +25,7 @@ import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
-import org.slf4j.{Logger, LoggerFactory}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 
 import org.midonet.cassandra.CassandraClient
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
@@ -43,6 +41,9 @@ object FlowStateStorage {
     val NAT_BY_INGRESS_TABLE = "nat_by_ingress_port"
     val NAT_BY_EGRESS_TABLE = "nat_by_egress_port"
 
+    /* The rows fetched per round trip when reading the keys of a port */
+    val FETCH_PAGE_SIZE = 5000
+
     object Schema {
         def CONNTRACK(name: String) =
             s"CREATE TABLE IF NOT EXISTS $name ( " +
@@ -123,7 +124,32 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    class Prepared(query: String) {
+        var _statement: PreparedStatement = null
+
+        def apply(s: Session) = {
+            if (_statement eq null)
+                _statement = s.prepare(query)
+            _statement
+        }
+    }
+
+    def touchConnTrackStatement(table: String) =
+        new Prepared(
+            s"INSERT INTO $table " +
+                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+    def touchNatStatement(table: String) =
+        new Prepared(
+            s"INSERT INTO $table " +
+                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+    def apply(client: CassandraClient, writer: FlowStateStorageWriter): FlowStateStorage =
+        new FlowStateStorageImpl(client, writer)
 }
 
 trait FlowStateStorage {
@@ -152,53 +178,24 @@ trait FlowStateStorage {
  * This class is *NOT* thread safe, each thread that needs to submit or fetch
  * state keys from Cassandra should get its own instance. The only reason it
  * is not thread safe is because write operations are batched, a batch is
- * prepared by a series of touch*() method calls and it's then fired
- * by invoking submit.
+ * prepared by a series of touch*() method calls and it's then handed over to
+ * the FlowStateStorageWriter, shared by all instances, by invoking submit.
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
-    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
-
+class FlowStateStorageImpl(val client: CassandraClient,
+                           val writer: FlowStateStorageWriter)
+        extends FlowStateStorage {
     import FlowStateStorage._
+    import FlowStateStorageWriter.{ConnTrackTouch, NatTouch, Touch}
 
-    var batch: BatchStatement = new BatchStatement()
+    private val touches = new ArrayList[Touch]()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
-    class Prepared(query: String) {
-        var _statement: PreparedStatement = null
-
-        def apply(s: Session) = {
-            if (_statement eq null)
-                _statement = s.prepare(query)
-            _statement
-        }
-    }
-
     def fetchByPortStatement(table: String) =
         new Prepared(s"SELECT * FROM $table  WHERE port = ?;")
 
-    def touchConnTrackStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    def touchNatStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    val touchIngressConnTrack = touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE)
-    val touchEgressConnTrack = touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE)
-
-    val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
-    val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
-
     val fetchIngressConnTrack = fetchByPortStatement(CONNTRACK_BY_INGRESS_TABLE)
     val fetchEgressConnTrack = fetchByPortStatement(CONNTRACK_BY_EGRESS_TABLE)
     val fetchIngressNat = fetchByPortStatement(NAT_BY_INGRESS_TABLE)
@@ -207,24 +204,6 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     final def withSession[U](body: (Session) => U): Option[U] =
         Option(client.session) map body
 
-    private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
-        st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
-    private def bind(st: PreparedStatement, port: UUID, k: NatKey, v: NatBinding) = {
-        st.bind(port, natKeyTypeToString(k.keyType).orNull,
-                      k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
     /**
      * Adds a connection tracking key to the next batch that will be sent
      * to cassandra.
@@ -234,13 +213,12 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
      * @param weakRefs Egress ports.
      */
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
-            }
+            weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            touches.add(ConnTrackTouch(strongRef, strong = true, k))
+        while (weakRefs.hasNext) {
+            touches.add(ConnTrackTouch(weakRefs.next(), strong = false, k))
+        }
     }
 
     /**
@@ -252,68 +230,58 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
      * @param weakRefs Egress ports.
      */
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
-            }
+            weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            touches.add(NatTouch(strongRef, strong = true, k, v))
+        while (weakRefs.hasNext) {
+            touches.add(NatTouch(weakRefs.next(), strong = false, k, v))
+        }
     }
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Hands all state accumulated through touchConnTrackKey() and
+     * touchNatKey() over to the writer, which will send it to Cassandra
+     * asynchronously. Never blocks: keys are dropped if the writer falls
+     * behind, and errors will be logged but ignored.
      */
-    override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
+    override def submit(): Unit = {
+        var i = 0
+        while (i < touches.size()) {
+            writer.offer(touches.get(i))
+            i += 1
+        }
+        touches.clear()
     }
 
     /**
      * Fetch all conntrack keys for which a give port is ingress.
      */
     override def fetchStrongConnTrackRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
-        fetch(fetchIngressConnTrack, port, resultSetToConnTrackKeys)
+        fetch(fetchIngressConnTrack, port, new JHashSet[ConnTrackKey](), addConnTrackKey)
 
     /**
      * Fetch all conntrack keys for which a give port is egress.
      */
     override def fetchWeakConnTrackRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
-        fetch(fetchEgressConnTrack, port, resultSetToConnTrackKeys)
+        fetch(fetchEgressConnTrack, port, new JHashSet[ConnTrackKey](), addConnTrackKey)
 
     /**
      * Fetch all nat keys for which a give port is ingress.
      */
     override def fetchStrongNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
-        fetch(fetchIngressNat, port, resultSetToNatBindings)
+        fetch(fetchIngressNat, port, new JHashMap[NatKey, NatBinding](), addNatBinding)
 
     /**
      * Fetch all nat keys for which a give port is egress.
      */
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
-        fetch(fetchEgressNat, port, resultSetToNatBindings)
+        fetch(fetchEgressNat, port, new JHashMap[NatKey, NatBinding](), addNatBinding)
 
-    private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
-        val keys = new JHashSet[ConnTrackKey]()
-        val rows = rs.iterator()
-        while (rows.hasNext) {
-            keys.add(rowToConnTrack(rows.next()))
-        }
-        keys
-    }
+    private def addConnTrackKey(keys: JSet[ConnTrackKey], r: Row): Unit =
+        keys.add(rowToConnTrack(r))
 
-    private def resultSetToNatBindings(rs: ResultSet): JMap[NatKey, NatBinding] = {
-        val rows = rs.iterator()
-        val bindings = new JHashMap[NatKey, NatBinding]()
-        while (rows.hasNext) {
-            val row = rows.next()
-            bindings.put(rowToNatKey(row), rowToNatBinding(row))
-        }
-        bindings
-    }
+    private def addNatBinding(bindings: JMap[NatKey, NatBinding], r: Row): Unit =
+        bindings.put(rowToNatKey(r), rowToNatBinding(r))
 
     private def peelResult[U](result: Option[Future[U]]): Future[U] = result match {
         case Some(f) => f
@@ -321,30 +289,45 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             Future.failed(new IllegalStateException("Cassandra client is not connected"))
     }
 
-    private def fetch[U](statement: Prepared, portId: UUID, transform: (ResultSet) => U)
+    /**
+     * Fetches the rows for a port a page at a time, decoding each page into
+     * `keys` as it arrives, on the given execution context. The next page is
+     * requested before decoding the current one, so that the round trips to
+     * Cassandra overlap with the decoding.
+     */
+    private def fetch[U](statement: Prepared, portId: UUID, keys: U,
+                         decode: (U, Row) => Unit)
                 (implicit ec: ExecutionContext, as: ActorSystem): Future[U] = {
         peelResult (withSession { s =>
-            toScalaFuture(s.executeAsync(statement(s).bind(portId))) map transform
+            val bound = statement(s).bind(portId)
+            bound.setFetchSize(FETCH_PAGE_SIZE)
+            toScalaFuture(s.executeAsync(bound)) flatMap {
+                rs => decodePages(rs, keys, decode)
+            }
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
-
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
+    private def decodePages[U](rs: ResultSet, keys: U, decode: (U, Row) => Unit)
+                (implicit ec: ExecutionContext, as: ActorSystem): Future[U] = {
+        val nextPage = if (rs.isFullyFetched) null else rs.fetchMoreResults()
+        var rows = rs.getAvailableWithoutFetching
+        while (rows > 0) {
+            decode(keys, rs.one())
+            rows -= 1
         }
+        if (nextPage eq null)
+            Future.successful(keys)
+        else
+            toScalaFuture(nextPage) flatMap { _ => decodePages(rs, keys, decode) }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 p.success(result)
             }
 
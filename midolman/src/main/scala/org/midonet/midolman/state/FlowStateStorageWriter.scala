@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Integer => JInt}
+import java.util.{UUID, HashMap => JHashMap}
+import java.util.concurrent.{ConcurrentLinkedQueue, Semaphore, TimeUnit}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+import com.datastax.driver.core._
+import com.google.common.util.concurrent.{FutureCallback, Futures}
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.{FlowStateStorageGauge, FlowStateStorageHistogram, FlowStateStorageMeter}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+
+object FlowStateStorageWriter {
+
+    /** A key touched by a packet processing thread, to be written under the
+      * given port. Strong touches go to the by-ingress-port tables, weak ones
+      * to the by-egress-port tables. */
+    sealed trait Touch {
+        def port: UUID
+        def strong: Boolean
+    }
+
+    case class ConnTrackTouch(port: UUID, strong: Boolean, k: ConnTrackKey)
+        extends Touch
+
+    case class NatTouch(port: UUID, strong: Boolean, k: NatKey, v: NatBinding)
+        extends Touch
+
+    /* The batches that may be waiting for a response from Cassandra, past
+     * which the writer stops writing and lets the queue fill up. */
+    val MAX_IN_FLIGHT_BATCHES = 32
+
+    /* How long the writer sleeps when it finds the queue empty */
+    val IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1)
+
+    /* How long stop() waits for the writer to flush the queued keys */
+    val STOP_TIMEOUT_MILLIS = 5000L
+}
+
+/**
+ * Writes the flow state keys touched by the packet processing threads to
+ * Cassandra, from a thread of its own, so that a slow or unreachable Cassandra
+ * never stalls packet processing.
+ *
+ * The touched keys are handed over through a bounded, lock-free queue. When
+ * the queue is full, the oldest key is dropped to make room for the new one:
+ * keys are touched again as long as their flows live, so a dropped key is
+ * likely to be written later on. The writer binds the keys to their
+ * statements and groups them into unlogged batches by port, the first
+ * component of the tables' partition keys, flushing them when batchSize keys
+ * are buffered or flushInterval has elapsed since the first of them.
+ *
+ * offer() is thread-safe, and is the only method meant to be called by the
+ * packet processing threads. stop() writes the keys still queued before the
+ * writer thread exits.
+ */
+class FlowStateStorageWriter(val client: CassandraClient,
+                             val queueSize: Int,
+                             val batchSize: Int,
+                             val flushIntervalMillis: Int,
+                             val registry: MetricRegistry) {
+    import FlowStateStorage._
+    import FlowStateStorageWriter._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorageWriter])
+
+    private val queue = new ConcurrentLinkedQueue[Touch]()
+    private val queued = new AtomicInteger()
+    private val inFlight = new Semaphore(MAX_IN_FLIGHT_BATCHES)
+    private val flushIntervalNanos =
+        TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis)
+
+    val keysWritten = registry.meter(name(
+        classOf[FlowStateStorageMeter], "keysWritten", "keys"))
+
+    val keysDropped = registry.meter(name(
+        classOf[FlowStateStorageMeter], "keysDropped", "keys"))
+
+    val batchFailures = registry.meter(name(
+        classOf[FlowStateStorageMeter], "batchFailures", "batches"))
+
+    val batchSizes = registry.histogram(name(
+        classOf[FlowStateStorageHistogram], "batchSize"))
+
+    registry.register(name(classOf[FlowStateStorageGauge], "queuedKeys"),
+        new Gauge[Int] { override def getValue = queued.get })
+
+    private val touchIngressConnTrack = touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE)
+    private val touchEgressConnTrack = touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE)
+    private val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
+    private val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
+
+    /* Owned by the writer thread */
+    private val batches = new JHashMap[UUID, BatchStatement]()
+    private var buffered = 0
+    private var firstBufferedAt = 0L
+
+    @volatile private var running = false
+
+    private val thread = new Thread("flow-state-writer") {
+        override def run(): Unit = writeLoop()
+    }
+    thread.setDaemon(true)
+
+    def start(): Unit = {
+        running = true
+        thread.start()
+    }
+
+    /** Stops the writer thread once it has flushed the queued keys, waiting
+      * for it for up to STOP_TIMEOUT_MILLIS. */
+    def stop(): Unit = {
+        running = false
+        if (thread.isAlive) {
+            LockSupport.unpark(thread)
+            thread.join(STOP_TIMEOUT_MILLIS)
+            if (thread.isAlive)
+                log.warn("Timed out flushing {} flow state keys on stop",
+                         Int.box(size))
+        }
+    }
+
+    /** The number of keys waiting in the queue. */
+    def size: Int = queued.get
+
+    /**
+     * Queues a touched key to be written, dropping the oldest queued key if
+     * the queue is full. Never blocks.
+     */
+    def offer(touch: Touch): Unit = {
+        if (queued.incrementAndGet() > queueSize && (queue.poll() ne null)) {
+            queued.decrementAndGet()
+            keysDropped.mark()
+        }
+        queue.offer(touch)
+    }
+
+    private[state] def poll(): Touch = {
+        val touch = queue.poll()
+        if (touch ne null)
+            queued.decrementAndGet()
+        touch
+    }
+
+    private def writeLoop(): Unit = {
+        while (running) {
+            try {
+                val touch = poll()
+                if (touch ne null) {
+                    buffer(touch)
+                    if (buffered >= batchSize)
+                        flush()
+                } else if (buffered > 0 &&
+                           System.nanoTime() - firstBufferedAt >= flushIntervalNanos) {
+                    flush()
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS)
+                }
+            } catch {
+                case e: InterruptedException =>
+                case e: Exception =>
+                    log.warn("Failed to write flow state keys", e)
+            }
+        }
+        drain()
+    }
+
+    private def drain(): Unit = {
+        try {
+            var touch = poll()
+            while (touch ne null) {
+                buffer(touch)
+                touch = poll()
+            }
+            if (buffered > 0)
+                flush()
+        } catch {
+            case e: InterruptedException =>
+            case e: Exception =>
+                log.warn("Failed to write flow state keys", e)
+        }
+    }
+
+    private def buffer(touch: Touch): Unit = {
+        val session = client.session
+        if (session eq null) {
+            keysDropped.mark()
+            return
+        }
+
+        var batch = batches.get(touch.port)
+        if (batch eq null) {
+            batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+            batches.put(touch.port, batch)
+        }
+        batch.add(bind(session, touch))
+        if (buffered == 0)
+            firstBufferedAt = System.nanoTime()
+        buffered += 1
+    }
+
+    private def flush(): Unit = {
+        val session = client.session
+        val it = batches.values().iterator()
+        while (it.hasNext) {
+            val batch = it.next()
+            val numKeys = batch.getStatements.size()
+            if (session ne null) {
+                inFlight.acquire()
+                batchSizes.update(numKeys)
+                Futures.addCallback(session.executeAsync(batch),
+                                    new BatchCallback(numKeys))
+            } else {
+                keysDropped.mark(numKeys)
+            }
+        }
+        batches.clear()
+        buffered = 0
+    }
+
+    private def bind(s: Session, touch: Touch): BoundStatement = touch match {
+        case ConnTrackTouch(port, strong, k) =>
+            val st = if (strong) touchIngressConnTrack(s) else touchEgressConnTrack(s)
+            st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
+                    k.deviceId,
+                    k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+
+        case NatTouch(port, strong, k, v) =>
+            val st = if (strong) touchIngressNat(s) else touchEgressNat(s)
+            st.bind(port, natKeyTypeToString(k.keyType).orNull,
+                    k.networkProtocol.toInt.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
+                    k.deviceId,
+                    ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
+                    k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+    }
+
+    private class BatchCallback(numKeys: Int)
+            extends FutureCallback[ResultSet] {
+        override def onSuccess(result: ResultSet): Unit = {
+            inFlight.release()
+            keysWritten.mark(numKeys)
+            log.debug("key touch success: {}", result)
+        }
+
+        override def onFailure(t: Throwable): Unit = {
+            inFlight.release()
+            batchFailures.mark()
+            log.warn("failed to touch keys", t)
+        }
+    }
+}
@@ -23,7 +23,7 @@ import org.midonet.cluster.client.IPAddrGroupBuilder
 import org.midonet.midolman.topology.IPAddrGroupManager.IPAddrsUpdate
 import org.midonet.midolman.simulation.IPAddrGroup
 import org.midonet.midolman.logging.ActorLogWithoutPath
-import scala.collection.JavaConverters.asScalaSetConverter
+import scala.collection.JavaConverters._
 
 object IPAddrGroupManager {
     case class IPAddrsUpdate(addrs: JSet[IPAddr])
@@ -33,6 +33,9 @@ class IPAddrGroupManager(val id: UUID, val clusterClient: Client)
         extends Actor with ActorLogWithoutPath {
     import context.system
 
+    private var addrs: JSet[IPAddr] = null
+    private var group: IPAddrGroup = null
+
     override def preStart() {
         clusterClient.getIPAddrGroup(id, new IPAddrGroupBuilderImpl(self))
     }
@@ -41,8 +44,20 @@ class IPAddrGroupManager(val id: UUID, val clusterClient: Client)
         case IPAddrsUpdate(addrs) => updateAddrs(addrs)
     }
 
-    private def updateAddrs(addrs: JSet[IPAddr]): Unit = {
-        VirtualTopologyActor ! new IPAddrGroup(id, addrs.asScala.toSet)
+    /* Membership changes are merged into the previous version of the group,
+     * rather than building the group again from all its addresses. */
+    private def updateAddrs(newAddrs: JSet[IPAddr]): Unit = {
+        group = if (group eq null) {
+            new IPAddrGroup(id, newAddrs.asScala.toSet)
+        } else {
+            val added = newAddrs.asScala.filterNot(addrs.contains)
+            val removed = addrs.asScala.filterNot(newAddrs.contains)
+            log.debug("{} addresses added and {} removed from group {}",
+                      Int.box(added.size), Int.box(removed.size), id)
+            group.updated(added, removed)
+        }
+        addrs = newAddrs
+        VirtualTopologyActor ! group
     }
 }
 
@@ -157,7 +157,7 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
                 FlowController ! FlowController.InvalidateFlowsByTag(
                     FlowTagger.tagForRoute(route))
             }
-            for (route <- addedRoutes) {
+            for (route <- addedRoutes if !route.isIPv6) {
                 log.debug("Projecting added route {}", route)
                 val subTree = dstIpTagTrie.projectRouteAndGetSubTree(route)
                 val ipToInvalidate = InvalidationTrie.getAllDescendantsIpDestination(subTree)
@@ -19,7 +19,7 @@ package org.midonet.midolman.topology.builders
 import java.util.UUID
 import org.midonet.cluster.client.{ArpCache, RouterBuilder}
 import akka.actor.ActorRef
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{MultibitRoutingTable, Route}
 import org.midonet.midolman.topology.RouterManager.{InvalidateFlows, TriggerUpdate}
 import org.midonet.midolman.topology.{RoutingTableWrapper, RouterConfig}
 
@@ -70,9 +70,10 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     def build() {
         // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
+        // by the RCU Router. IPv6 routes are kept out of it, the router only
+        // forwards IPv4 traffic for now.
+        val table = new MultibitRoutingTable()
+        for (rt <- routes if !rt.isIPv6)
             table.addRoute(rt)
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
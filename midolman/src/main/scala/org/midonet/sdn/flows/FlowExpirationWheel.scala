@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{List => JList}
+
+/**
+ * A hashed timing wheel indexing wildcard flows by their expiration deadline.
+ *
+ * The wheel is an array of slots, each covering `tickMillis` milliseconds,
+ * and each holding a doubly linked list of the flows whose deadline falls in
+ * that tick, modulo the number of slots. The links are kept in the flows
+ * themselves, so adding and removing a flow are O(1) and don't allocate.
+ * Deadlines further away than a full rotation share the slot of a nearer
+ * tick and are skipped until their round comes up.
+ *
+ * A flow can be held by at most one wheel at a time. Not thread-safe.
+ */
+class FlowExpirationWheel(numSlots: Int, tickMillis: Long) {
+
+    require(numSlots > 0 && Integer.bitCount(numSlots) == 1,
+            "the number of slots must be a power of two")
+    require(tickMillis > 0, "the tick must be positive")
+
+    private val slots = new Array[ManagedWildcardFlow](numSlots)
+    private val mask = numSlots - 1
+
+    /* The tick up to which expired flows have been collected, or
+     * Long.MinValue if expire() was never called. */
+    private var cursor = Long.MinValue
+    private var numFlows = 0
+
+    def size: Int = numFlows
+
+    def isEmpty: Boolean = numFlows == 0
+
+    def contains(flow: ManagedWildcardFlow): Boolean =
+        flow.expirationWheel eq this
+
+    /**
+     * Schedules the expiration of a flow at the given deadline, in
+     * milliseconds. Deadlines in the past are treated as due at the next
+     * call to expire().
+     */
+    def add(flow: ManagedWildcardFlow, deadline: Long): Unit = {
+        if (flow.expirationWheel ne null)
+            throw new IllegalStateException(
+                "The flow is already scheduled for expiration")
+        val tick = math.max(deadline / tickMillis, cursor)
+        val slot = (tick & mask).toInt
+        val head = slots(slot)
+        flow.expirationWheel = this
+        flow.expirationDeadline = deadline
+        flow.expirationSlot = slot
+        flow.expirationPrev = null
+        flow.expirationNext = head
+        if (head ne null)
+            head.expirationPrev = flow
+        slots(slot) = flow
+        numFlows += 1
+    }
+
+    /**
+     * Cancels the expiration of a flow. Returns false if the flow wasn't
+     * held by this wheel.
+     */
+    def remove(flow: ManagedWildcardFlow): Boolean =
+        if (flow.expirationWheel eq this) {
+            unlink(flow)
+            true
+        } else {
+            false
+        }
+
+    /**
+     * Removes from the wheel the flows whose deadline is not after `now` and
+     * appends them to `expired`. Returns the number of expired flows.
+     */
+    def expire(now: Long, expired: JList[ManagedWildcardFlow]): Int = {
+        val nowTick = now / tickMillis
+        var tick =
+            if (cursor == Long.MinValue || nowTick - cursor >= numSlots)
+                nowTick - numSlots + 1
+            else
+                math.min(cursor, nowTick)
+        var count = 0
+        while (tick <= nowTick) {
+            var flow = slots((tick & mask).toInt)
+            while (flow ne null) {
+                val next = flow.expirationNext
+                if (flow.expirationDeadline <= now) {
+                    unlink(flow)
+                    expired.add(flow)
+                    count += 1
+                }
+                flow = next
+            }
+            tick += 1
+        }
+        cursor = math.max(cursor, nowTick)
+        count
+    }
+
+    /**
+     * Returns the flow with the closest deadline, at tick granularity, or
+     * null if the wheel is empty.
+     */
+    def peek(): ManagedWildcardFlow = {
+        if (numFlows == 0)
+            return null
+        if (cursor != Long.MinValue) {
+            val end = cursor + numSlots
+            var tick = cursor
+            while (tick < end) {
+                val flow = earliestIn((tick & mask).toInt, end * tickMillis)
+                if (flow ne null)
+                    return flow
+                tick += 1
+            }
+        }
+        var earliest: ManagedWildcardFlow = null
+        var slot = 0
+        while (slot < numSlots) {
+            val flow = earliestIn(slot, Long.MaxValue)
+            if ((flow ne null) && ((earliest eq null) ||
+                    flow.expirationDeadline < earliest.expirationDeadline))
+                earliest = flow
+            slot += 1
+        }
+        earliest
+    }
+
+    /**
+     * Removes and returns the flow with the closest deadline, at tick
+     * granularity, or null if the wheel is empty.
+     */
+    def poll(): ManagedWildcardFlow = {
+        val flow = peek()
+        if (flow ne null)
+            unlink(flow)
+        flow
+    }
+
+    private def earliestIn(slot: Int, before: Long): ManagedWildcardFlow = {
+        var earliest: ManagedWildcardFlow = null
+        var flow = slots(slot)
+        while (flow ne null) {
+            if (flow.expirationDeadline < before &&
+                    ((earliest eq null) ||
+                     flow.expirationDeadline < earliest.expirationDeadline))
+                earliest = flow
+            flow = flow.expirationNext
+        }
+        earliest
+    }
+
+    private def unlink(flow: ManagedWildcardFlow): Unit = {
+        val prev = flow.expirationPrev
+        val next = flow.expirationNext
+        if (prev ne null)
+            prev.expirationNext = next
+        else
+            slots(flow.expirationSlot) = next
+        if (next ne null)
+            next.expirationPrev = prev
+        flow.expirationWheel = null
+        flow.expirationPrev = null
+        flow.expirationNext = null
+        numFlows -= 1
+    }
+}
@@ -178,6 +178,13 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
     val INVALID_HASH_CODE = 0
     var cachedHashCode = INVALID_HASH_CODE
 
+    // Owned by the FlowExpirationWheel that schedules this flow, if any
+    private[flows] var expirationWheel: FlowExpirationWheel = null
+    private[flows] var expirationDeadline = 0L
+    private[flows] var expirationSlot = 0
+    private[flows] var expirationPrev: ManagedWildcardFlow = null
+    private[flows] var expirationNext: ManagedWildcardFlow = null
+
     def reset(wflow: WildcardFlow): ManagedWildcardFlow = {
         this.wcmatch.reset(wflow.wcmatch)
         this.actions = ManagedWildcardFlow.actionsPool.sharedRef(wflow.actions)
@@ -206,14 +213,30 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
 
     def setLastUsedTimeMillis(lastUsedTimeMillis: Long): this.type = {
         this.lastUsedTimeMillis = lastUsedTimeMillis
+        if (hardExpirationMillis == 0)
+            expireNoLaterThan(lastUsedTimeMillis + idleExpirationMillis)
         this
     }
 
     def setCreationTimeMillis(creationTimeMillis: Long): this.type = {
         this.creationTimeMillis = creationTimeMillis
+        if (hardExpirationMillis > 0)
+            expireNoLaterThan(creationTimeMillis + hardExpirationMillis)
         this
     }
 
+    /* A flow is scheduled for expiration by its hard time-out if it has one,
+     * by its idle time-out otherwise. Deadlines moving forward are handled
+     * when the flow is taken out of the wheel, but deadlines moving back
+     * need the flow to be rescheduled. */
+    private def expireNoLaterThan(deadline: Long): Unit = {
+        val wheel = expirationWheel
+        if ((wheel ne null) && deadline < expirationDeadline) {
+            wheel.remove(this)
+            wheel.add(this, deadline)
+        }
+    }
+
     override def hashCode(): Int =
         if (cachedHashCode == INVALID_HASH_CODE)
             super.hashCode()
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConversions._
+
+import akka.actor.ActorSystem
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.util.Range
+
+/**
+ * Applies a security group like chain of `rules` rules, each accepting TCP
+ * traffic to a port from a subnet, to a packet that matches none of them,
+ * which is the worst case for a linear evaluation. The chain is evaluated
+ * either linearly or through its RuleIndex.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var rules: Int = _
+
+    @Param(Array("true", "false"))
+    var indexed: Boolean = _
+
+    implicit var as: ActorSystem = _
+
+    val ownerId = UUID.randomUUID()
+    var chain: Chain = _
+    val pktMatch = new WildcardMatch()
+
+    @JmhSetup
+    def setup(): Unit = {
+        as = ActorSystem("ChainBenchmark")
+        val ruleList = List.tabulate[Rule](rules) { i =>
+            val cond = new Condition()
+            cond.etherType = 0x0800
+            cond.nwProto = 6.toByte
+            cond.tpDst = new Range[Integer](1000 + i)
+            cond.nwSrcIp = new IPv4Subnet(0x0a000000 + (i << 8), 24)
+            new LiteralRule(cond, Action.ACCEPT)
+        }
+        chain = new Chain(UUID.randomUUID(), ruleList, Map.empty[UUID, Chain],
+                          "sg", indexed)
+
+        pktMatch.setEtherType(0x0800.toShort)
+        pktMatch.setNetworkProto(6.toByte)
+        pktMatch.setNetworkSrc(IPv4Addr.fromString("10.0.1.1"))
+        pktMatch.setNetworkDst(IPv4Addr.fromString("192.168.0.1"))
+        pktMatch.setSrcPort(40000)
+        pktMatch.setDstPort(80)
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        as.shutdown()
+    }
+
+    @Benchmark
+    def applyChain(): RuleResult =
+        Chain.apply(chain, new PacketContext(Left(1), null, None, pktMatch),
+                    ownerId, false)
+}
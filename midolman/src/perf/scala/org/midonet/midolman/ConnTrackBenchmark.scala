@@ -24,8 +24,11 @@ import scala.collection.mutable
 import org.openjdk.jmh.annotations.{Setup => JmhSetup, Level, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
 import org.openjdk.jmh.infra.Blackhole
 
+import com.codahale.metrics.MetricRegistry
+
 import org.midonet.cluster.data.ports.BridgePort
 import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.rules.{RuleResult, Condition}
 import org.midonet.midolman.simulation.Bridge
 import org.midonet.midolman.state.{MockStateStorage, FlowStateReplicator}
@@ -35,6 +38,7 @@ import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.rcu.Host
 import org.midonet.odp.Datapath
 import org.midonet.odp.flows.FlowActionOutput
+import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
@@ -83,6 +87,7 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
     implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
     implicit val natTx = new FlowStateTransaction(natTable)
     var replicator: FlowStateReplicator = _
+    val dpConn = OvsDatapathConnection.createMock()
 
     @JmhSetup
     def setup(): Unit = {
@@ -106,13 +111,15 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         replicator = new FlowStateReplicator(conntrackTable, natTable,
                                              new MockStateStorage,
                                              underlayResolver, _ => { },
-                                             new Datapath(1, "midonet", null))
+                                             new Datapath(1, "midonet", null),
+                                             new PacketPipelineMetrics(
+                                                 new MetricRegistry))
     }
 
     @Benchmark
     def benchmarkConntrack(holder: PacketHolder, bh: Blackhole): Unit = {
         bh.consume(sendPacket(leftPort -> holder.packet))
-        replicator.accumulateNewKeys(conntrackTx, natTx, leftPort.getId,
+        replicator.accumulateNewKeys(dpConn, conntrackTx, natTx, leftPort.getId,
                                      rightPort.getId, null, mutable.Set(),
                                      new ArrayList())
         conntrackTx.commit()
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.sdn.flows.{FlowExpirationWheel, ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+
+object FlowExpirationBenchmark {
+    val numSlots = 1024
+    val tickMillis = 64L
+    val spanMillis = numSlots * tickMillis
+
+    /* Precomputed deadline offsets, so that the benchmarks don't measure
+     * the random number generator. */
+    val numOffsets = 4096
+    val offsets = Array.fill(numOffsets)(Random.nextInt(spanMillis.toInt).toLong)
+}
+
+/**
+ * Measures the FlowExpirationWheel used by the FlowManager to index the
+ * hard and idle expiration of wildcard flows, for a steady number of
+ * scheduled flows spread over a full rotation of the wheel.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 5, jvmArgsAppend = Array("-Xmx4g"))
+@State(Scope.Benchmark)
+class FlowExpirationBenchmark {
+    import FlowExpirationBenchmark._
+
+    @Param(Array("10000", "100000", "1000000"))
+    var numFlows: Int = _
+
+    var wheel: FlowExpirationWheel = _
+    var flows: Array[ManagedWildcardFlow] = _
+    val expired = new ArrayList[ManagedWildcardFlow]()
+    var now = 0L
+    var index = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        wheel = new FlowExpirationWheel(numSlots, tickMillis)
+        flows = Array.fill(numFlows)(
+            ManagedWildcardFlow.create(WildcardFlow(new WildcardMatch())))
+        now = 0L
+        wheel.expire(now, expired)
+        var i = 0
+        while (i < numFlows) {
+            wheel.add(flows(i), now + offsets(i % numOffsets))
+            i += 1
+        }
+    }
+
+    private def nextFlow(): ManagedWildcardFlow = {
+        index += 1
+        if (index == numFlows)
+            index = 0
+        flows(index)
+    }
+
+    private def nextDeadline(): Long = now + offsets(index % numOffsets)
+
+    /* Reschedules a flow, as when its expiration is cancelled because the
+     * flow is removed and a new flow is added. */
+    @Benchmark
+    def removeAndAdd(): Boolean = {
+        val flow = nextFlow()
+        val removed = wheel.remove(flow)
+        wheel.add(flow, nextDeadline())
+        removed
+    }
+
+    /* Evicts the flow closest to its expiration and adds a new one, as when
+     * the wildcard flow table is full. */
+    @Benchmark
+    def pollAndAdd(): ManagedWildcardFlow = {
+        val flow = wheel.poll()
+        wheel.add(flow, nextDeadline() + spanMillis / 2)
+        flow
+    }
+
+    /* Advances the clock by one tick and expires the flows that are due,
+     * which are then scheduled again one rotation later. */
+    @Benchmark
+    def expire(bh: Blackhole): Unit = {
+        now += tickMillis
+        bh.consume(wheel.expire(now, expired))
+        var i = 0
+        while (i < expired.size()) {
+            wheel.add(expired.get(i), now + spanMillis)
+            i += 1
+        }
+        expired.clear()
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.state._
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+import org.midonet.rpc.{FlowStateProto => Proto}
+
+/**
+ * Encodes and decodes a state message with the state of `flows` flows, each
+ * with a conntrack key and two nat entries, in the protobufs and the compact
+ * encodings. Decoding yields the keys, as the replicator does before writing
+ * them to the flow state tables.
+ *
+ * Run with `-prof gc` to compare the allocation rates.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class FlowStateEncodingBenchmark {
+    import FlowStatePackets._
+
+    @Param(Array("1", "8"))
+    var flows: Int = _
+
+    val sender = UUID.randomUUID()
+    val buffer = new Array[Byte](MTU - OVERHEAD)
+    val protobufEncoder = new ProtobufFlowStateEncoder(buffer)
+    val compactEncoder = new CompactFlowStateEncoder(buffer)
+
+    var states: Array[PendingFlowState] = _
+    var protobufPayload: Array[Byte] = _
+    var compactPayload: Array[Byte] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val device = UUID.randomUUID()
+        states = Array.tabulate(flows) { i =>
+            val state = new PendingFlowState
+            state.ingressPort = UUID.randomUUID()
+            state.egressPort = UUID.randomUUID()
+            state.conntrackKey = ConnTrackKey(IPv4Addr.random, 1024 + i,
+                                              IPv4Addr.random, 80, 6, device)
+            for (t <- List(NatState.FWD_SNAT, NatState.REV_SNAT)) {
+                state.natKeys.add(NatKey(t, IPv4Addr.random, 1024 + i,
+                                         IPv4Addr.random, 80, 6, device))
+                state.natBindings.add(NatBinding(IPv4Addr.random, 30000 + i))
+            }
+            state
+        }
+        protobufPayload = java.util.Arrays.copyOf(buffer, encode(protobufEncoder))
+        compactPayload = java.util.Arrays.copyOf(buffer, encode(compactEncoder))
+    }
+
+    private def encode(encoder: FlowStateEncoder): Int = {
+        encoder.begin(sender, 1L)
+        var i = 0
+        while (i < states.length) {
+            val state = states(i)
+            encoder.add(state, true, 0, state.natKeys.size)
+            i += 1
+        }
+        encoder.finish()
+    }
+
+    @Benchmark
+    def encodeProtobuf(): Int = encode(protobufEncoder)
+
+    @Benchmark
+    def encodeCompact(): Int = encode(compactEncoder)
+
+    @Benchmark
+    def decodeProtobuf(bh: Blackhole): Unit = {
+        val msg = Proto.StateMessage.parseDelimitedFrom(
+            new ByteArrayInputStream(protobufPayload))
+        val newStates = msg.getNewStateList.iterator
+        while (newStates.hasNext) {
+            val state = newStates.next()
+            if (state.hasConntrackKey)
+                bh.consume(connTrackKeyFromProto(state.getConntrackKey))
+            val natEntries = state.getNatEntriesList.iterator
+            while (natEntries.hasNext) {
+                val nat = natEntries.next()
+                bh.consume(natKeyFromProto(nat.getK))
+                bh.consume(natBindingFromProto(nat.getV))
+            }
+        }
+    }
+
+    @Benchmark
+    def decodeCompact(bh: Blackhole): Unit = {
+        import CompactFlowStateCodec._
+        val bb = ByteBuffer.wrap(compactPayload)
+        bb.position(1 + UUID_SIZE + 8)
+        var numStates = bb.getShort & 0xFFFF
+        while (numStates > 0) {
+            val flags = bb.get
+            skipUuid(bb)
+            if ((flags & (HAS_EGRESS_PORT | HAS_EGRESS_PORT_SET)) != 0)
+                skipUuid(bb)
+            if ((flags & HAS_CONNTRACK_KEY) != 0)
+                bh.consume(readConnTrackKey(bb))
+            var numNatEntries = bb.getShort & 0xFFFF
+            while (numNatEntries > 0) {
+                bh.consume(readNatKey(bb))
+                bh.consume(readNatBinding(bb))
+                numNatEntries -= 1
+            }
+            numStates -= 1
+        }
+    }
+}
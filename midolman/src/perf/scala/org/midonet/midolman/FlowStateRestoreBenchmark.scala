@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{ArrayList, UUID, HashMap => JHashMap, HashSet => JHashSet}
+import java.util.concurrent.{ExecutorService, Executors, TimeUnit, Future => JFuture}
+
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.concurrent.duration.Duration
+
+import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, Level, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.midolman.state.{MockStateStorage, NatState, FlowStateReplicator}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.odp.Datapath
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.state.ShardedFlowStateTable
+
+/**
+ * Measures the time it takes to restore 1M flow state keys, half conntrack
+ * and half nat keys, spread over `ports` ports, from an in-memory flow state
+ * storage into the shards of `workers` packet processing threads. The state
+ * of all the ports is fetched concurrently, and then either broadcast whole
+ * to every worker, or partitioned among the workers in chunks.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class FlowStateRestoreBenchmark {
+
+    val KEYS = 1 << 20
+
+    @Param(Array("16"))
+    var ports: Int = _
+
+    @Param(Array("1", "4", "8"))
+    var workers: Int = _
+
+    implicit var as: ActorSystem = _
+    implicit val ec = ExecutionContext.global
+
+    val storage = new MockStateStorage {
+        val connTrack = new JHashMap[UUID, JHashSet[ConnTrackKey]]()
+        val nat = new JHashMap[UUID, JHashMap[NatKey, NatBinding]]()
+
+        override def fetchStrongConnTrackRefs(port: UUID)
+                (implicit ec: ExecutionContext, as: ActorSystem) =
+            Future(connTrack.get(port))
+
+        override def fetchStrongNatRefs(port: UUID)
+                (implicit ec: ExecutionContext, as: ActorSystem) =
+            Future(nat.get(port))
+    }
+
+    var portIds: Seq[UUID] = _
+    var executors: Array[ExecutorService] = _
+    var replicators: Array[FlowStateReplicator] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        as = ActorSystem("FlowStateRestoreBenchmark")
+        executors = Array.fill(workers)(Executors.newSingleThreadExecutor())
+        portIds = Seq.fill(ports)(UUID.randomUUID())
+        val device = UUID.randomUUID()
+        val keysPerPort = KEYS / ports / 2
+        for (port <- portIds) {
+            val connTrackKeys = new JHashSet[ConnTrackKey]()
+            val natKeys = new JHashMap[NatKey, NatBinding]()
+            for (i <- 0 until keysPerPort) {
+                connTrackKeys.add(ConnTrackKey(IPv4Addr.random, i,
+                                               IPv4Addr.random, 80, 6, device))
+                natKeys.put(NatKey(NatState.FWD_SNAT, IPv4Addr.random, i,
+                                   IPv4Addr.random, 80, 6, device),
+                            NatBinding(IPv4Addr.random, i))
+            }
+            storage.connTrack.put(port, connTrackKeys)
+            storage.nat.put(port, natKeys)
+        }
+    }
+
+    @JmhSetup(Level.Invocation)
+    def setupTables(): Unit = {
+        val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]()
+        val natTable = new ShardedFlowStateTable[NatKey, NatBinding]()
+        replicators = Array.fill(workers) {
+            new FlowStateReplicator(conntrackTable.addShard(),
+                                    natTable.addShard(),
+                                    storage, null, _ => { },
+                                    new Datapath(1, "midonet", null),
+                                    new PacketPipelineMetrics(new MetricRegistry))
+        }
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        executors foreach (_.shutdown())
+        as.shutdown()
+    }
+
+    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
+        val batch = EmptyFlowStateBatch()
+        storage.fetchStrongConnTrackRefs(port) zip
+            storage.fetchStrongNatRefs(port) map { case (conntrack, nat) =>
+                batch.strongConnTrack.addAll(conntrack)
+                batch.strongNat.putAll(nat)
+                batch
+            }
+    }
+
+    private def restore(distribute: (FlowStateBatch, ArrayList[JFuture[_]]) => Unit) {
+        val imports = new ArrayList[JFuture[_]]()
+        val fetches = Future.sequence(portIds map stateForPort)
+        Await.result(fetches, Duration.Inf) foreach { distribute(_, imports) }
+        var i = 0
+        while (i < imports.size()) {
+            imports.get(i).get()
+            i += 1
+        }
+    }
+
+    private def importInto(worker: Int, batch: FlowStateBatch,
+                           imports: ArrayList[JFuture[_]]): Unit =
+        imports.add(executors(worker).submit(new Runnable {
+            override def run(): Unit = replicators(worker).importFromStorage(batch)
+        }))
+
+    @Benchmark
+    def restoreBroadcast(): Unit = restore { (batch, imports) =>
+        var worker = 0
+        while (worker < workers) {
+            importInto(worker, batch, imports)
+            worker += 1
+        }
+    }
+
+    @Benchmark
+    def restorePartitioned(): Unit = restore { (batch, imports) =>
+        batch.partition(workers, PacketsEntryPoint.IMPORT_CHUNK_SIZE) {
+            (worker, part) => importInto(worker, part, imports)
+        }
+    }
+}
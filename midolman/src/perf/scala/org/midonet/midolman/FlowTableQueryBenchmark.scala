@@ -16,25 +16,33 @@
 
 package org.midonet.midolman
 
-import java.util.ArrayList
+import java.util.{ArrayList, EnumSet}
 import java.util.concurrent.TimeUnit
 
+import scala.collection.mutable
 import scala.util.Random
 
-import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Threads, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Threads, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
 
 import org.midonet.midolman.FlowController.AddWildcardFlow
 import org.midonet.midolman.util.mock.MessageAccumulator
-import org.midonet.odp.{FlowMatch, Flow}
-import org.midonet.odp.flows.{IpProtocol, FlowKeys, FlowKey}
 import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.sdn.flows.WildcardMatch.Field
 import org.midonet.sdn.flows.WildcardFlow.WildcardFlowImpl
-import org.midonet.packets.IPv4Addr
+import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.util.functors.Callback0
 
 object FlowTableQueryBenchmark {
     val numFlows = 10000
 
+    /* The fields out of which the wildcard patterns are drawn. They allow
+     * for 4095 distinct non-empty patterns. */
+    val patternFields = Array(Field.InputPortNumber, Field.TunnelKey,
+                              Field.EthSrc, Field.EthDst, Field.EtherType,
+                              Field.NetworkSrc, Field.NetworkDst,
+                              Field.NetworkProto, Field.NetworkTTL,
+                              Field.SrcPort, Field.DstPort, Field.IcmpId)
+
     @State(Scope.Thread)
     sealed class ThreadIndex {
         var value: Long = new Random().nextInt(numFlows)
@@ -60,54 +68,60 @@ class FlowTableQueryBenchmark extends MidolmanBenchmark {
     registerActors(FlowController -> (() => new FlowController
                                             with MessageAccumulator))
 
-    val wcMatches = new Array[WildcardMatch](numFlows)
-
-    def generateFlowMatch(rand: Random): FlowMatch = {
-        val keys = new ArrayList[FlowKey]()
-        if (rand.nextInt(4) == 0) {
-            keys.add(FlowKeys.tunnel(rand.nextLong(), generateIp(rand).toInt,
-                                     generateIp(rand).toInt))
-        }
-        keys.add(FlowKeys.ethernet(generateMac(rand), generateMac(rand)))
-        if (rand.nextInt(3) == 0) {
-            val proto = if (rand.nextBoolean()) IpProtocol.TCP else IpProtocol.UDP
-            keys.add(FlowKeys.ipv4(generateIp(rand), generateIp(rand), proto))
-            val src = rand.nextInt() & 0xFFFF
-            val dst = rand.nextInt() & 0xFFFF
-            keys.add(if (proto == IpProtocol.TCP) {
-                        FlowKeys.tcp(src, dst)
-                    } else {
-                        FlowKeys.udp(src, dst)
-                    })
-        }
-        new FlowMatch(keys)
-    }
+    @Param(Array("10", "100", "1000", "2000"))
+    var numPatterns: Int = _
 
-    def generateIp(rand: Random) = IPv4Addr.fromInt(rand.nextInt())
+    val hitMatches = new Array[WildcardMatch](numFlows)
+    val missMatches = new Array[WildcardMatch](numFlows)
 
-    def generateMac(rand: Random) = {
-        val bytes = new Array[Byte](6)
-        rand.nextBytes(bytes)
-        bytes
+    def generatePatterns(rand: Random): Array[EnumSet[Field]] = {
+        val patterns = mutable.LinkedHashSet[EnumSet[Field]]()
+        while (patterns.size < numPatterns) {
+            val bits = 1 + rand.nextInt((1 << patternFields.length) - 1)
+            val pattern = EnumSet.noneOf(classOf[Field])
+            for (i <- 0 until patternFields.length if (bits & (1 << i)) != 0)
+                pattern.add(patternFields(i))
+            patterns += pattern
+        }
+        patterns.toArray
     }
 
-    def generatePort(rand: Random): Short = rand.nextInt().asInstanceOf[Short]
+    def generateMatch(rand: Random): WildcardMatch =
+        new WildcardMatch()
+            .setInputPortNumber(rand.nextInt().toShort)
+            .setTunnelKey(rand.nextLong())
+            .setEthSrc(MAC.random())
+            .setEthDst(MAC.random())
+            .setEtherType(rand.nextInt().toShort)
+            .setNetworkSrc(IPv4Addr.random)
+            .setNetworkDst(IPv4Addr.random)
+            .setNetworkProto(rand.nextInt().toByte)
+            .setNetworkTTL(rand.nextInt().toByte)
+            .setSrcPort(rand.nextInt() & 0xFFFF)
+            .setDstPort(rand.nextInt() & 0xFFFF)
+            .setIcmpIdentifier(rand.nextInt().toShort)
 
     @JmhSetup
     def setup() {
         val rand = new Random()
+        val patterns = generatePatterns(rand)
         for (i <- 0 until numFlows) {
-            val flowMatch = generateFlowMatch(rand)
-            wcMatches(i) = WildcardMatch.fromFlowMatch(flowMatch)
+            hitMatches(i) = generateMatch(rand)
+            missMatches(i) = generateMatch(rand)
+            val wcMatch = hitMatches(i).project(patterns(i % numPatterns))
             FlowController ! AddWildcardFlow(
-                new WildcardFlowImpl(wcMatches(i)),
-                new Flow(flowMatch),
+                new WildcardFlowImpl(wcMatch),
+                null, // No datapath flow
                 new ArrayList[Callback0](), // No callbacks
                 Set()) // No tags
         }
     }
 
     @Benchmark
-    def queryFlowTable(index: ThreadIndex) =
-        FlowController.queryWildcardFlowTable(wcMatches(index.getAndIncrement()))
+    def queryHit(index: ThreadIndex) =
+        FlowController.queryWildcardFlowTable(hitMatches(index.getAndIncrement()))
+
+    @Benchmark
+    def queryMiss(index: ThreadIndex) =
+        FlowController.queryWildcardFlowTable(missMatches(index.getAndIncrement()))
 }
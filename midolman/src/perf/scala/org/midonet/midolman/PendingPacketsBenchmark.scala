@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, OperationsPerInvocation, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.Ethernet
+
+object PendingPacketsBenchmark {
+    final val NumUpcalls = 1000000
+
+    /* Simulations in flight at any time; the oldest one completes when a
+     * new one starts. */
+    val inFlight = 256
+}
+
+/**
+ * Replays a trace of upcalls through the structures that track the packets
+ * pending on in-flight simulations: the PendingPackets table used by the
+ * DeduplicationActor, and the Scala maps it used before. A fraction of the
+ * upcalls, given by `duplicates`, belong to a flow match with a simulation in
+ * flight, as happens in SYN floods and ARP storms.
+ *
+ * Run with `-prof gc` to compare the allocation rates.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class PendingPacketsBenchmark {
+    import PendingPacketsBenchmark._
+
+    @Param(Array("0.1", "0.5", "0.9"))
+    var duplicates: Double = _
+
+    /* The packets of the upcalls, whose flow match is either new or that of
+     * one of the simulations in flight. */
+    var trace: Array[Packet] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = new Random(42)
+        val window = new Array[Packet](inFlight)
+        var next = 0
+        trace = Array.tabulate(NumUpcalls) { i =>
+            if (i >= inFlight && rand.nextDouble() < duplicates) {
+                val original = window(rand.nextInt(inFlight))
+                new Packet(original.getEthernet, original.getMatch)
+            } else {
+                val flowMatch = new FlowMatch()
+                    .addKey(FlowKeys.inPort(1))
+                    .addKey(FlowKeys.tunnel(next, 1, 2))
+                flowMatch.hashCode()
+                val packet = new Packet(new Ethernet(), flowMatch)
+                window(next % inFlight) = packet
+                next += 1
+                packet
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NumUpcalls)
+    def pendingPackets(bh: Blackhole): Unit = {
+        val pending = new PendingPackets()
+        val removed = new ArrayList[Packet]()
+        val cookies = new Array[Int](inFlight)
+        var cookie = 0
+        var i = 0
+        while (i < NumUpcalls) {
+            val packet = trace(i)
+            if (!pending.pend(packet)) {
+                val slot = cookie % inFlight
+                if (cookie >= inFlight) {
+                    bh.consume(pending.remove(cookies(slot), removed))
+                    removed.clear()
+                }
+                pending.track(cookie, packet.getMatch)
+                cookies(slot) = cookie
+                cookie += 1
+            }
+            i += 1
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NumUpcalls)
+    def scalaMaps(bh: Blackhole): Unit = {
+        val cookieToDpMatch = mutable.HashMap[Integer, FlowMatch]()
+        val dpMatchToCookie = mutable.HashMap[FlowMatch, Integer]()
+        val cookieToPendedPackets: mutable.MultiMap[Integer, Packet] =
+            new mutable.HashMap[Integer, mutable.Set[Packet]]
+            with mutable.MultiMap[Integer, Packet]
+        val cookies = new Array[Int](inFlight)
+        var cookie = 0
+        var i = 0
+        while (i < NumUpcalls) {
+            val packet = trace(i)
+            dpMatchToCookie.get(packet.getMatch) match {
+                case Some(c) =>
+                    cookieToPendedPackets.addBinding(c, packet)
+                case None =>
+                    val slot = cookie % inFlight
+                    if (cookie >= inFlight) {
+                        val old = cookies(slot)
+                        bh.consume(cookieToPendedPackets.remove(old))
+                        cookieToDpMatch.remove(old) foreach dpMatchToCookie.remove
+                    }
+                    dpMatchToCookie.put(packet.getMatch, cookie)
+                    cookieToDpMatch.put(cookie, packet.getMatch)
+                    cookieToPendedPackets.put(cookie, mutable.Set.empty)
+                    cookies(slot) = cookie
+                    cookie += 1
+            }
+            i += 1
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.midolman.layer3.{IPv4RoutingTable, MultibitRoutingTable, Route, RoutingTableIfc}
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.IPv4Addr
+
+/**
+ * Looks up random destinations in a table loaded with 500k prefixes, with a
+ * length distribution resembling that of an Internet routing table: mostly
+ * /24s, then /16 to /23 prefixes, and a few longer and shorter ones. The table
+ * is either the legacy binary trie or the compressed multibit trie.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    val PREFIXES = 500000
+    val DESTINATIONS = 1 << 16
+
+    @Param(Array("trie", "multibit"))
+    var kind: String = _
+
+    var table: RoutingTableIfc[IPv4Addr] = _
+    val destinations = new Array[IPv4Addr](DESTINATIONS)
+    val source = IPv4Addr.fromString("10.0.0.1")
+    var next = 0
+
+    private def prefixLength(random: Random): Int = random.nextInt(100) match {
+        case n if n < 55 => 24
+        case n if n < 90 => 16 + random.nextInt(8)
+        case n if n < 95 => 25 + random.nextInt(8)
+        case _ => 8 + random.nextInt(8)
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(42)
+        table = kind match {
+            case "trie" => new IPv4RoutingTable()
+            case "multibit" => new MultibitRoutingTable()
+        }
+        table.addRoute(new Route(0, 0, 0, 0, NextHop.PORT, UUID.randomUUID(),
+                                 0, 100, null, null))
+        val port = UUID.randomUUID()
+        var i = 0
+        while (i < PREFIXES) {
+            val length = prefixLength(random)
+            val dst = random.nextInt() & (-1 << (32 - length))
+            table.addRoute(new Route(0, 0, dst, length, NextHop.PORT, port,
+                                     0, 100, null, null))
+            i += 1
+        }
+        i = 0
+        while (i < DESTINATIONS) {
+            destinations(i) = new IPv4Addr(random.nextInt())
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def lookup(): java.lang.Iterable[Route] = {
+        next = (next + 1) & (DESTINATIONS - 1)
+        table.lookup(source, destinations(next))
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Threads, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.rules.{RuleResult, Condition}
+import org.midonet.midolman.simulation.Bridge
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+
+object SimulationScalingBenchmark {
+    val leftMac = MAC.random
+    val rightMac = MAC.random
+
+    val numPackets = 1024
+
+    /* The state owned by a packet processing thread, like a
+     * DeduplicationActor: its own flow state shards and transactions, and
+     * the packets of the connections hashed to it. */
+    @State(Scope.Thread)
+    class Worker {
+        var conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue] = _
+        var natTx: FlowStateTransaction[NatKey, NatBinding] = _
+        val packets = Array.fill[Ethernet](numPackets) {
+            { eth addr leftMac -> rightMac } <<
+            { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+            { udp ports 5003 ---> 53 } << payload("payload")
+        }
+        var index = 0
+
+        @JmhSetup
+        def setup(benchmark: SimulationScalingBenchmark): Unit = {
+            benchmark.synchronized {
+                conntrackTx = new FlowStateTransaction(
+                    benchmark.conntrackTable.addShard())
+                natTx = new FlowStateTransaction(benchmark.natTable.addShard())
+            }
+        }
+
+        def nextPacket(): Ethernet = {
+            index = (index + 1) & (numPackets - 1)
+            packets(index)
+        }
+    }
+}
+
+/**
+ * Measures the throughput of simulations as the number of packet processing
+ * threads grows. Each thread owns its flow state shards, as the
+ * DeduplicationActors do, so the simulations per second should grow roughly
+ * linearly with the number of threads, up to the number of cores.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class SimulationScalingBenchmark extends MidolmanBenchmark {
+    import org.midonet.midolman.SimulationScalingBenchmark._
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    var leftPort: BridgePort = _
+    var rightPort: BridgePort = _
+
+    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]
+    val natTable = new ShardedFlowStateTable[NatKey, NatBinding]
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        val clusterBridge = newBridge("bridge")
+        leftPort = newBridgePort(clusterBridge)
+        rightPort = newBridgePort(clusterBridge)
+        materializePort(rightPort, hostId, "port0")
+        val chain = newInboundChainOnBridge("chain", clusterBridge)
+        val fwdCond = new Condition()
+        fwdCond.matchForwardFlow = true
+        fwdCond.inPortIds = new java.util.HashSet[UUID]()
+        fwdCond.inPortIds.add(leftPort.getId)
+        newLiteralRuleOnChain(chain, 1, fwdCond, RuleResult.Action.ACCEPT)
+        fetchTopology(clusterBridge, chain, leftPort, rightPort)
+
+        val bridge: Bridge = fetchDevice(clusterBridge)
+        val macTable = bridge.vlanMacTableMap(0.toShort)
+        macTable.add(leftMac, leftPort.getId)
+        macTable.add(rightMac, rightPort.getId)
+    }
+
+    private def simulate(worker: Worker): Any =
+        sendPacket(leftPort -> worker.nextPacket())(worker.conntrackTx,
+                                                    worker.natTx)
+
+    @Benchmark
+    @Threads(1)
+    def simulate1Thread(worker: Worker): Any = simulate(worker)
+
+    @Benchmark
+    @Threads(2)
+    def simulate2Threads(worker: Worker): Any = simulate(worker)
+
+    @Benchmark
+    @Threads(4)
+    def simulate4Threads(worker: Worker): Any = simulate(worker)
+
+    @Benchmark
+    @Threads(8)
+    def simulate8Threads(worker: Worker): Any = simulate(worker)
+}
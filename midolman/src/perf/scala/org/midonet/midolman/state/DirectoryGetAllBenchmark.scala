@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, List => JList}
+import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+
+import org.apache.zookeeper.CreateMode
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown => JmhTearDown, Benchmark, Scope, State, Fork, Measurement, Param, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.midolman.state.Directory.TypedWatcher
+
+/**
+ * Reads the data of `nodes` nodes from a MockDirectory that delays every
+ * read by `latencyUs` microseconds, as a list operation of the REST API
+ * does: either one synchronous get per node, or a single pipelined getAll.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class DirectoryGetAllBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var nodes: Int = _
+
+    @Param(Array("200"))
+    var latencyUs: Long = _
+
+    var scheduler: ScheduledExecutorService = _
+    var dir: Directory = _
+    val paths: JList[String] = new ArrayList[String]()
+
+    @JmhSetup
+    def setup(): Unit = {
+        scheduler = Executors.newScheduledThreadPool(4)
+        dir = new MockDirectory {
+            override def get(path: String, watcher: Runnable) = {
+                TimeUnit.MICROSECONDS.sleep(latencyUs)
+                super.get(path, watcher)
+            }
+
+            override def asyncGet(path: String, cb: DirectoryCallback[Array[Byte]],
+                                  watcher: TypedWatcher): Unit =
+                scheduler.schedule(new Runnable {
+                    override def run(): Unit = read(path, cb, watcher)
+                }, latencyUs, TimeUnit.MICROSECONDS)
+
+            private def read(path: String, cb: DirectoryCallback[Array[Byte]],
+                             watcher: TypedWatcher): Unit =
+                super.asyncGet(path, cb, watcher)
+        }
+        dir.add("/nodes", null, CreateMode.PERSISTENT)
+        for (i <- 0 until nodes) {
+            val path = "/nodes/" + i
+            dir.add(path, new Array[Byte](256), CreateMode.PERSISTENT)
+            paths.add(path)
+        }
+    }
+
+    @JmhTearDown
+    def teardown(): Unit = {
+        scheduler.shutdown()
+    }
+
+    @Benchmark
+    def get(): Int = {
+        var size = 0
+        var i = 0
+        while (i < paths.size) {
+            size += dir.get(paths.get(i), null).length
+            i += 1
+        }
+        size
+    }
+
+    @Benchmark
+    def getAll(): Int = dir.getAll(paths).size
+}
@@ -16,12 +16,16 @@
 
 package org.midonet.cluster;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 import org.junit.Test;
 
+import org.midonet.cluster.data.Bridge;
+import org.midonet.cluster.data.Chain;
+import org.midonet.cluster.data.PortGroup;
 import org.midonet.cluster.data.Route;
 import org.midonet.cluster.data.Router;
 import org.midonet.cluster.data.VTEP;
@@ -29,12 +33,15 @@ import org.midonet.cluster.data.dhcp.Subnet;
 import org.midonet.cluster.data.ports.RouterPort;
 import org.midonet.midolman.layer3.Route.NextHop;
 import org.midonet.midolman.serialization.SerializationException;
+import org.midonet.midolman.state.PathBuilder;
 import org.midonet.midolman.state.StateAccessException;
 import org.midonet.midolman.state.ZkLeaderElectionWatcher.ExecuteOnBecomingLeader;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
@@ -221,6 +228,116 @@ public class LocalDataClientImplTest extends LocalDataClientImplTestBase {
                         "10.0.1.0_24"));
     }
 
+    private UUID createBridge(String tenantId) throws Exception {
+        return client.bridgesCreate(
+            getStockBridge().setProperty(Bridge.Property.tenant_id, tenantId));
+    }
+
+    private List<UUID> bridgeIds(List<Bridge> bridges) {
+        List<UUID> ids = new ArrayList<>();
+        for (Bridge bridge : bridges) {
+            ids.add(bridge.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void findByTenantTest() throws Exception {
+        assertThat(client.tenantsBuildIndex(), equalTo(0));
+        UUID bridge1 = createBridge("tenant1");
+        UUID bridge2 = createBridge("tenant1");
+        UUID bridge3 = createBridge("tenant2");
+        client.bridgesCreate(getStockBridge());
+        UUID routerId = client.routersCreate(
+            new Router().setProperty(Router.Property.tenant_id, "tenant1"));
+        UUID chainId = client.chainsCreate(
+            new Chain().setProperty(Chain.Property.tenant_id, "tenant1"));
+        UUID portGroupId = client.portGroupsCreate(
+            new PortGroup().setProperty(PortGroup.Property.tenant_id,
+                                        "tenant1"));
+
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant1")),
+                   containsInAnyOrder(bridge1, bridge2));
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant2")),
+                   containsInAnyOrder(bridge3));
+        assertThat(client.bridgesFindByTenant("tenant3"), empty());
+        assertThat(client.routersFindByTenant("tenant1").get(0).getId(),
+                   equalTo(routerId));
+        assertThat(client.chainsFindByTenant("tenant1").get(0).getId(),
+                   equalTo(chainId));
+        assertThat(client.portGroupsFindByTenant("tenant1").get(0).getId(),
+                   equalTo(portGroupId));
+        assertThat(client.routersFindByTenant("tenant2"), empty());
+
+        // Move a bridge to another tenant, and delete the devices.
+        client.bridgesUpdate(client.bridgesGet(bridge2)
+            .setName("moved").setProperty(Bridge.Property.tenant_id,
+                                          "tenant2"));
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant1")),
+                   containsInAnyOrder(bridge1));
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant2")),
+                   containsInAnyOrder(bridge2, bridge3));
+
+        client.bridgesDelete(bridge1);
+        client.routersDelete(routerId);
+        client.chainsDelete(chainId);
+        client.portGroupsDelete(portGroupId);
+        assertThat(client.bridgesFindByTenant("tenant1"), empty());
+        assertThat(client.routersFindByTenant("tenant1"), empty());
+        assertThat(client.chainsFindByTenant("tenant1"), empty());
+        assertThat(client.portGroupsFindByTenant("tenant1"), empty());
+
+        // The tenant is dropped from the index with its last device.
+        PathBuilder paths = new PathBuilder(zkRoot);
+        assertThat(zkDir().has(paths.getTenantPath("tenant1")),
+                   equalTo(false));
+        assertThat(zkDir().has(paths.getTenantResourcesPath("tenant2",
+                                                            "router")),
+                   equalTo(false));
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant2")),
+                   containsInAnyOrder(bridge2, bridge3));
+    }
+
+    @Test
+    public void buildTenantIndexTest() throws Exception {
+        UUID bridge1 = createBridge("tenant1");
+        UUID bridge2 = createBridge("tenant1");
+        UUID chainId = client.chainsCreate(
+            new Chain().setProperty(Chain.Property.tenant_id, "tenant1"));
+
+        // Remove the devices from the index, as if they had been created
+        // before it was maintained.
+        PathBuilder paths = new PathBuilder(zkRoot);
+        zkDir().delete(paths.getTenantResourcePath("tenant1", "bridge",
+                                                   bridge1));
+        zkDir().delete(paths.getTenantResourcePath("tenant1", "chain",
+                                                   chainId));
+        zkDir().delete(paths.getTenantResourcesPath("tenant1", "chain"));
+
+        // The devices are found by scanning them until the index is built.
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant1")),
+                   containsInAnyOrder(bridge1, bridge2));
+        assertThat(client.chainsFindByTenant("tenant1").get(0).getId(),
+                   equalTo(chainId));
+
+        assertThat(client.tenantsBuildIndex(), equalTo(2));
+        assertThat(zkDir().has(paths.getTenantIndexBuiltPath()),
+                   equalTo(true));
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant1")),
+                   containsInAnyOrder(bridge1, bridge2));
+        assertThat(client.chainsFindByTenant("tenant1").get(0).getId(),
+                   equalTo(chainId));
+
+        // Building the index again adds nothing, and the devices missing
+        // from it can still be deleted.
+        assertThat(client.tenantsBuildIndex(), equalTo(0));
+        zkDir().delete(paths.getTenantResourcePath("tenant1", "bridge",
+                                                   bridge1));
+        client.bridgesDelete(bridge1);
+        assertThat(bridgeIds(client.bridgesFindByTenant("tenant1")),
+                   containsInAnyOrder(bridge2));
+    }
+
     @Test
     public void tryOwnVtepTest() throws Exception {
         UUID node1 = UUID.randomUUID();
@@ -434,7 +434,9 @@ public class DataCheckPointTest {
     }
 
     @Before
-    public void initialize() throws InterruptedException, KeeperException {
+    public void initialize() throws InterruptedException, KeeperException,
+                                   StateAccessException,
+                                   SerializationException {
         HierarchicalConfiguration
             config =
             fillConfig(new HierarchicalConfiguration());
@@ -454,6 +456,8 @@ public class DataCheckPointTest {
         );
         injector.injectMembers(this);
         Setup.ensureZkDirectoryStructureExists(zkDir(), zkRoot);
+        // As done once all the API servers maintain the tenant index.
+        dataClient.tenantsBuildIndex();
     }
 
     @Test
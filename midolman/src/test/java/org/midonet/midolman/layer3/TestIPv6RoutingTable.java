@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv6Addr;
+import org.midonet.packets.IPv6Subnet;
+
+public class TestIPv6RoutingTable {
+
+    private static final IPv6Subnet ANY =
+        new IPv6Subnet(IPv6Addr.fromString("::"), 0);
+
+    private static IPv6Subnet subnet(String addr, int length) {
+        return new IPv6Subnet(IPv6Addr.fromString(addr), length);
+    }
+
+    private static IPv6Addr addr(String addr) {
+        return IPv6Addr.fromString(addr);
+    }
+
+    private static Route route(IPv6Subnet src, IPv6Subnet dst, int weight) {
+        return new Route(src, dst, NextHop.PORT, UUID.randomUUID(), weight,
+                         null);
+    }
+
+    private static Set<Route> setOf(Iterable<Route> routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    private static Set<Route> setOf(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Assert.assertTrue(table.lookup(addr("2001:db8::1"),
+                                       addr("2001:db8::2")).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route rt0 = route(ANY, subnet("::", 0), 100);
+        Route rt32 = route(ANY, subnet("2001:db8::", 32), 100);
+        Route rt64 = route(ANY, subnet("2001:db8:0:1::", 64), 100);
+        Route rt100 = route(ANY, subnet("2001:db8:0:1:ffff:ffff::", 100), 100);
+        Route rt128 = route(ANY, subnet("2001:db8:0:1::1", 128), 100);
+        table.addRoute(rt0);
+        table.addRoute(rt32);
+        table.addRoute(rt64);
+        table.addRoute(rt100);
+        table.addRoute(rt128);
+
+        IPv6Addr src = addr("fe80::1");
+        Assert.assertEquals(setOf(rt0), setOf(table.lookup(src, addr("2001:db9::1"))));
+        Assert.assertEquals(setOf(rt32), setOf(table.lookup(src, addr("2001:db8:1::1"))));
+        Assert.assertEquals(setOf(rt64), setOf(table.lookup(src, addr("2001:db8:0:1::2"))));
+        Assert.assertEquals(setOf(rt100), setOf(table.lookup(src, addr("2001:db8:0:1:ffff:ffff:1:1"))));
+        Assert.assertEquals(setOf(rt128), setOf(table.lookup(src, addr("2001:db8:0:1::1"))));
+
+        table.deleteRoute(rt64);
+        Assert.assertEquals(setOf(rt32), setOf(table.lookup(src, addr("2001:db8:0:1::2"))));
+        Assert.assertEquals(setOf(rt128), setOf(table.lookup(src, addr("2001:db8:0:1::1"))));
+        table.deleteRoute(rt128);
+        table.deleteRoute(rt100);
+        table.deleteRoute(rt32);
+        table.deleteRoute(rt0);
+        Assert.assertTrue(table.lookup(src, addr("2001:db8:0:1::1")).isEmpty());
+        Assert.assertEquals(0, table.numRoutes());
+    }
+
+    @Test
+    public void testFallsBackWhenSourceDoesNotMatch() {
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        Route rt48 = route(ANY, subnet("2001:db8:1::", 48), 100);
+        Route rt64 = route(subnet("fd00::", 8), subnet("2001:db8:1:2::", 64), 100);
+        Route rt64w = route(subnet("fd00::", 8), subnet("2001:db8:1:2::", 64), 50);
+        table.addRoute(rt48);
+        table.addRoute(rt64);
+        table.addRoute(rt64w);
+
+        IPv6Addr dst = addr("2001:db8:1:2::5");
+        Assert.assertEquals(setOf(rt64w), setOf(table.lookup(addr("fd12::1"), dst)));
+        Assert.assertEquals(setOf(rt48), setOf(table.lookup(addr("fe80::1"), dst)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsIPv4Routes() {
+        new IPv6RoutingTable().addRoute(
+            new Route(0, 0, 0x0a000000, 8, NextHop.PORT, UUID.randomUUID(),
+                      0, 100, null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIPv4TableRejectsIPv6Routes() {
+        new MultibitRoutingTable().addRoute(
+            route(ANY, subnet("2001:db8::", 32), 100));
+    }
+
+    /**
+     * Looks up the routes by scanning them all, from the longest matching
+     * destination prefix to the shortest.
+     */
+    private static Set<Route> scan(List<Route> routes, IPv6Addr src,
+                                   IPv6Addr dst) {
+        for (int length = 128; length >= 0; length--) {
+            Set<Route> ret = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                IPv6Subnet srcSubnet =
+                    new IPv6Subnet(rt.srcNetworkAddr6, rt.srcNetworkLength);
+                IPv6Subnet dstSubnet =
+                    new IPv6Subnet(rt.dstNetworkAddr6, rt.dstNetworkLength);
+                if (rt.dstNetworkLength != length ||
+                    !dstSubnet.containsAddress(dst) ||
+                    !srcSubnet.containsAddress(src))
+                    continue;
+                if (rt.weight < minWeight) {
+                    ret.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    ret.add(rt);
+            }
+            if (!ret.isEmpty())
+                return ret;
+        }
+        return new HashSet<>();
+    }
+
+    private static IPv6Addr near(Random random, IPv6Addr base) {
+        int length = random.nextInt(129);
+        long upper = random.nextLong();
+        long lower = random.nextLong();
+        if (length < 64) {
+            upper >>>= length;
+        } else {
+            upper = 0;
+            lower = length == 128 ? 0 : lower >>> (length - 64);
+        }
+        return new IPv6Addr(base.upperWord() ^ upper, base.lowerWord() ^ lower);
+    }
+
+    @Test
+    public void testSameAsScan() {
+        Random random = new Random(42);
+        IPv6RoutingTable table = new IPv6RoutingTable();
+        List<Route> routes = new ArrayList<>();
+
+        // Draw the addresses from a few prefixes, so that routes nest.
+        IPv6Addr[] bases = new IPv6Addr[8];
+        for (int i = 0; i < bases.length; i++)
+            bases[i] = new IPv6Addr(random.nextLong(), random.nextLong());
+
+        for (int round = 0; round < 4000; round++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                IPv6Addr base = bases[random.nextInt(bases.length)];
+                IPv6Subnet src = random.nextInt(4) == 0
+                    ? new IPv6Subnet(near(random, base), random.nextInt(9))
+                    : ANY;
+                Route rt = route(src, new IPv6Subnet(near(random, base),
+                                                     random.nextInt(129)),
+                                 random.nextInt(3));
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                table.deleteRoute(rt);
+            }
+
+            for (int i = 0; i < 8; i++) {
+                IPv6Addr dst = near(random, bases[random.nextInt(bases.length)]);
+                IPv6Addr src = new IPv6Addr(random.nextLong(), random.nextLong());
+                Assert.assertEquals(scan(routes, src, dst),
+                                    setOf(table.lookup(src, dst)));
+            }
+        }
+        Assert.assertEquals(routes.size(), table.numRoutes());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Subnet;
+
+public class TestMultibitRoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static Set<Route> toSet(Iterable<Route> routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    @Test
+    public void testEmptyRoutingTable() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Assert.assertTrue(table.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.lookup(0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Route rt0 = route(0, 0, 0, 0, 100);
+        Route rt8 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt20 = route(0, 0, 0x0a010000, 20, 100);
+        Route rt32 = route(0, 0, 0x0a010203, 32, 100);
+        table.addRoute(rt0);
+        table.addRoute(rt8);
+        table.addRoute(rt20);
+        table.addRoute(rt32);
+
+        Assert.assertEquals(toSet(table.lookup(0, 0x0b000001)), setOf(rt0));
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a020001)), setOf(rt8));
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010f01)), setOf(rt20));
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010203)), setOf(rt32));
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010204)), setOf(rt20));
+
+        table.deleteRoute(rt20);
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010f01)), setOf(rt8));
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010203)), setOf(rt32));
+        table.deleteRoute(rt32);
+        table.deleteRoute(rt8);
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a010203)), setOf(rt0));
+        table.deleteRoute(rt0);
+        Assert.assertTrue(table.lookup(0, 0x0a010203).isEmpty());
+        Assert.assertEquals(0, table.numRoutes());
+    }
+
+    @Test
+    public void testMinimumWeight() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Route rt1 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 50);
+        Route rt3 = route(0, 0, 0x0a140000, 16, 50);
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        table.addRoute(rt3);
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a140505)),
+                            setOf(rt2, rt3));
+        table.deleteRoute(rt2);
+        table.deleteRoute(rt3);
+        Assert.assertEquals(toSet(table.lookup(0, 0x0a140505)), setOf(rt1));
+    }
+
+    @Test
+    public void testReusesResult() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(route(0, 0, 0x0a140000, 16, 100));
+        Assert.assertSame(table.lookup(0x01020304, 0x0a140505),
+                          table.lookup(0x05060708, 0x0a14ffff));
+    }
+
+    @Test
+    public void testResultCannotBeModified() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Route anySource = route(0, 0, 0x0a140000, 16, 100);
+        Route fromSource = route(0x01020300, 24, 0x0a150000, 16, 100);
+        table.addRoute(anySource);
+        table.addRoute(fromSource);
+
+        for (List<Route> result : new List[] {
+                table.lookup(0x01020304, 0x0a140505),
+                table.lookup(0x01020304, 0x0a150505) }) {
+            try {
+                result.clear();
+                Assert.fail("The lookup result must be unmodifiable");
+            } catch (UnsupportedOperationException e) {
+                // Expected
+            }
+        }
+
+        Assert.assertEquals(toSet(table.lookup(0x01020304, 0x0a140505)),
+                            setOf(anySource));
+        Assert.assertEquals(toSet(table.lookup(0x01020304, 0x0a150505)),
+                            setOf(fromSource));
+    }
+
+    @Test
+    public void testFallsBackWhenSourceDoesNotMatch() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Route rt16 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt18 = route(0, 0, 0x0a140000, 18, 100);
+        Route rt24 = route(0xc0a80000, 16, 0x0a140100, 24, 100);
+        Route rt28 = route(0xc0a80000, 16, 0x0a140100, 28, 100);
+        table.addRoute(rt16);
+        table.addRoute(rt18);
+        table.addRoute(rt24);
+        table.addRoute(rt28);
+
+        Assert.assertEquals(toSet(table.lookup(0xc0a80101, 0x0a140101)),
+                            setOf(rt28));
+        Assert.assertEquals(toSet(table.lookup(0xc0a80101, 0x0a140181)),
+                            setOf(rt24));
+        Assert.assertEquals(toSet(table.lookup(0x01010101, 0x0a140101)),
+                            setOf(rt18));
+        table.deleteRoute(rt18);
+        Assert.assertEquals(toSet(table.lookup(0x01010101, 0x0a140101)),
+                            setOf(rt16));
+    }
+
+    /**
+     * Looks up the routes by scanning them all, from the longest matching
+     * destination prefix to the shortest.
+     */
+    private static Set<Route> scan(List<Route> routes, int src, int dst) {
+        for (int length = 32; length >= 0; length--) {
+            Set<Route> ret = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.dstNetworkLength != length ||
+                    !IPv4Subnet.addrMatch(dst, rt.dstNetworkAddr, length) ||
+                    !IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                          rt.srcNetworkLength))
+                    continue;
+                if (rt.weight < minWeight) {
+                    ret.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    ret.add(rt);
+            }
+            if (!ret.isEmpty())
+                return ret;
+        }
+        return new HashSet<>();
+    }
+
+    @Test
+    public void testSameAsScan() {
+        Random random = new Random(42);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        List<Route> routes = new ArrayList<>();
+
+        // Draw the addresses from a few prefixes, so that routes nest.
+        int[] bases = new int[8];
+        for (int i = 0; i < bases.length; i++)
+            bases[i] = random.nextInt();
+
+        for (int round = 0; round < 4000; round++) {
+            if (routes.isEmpty() || random.nextInt(3) > 0) {
+                int base = bases[random.nextInt(bases.length)];
+                int length = random.nextInt(33);
+                int srcLength = random.nextInt(4) == 0 ? random.nextInt(9) : 0;
+                Route rt = route(random.nextInt(), srcLength,
+                                 base ^ (random.nextInt() >>> length),
+                                 length, random.nextInt(3));
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                table.deleteRoute(rt);
+            }
+
+            for (int i = 0; i < 8; i++) {
+                int base = bases[random.nextInt(bases.length)];
+                int dst = base ^ (random.nextInt() >>> random.nextInt(33));
+                int src = random.nextInt();
+                Assert.assertEquals(scan(routes, src, dst),
+                                    toSet(table.lookup(src, dst)));
+            }
+        }
+        Assert.assertEquals(routes.size(), table.numRoutes());
+    }
+
+    private static Set<Route> setOf(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+}
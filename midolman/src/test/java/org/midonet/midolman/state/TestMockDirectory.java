@@ -16,11 +16,15 @@
 
 package org.midonet.midolman.state;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.ConnectionLossException;
 import org.apache.zookeeper.KeeperException.NoChildrenForEphemeralsException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
@@ -86,6 +90,63 @@ public class TestMockDirectory {
                             dir.getChildren("/a/b", null));
     }
 
+    @Test
+    public void testGetAll() throws KeeperException, InterruptedException {
+        dir.add("/a", "a".getBytes(), CreateMode.PERSISTENT);
+        dir.add("/b", "b".getBytes(), CreateMode.PERSISTENT);
+        dir.add("/c", "c".getBytes(), CreateMode.PERSISTENT);
+
+        List<byte[]> data = dir.getAll(Arrays.asList("/c", "/d", "/a"));
+        Assert.assertEquals(3, data.size());
+        Assert.assertArrayEquals("c".getBytes(), data.get(0));
+        Assert.assertNull(data.get(1));
+        Assert.assertArrayEquals("a".getBytes(), data.get(2));
+
+        // More paths than reads allowed in flight.
+        data = ZkUtil.getAll(dir, Arrays.asList("/a", "/b", "/c", "/a"), 2,
+                             ZkUtil.READ_TIMEOUT_MILLIS);
+        Assert.assertArrayEquals("a".getBytes(), data.get(0));
+        Assert.assertArrayEquals("b".getBytes(), data.get(1));
+        Assert.assertArrayEquals("c".getBytes(), data.get(2));
+        Assert.assertArrayEquals("a".getBytes(), data.get(3));
+
+        Assert.assertTrue(
+            dir.getAll(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testGetAllError()
+            throws KeeperException, InterruptedException,
+                   StateAccessException {
+        // Reads of other paths than "/a" fail with a connection loss.
+        Directory failingDir = new MockDirectory() {
+            @Override
+            public void asyncGet(String relativePath,
+                                 DirectoryCallback<byte[]> dataCb,
+                                 TypedWatcher watcher) {
+                if (relativePath.equals("/a")) {
+                    super.asyncGet(relativePath, dataCb, watcher);
+                } else {
+                    dataCb.onError(new ConnectionLossException());
+                }
+            }
+        };
+        failingDir.add("/a", "a".getBytes(), CreateMode.PERSISTENT);
+        failingDir.add("/b", "b".getBytes(), CreateMode.PERSISTENT);
+
+        ZkManager zk = new ZkManager(failingDir, "");
+        Assert.assertArrayEquals("a".getBytes(),
+                                 zk.getAll(Arrays.asList("/a")).get(0));
+        try {
+            zk.getAll(Arrays.asList("/a", "/b"));
+            Assert.fail("A read error must fail the whole read.");
+        } catch (StateAccessException e) {
+            Assert.assertEquals(StateAccessException.class, e.getClass());
+            Assert.assertTrue(
+                e.getCause() instanceof ConnectionLossException);
+        }
+    }
+
     @Test
     public void testAddHasDelete() throws NoNodeException, NodeExistsException,
             NoChildrenForEphemeralsException, NotEmptyException {
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ZkDirectoryTest extends ZookeeperTest {
+
+    private Directory dir;
+    private List<String> paths;
+    private final BlockingQueue<Object> results = new ArrayBlockingQueue<>(1);
+
+    @Before
+    public void setup() throws Exception {
+        dir = getDirectory();
+        dir.add(getPath("/a"), "a".getBytes(), CreateMode.PERSISTENT);
+        dir.add(getPath("/b"), "b".getBytes(), CreateMode.PERSISTENT);
+        paths = Arrays.asList(getPath("/b"), getPath("/c"), getPath("/a"));
+    }
+
+    private void getAllInto(BlockingQueue<Object> queue) {
+        try {
+            queue.offer(dir.getAll(paths));
+        } catch (KeeperException | InterruptedException e) {
+            queue.offer(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void assertResults() throws InterruptedException {
+        Object result = results.poll(10, TimeUnit.SECONDS);
+        assertNotNull("getAll did not complete", result);
+        List<byte[]> data = (List<byte[]>) result;
+        assertEquals(3, data.size());
+        assertArrayEquals("b".getBytes(), data.get(0));
+        assertNull(data.get(1));
+        assertArrayEquals("a".getBytes(), data.get(2));
+    }
+
+    @Test
+    public void testGetAllFromAsyncCallback() throws Exception {
+        dir.asyncGet(getPath("/a"), new DirectoryCallback<byte[]>() {
+            @Override
+            public void onSuccess(byte[] data) {
+                getAllInto(results);
+            }
+
+            @Override
+            public void onTimeout() {}
+
+            @Override
+            public void onError(KeeperException e) {}
+        }, null);
+
+        assertResults();
+    }
+
+    @Test
+    public void testGetAllFromWatcher() throws Exception {
+        dir.get(getPath("/a"), new Runnable() {
+            @Override
+            public void run() {
+                getAllInto(results);
+            }
+        });
+        dir.update(getPath("/a"), "a".getBytes());
+
+        assertResults();
+    }
+}
@@ -17,6 +17,7 @@
 package org.midonet.sdn.flows;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -293,6 +294,104 @@ public class FlowManagerTest {
                    !wflow.dpFlows().contains(flowMatch));
     }
 
+    @Test
+    public void testIdleExpirationWithFlowDump() throws InterruptedException {
+        flowManager.setFlowDumpThreshold(2);
+
+        FlowMatch flowMatch1 =
+            new FlowMatch().addKey(FlowKeys.tunnel(10L, 100, 200));
+        FlowMatch flowMatch2 =
+            new FlowMatch().addKey(FlowKeys.tunnel(20L, 100, 200));
+
+        ManagedWildcardFlow wflow1 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch1), timeOut));
+        ManagedWildcardFlow wflow2 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch2), timeOut));
+        flowManager.add(wflow1);
+        flowManager.add(new Flow(flowMatch1, actionsAsJava(wflow1)), wflow1);
+        flowManagerHelper.addFlow(new Flow(flowMatch1));
+        flowManager.add(wflow2);
+        flowManager.add(new Flow(flowMatch2, actionsAsJava(wflow2)), wflow2);
+        flowManagerHelper.addFlow(new Flow(flowMatch2));
+
+        Thread.sleep(timeOut + idleFlowToleranceInterval);
+
+        // only the first kernel flow was used while the wildcard flows idled
+        flowManagerHelper.setLastUsedTimeToNow(flowMatch1);
+        flowManager.checkFlowsExpiration();
+
+        assertThat("The flows were not refreshed with a single dump",
+                   flowManagerHelper.getFlowsCalls, equalTo(1));
+        assertThat("The kernel was queried flow by flow",
+                   flowManagerHelper.getFlowCalls, equalTo(0));
+        assertThat("The saved requests were not accounted",
+                   flowManager.getFlowRequestsSaved(), equalTo(1L));
+
+        assertThat("The used wildcard flow was deleted",
+                   flowManager.getWildcardFlow(wflow1.getMatch()),
+                   equalTo(wflow1));
+        assertThat("The used wildcard flow LastUsedTime was not updated",
+                   wflow1.getLastUsedTimeMillis(),
+                   equalTo(flowManagerHelper.flowsMap.get(flowMatch1)
+                                            .getLastUsedTime()));
+        assertThat("The idle wildcard flow was not deleted",
+                   flowManager.getWildcardFlow(wflow2.getMatch()),
+                   nullValue());
+        assertThat("The idle kernel flow was not deleted",
+                   flowManagerHelper.flowsMap.get(flowMatch2),
+                   nullValue());
+    }
+
+    @Test
+    public void testFlowDumpWithExtraKeys() throws InterruptedException {
+        flowManager.setFlowDumpThreshold(2);
+
+        FlowMatch flowMatch1 = new FlowMatch()
+            .addKey(FlowKeys.inPort(1))
+            .addKey(FlowKeys.tunnel(10L, 100, 200));
+        FlowMatch flowMatch2 = new FlowMatch()
+            .addKey(FlowKeys.inPort(1))
+            .addKey(FlowKeys.tunnel(20L, 100, 200));
+        // the datapath returns the keys in its own order, plus one more
+        FlowMatch dumpedMatch1 = new FlowMatch()
+            .addKey(FlowKeys.priority(0))
+            .addKey(FlowKeys.tunnel(10L, 100, 200))
+            .addKey(FlowKeys.inPort(1));
+
+        ManagedWildcardFlow wflow1 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch1), timeOut));
+        ManagedWildcardFlow wflow2 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch2), timeOut));
+        flowManager.add(wflow1);
+        flowManager.add(new Flow(flowMatch1, actionsAsJava(wflow1)), wflow1);
+        flowManager.add(wflow2);
+        flowManager.add(new Flow(flowMatch2, actionsAsJava(wflow2)), wflow2);
+        Flow dumpedFlow1 = new Flow(dumpedMatch1);
+        flowManagerHelper.flowsMap.put(flowMatch1, dumpedFlow1);
+        flowManagerHelper.addFlow(new Flow(flowMatch2));
+
+        Thread.sleep(timeOut + idleFlowToleranceInterval);
+
+        dumpedFlow1.setLastUsedTime(System.currentTimeMillis());
+        flowManager.checkFlowsExpiration();
+
+        assertThat("The flows were not refreshed with a single dump",
+                   flowManagerHelper.getFlowsCalls, equalTo(1));
+        assertThat("The used wildcard flow was deleted",
+                   flowManager.getWildcardFlow(wflow1.getMatch()),
+                   equalTo(wflow1));
+        assertThat("The used wildcard flow LastUsedTime was not updated",
+                   wflow1.getLastUsedTimeMillis(),
+                   equalTo(dumpedFlow1.getLastUsedTime()));
+        assertThat("The idle wildcard flow was not deleted",
+                   flowManager.getWildcardFlow(wflow2.getMatch()),
+                   nullValue());
+    }
+
     @Test
     public void wildcardFlowUpdatedBecauseOfKernelFlowUpdated()
             throws InterruptedException {
@@ -481,6 +580,8 @@ public class FlowManagerTest {
 
         public Map<FlowMatch, Flow> flowsMap = new HashMap<>();
         public Queue<Flow> toRemove;
+        public int getFlowCalls = 0;
+        public int getFlowsCalls = 0;
 
         public void addFlow(Flow flow) {
             flow.setLastUsedTime(System.currentTimeMillis());
@@ -515,9 +616,16 @@ public class FlowManagerTest {
 
         @Override
         public void getFlow(FlowMatch flowMatch, Callback1<Flow> flowCb) {
+            getFlowCalls++;
             new Thread(new MockFlowUpdatedMessageRunnable(flowMatch, flowCb)).start();
         }
 
+        @Override
+        public void getFlows(Callback1<Collection<Flow>> flowsCb) {
+            getFlowsCalls++;
+            flowsCb.call(new ArrayList<>(flowsMap.values()));
+        }
+
         class MockFlowUpdatedMessageRunnable implements Runnable {
             Callback1<Flow> flowCb;
             FlowMatch flowMatch;
@@ -276,6 +276,33 @@ public class WildcardMatchTest {
             map.get(projection), is(true));
     }
 
+    @Test
+    public void testProjectedHashCodeAndEquality() {
+        WildcardMatch wildcard =
+            WildcardMatch.fromFlowMatch(
+                tcpFlow("ae:b3:77:8c:a1:48", "33:33:00:00:00:16",
+                        "192.168.100.1", "192.168.100.2",
+                        8096, 1025, 0));
+
+        Set<WildcardMatch.Field> fields = EnumSet.of(
+            WildcardMatch.Field.EthSrc,
+            WildcardMatch.Field.NetworkDst,
+            WildcardMatch.Field.DstPort);
+        WildcardMatch projection = wildcard.project(fields);
+        Set<WildcardMatch.Field> seenFields =
+            EnumSet.copyOf(wildcard.getSeenFields());
+
+        assertThat(wildcard.projectedHashCode(fields),
+                   equalTo(projection.hashCode()));
+        assertThat(wildcard.projectedEquals(fields, projection), is(true));
+        assertThat(wildcard.projectedEquals(fields, wildcard), is(false));
+
+        WildcardMatch other = projection.clone();
+        other.setDstPort(1026);
+        assertThat(wildcard.projectedEquals(fields, other), is(false));
+        assertThat(wildcard.getSeenFields(), equalTo(seenFields));
+    }
+
     @Test
     public void testFromFlowMatch() {
         FlowMatch fm = FlowMatches.tcpFlow(
@@ -298,7 +298,7 @@ class DeduplicationActorTestCase extends MidolmanSpec {
         implicit override val dispatcher = this.context.dispatcher
 
         def pendedPackets(cookie: Int): Option[collection.Set[Packet]] =
-            cookieToPendedPackets.get(cookie)
+            pendingPackets.pendingOn(cookie) map (_.toSet)
 
         def complete(wcmatch: FlowMatch, actions: List[FlowAction]): Unit = {
             workflow.asInstanceOf[MockPacketHandler].complete(wcmatch, actions)
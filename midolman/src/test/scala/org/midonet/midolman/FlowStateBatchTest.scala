@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateBatchTest extends FeatureSpec
+                         with Matchers
+                         with OneInstancePerTest {
+
+    val device = UUID.randomUUID()
+
+    def connTrackKey(i: Int) =
+        ConnTrackKey(IPv4Addr.random, i, IPv4Addr.random, 80, 6, device)
+
+    def natKey(i: Int) =
+        NatKey(NatState.FWD_SNAT, IPv4Addr.random, i, IPv4Addr.random, 80,
+               6, device)
+
+    def batch(keys: Int): FlowStateBatch = {
+        val b = EmptyFlowStateBatch()
+        for (i <- 0 until keys) {
+            b.strongConnTrack.add(connTrackKey(i))
+            b.weakConnTrack.add(connTrackKey(i))
+            b.strongNat.put(natKey(i), NatBinding(IPv4Addr.random, i))
+            b.weakNat.put(natKey(i), NatBinding(IPv4Addr.random, i))
+        }
+        b
+    }
+
+    def partition(b: FlowStateBatch, parts: Int, maxKeys: Int) = {
+        val emitted = mutable.ArrayBuffer[(Int, FlowStateBatch)]()
+        b.partition(parts, maxKeys) { (part, p) => emitted += ((part, p)) }
+        emitted
+    }
+
+    feature("Batches are merged") {
+        scenario("each kind of key is merged with its own kind") {
+            val b1 = batch(2)
+            val b2 = batch(3)
+            val merged = EmptyFlowStateBatch().merge(b1).merge(b2)
+            merged.strongConnTrack.toSet should be (
+                b1.strongConnTrack.toSet ++ b2.strongConnTrack)
+            merged.weakConnTrack.toSet should be (
+                b1.weakConnTrack.toSet ++ b2.weakConnTrack)
+            merged.strongNat.toMap should be (b1.strongNat.toMap ++ b2.strongNat)
+            merged.weakNat.toMap should be (b1.weakNat.toMap ++ b2.weakNat)
+        }
+    }
+
+    feature("Batches are partitioned among workers") {
+        scenario("each key goes to exactly one partition") {
+            val b = batch(500)
+            val parts = partition(b, 4, Int.MaxValue)
+            parts.map(_._1).sorted should be (0 until 4)
+            parts.map(_._2.size).sum should be (b.size)
+
+            val strongConnTrack = parts flatMap (_._2.strongConnTrack)
+            strongConnTrack.size should be (b.strongConnTrack.size)
+            strongConnTrack.toSet should be (b.strongConnTrack.toSet)
+            val weakNat = parts flatMap (_._2.weakNat)
+            weakNat.size should be (b.weakNat.size)
+            weakNat.toMap should be (b.weakNat.toMap)
+        }
+
+        scenario("the same key always goes to the same partition") {
+            val b = batch(100)
+            val first = partition(b, 3, Int.MaxValue)
+            val second = partition(b, 3, 7)
+            for ((part, p) <- second; k <- p.strongConnTrack) {
+                first.find(_._1 == part).get._2.strongConnTrack should contain (k)
+            }
+        }
+
+        scenario("partitions are chunked") {
+            val b = batch(250)
+            val parts = partition(b, 2, 64)
+            parts foreach { case (_, p) => p.size should be <= 64 }
+            parts.map(_._2.size).sum should be (b.size)
+        }
+
+        scenario("an empty batch emits nothing") {
+            partition(EmptyFlowStateBatch(), 4, 64) should be (empty)
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.ArrayList
+
+import scala.collection.JavaConversions._
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.Ethernet
+
+@RunWith(classOf[JUnitRunner])
+class PendingPacketsTest extends FeatureSpec
+                         with Matchers
+                         with OneInstancePerTest {
+
+    val packets = new PendingPackets(4)
+    val removed = new ArrayList[Packet]()
+
+    def flowMatch(i: Int) = new FlowMatch().addKey(FlowKeys.inPort(i))
+
+    def packet(i: Int) = new Packet(new Ethernet(), flowMatch(i))
+
+    def remove(cookie: Int): Int = {
+        removed.clear()
+        packets.remove(cookie, removed)
+    }
+
+    feature("Packets are pended on in-flight simulations") {
+        scenario("a packet without a simulation for its match isn't pended") {
+            packets.pend(packet(1)) should be (false)
+            packets.track(10, flowMatch(2))
+            packets.pend(packet(1)) should be (false)
+            packets.pendingOn(10) should be (Some(Seq()))
+        }
+
+        scenario("packets are pended on the simulation for their match") {
+            packets.track(10, flowMatch(1))
+            packets.track(11, flowMatch(2))
+            val p1 = packet(1)
+            val p2 = packet(1)
+            val p3 = packet(2)
+            packets.pend(p1) should be (true)
+            packets.pend(p2) should be (true)
+            packets.pend(p3) should be (true)
+            packets.pendingOn(10) should be (Some(Seq(p1, p2)))
+            packets.pendingOn(11) should be (Some(Seq(p3)))
+        }
+
+        scenario("removing a simulation hands out its pending packets") {
+            packets.track(10, flowMatch(1))
+            val pkts = (1 to 10) map { _ => packet(1) }
+            pkts foreach { p => packets.pend(p) should be (true) }
+            remove(10) should be (10)
+            removed.toList should be (pkts.toList)
+            packets.isTracked(10) should be (false)
+            packets.pend(packet(1)) should be (false)
+            packets.size should be (0)
+        }
+
+        scenario("removing an unknown simulation") {
+            remove(10) should be (-1)
+            removed should be (empty)
+        }
+
+        scenario("recycled entries don't keep packets") {
+            packets.track(10, flowMatch(1))
+            packets.pend(packet(1))
+            remove(10)
+            packets.track(11, flowMatch(1))
+            packets.pendingOn(11) should be (Some(Seq()))
+            remove(11) should be (0)
+        }
+
+        scenario("two simulations for the same match") {
+            packets.track(10, flowMatch(1))
+            packets.track(11, flowMatch(1))
+            remove(10) should be (0)
+            packets.isTracked(11) should be (true)
+            packets.pend(packet(1)) should be (true)
+            remove(11) should be (1)
+        }
+    }
+
+    feature("The tables grow and shrink") {
+        scenario("many simulations are tracked and removed in any order") {
+            val cookies = (0 until 1000).toList
+            cookies foreach { c => packets.track(c, flowMatch(c)) }
+            packets.size should be (1000)
+            cookies foreach { c => packets.pend(packet(c)) should be (true) }
+            for (c <- Random.shuffle(cookies)) {
+                remove(c) should be (1)
+                removed.head.getMatch should be (flowMatch(c))
+            }
+            packets.size should be (0)
+            cookies foreach { c => packets.isTracked(c) should be (false) }
+        }
+
+        scenario("interleaved tracking and removal") {
+            val live = collection.mutable.Set[Int]()
+            val rand = new Random(42)
+            for (c <- 0 until 10000) {
+                packets.track(c, flowMatch(c))
+                live += c
+                if (rand.nextBoolean()) {
+                    val victim = live.toSeq(rand.nextInt(live.size))
+                    remove(victim) should be (0)
+                    live -= victim
+                }
+            }
+            packets.size should be (live.size)
+            live foreach { c =>
+                packets.isTracked(c) should be (true)
+                packets.pend(packet(c)) should be (true)
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.datapath
+
+import java.util.{ArrayList, EnumSet}
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.{Bridge => ClusterBridge}
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, SimulationResult}
+import org.midonet.midolman.rules.RuleResult
+import org.midonet.midolman.simulation.Bridge
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.midolman.util.mock.MessageAccumulator
+import org.midonet.odp.{FlowMask, FlowMatch, FlowMatches}
+import org.midonet.odp.flows._
+import org.midonet.odp.flows.FlowActions.setKey
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.WildcardMatch.Field
+
+@RunWith(classOf[JUnitRunner])
+class MegaflowMaskTest extends MidolmanSpec {
+
+    val leftMac = MAC.fromString("02:02:01:10:10:aa")
+    val rightMac = MAC.fromString("02:02:01:10:10:bb")
+
+    var clusterBridge: ClusterBridge = _
+    var leftPort: BridgePort = _
+    var rightPort: BridgePort = _
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor()
+                                                  with MessageAccumulator))
+
+    override def beforeTest() {
+        newHost("myself", hostId)
+        clusterBridge = newBridge("bridge")
+        leftPort = newBridgePort(clusterBridge)
+        rightPort = newBridgePort(clusterBridge)
+        materializePort(leftPort, hostId, "left")
+        materializePort(rightPort, hostId, "right")
+
+        fetchTopology(clusterBridge, leftPort, rightPort)
+        val bridge: Bridge = fetchDevice(clusterBridge)
+        val macTable = bridge.vlanMacTableMap(ClusterBridge.UNTAGGED_VLAN_ID)
+        macTable.add(leftMac, leftPort.getId)
+        macTable.add(rightMac, rightPort.getId)
+    }
+
+    case class TcpPacket(ethSrc: MAC = leftMac,
+                         ethDst: MAC = rightMac,
+                         nwSrc: IPv4Addr = IPv4Addr("10.0.0.1"),
+                         nwDst: IPv4Addr = IPv4Addr("10.0.0.2"),
+                         ttl: Byte = 64,
+                         tpSrc: Int = 12345,
+                         tpDst: Int = 80) {
+
+        def frame: Ethernet =
+            { eth src ethSrc dst ethDst } <<
+            { ip4 src nwSrc dst nwDst ttl ttl } <<
+            { tcp src tpSrc.toShort dst tpDst.toShort }
+
+        def flowMatch: FlowMatch = FlowMatches.fromEthernetPacket(frame)
+
+        def vary(field: Field): TcpPacket = field match {
+            case Field.EthSrc => copy(ethSrc = MAC.random())
+            case Field.EthDst => copy(ethDst = MAC.random())
+            case Field.NetworkSrc => copy(nwSrc = IPv4Addr.random)
+            case Field.NetworkDst => copy(nwDst = IPv4Addr.random)
+            case Field.NetworkTTL => copy(ttl = (ttl - 1).toByte)
+            case Field.SrcPort => copy(tpSrc = tpSrc + 1)
+            case Field.DstPort => copy(tpDst = tpDst + 1)
+            case _ => this
+        }
+    }
+
+    def seen(fields: Field*) =
+        if (fields.isEmpty) EnumSet.noneOf(classOf[Field])
+        else EnumSet.of(fields.head, fields.tail: _*)
+
+    def noActions = new ArrayList[FlowAction]()
+
+    def maskKey[T <: FlowKey](mask: FlowMask, clazz: Class[T]): T =
+        mask.getKeys.find(clazz.isInstance).get.asInstanceOf[T]
+
+    /** Reads back, out of a mask, the fields that it wildcards. */
+    def wildcardedBy(mask: FlowMask): Set[Field] = {
+        var fields = Set.empty[Field]
+        mask.getKeys foreach {
+            case k: FlowKeyEthernet =>
+                if (k.getSrc.forall(_ == 0)) fields += Field.EthSrc
+                if (k.getDst.forall(_ == 0)) fields += Field.EthDst
+            case k: FlowKeyIPv4 =>
+                if (k.getSrc == 0) fields += Field.NetworkSrc
+                if (k.getDst == 0) fields += Field.NetworkDst
+                if (k.getTtl == 0) fields += Field.NetworkTTL
+            case k: FlowKeyTCP =>
+                if (k.getSrc == 0) fields += Field.SrcPort
+                if (k.getDst == 0) fields += Field.DstPort
+            case _ =>
+        }
+        fields
+    }
+
+    /** Simulates a packet and builds the megaflow mask for its flow. */
+    def megaflow(pkt: TcpPacket): (SimulationResult, FlowMask) = {
+        val (result, context) = sendPacket(leftPort, pkt.frame)
+        val seenFields = EnumSet.noneOf(classOf[Field])
+        seenFields.addAll(context.origMatch.getSeenFields)
+        seenFields.addAll(context.wcmatch.getSeenFields)
+        val actions: java.util.List[FlowAction] = result match {
+            case AddVirtualWildcardFlow(flow) => flow.actions
+            case _ => noActions
+        }
+        (result, MegaflowMask(pkt.flowMatch, seenFields, actions))
+    }
+
+    def actionsOf(result: SimulationResult): Any = result match {
+        case AddVirtualWildcardFlow(flow) => flow.actions
+        case other => other
+    }
+
+    /** Checks that every packet falling within the megaflow of the given
+     *  packet gets the same simulation result as the packet itself. */
+    def checkMegaflowAgainstExactMatches(pkt: TcpPacket): Set[Field] = {
+        val (result, mask) = megaflow(pkt)
+        val wildcarded = wildcardedBy(mask)
+        for (field <- wildcarded) {
+            val (other, _) = sendPacket(leftPort, pkt.vary(field).frame)
+            actionsOf(other) should be (actionsOf(result))
+        }
+        val all = wildcarded.foldLeft(pkt)(_ vary _)
+        val (other, _) = sendPacket(leftPort, all.frame)
+        actionsOf(other) should be (actionsOf(result))
+        wildcarded
+    }
+
+    feature("Only IPv4 TCP and UDP matches are relaxed") {
+        scenario("TCP matches are eligible") {
+            MegaflowMask.isEligible(TcpPacket().flowMatch) should be (true)
+        }
+
+        scenario("UDP matches are eligible") {
+            val frame: Ethernet = { eth src leftMac dst rightMac } <<
+                                  { ip4 src "10.0.0.1" dst "10.0.0.2" } <<
+                                  { udp src 5003 dst 53 }
+            MegaflowMask.isEligible(
+                FlowMatches.fromEthernetPacket(frame)) should be (true)
+        }
+
+        scenario("ICMP and ARP matches get an exact mask") {
+            val icmpFrame: Ethernet =
+                { eth src leftMac dst rightMac } <<
+                { ip4 src "10.0.0.1" dst "10.0.0.2" } <<
+                { icmp.echo.request id 203 seq 25 }
+            val arpFrame: Ethernet =
+                { eth src leftMac dst eth_bcast } <<
+                { arp.req mac leftMac -> eth_bcast ip "10.0.0.1" --> "10.0.0.2" }
+            for (frame <- List(icmpFrame, arpFrame)) {
+                val flowMatch = FlowMatches.fromEthernetPacket(frame)
+                MegaflowMask.isEligible(flowMatch) should be (false)
+                MegaflowMask(flowMatch, seen(), noActions)
+                    .getKeys should be (empty)
+            }
+        }
+
+        scenario("VLAN tagged matches get an exact mask") {
+            val frame = TcpPacket().frame
+            frame.setVlanIDs(List[java.lang.Short](10.toShort))
+            val flowMatch = FlowMatches.fromEthernetPacket(frame)
+            MegaflowMask.isEligible(flowMatch) should be (false)
+        }
+
+        scenario("fragmented matches get an exact mask") {
+            val frame: Ethernet =
+                { eth src leftMac dst rightMac } <<
+                { ip4 src "10.0.0.1" dst "10.0.0.2" flags 1.toByte } <<
+                { tcp src 12345.toShort dst 80.toShort }
+            MegaflowMask.isEligible(
+                FlowMatches.fromEthernetPacket(frame)) should be (false)
+        }
+    }
+
+    feature("The mask wildcards the fields the simulation didn't see") {
+        scenario("no seen fields leaves the untracked fields exact") {
+            val mask = MegaflowMask(TcpPacket().flowMatch, seen(), noActions)
+            mask.getKeys.size should be (TcpPacket().flowMatch.getKeys.size)
+            wildcardedBy(mask) should be (Set(
+                Field.EthSrc, Field.EthDst, Field.NetworkSrc, Field.NetworkDst,
+                Field.NetworkTTL, Field.SrcPort, Field.DstPort))
+            maskKey(mask, classOf[FlowKeyEtherType]) should be (
+                FlowKeys.etherType(FlowMask.ETHERTYPE_EXACT))
+            maskKey(mask, classOf[FlowKeyIPv4]).getProto should be (
+                FlowMask.BYTE_EXACT)
+            maskKey(mask, classOf[FlowKeyIPv4]).getFrag should be (
+                FlowMask.BYTE_EXACT)
+            maskKey(mask, classOf[FlowKeyTCPFlags]) should be (
+                FlowKeys.tcpFlags(FlowMask.TCPFLAGS_ANY))
+        }
+
+        scenario("seen fields are matched exactly") {
+            val mask = MegaflowMask(TcpPacket().flowMatch,
+                                    seen(Field.EthDst, Field.NetworkDst,
+                                         Field.DstPort),
+                                    noActions)
+            wildcardedBy(mask) should be (Set(
+                Field.EthSrc, Field.NetworkSrc, Field.NetworkTTL,
+                Field.SrcPort))
+        }
+
+        scenario("the in port and the tunnel are matched exactly") {
+            val flowMatch = TcpPacket().flowMatch
+            flowMatch.addKey(FlowKeys.inPort(3))
+            flowMatch.addKey(FlowKeys.tunnel(10L, 1, 2))
+            val mask = MegaflowMask(flowMatch, seen(), noActions)
+            maskKey(mask, classOf[FlowKeyInPort]) should be (
+                FlowKeys.inPort(FlowMask.INPORT_EXACT))
+            maskKey(mask, classOf[FlowKeyTunnel]) should be (
+                FlowKeys.tunnel(-1L, FlowMask.IP_EXACT, FlowMask.IP_EXACT))
+        }
+
+        scenario("the keys set by the actions are matched exactly") {
+            val actions = new ArrayList[FlowAction]()
+            actions.add(setKey(FlowKeys.ethernet(leftMac.getAddress,
+                                                 rightMac.getAddress)))
+            actions.add(setKey(FlowKeys.tcp(1, 2)))
+            val mask = MegaflowMask(TcpPacket().flowMatch, seen(), actions)
+            wildcardedBy(mask) should be (Set(
+                Field.NetworkSrc, Field.NetworkDst, Field.NetworkTTL))
+        }
+    }
+
+    feature("Megaflows give the same results as exact matches") {
+        scenario("bridged traffic") {
+            val wildcarded = checkMegaflowAgainstExactMatches(TcpPacket())
+            wildcarded should contain (Field.NetworkSrc)
+            wildcarded should contain (Field.SrcPort)
+            wildcarded should not contain Field.EthDst
+        }
+
+        scenario("bridged traffic filtered on the destination port") {
+            val chain = newInboundChainOnBridge("brChain", clusterBridge)
+            newTcpDstRuleOnChain(chain, 1, 80, RuleResult.Action.DROP)
+            fetchTopology(chain, clusterBridge)
+
+            val dropped = TcpPacket(tpDst = 80)
+            val accepted = TcpPacket(tpDst = 81)
+
+            val (dropResult, dropMask) = megaflow(dropped)
+            val (acceptResult, acceptMask) = megaflow(accepted)
+            actionsOf(dropResult) should not be actionsOf(acceptResult)
+            wildcardedBy(dropMask) should not contain Field.DstPort
+            wildcardedBy(acceptMask) should not contain Field.DstPort
+
+            checkMegaflowAgainstExactMatches(dropped)
+            checkMegaflowAgainstExactMatches(accepted)
+        }
+    }
+}
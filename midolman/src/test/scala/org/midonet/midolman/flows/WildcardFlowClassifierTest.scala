@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.EnumSet
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatches.tcpFlow
+import org.midonet.sdn.flows.{ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+import org.midonet.sdn.flows.WildcardMatch.Field
+
+@RunWith(classOf[JUnitRunner])
+class WildcardFlowClassifierTest extends FeatureSpec
+                                 with Matchers
+                                 with OneInstancePerTest {
+
+    val classifier = new WildcardFlowClassifier(16, 16)
+    val packet = WildcardMatch.fromFlowMatch(
+        tcpFlow("ae:b3:77:8c:a1:48", "33:33:00:00:00:16",
+                "192.168.100.1", "192.168.100.2", 8096, 1025, 0))
+
+    def add(priority: Short, fields: Field*): ManagedWildcardFlow =
+        addMatch(packet.project(EnumSet.of(fields.head, fields.tail: _*)).clone(),
+                 priority)
+
+    def addMatch(wcMatch: WildcardMatch, priority: Short): ManagedWildcardFlow = {
+        val wildFlow = ManagedWildcardFlow.create(
+            WildcardFlow(wcMatch, priority = priority))
+        classifier.addTable(wcMatch.getUsedFields)
+                  .put(wildFlow.wcmatch, wildFlow)
+        wildFlow
+    }
+
+    def remove(wildFlow: ManagedWildcardFlow): Unit = {
+        val pattern = wildFlow.getMatch.getUsedFields
+        val table = classifier.tables.get(pattern)
+        table.remove(wildFlow.wcmatch)
+        if (table.isEmpty)
+            classifier.tables.remove(pattern)
+    }
+
+    feature("The classifier finds matching wildcard flows") {
+        scenario("an empty classifier misses") {
+            classifier.lookup(packet) should be (null)
+        }
+
+        scenario("a flow whose fields match the packet is hit") {
+            val wildFlow = add(0, Field.EthDst)
+            classifier.lookup(packet) should be (wildFlow)
+            classifier.numTuples should be (1)
+        }
+
+        scenario("a flow whose fields differ from the packet misses") {
+            add(0, Field.EthDst)
+            val other = packet.clone()
+            other.setEthDst("33:33:00:00:00:17")
+            classifier.lookup(other) should be (null)
+        }
+
+        scenario("a flow using fields the packet lacks misses") {
+            addMatch(new WildcardMatch().setIcmpIdentifier(1.toShort), 0)
+            classifier.lookup(packet) should be (null)
+        }
+
+        scenario("the lookup doesn't mark fields as seen") {
+            add(0, Field.EthDst, Field.NetworkSrc)
+            val seenFields = EnumSet.copyOf(packet.getSeenFields)
+            classifier.lookup(packet) should not be null
+            packet.getSeenFields should be (seenFields)
+        }
+
+        scenario("clearing the classifier removes all tuples") {
+            add(0, Field.EthDst)
+            classifier.clear()
+            classifier.numTuples should be (0)
+            classifier.lookup(packet) should be (null)
+        }
+    }
+
+    feature("The classifier honors flow priorities") {
+        scenario("the flow with the best priority wins") {
+            add(5, Field.EthDst)
+            val best = add(1, Field.NetworkDst, Field.DstPort)
+            add(3, Field.EthSrc)
+            classifier.lookup(packet) should be (best)
+        }
+
+        scenario("the best priority of a tuple is updated on removal") {
+            val first = add(1, Field.EthDst)
+            val second = add(2, Field.EthSrc)
+            classifier.lookup(packet) should be (first)
+
+            remove(first)
+            classifier.numTuples should be (1)
+            classifier.lookup(packet) should be (second)
+
+            remove(second)
+            classifier.numTuples should be (0)
+            classifier.lookup(packet) should be (null)
+        }
+
+        scenario("a flow in a tuple with worse priorities still matches") {
+            add(1, Field.EthDst)
+            val wildFlow = add(7, Field.EthSrc)
+            val other = packet.clone()
+            other.setEthDst("33:33:00:00:00:17")
+            classifier.lookup(other) should be (wildFlow)
+        }
+    }
+}
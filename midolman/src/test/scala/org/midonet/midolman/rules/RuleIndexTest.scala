@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.rules
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+import scala.util.Random
+
+import akka.actor.ActorSystem
+import org.junit.runner.RunWith
+import org.scalatest.{BeforeAndAfterAll, FunSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.packets.{IPv4Addr, IPv4Subnet, IPv6Addr, IPv6Subnet}
+import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.util.Range
+
+@RunWith(classOf[JUnitRunner])
+class RuleIndexTest extends FunSpec with Matchers with BeforeAndAfterAll {
+
+    implicit val actorSystem = ActorSystem("RuleIndexTest")
+
+    override def afterAll(): Unit = actorSystem.shutdown()
+
+    val random = new Random(42)
+
+    def rule(action: Action = Action.ACCEPT)(setup: Condition => Unit) = {
+        val cond = new Condition()
+        setup(cond)
+        new LiteralRule(cond, action)
+    }
+
+    def packet(proto: java.lang.Byte = 6.toByte, dstPort: Int = 80,
+               src: String = "10.0.0.1", dst: String = "10.0.1.1") = {
+        val m = new WildcardMatch()
+        m.setEtherType(0x0800.toShort)
+        m.setNetworkProto(proto)
+        m.setNetworkSrc(IPv4Addr.fromString(src))
+        m.setNetworkDst(IPv4Addr.fromString(dst))
+        m.setSrcPort(10000)
+        m.setDstPort(dstPort)
+        m
+    }
+
+    def candidates(index: RuleIndex, m: WildcardMatch): List[Int] = {
+        val bits = index.candidates(m)
+        Iterator.iterate(RuleIndex.nextCandidate(bits, 0)) {
+            i => RuleIndex.nextCandidate(bits, i + 1)
+        }.takeWhile(_ >= 0).toList
+    }
+
+    val protos = Array[java.lang.Byte](6.toByte, 17.toByte, 1.toByte, 50.toByte)
+
+    val actions = Array(Action.ACCEPT, Action.DROP, Action.REJECT, Action.RETURN)
+
+    def randomRule(): Rule = rule(actions(random.nextInt(actions.length))) {
+        cond =>
+            if (random.nextInt(4) > 0)
+                cond.nwProto = protos(random.nextInt(3))
+            if (random.nextInt(3) > 0) {
+                val start = random.nextInt(100)
+                cond.tpDst = new Range[Integer](start, start + random.nextInt(20))
+            }
+            if (random.nextInt(3) > 0)
+                cond.nwDstIp = new IPv4Subnet(0x0a000000 | random.nextInt(4) << 8,
+                                              random.nextInt(33))
+            if (random.nextInt(3) > 0)
+                cond.nwSrcIp = new IPv4Subnet(0x0a000000 | random.nextInt(4),
+                                              24 + random.nextInt(9))
+            cond.nwProtoInv = random.nextInt(10) == 0
+            cond.tpDstInv = random.nextInt(10) == 0
+            cond.nwDstInv = random.nextInt(10) == 0
+            cond.conjunctionInv = random.nextInt(20) == 0
+    }
+
+    def randomPacket(): WildcardMatch = {
+        val m = packet(protos(random.nextInt(protos.length)),
+                       random.nextInt(130),
+                       s"10.0.0.${random.nextInt(6)}",
+                       s"10.0.${random.nextInt(6)}.${random.nextInt(3)}")
+        random.nextInt(10) match {
+            case 0 => m.unsetDstPort()
+            case 1 => m.unsetNetworkProto()
+            case _ =>
+        }
+        m
+    }
+
+    describe("RuleIndex") {
+
+        it("is not built for short chains") {
+            RuleIndex.build(List.fill(RuleIndex.MIN_RULES - 1) {
+                rule() { _.nwProto = 6.toByte } }) shouldBe null
+        }
+
+        it("is not built for chains with nothing to dispatch on") {
+            RuleIndex.build(List.fill(20) {
+                rule() { _.ethSrc = null } }) shouldBe null
+        }
+
+        it("dispatches on the protocol, destination port and subnets") {
+            val rules = List(
+                rule() { _.nwProto = 6.toByte },
+                rule() { _.nwProto = 17.toByte },
+                rule() { _.tpDst = new Range[Integer](80) },
+                rule() { _.tpDst = new Range[Integer](1000, 2000) },
+                rule() { _.nwDstIp = new IPv4Subnet("10.0.1.0", 24) },
+                rule() { _.nwDstIp = new IPv4Subnet("10.0.0.0", 16) },
+                rule() { _.nwSrcIp = new IPv4Subnet("10.0.0.1", 32) },
+                rule() { _.nwSrcIp = new IPv4Subnet("192.168.0.0", 16) },
+                rule() { c => c.nwProto = 6.toByte; c.tpDst = new Range[Integer](22) })
+            val index = RuleIndex.build(rules)
+
+            candidates(index, packet()) shouldBe List(0, 2, 4, 5, 6)
+            candidates(index, packet(proto = 17.toByte, dstPort = 1500,
+                                     src = "192.168.1.1", dst = "10.0.2.1")) shouldBe
+                List(1, 3, 5, 7)
+            candidates(index, packet(dstPort = 22, src = "10.1.0.1",
+                                     dst = "10.1.0.1")) shouldBe List(0, 8)
+        }
+
+        it("keeps the rules it can't dispatch on as candidates") {
+            val rules = List(
+                rule() { c => c.nwProto = 6.toByte; c.nwProtoInv = true },
+                rule() { c => c.nwProto = 6.toByte; c.conjunctionInv = true },
+                rule() { c => c.tpDst = new Range[Integer](22); c.tpDstInv = true },
+                rule() { _.nwDstIp = new IPv6Subnet(IPv6Addr.fromString("fe80::"), 64) },
+                new LiteralRule(Condition.TRUE, Action.ACCEPT),
+                rule() { _.nwProto = 6.toByte },
+                rule() { _.nwProto = 17.toByte },
+                rule() { _.nwProto = 1.toByte })
+            val index = RuleIndex.build(rules)
+
+            candidates(index, packet(proto = 50.toByte)) shouldBe List(0, 1, 2, 3, 4)
+        }
+
+        it("takes packets without a port or an IPv4 address") {
+            val rules = List.tabulate(10) { i =>
+                rule() { c =>
+                    c.tpDst = new Range[Integer](i)
+                    c.nwSrcIp = new IPv4Subnet(0x0a000000 + i, 32)
+                }
+            }
+            val index = RuleIndex.build(rules)
+            val m = packet(dstPort = 3, src = "10.0.0.3")
+            candidates(index, m) shouldBe List(3)
+            m.unsetDstPort()
+            candidates(index, m) shouldBe List(3)
+            m.unsetNetworkSrc()
+            candidates(index, m) shouldBe Nil
+        }
+
+        it("never leaves out a rule that matches") {
+            for (_ <- 1 to 50) {
+                val rules = List.fill(60) { randomRule() }
+                val index = RuleIndex.build(rules)
+                index should not be null
+                for (_ <- 1 to 100) {
+                    val m = randomPacket()
+                    val pktCtx = new PacketContext(Left(1), null, None, m)
+                    val matching = rules.zipWithIndex collect {
+                        case (r, i) if r.getCondition.matches(pktCtx, false) => i
+                    }
+                    (matching.toSet -- candidates(index, m)) shouldBe empty
+                }
+            }
+        }
+
+        it("gives chains the same results as evaluating every rule") {
+            val chainId = UUID.randomUUID()
+            for (_ <- 1 to 50) {
+                val rules = List.fill(60) { randomRule() }
+                val indexed = new Chain(chainId, rules, Map.empty[UUID, Chain],
+                                        "indexed", true)
+                val linear = new Chain(chainId, rules, Map.empty[UUID, Chain],
+                                       "linear", false)
+                for (_ <- 1 to 100) {
+                    val m = randomPacket()
+                    def apply(c: Chain) = Chain.apply(
+                        c, new PacketContext(Left(1), null, None, m),
+                        chainId, false).action
+                    apply(indexed) shouldBe apply(linear)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FunSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr}
+
+@RunWith(classOf[JUnitRunner])
+class IPAddrGroupTest extends FunSpec with Matchers {
+
+    val random = new Random(7)
+
+    def v4(s: String): IPAddr = IPv4Addr.fromString(s)
+    def v6(s: String): IPAddr = IPv6Addr.fromString(s)
+
+    def randomAddr(): IPAddr =
+        if (random.nextInt(4) == 0)
+            new IPv6Addr(random.nextInt(4) - 2, random.nextInt(64) - 32)
+        else
+            new IPv4Addr(random.nextInt(512) - 256)
+
+    describe("IPAddrGroup") {
+
+        it("contains its IPv4 and IPv6 addresses") {
+            val addrs = Set(v4("10.0.0.1"), v4("192.168.1.1"), v4("255.255.255.255"),
+                            v6("fe80::1"), v6("::1"), v6("ffff::"))
+            val group = new IPAddrGroup(UUID.randomUUID(), addrs)
+            addrs foreach { group.contains(_) shouldBe true }
+            group.size shouldBe 6
+            group.addrs shouldBe addrs
+            group.contains(v4("10.0.0.2")) shouldBe false
+            group.contains(v6("fe80::2")) shouldBe false
+            group.contains(null) shouldBe false
+        }
+
+        it("can be empty") {
+            val group = IPAddrGroup.fromAddrs(UUID.randomUUID(), Array())
+            group.size shouldBe 0
+            group.contains(v4("10.0.0.1")) shouldBe false
+            group.contains(v6("::1")) shouldBe false
+        }
+
+        it("merges added and removed addresses into a new version") {
+            val id = UUID.randomUUID()
+            val group = new IPAddrGroup(id, Set(v4("10.0.0.1"), v4("10.0.0.2"),
+                                                v6("::1")))
+            val next = group.updated(List(v4("10.0.0.3"), v4("10.0.0.1"),
+                                          v6("::2")),
+                                     List(v4("10.0.0.2"), v6("::1")))
+            next.id shouldBe id
+            next.addrs shouldBe Set(v4("10.0.0.1"), v4("10.0.0.3"), v6("::2"))
+            group.addrs shouldBe Set(v4("10.0.0.1"), v4("10.0.0.2"), v6("::1"))
+            group.updated(Nil, Nil) should be theSameInstanceAs group
+        }
+
+        it("behaves as a set of addresses across updates") {
+            var expected = Set.empty[IPAddr]
+            var group = new IPAddrGroup(UUID.randomUUID(), expected)
+            for (_ <- 1 to 200) {
+                val added = List.fill(random.nextInt(20)) { randomAddr() }
+                val removed = List.fill(random.nextInt(20)) { randomAddr() }
+                expected = expected ++ added -- removed
+                group = group.updated(added.filterNot(removed.contains), removed)
+                group.size shouldBe expected.size
+                group.addrs shouldBe expected
+                for (_ <- 1 to 20) {
+                    val addr = randomAddr()
+                    group.contains(addr) shouldBe expected.contains(addr)
+                }
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.util.{ArrayList, UUID, HashSet => JHashSet, List => JList, Set => JS
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 
+import com.codahale.metrics.MetricRegistry
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory
 
 import org.midonet.cluster.client.{BridgePort, Port}
 import org.midonet.midolman.UnderlayResolver
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
@@ -35,7 +37,7 @@ import org.midonet.midolman.topology.rcu.Host
 import org.midonet.odp.{Packet, Datapath}
 import org.midonet.odp.flows.{FlowActions, FlowAction, FlowActionOutput}
 import org.midonet.odp.protos.{MockOvsDatapathConnection, OvsDatapathConnection}
-import org.midonet.packets.IPv4Addr
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
 import org.midonet.sdn.state.{IdleExpiration, FlowStateTransaction, FlowStateTable}
 import org.midonet.sdn.flows.FlowTagger.{FlowTag, FlowStateTag}
 import org.midonet.util.collection.Reducer
@@ -144,10 +146,11 @@ class FlowStateReplicatorTest extends FeatureSpec
     }
 
     private def sendAndAcceptTransactions(): List[(Packet, List[FlowAction])] = {
-        sender.accumulateNewKeys(connTrackTx, natTx, ingressPort.id, egressPort1.id,
-                                 null, new mutable.HashSet[FlowTag](),
+        sender.accumulateNewKeys(dpConn, connTrackTx, natTx, ingressPort.id,
+                                 egressPort1.id, null,
+                                 new mutable.HashSet[FlowTag](),
                                  new ArrayList[Callback0])
-        sender.pushState(dpConn)
+        sender.pushState()
         natTx.commit()
         connTrackTx.commit()
         natTx.flush()
@@ -208,11 +211,12 @@ class FlowStateReplicatorTest extends FeatureSpec
             }
 
             When("The transaction is added to the replicator")
-            sender.accumulateNewKeys(connTrackTx, natTx, ingressPortNoGroup.id,
+            sender.accumulateNewKeys(dpConn, connTrackTx, natTx,
+                                     ingressPortNoGroup.id,
                                      egressPortNoGroup.id, null,
                                      new mutable.HashSet[FlowTag](),
                                      new ArrayList[Callback0])
-            sender.pushState(dpConn)
+            sender.pushState()
             natTx.commit()
             connTrackTx.commit()
             natTx.flush()
@@ -228,6 +232,212 @@ class FlowStateReplicatorTest extends FeatureSpec
         }
     }
 
+    feature("Flow state is aggregated in MTU-sized messages") {
+        def accumulate(dp: OvsDatapathConnection = dpConn): Unit = {
+            sender.accumulateNewKeys(dp, connTrackTx, natTx, ingressPort.id,
+                                     egressPort1.id, null,
+                                     new mutable.HashSet[FlowTag](),
+                                     new ArrayList[Callback0])
+            natTx.commit()
+            connTrackTx.commit()
+            natTx.flush()
+            connTrackTx.flush()
+        }
+
+        def frameSizes = packetsSeen map { case (p, _) => p.getData.length }
+
+        scenario("The state of several flows to the same peers shares a message") {
+            Given("Two flows with new conntrack keys")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulate()
+            connTrackTx.putAndRef(connTrackKeys(1), ConnTrackState.RETURN_FLOW)
+            accumulate()
+
+            When("The state is pushed")
+            sender.pushState()
+
+            Then("A single packet should have been sent")
+            packetsSeen should have size 1
+            sender.metrics.flowStateMessagesSent.getCount should be (1)
+            sender.metrics.flowStatesPerMessage.getSnapshot.getMax should be (2)
+
+            And("The peer should receive both keys")
+            acceptPushedState()
+            for (k <- connTrackKeys) {
+                recipient.conntrackTable.get(k) should equal (ConnTrackState.RETURN_FLOW)
+            }
+        }
+
+        scenario("The state of many flows is packed in as few messages as fit") {
+            Given("Many flows with new conntrack keys")
+            val keys = (1 to 100) map { i =>
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 80, 6, conntrackDevice)
+            }
+            for (k <- keys) {
+                connTrackTx.putAndRef(k, ConnTrackState.RETURN_FLOW)
+                accumulate()
+            }
+
+            When("The state is pushed")
+            sender.pushState()
+
+            Then("The flows should share packets that fit in the MTU")
+            packetsSeen.size should be > 1
+            packetsSeen.size should be < 20
+            frameSizes foreach { _ should be <= (FlowStatePackets.MTU -
+                FlowStatePackets.GRE_ENCAPUSULATION_OVERHEAD) }
+            sender.metrics.flowStateMessagesSent.getCount should be (packetsSeen.size)
+            sender.metrics.flowStateBytesSent.getCount should be > 0L
+
+            And("The peer should receive all the keys")
+            acceptPushedState()
+            for (k <- keys) {
+                recipient.conntrackTable.get(k) should equal (ConnTrackState.RETURN_FLOW)
+            }
+        }
+
+        scenario("The state is sent on the connection of its packets") {
+            Given("Two flows executed on different connections")
+            val otherConn = OvsDatapathConnection.createMock()
+                                .asInstanceOf[MockOvsDatapathConnection]
+            var otherPacketsSeen = 0
+            otherConn.packetsExecuteSubscribe(
+                new Callback2[Packet, JList[FlowAction]]() {
+                    override def call(p: Packet, actions: JList[FlowAction]) {
+                        otherPacketsSeen += 1
+                    }
+                })
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            accumulate()
+            connTrackTx.putAndRef(connTrackKeys(1), ConnTrackState.RETURN_FLOW)
+            accumulate(otherConn)
+
+            When("The state is pushed")
+            sender.pushState()
+
+            Then("Each connection should send the state of its own flow")
+            packetsSeen should have size 1
+            otherPacketsSeen should be (1)
+        }
+
+        scenario("The state of a flow too large for a message is split") {
+            Given("A flow with a conntrack key and a large set of nat keys")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            val mappings = (1 to 64) map { i =>
+                NatKey(NatState.FWD_SNAT, "192.168.10.1", 10000 + i,
+                       "17.16.15.1", 80, 6, conntrackDevice) ->
+                    NatBinding("1.2.3.4", 20000 + i)
+            }
+            for ((k, v) <- mappings) {
+                natTx.putAndRef(k, v)
+            }
+            accumulate()
+
+            When("The state is pushed")
+            sender.pushState()
+
+            Then("It should be sent in several packets that fit in the MTU")
+            packetsSeen.size should be > 1
+            frameSizes foreach { _ should be <= (FlowStatePackets.MTU -
+                FlowStatePackets.GRE_ENCAPUSULATION_OVERHEAD) }
+
+            And("The peer should receive all the keys")
+            acceptPushedState()
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (
+                ConnTrackState.RETURN_FLOW)
+            for ((k, v) <- mappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+    }
+
+    feature("Flow state is sent in the configured encoding") {
+        def useCompactSender(): Unit = {
+            sender = new TestableFlowStateReplicator(ports, portGroups, senderUnderlay,
+                                                     FlowStatePackets.COMPACT_ENCODING)
+            connTrackTx = new ConnTrackTx(sender.conntrackTable)
+            natTx = new NatTx(sender.natTable)
+        }
+
+        def payloads = packetsSeen map { case (p, _) =>
+            FlowStatePackets.statePayload(p.getEthernet)
+        }
+
+        scenario("Protobuf messages aren't taken for compact ones") {
+            Given("A protobuf sender and a conntrack key")
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+
+            When("The state is pushed")
+            sender.accumulateNewKeys(dpConn, connTrackTx, natTx, ingressPort.id,
+                                     egressPort1.id, null,
+                                     new mutable.HashSet[FlowTag](),
+                                     new ArrayList[Callback0])
+            sender.pushState()
+
+            Then("The payload should be a protobuf message")
+            payloads foreach { p =>
+                FlowStatePackets.isCompactEncoding(p) should be (false)
+            }
+        }
+
+        scenario("Replicates conntrack and nat keys in the compact encoding") {
+            Given("A compact sender and a set of keys, one of them IPv6")
+            useCompactSender()
+            val v6Key = ConnTrackKey(IPv6Addr.fromString("2001:db8::1"), 1234,
+                                     IPv6Addr.fromString("2001:db8::2"), 80,
+                                     6, UUID.randomUUID())
+            connTrackTx.putAndRef(connTrackKeys.head, ConnTrackState.RETURN_FLOW)
+            for ((k, v) <- natMappings) {
+                natTx.putAndRef(k, v)
+            }
+
+            When("The state is pushed")
+            val seen = sendAndAcceptTransactions()
+            connTrackTx.putAndRef(v6Key, ConnTrackState.RETURN_FLOW)
+            sendAndAcceptTransactions()
+
+            Then("The payload should use the compact encoding")
+            seen foreach { case (p, _) =>
+                FlowStatePackets.isCompactEncoding(
+                    FlowStatePackets.statePayload(p.getEthernet)) should be (true)
+            }
+
+            And("Its peer's stateful tables should contain the keys")
+            recipient.conntrackTable.get(connTrackKeys.head) should equal (
+                ConnTrackState.RETURN_FLOW)
+            recipient.conntrackTable.get(v6Key) should equal (
+                ConnTrackState.RETURN_FLOW)
+            for ((k, v) <- natMappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+            recipient.invalidatedKeys should have length (4)
+        }
+
+        scenario("Splits large nat sets in the compact encoding") {
+            Given("A compact sender and a large set of nat keys")
+            useCompactSender()
+            val mappings = (1 to 100) map { i =>
+                NatKey(NatState.REV_DNAT, "192.168.10.1", 10000 + i,
+                       "17.16.15.1", 80, 17, conntrackDevice) ->
+                    NatBinding("1.2.3.4", 60000 + i)
+            }
+            for ((k, v) <- mappings) {
+                natTx.putAndRef(k, v)
+            }
+
+            When("The state is pushed")
+            val seen = sendAndAcceptTransactions()
+
+            Then("It should be sent in several packets")
+            seen.size should be > 1
+
+            And("Its peer's stateful tables should contain the keys")
+            for ((k, v) <- mappings) {
+                recipient.natTable.get(k) should equal (v)
+            }
+        }
+    }
+
     feature("Unref callbacks are correctly added") {
         scenario("For conntrack keys") {
             Given("A conntrack key and a contrack ref in a transaction")
@@ -238,7 +448,7 @@ class FlowStateReplicatorTest extends FeatureSpec
 
             When("The transaction is commited and added to the replicator")
             connTrackTx.commit()
-            sender.accumulateNewKeys(connTrackTx, natTx, ingressPort.id,
+            sender.accumulateNewKeys(dpConn, connTrackTx, natTx, ingressPort.id,
                                      egressPort1.id, null,
                                      new mutable.HashSet[FlowTag](), callbacks)
 
@@ -266,7 +476,7 @@ class FlowStateReplicatorTest extends FeatureSpec
 
             When("The transaction is commited and added to the replicator")
             natTx.commit()
-            sender.accumulateNewKeys(connTrackTx, natTx, ingressPort.id,
+            sender.accumulateNewKeys(dpConn, connTrackTx, natTx, ingressPort.id,
                 egressPort1.id, null,
                 new mutable.HashSet[FlowTag](), callbacks)
 
@@ -397,7 +607,9 @@ class FlowStateReplicatorTest extends FeatureSpec
 class TestableFlowStateReplicator(
         val ports: mutable.Map[UUID, Port],
         val portGroups: mutable.Map[UUID, PortGroup],
-        override val underlay: UnderlayResolver) extends BaseFlowStateReplicator {
+        override val underlay: UnderlayResolver,
+        override val flowStateEncoding: Int = FlowStatePackets.PROTOBUF_ENCODING)
+        extends BaseFlowStateReplicator {
 
     val invalidatedKeys = mutable.MutableList[FlowStateTag]()
 
@@ -405,6 +617,8 @@ class TestableFlowStateReplicator(
 
     override val storage = new MockStateStorage()
 
+    override val metrics = new PacketPipelineMetrics(new MetricRegistry)
+
     val mockConntrackTable = new MockFlowStateTable[ConnTrackKey, ConnTrackValue]()
     override def conntrackTable = mockConntrackTable
 
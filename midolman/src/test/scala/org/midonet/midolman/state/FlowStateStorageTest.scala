@@ -23,11 +23,14 @@ import scala.concurrent.Await
 import scala.concurrent.duration._
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.cassandraunit.utils.EmbeddedCassandraServerHelper
 import org.junit.runner.RunWith
 import org.scalatest.concurrent.Eventually._
+import org.scalatest.concurrent.PatienceConfiguration.Timeout
 import org.scalatest.junit.JUnitRunner
 import org.scalatest._
+import org.scalatest.time.{Seconds, Span}
 
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
@@ -62,6 +65,7 @@ class FlowStateStorageTest extends FeatureSpec
     val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
 
     var cass: CassandraClient = _
+    var writer: FlowStateStorageWriter = _
     var storage: FlowStateStorage = _
 
     before {
@@ -71,7 +75,14 @@ class FlowStateStorageTest extends FeatureSpec
                                    "MidonetFlowState", 1,
                                    FlowStateStorage.SCHEMA, null)
         cass.connect()
-        storage = FlowStateStorage(cass)
+        writer = new FlowStateStorageWriter(cass, 1024, 16, 10,
+                                            new MetricRegistry)
+        writer.start()
+        storage = FlowStateStorage(cass, writer)
+    }
+
+    after {
+        writer.stop()
     }
 
     feature("Stores and fetches state from cassandra") {
@@ -84,34 +95,34 @@ class FlowStateStorageTest extends FeatureSpec
             }
             storage.submit()
 
-            var strongConn: java.util.Set[ConnTrackKey] = null
-            eventually {
-                val future = storage.fetchStrongConnTrackRefs(ingressPort)
-                strongConn = Await.result(future, timeout)
+            // The writer stores the keys of each port in its own batch, on
+            // its own thread, so wait for all of them.
+            eventually(Timeout(Span(10, Seconds))) {
+                val strongConn = Await.result(
+                    storage.fetchStrongConnTrackRefs(ingressPort), timeout)
                 strongConn should not be null
                 strongConn should have size connTrackKeys.size
-            }
-
-            for (k <- connTrackKeys) {
-                strongConn should contain (k)
-            }
-
-            for (port <- egressPorts) {
-                val weakRefs = Await.result(storage.fetchWeakConnTrackRefs(port), timeout)
                 for (k <- connTrackKeys) {
-                    weakRefs should contain (k)
+                    strongConn should contain (k)
                 }
-            }
 
-            val strongNat = Await.result(storage.fetchStrongNatRefs(ingressPort), timeout)
-            for ((k, v) <- natMappings) {
-                strongNat.get(k) should === (v)
-            }
+                for (port <- egressPorts) {
+                    val weakRefs = Await.result(storage.fetchWeakConnTrackRefs(port), timeout)
+                    for (k <- connTrackKeys) {
+                        weakRefs should contain (k)
+                    }
+                }
 
-            for (port <- egressPorts) {
-                val weakRefs = Await.result(storage.fetchWeakNatRefs(port), timeout)
+                val strongNat = Await.result(storage.fetchStrongNatRefs(ingressPort), timeout)
                 for ((k, v) <- natMappings) {
-                    weakRefs.get(k) should === (v)
+                    strongNat.get(k) should === (v)
+                }
+
+                for (port <- egressPorts) {
+                    val weakRefs = Await.result(storage.fetchWeakNatRefs(port), timeout)
+                    for ((k, v) <- natMappings) {
+                        weakRefs.get(k) should === (v)
+                    }
                 }
             }
         }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.UUID
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, OneInstancePerTest}
+
+import org.midonet.cassandra.CassandraClient
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateStorageWriter.{ConnTrackTouch, Touch}
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateStorageWriterTest extends FeatureSpec
+                                 with BeforeAndAfter
+                                 with Matchers
+                                 with OneInstancePerTest {
+
+    val capacity = 16
+
+    /* Not connected, so the writer drops everything it takes */
+    val client = new CassandraClient("127.0.0.1:9142", "TestCluster",
+                                     "MidonetFlowState", 1,
+                                     FlowStateStorage.SCHEMA, null)
+    val writer = new FlowStateStorageWriter(client, capacity, 4, 10,
+                                            new MetricRegistry)
+
+    val port = UUID.randomUUID()
+
+    def touch(i: Int): Touch =
+        ConnTrackTouch(port, strong = true,
+                       ConnTrackKey(IPv4Addr.random, i, IPv4Addr.random, 80,
+                                    6, UUID.randomUUID()))
+
+    after {
+        writer.stop()
+    }
+
+    feature("Touched keys are queued without blocking") {
+        scenario("keys are taken in the order they're offered") {
+            val touches = (0 until 3) map touch
+            touches foreach writer.offer
+            writer.size should be (3)
+            touches foreach { writer.poll() should be (_) }
+            writer.poll() should be (null)
+            writer.size should be (0)
+        }
+
+        scenario("the oldest keys are dropped when the queue is full") {
+            val touches = (0 until 40) map touch
+            touches foreach writer.offer
+            writer.size should be (capacity)
+            writer.keysDropped.getCount should be (40 - capacity)
+            touches takeRight capacity foreach { writer.poll() should be (_) }
+        }
+
+        scenario("concurrent producers") {
+            val numThreads = 4
+            val perThread = 10000
+            val threads = (0 until numThreads) map { _ =>
+                new Thread() {
+                    override def run(): Unit =
+                        (0 until perThread) foreach { i => writer.offer(touch(i)) }
+                }
+            }
+            threads foreach (_.start())
+            threads foreach (_.join())
+
+            writer.size + writer.keysDropped.getCount should be (
+                numThreads * perThread)
+            writer.size should be <= (capacity + numThreads)
+        }
+    }
+
+    feature("The writer takes the queued keys") {
+        scenario("keys are dropped while cassandra isn't connected") {
+            writer.start()
+            (0 until 10) map touch foreach writer.offer
+            eventually {
+                writer.size should be (0)
+                writer.keysDropped.getCount should be (10)
+            }
+            writer.keysWritten.getCount should be (0)
+        }
+
+        scenario("stopping the writer takes the keys still queued") {
+            writer.start()
+            (0 until capacity) map touch foreach writer.offer
+            writer.stop()
+            writer.size should be (0)
+            writer.keysDropped.getCount should be (capacity)
+            writer.keysWritten.getCount should be (0)
+        }
+    }
+}
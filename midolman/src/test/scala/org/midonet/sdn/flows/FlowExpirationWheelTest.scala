@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.ArrayList
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class FlowExpirationWheelTest extends FeatureSpec
+                              with Matchers
+                              with OneInstancePerTest {
+
+    val tick = 10L
+    val wheel = new FlowExpirationWheel(8, tick)
+    val expired = new ArrayList[ManagedWildcardFlow]()
+
+    def flow() = ManagedWildcardFlow.create(WildcardFlow(new WildcardMatch()))
+
+    def expire(now: Long): List[ManagedWildcardFlow] = {
+        expired.clear()
+        wheel.expire(now, expired)
+        expired.toList
+    }
+
+    feature("Flows are expired at their deadline") {
+        scenario("a flow is not expired before its deadline") {
+            val f = flow()
+            wheel.add(f, 105)
+            expire(100) should be (empty)
+            expire(104) should be (empty)
+            wheel.size should be (1)
+            expire(105) should be (List(f))
+            wheel.size should be (0)
+            wheel.contains(f) should be (false)
+        }
+
+        scenario("flows in the same slot expire independently") {
+            val f1 = flow()
+            val f2 = flow()
+            wheel.add(f1, 101)
+            wheel.add(f2, 108)
+            expire(103) should be (List(f1))
+            expire(108) should be (List(f2))
+        }
+
+        scenario("flows beyond a full rotation wait for their round") {
+            val near = flow()
+            val far = flow()
+            wheel.add(near, 100)
+            wheel.add(far, 100 + 8 * tick)
+            expire(100) should be (List(near))
+            expire(100 + 4 * tick) should be (empty)
+            expire(100 + 8 * tick) should be (List(far))
+        }
+
+        scenario("all due flows are expired after a long pause") {
+            val flows = (0 until 20) map { i =>
+                val f = flow()
+                wheel.add(f, 100 + i * tick)
+                f
+            }
+            expire(0) should be (empty)
+            expire(10000).toSet should be (flows.toSet)
+            wheel.isEmpty should be (true)
+        }
+
+        scenario("a deadline in the past is due at the next expiration") {
+            val f = flow()
+            expire(1000)
+            wheel.add(f, 10)
+            expire(1000) should be (List(f))
+        }
+    }
+
+    feature("Flows can be removed and polled") {
+        scenario("a removed flow doesn't expire") {
+            val f = flow()
+            wheel.add(f, 100)
+            wheel.remove(f) should be (true)
+            wheel.remove(f) should be (false)
+            expire(200) should be (empty)
+        }
+
+        scenario("a flow can't be scheduled twice") {
+            val f = flow()
+            wheel.add(f, 100)
+            intercept[IllegalStateException] {
+                wheel.add(f, 200)
+            }
+            new FlowExpirationWheel(8, tick).remove(f) should be (false)
+        }
+
+        scenario("polling returns the flows by their deadline") {
+            val flows = List(130, 110, 190, 150) map { d =>
+                val f = flow()
+                wheel.add(f, d)
+                (d, f)
+            }
+            expire(100)
+            for ((_, f) <- flows.sortBy(_._1)) {
+                wheel.peek() should be (f)
+                wheel.poll() should be (f)
+            }
+            wheel.poll() should be (null)
+        }
+
+        scenario("polling finds flows beyond a full rotation") {
+            val f = flow()
+            expire(0)
+            wheel.add(f, 10 * 8 * tick)
+            wheel.poll() should be (f)
+        }
+    }
+}
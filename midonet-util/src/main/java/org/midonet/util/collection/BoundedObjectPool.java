@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A lock-free pool of shared objects that holds at most a fixed number of
+  * them.
+  *
+  * Each object maps to a single slot by its hash code, and a new object
+  * replaces the one in its slot. This makes the pool a cache of the objects
+  * seen lately: an object that is still in use may be replaced, in which case
+  * an equal instance will be pooled next time. Unlike WeakObjectPool, it does
+  * not allocate nor create work for the garbage collector when it is given a
+  * new object.
+  */
+public class BoundedObjectPool<T> implements SharedObjectPool<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+
+    /** @param capacity The number of slots, rounded up to a power of two. */
+    public BoundedObjectPool(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public T sharedRef(T instance) {
+        int h = instance.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        T shared = slots.get(slot);
+        if (shared != null && shared.equals(instance))
+            return shared;
+        slots.lazySet(slot, instance);
+        return instance;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A pool of shared objects that are never released.
+  *
+  * Only meant for objects of which there are few different values, since the
+  * pool grows with every new one.
+  */
+public class PermanentObjectPool<T> implements SharedObjectPool<T> {
+
+    private final ConcurrentHashMap<T, T> pool = new ConcurrentHashMap<>();
+
+    @Override
+    public T sharedRef(T instance) {
+        T shared = pool.get(instance);
+        if (shared != null)
+            return shared;
+        shared = pool.putIfAbsent(instance, instance);
+        return (shared != null) ? shared : instance;
+    }
+}
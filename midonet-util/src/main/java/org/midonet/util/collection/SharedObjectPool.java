@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection;
+
+/** A pool of shared objects, handing out a shared instance equal to the one
+  * it is given, if there is one, so that identical objects don't need to be
+  * kept in memory many times over. */
+public interface SharedObjectPool<T> {
+
+    /** Returns the pooled instance equal to the given one, or the given
+      * instance itself, in which case it may be pooled. */
+    T sharedRef(T instance);
+}
@@ -25,10 +25,11 @@ import org.jboss.netty.util.internal.ConcurrentWeakKeyHashMap;
   * Mean to be used as a cache for objects of which a lot of identical instances
   * are expected to be created and maintained in memory.
   */
-public class WeakObjectPool<T> {
+public class WeakObjectPool<T> implements SharedObjectPool<T> {
 
     private ConcurrentWeakKeyHashMap<T, WeakReference<T>> pool = new ConcurrentWeakKeyHashMap<>();
 
+    @Override
     public T sharedRef(T instance) {
         WeakReference<T> ref = pool.get(instance);
         if (ref != null) {
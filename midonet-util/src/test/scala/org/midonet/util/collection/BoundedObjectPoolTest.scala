@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class BoundedObjectPoolTest extends FeatureSpec with Matchers {
+
+    /* Equal but distinct instances, colliding in the pool by their hash */
+    case class Key(value: Int)(val hash: Int) {
+        override def hashCode = hash
+    }
+
+    feature("The pool shares equal instances") {
+        scenario("an equal instance is given the pooled one") {
+            val pool = new BoundedObjectPool[Key](16)
+            val k = Key(1)(1)
+            pool.sharedRef(k) should be theSameInstanceAs k
+            pool.sharedRef(Key(1)(1)) should be theSameInstanceAs k
+        }
+
+        scenario("the capacity is a power of two") {
+            new BoundedObjectPool[Key](16).capacity should be (16)
+            new BoundedObjectPool[Key](17).capacity should be (32)
+            new BoundedObjectPool[Key](1).capacity should be (2)
+        }
+    }
+
+    feature("The pool is bounded") {
+        scenario("a new instance replaces the one in its slot") {
+            val pool = new BoundedObjectPool[Key](16)
+            val k1 = Key(1)(1)
+            val k2 = Key(2)(1 + 16)
+            pool.sharedRef(k1) should be theSameInstanceAs k1
+            pool.sharedRef(k2) should be theSameInstanceAs k2
+            val k1again = Key(1)(1)
+            pool.sharedRef(k1again) should be theSameInstanceAs k1again
+            pool.sharedRef(Key(1)(1)) should be theSameInstanceAs k1again
+        }
+
+        scenario("instances in different slots are all kept") {
+            val pool = new BoundedObjectPool[Key](16)
+            val keys = (0 until 16) map { i => Key(i)(i) }
+            keys foreach pool.sharedRef
+            keys foreach { k =>
+                pool.sharedRef(Key(k.value)(k.hash)) should be theSameInstanceAs k
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Map;
@@ -48,6 +49,8 @@ public abstract class AbstractNetlinkConnection {
     private static final int DEFAULT_MAX_BATCH_IO_OPS = 200;
     private static final int NETLINK_HEADER_LEN = 20;
     private static final int NETLINK_READ_BUFSIZE = 0x10000;
+    private static final int NETLINK_WRITE_BATCH_BYTES = 0x10000;
+    private static final int NETLINK_WRITE_BATCH_MSGS = 256;
 
     protected static final long DEF_REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
@@ -66,9 +69,17 @@ public abstract class AbstractNetlinkConnection {
     // assume one read per call.
     private int maxBatchIoOps = DEFAULT_MAX_BATCH_IO_OPS;
 
+    // Caps the bytes read per handleReadEvent() invokation, on top of the
+    // datagrams capped by maxBatchIoOps.
+    private int maxBatchIoBytes = Integer.MAX_VALUE;
+
     private ByteBuffer reply =
         BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
 
+    // When set, handleReadEvent() receives several datagrams per system call
+    // into this batch instead of reading them one by one into reply.
+    private DatagramBatch readBatch = null;
+
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
     protected BatchCollector<Runnable> dispatcher;
@@ -76,6 +87,27 @@ public abstract class AbstractNetlinkConnection {
     private SelectorInputQueue<NetlinkRequest> writeQueue =
             new SelectorInputQueue<>();
 
+    // The requests handleWriteEvent() sends in a single datagram, and their
+    // payloads. Only touched by the writing thread.
+    private final NetlinkRequest[] writeBatch =
+        new NetlinkRequest[NETLINK_WRITE_BATCH_MSGS];
+    private final ByteBuffer[] writeBuffers =
+        new ByteBuffer[NETLINK_WRITE_BATCH_MSGS];
+
+    // The requests held by each thread between holdWrites() and flushWrites()
+    private final ThreadLocal<HeldWrites> heldWrites =
+        new ThreadLocal<HeldWrites>() {
+            @Override
+            protected HeldWrites initialValue() {
+                return new HeldWrites();
+            }
+        };
+
+    @SuppressWarnings("serial")
+    private static final class HeldWrites extends ArrayList<NetlinkRequest> {
+        boolean holding = false;
+    }
+
     private PriorityQueue<NetlinkRequest> expirationQueue;
 
     private Set<NetlinkRequest> ongoingTransaction = new HashSet<>();
@@ -133,10 +165,50 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    public void setMaxBatchIoBytes(int max) {
+        this.maxBatchIoBytes = max;
+    }
+
+    /** Makes handleReadEvent() receive up to the given number of datagrams
+     *  per system call, each into a buffer of its own. With one or less,
+     *  datagrams are read one by one. */
+    public void setDatagramsPerRead(int datagrams) {
+        this.readBatch = (datagrams > 1)
+            ? new DatagramBatch(datagrams, NETLINK_READ_BUFSIZE) : null;
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
 
+    /**
+     * Holds the requests made by the calling thread, instead of queueing them
+     * for the writing thread, until the calling thread invokes flushWrites().
+     * The writing thread then finds them queued together and sends them in
+     * as few datagrams as possible. Callers must not wait for the replies to
+     * held requests before flushing them.
+     */
+    public void holdWrites() {
+        heldWrites.get().holding = true;
+    }
+
+    /**
+     * Queues the requests held by the calling thread since it invoked
+     * holdWrites(), and stops holding them. Returns how many were queued.
+     */
+    public int flushWrites() {
+        HeldWrites held = heldWrites.get();
+        held.holding = false;
+        int n = held.size();
+        for (int i = 0; i < n; i++) {
+            NetlinkRequest req = held.get(i);
+            if (!writeQueue.offer(req))
+                abortRequestQueueIsFull(req);
+        }
+        held.clear();
+        return n;
+    }
+
     public static Reader<Boolean> alwaysTrueReader =
         new Reader<Boolean>() {
             public Boolean deserializeFrom(ByteBuffer source) {
@@ -236,6 +308,12 @@ public abstract class AbstractNetlinkConnection {
             // If this stops being used only for testing, beware
             // of the un-synchronized write to sequenceNumber.
             processWriteToChannel(req);
+            return;
+        }
+
+        HeldWrites held = heldWrites.get();
+        if (held.holding) {
+            held.add(req);
         } else if (!writeQueue.offer(req)) {
             abortRequestQueueIsFull(req);
         }
@@ -308,11 +386,15 @@ public abstract class AbstractNetlinkConnection {
     }
 
     public void handleWriteEvent() throws IOException {
-        for (int i = 0; i < maxBatchIoOps; i++) {
-            final NetlinkRequest request = writeQueue.poll();
-            if (request == null)
+        int requests = 0;
+        while (requests < maxBatchIoOps) {
+            final int n = pollWriteBatch(maxBatchIoOps - requests);
+            if (n == 0)
                 break;
-            final int ret = processWriteToChannel(request);
+            requests += n;
+            final int ret = (n == 1) ? processWriteToChannel(writeBatch[0])
+                                     : processWritesToChannel(n);
+            writeBatch[0] = null;
             if (ret <= 0) {
                 if (ret < 0) {
                     log.warn("NETLINK write() error: {}",
@@ -324,6 +406,79 @@ public abstract class AbstractNetlinkConnection {
         expireOldRequests();
     }
 
+    /* Takes up to max requests off the write queue that fit in a single
+     * datagram, leaving them in writeBatch. The writing thread is the only
+     * consumer of the queue, so what it peeks is what it polls next. */
+    private int pollWriteBatch(int max) {
+        max = Math.min(max, NETLINK_WRITE_BATCH_MSGS);
+        int n = 0;
+        int bytes = 0;
+        while (n < max) {
+            NetlinkRequest request = writeQueue.peek();
+            if (request == null)
+                break;
+            int size = request.requestPayloadSize();
+            if (n > 0 && bytes + size > NETLINK_WRITE_BATCH_BYTES)
+                break;
+            writeQueue.poll();
+            writeBatch[n++] = request;
+            bytes += size;
+            if ((size & 3) != 0)
+                break; // the next message would be misaligned
+        }
+        return n;
+    }
+
+    /* Writes the first n requests in writeBatch with a single gathering
+     * write, which the kernel receives as one datagram holding n netlink
+     * messages, each processed and answered as if sent on its own. */
+    private int processWritesToChannel(final int n) {
+        int buffers = 0;
+        for (int i = 0; i < n; i++) {
+            NetlinkRequest request = writeBatch[i];
+            ByteBuffer outBuf = request.releaseRequestPayload();
+            if (outBuf == null) {
+                writeBatch[i] = null;
+                continue;
+            }
+            int seq = writeSeqToNetlinkRequest(request, outBuf);
+            if (request.hasCallback()) {
+                pendingRequests.put(seq, request);
+            }
+            writeBuffers[buffers++] = outBuf;
+        }
+
+        log.trace("Sending {} messages in a single datagram", buffers);
+
+        long bytes = 0;
+        try {
+            bytes = channel.write(writeBuffers, 0, buffers);
+            for (int i = 0; i < n; i++) {
+                NetlinkRequest request = writeBatch[i];
+                if (request != null && request.hasCallback())
+                    expirationQueue.add(request);
+            }
+        } catch (IOException e) {
+            log.warn("NETLINK write() exception: {}", e);
+            for (int i = 0; i < n; i++) {
+                NetlinkRequest request = writeBatch[i];
+                if (request != null && request.hasCallback()) {
+                    pendingRequests.remove(request.seq);
+                    dispatcher.submit(request.failed(new NetlinkException(
+                                      NetlinkException.ERROR_SENDING_REQUEST, e)));
+                }
+            }
+        } finally {
+            for (int i = 0; i < buffers; i++) {
+                requestPool.release(writeBuffers[i]);
+                writeBuffers[i] = null;
+            }
+            for (int i = 0; i < n; i++)
+                writeBatch[i] = null;
+        }
+        return (int) bytes;
+    }
+
     private int processWriteToChannel(final NetlinkRequest request) {
         if (request == null)
             return 0;
@@ -360,14 +515,22 @@ public abstract class AbstractNetlinkConnection {
     public void handleReadEvent(final Bucket bucket) throws IOException {
         try {
             bucket.prepare();
-            for (int i = 0; i < maxBatchIoOps; i++) {
-                final int ret = processReadFromChannel(bucket);
-                if (ret <= 0) {
-                    if (ret < 0) {
-                        log.info("NETLINK read() error: {}",
-                            cLibrary.lib.strerror(Native.getLastError()));
+            if (readBatch != null) {
+                processBatchesFromChannel(bucket);
+            } else {
+                int bytes = 0;
+                for (int i = 0; i < maxBatchIoOps; i++) {
+                    final int ret = processReadFromChannel(bucket);
+                    if (ret <= 0) {
+                        if (ret < 0) {
+                            log.info("NETLINK read() error: {}",
+                                cLibrary.lib.strerror(Native.getLastError()));
+                        }
+                        break;
                     }
-                    break;
+                    bytes += ret;
+                    if (bytes >= maxBatchIoBytes)
+                        break;
                 }
             }
         } catch (IOException e) {
@@ -382,6 +545,31 @@ public abstract class AbstractNetlinkConnection {
 
     protected void endBatch() {}
 
+    /* Drains the channel, a batch of datagrams at a time, until a batch comes
+     * short or the datagram or byte budget is spent. */
+    private synchronized void processBatchesFromChannel(final Bucket bucket)
+            throws IOException {
+        int datagrams = 0;
+        int bytes = 0;
+        while (datagrams < maxBatchIoOps && bytes < maxBatchIoBytes) {
+            int max = Math.min(maxBatchIoOps - datagrams, readBatch.capacity());
+            int n = channel.read(readBatch, max);
+            if (n <= 0) {
+                if (n < 0) {
+                    log.info("NETLINK read() error: {}",
+                        cLibrary.lib.strerror(Native.getLastError()));
+                }
+                break;
+            }
+            for (int i = 0; i < n; i++)
+                processMessages(readBatch.get(i), bucket);
+            datagrams += n;
+            bytes += readBatch.bytes();
+            if (n < max)
+                break; // the channel is drained
+        }
+    }
+
     private synchronized int processReadFromChannel(final Bucket bucket)
             throws IOException {
 
@@ -389,6 +577,13 @@ public abstract class AbstractNetlinkConnection {
         int nbytes = channel.read(reply);
 
         reply.flip(); // sets the effective final limit for any number of msgs
+        processMessages(reply, bucket);
+        return nbytes;
+    }
+
+    /* Processes the netlink messages in a datagram, from the buffer's
+     * position up to its limit. */
+    private void processMessages(ByteBuffer reply, final Bucket bucket) {
         reply.mark();
         int finalLimit = reply.limit();
 
@@ -426,7 +621,9 @@ public abstract class AbstractNetlinkConnection {
                     if (error == 0) {
                         processSuccessfulRequest(removeRequest(seq));
                     } else {
-                        processFailedRequest(seq, error);
+                        // the failed request's genl header follows
+                        byte errCmd = reply.hasRemaining() ? reply.get() : 0;
+                        processFailedRequest(seq, error, errType, errCmd);
                     }
                     break;
 
@@ -456,7 +653,6 @@ public abstract class AbstractNetlinkConnection {
             reply.limit(finalLimit);
             reply.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
@@ -485,15 +681,27 @@ public abstract class AbstractNetlinkConnection {
         }
     }
 
-    private void processFailedRequest(int seq, int error) {
-        NetlinkRequest request = removeRequest(seq);
+    private void processFailedRequest(int seq, int error, short type, byte cmd) {
+        NetlinkRequest request = pendingRequests.remove(seq);
         if (request != null) {
             String errorMessage = cLibrary.lib.strerror(-error);
             NetlinkException err = new NetlinkException(-error, errorMessage);
             dispatcher.submit(request.failed(err));
+        } else {
+            handleUntrackedError(type, cmd, -error);
         }
     }
 
+    /**
+     * Handles the error reply to a request sent without a callback, or whose
+     * callback already timed out, given the type and command of the failed
+     * request and the error number. Runs on the thread reading the channel.
+     */
+    protected void handleUntrackedError(short type, byte cmd, int errno) {
+        log.debug("Netlink request with type {} and command {} failed: {}",
+                  type, cmd, cLibrary.lib.strerror(errno));
+    }
+
     private NetlinkRequest removeRequest(int seq) {
         NetlinkRequest request = pendingRequests.remove(seq);
         if (request == null) {
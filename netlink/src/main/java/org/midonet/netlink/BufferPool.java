@@ -15,34 +15,57 @@
  */
 package org.midonet.netlink;
 
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
 
-import com.google.common.collect.MapMaker;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A pool of reusable, native I/O ready, byte buffers. All operations are
  * guaranteed to be thread-safe and non-blocking.
+ *
+ * The buffers are carved out of a few large direct memory slabs, instead of
+ * being allocated one by one, and a released buffer is recognized as one of
+ * the pool's own by the slab its native address falls in. The pool keeps
+ * statistics about its usage, which can be exported through JMX.
  */
-public class BufferPool {
+public class BufferPool implements BufferPoolMXBean {
 
     private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
-    /** dummy object used as the unique value in the concurrent buffer "set". */
-    private static final Object PRESENT = new Object();
+    /** Size of the direct memory slabs the buffers are carved out of. */
+    private static final int SLAB_SIZE = 1024 * 1024;
 
     private final int maxBuffers;
     private final int bufSize;
+    private final int buffersPerSlab;
 
-    private final ConcurrentMap<ByteBuffer, Object> bufferPool;
     private final BlockingQueue<ByteBuffer> availPool;
-    private final AtomicInteger numBuffers;
+    private final AtomicInteger numBuffers = new AtomicInteger(0);
+    private final AtomicInteger inUse = new AtomicInteger(0);
+    private final AtomicInteger highWaterMark = new AtomicInteger(0);
+    private final AtomicLong allocationFailures = new AtomicLong(0);
+    private final AtomicLong heapFallbacks = new AtomicLong(0);
+
+    /* The slab being carved and the number of buffers carved so far are
+     * guarded by this. The native address ranges of the slabs are kept as
+     * [start, end) pairs in an array that is replaced whenever a slab is
+     * added, so that release() can read it without locking. */
+    private ByteBuffer slab;
+    private int carvedBuffers = 0;
+    private volatile long[] slabRanges = new long[0];
+
+    private ObjectName mxBeanName;
 
     /**
      * @param minBuffers Initial number of buffers to allocate in the pool.
@@ -52,27 +75,20 @@ public class BufferPool {
      * @param bufSize
      */
     public BufferPool(int minBuffers, int maxBuffers, int bufSize) {
-        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0))
+        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0)
+                || (bufSize <= 0))
             throw new IllegalArgumentException();
 
         this.maxBuffers = maxBuffers;
         this.bufSize = bufSize;
+        this.buffersPerSlab = Math.max(1, Math.min(maxBuffers, SLAB_SIZE / bufSize));
         this.availPool = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
 
-        /* Use a weak-keys map so that keys behave as in an identity HashMap.
-        /*
-        /* An identity map is needed because a ByteBuffer's hashCode() depends
-        /* on the buffer's contents. A normal IdentityHashMap is not suitable
-        /* because there's no concurrent implementation of it. Thus the use
-        /* of the weak-keys concurrent map. */
-        this.bufferPool =
-            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap();
-
-        numBuffers = new AtomicInteger(0);
         do {
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
+            ByteBuffer buf = carve();
+            if (buf == null)
+                break;
             availPool.offer(buf);
-            bufferPool.put(buf, PRESENT);
         } while (numBuffers.incrementAndGet() < minBuffers);
     }
 
@@ -80,30 +96,27 @@ public class BufferPool {
      *  release() once for the returned buffer to return it to the pool.
      */
     public ByteBuffer take() {
-        ByteBuffer buffer = availPool.poll();
-        if (buffer != null)
-            return buffer;
-
-        if (numBuffers.incrementAndGet() <= maxBuffers) {
-            log.debug("increasing buffer pool size to {}", numBuffers.get());
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            bufferPool.put(buf, PRESENT);
+        ByteBuffer buf = availPool.poll();
+        if (buf == null)
+            buf = grow();
+        if (buf != null) {
+            taken();
             return buf;
-        } else {
-            numBuffers.decrementAndGet();
-            /* Temporary buffers are non-direct because the NIO library has its
-             * own cache for them, managing this case more cleverly than we
-             * we can from here. The library will get the buffer from its cache
-             * when a write is requested, so it will be able to release it
-             * immediately, whereas we would leave the task up to the garbage
-             * collector.
-             *
-             * The price we pay for allocating a non-direct buffer is one extra
-             * copy at write-time.
-             */
-            log.info("pool is empty, allocating a temporary buffer");
-            return  BytesUtil.instance.allocate(bufSize);
         }
+
+        /* Temporary buffers are non-direct because the NIO library has its
+         * own cache for them, managing this case more cleverly than we
+         * we can from here. The library will get the buffer from its cache
+         * when a write is requested, so it will be able to release it
+         * immediately, whereas we would leave the task up to the garbage
+         * collector.
+         *
+         * The price we pay for allocating a non-direct buffer is one extra
+         * copy at write-time.
+         */
+        heapFallbacks.incrementAndGet();
+        log.info("pool is empty, allocating a temporary buffer");
+        return BytesUtil.instance.allocate(bufSize);
     }
 
     /** Release a buffer that was previously taken from the pool.
@@ -112,7 +125,8 @@ public class BufferPool {
      *  callers must be careful not to call release() twice on the same buffer.
      */
     public void release(ByteBuffer buf) {
-        if (buf != null && bufferPool.containsKey(buf)) {
+        if (buf != null && owns(buf)) {
+            inUse.decrementAndGet();
             availPool.offer(buf);
             log.trace("released buffer ({}/{} free buffers)",
                      availPool.size(), numBuffers.get());
@@ -124,6 +138,143 @@ public class BufferPool {
     }
 
     public int allocated() {
-        return bufferPool.size();
+        return numBuffers.get();
+    }
+
+    /** Registers this pool as a JMX bean with the given name. Returns false,
+     *  without failing, if the pool was already registered or the name is
+     *  taken by another pool.
+     */
+    public synchronized boolean registerAsMXBean(String name) {
+        if (mxBeanName != null)
+            return false;
+        try {
+            ObjectName objName =
+                new ObjectName(NAME + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objName);
+            mxBeanName = objName;
+            return true;
+        } catch (Exception e) {
+            log.warn("Failed to register the {} buffer pool JMX bean: {}",
+                     name, e.toString());
+            return false;
+        }
+    }
+
+    public synchronized void unregisterAsMXBean() {
+        if (mxBeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanName);
+        } catch (Exception e) {
+            log.warn("Failed to unregister the {} JMX bean", mxBeanName, e);
+        }
+        mxBeanName = null;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufSize;
+    }
+
+    @Override
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    @Override
+    public int getAllocated() {
+        return allocated();
+    }
+
+    @Override
+    public int getAvailable() {
+        return available();
+    }
+
+    @Override
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    @Override
+    public int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    @Override
+    public long getAllocationFailures() {
+        return allocationFailures.get();
+    }
+
+    @Override
+    public long getHeapFallbacks() {
+        return heapFallbacks.get();
+    }
+
+    private ByteBuffer grow() {
+        if (numBuffers.incrementAndGet() <= maxBuffers) {
+            ByteBuffer buf = carve();
+            if (buf != null) {
+                log.debug("increasing buffer pool size to {}", numBuffers.get());
+                return buf;
+            }
+        }
+        numBuffers.decrementAndGet();
+        return null;
+    }
+
+    private void taken() {
+        int n = inUse.incrementAndGet();
+        int max = highWaterMark.get();
+        while (n > max && !highWaterMark.compareAndSet(max, n))
+            max = highWaterMark.get();
+    }
+
+    /* Cuts the next buffer out of the current slab, allocating a new slab if
+     * the current one is used up. Returns null if there's no direct memory
+     * left for a new slab. */
+    private synchronized ByteBuffer carve() {
+        if (slab == null || !slab.hasRemaining()) {
+            int buffers = Math.min(buffersPerSlab, maxBuffers - carvedBuffers);
+            try {
+                slab = ByteBuffer.allocateDirect(buffers * bufSize);
+            } catch (OutOfMemoryError e) {
+                allocationFailures.incrementAndGet();
+                log.warn("failed to allocate a buffer slab of {} bytes",
+                         buffers * bufSize);
+                slab = null;
+                return null;
+            }
+            long start = address(slab);
+            long[] ranges = Arrays.copyOf(slabRanges, slabRanges.length + 2);
+            ranges[ranges.length - 2] = start;
+            ranges[ranges.length - 1] = start + slab.capacity();
+            slabRanges = ranges;
+        }
+
+        int pos = slab.position();
+        slab.limit(pos + bufSize);
+        ByteBuffer buf = slab.slice().order(ByteOrder.nativeOrder());
+        slab.limit(slab.capacity());
+        slab.position(pos + bufSize);
+        carvedBuffers++;
+        return buf;
+    }
+
+    private boolean owns(ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != bufSize)
+            return false;
+        long addr = address(buf);
+        long[] ranges = slabRanges;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (addr >= ranges[i] && addr < ranges[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    private static long address(ByteBuffer buf) {
+        return Pointer.nativeValue(Native.getDirectBufferPointer(buf));
     }
 }
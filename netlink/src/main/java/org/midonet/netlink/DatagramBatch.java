@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Platform;
+
+import org.midonet.netlink.clib.cLibrary;
+import org.midonet.netlink.hacks.IOStatus;
+
+/**
+ * A set of receive buffers, each filled with one datagram by
+ * {@link UnixChannel#read(DatagramBatch, int)}. Where the C library provides
+ * recvmmsg(), the batch also keeps the native mmsghdr and iovec arrays that
+ * describe its buffers, so that a single system call can fill all of them.
+ */
+public final class DatagramBatch {
+
+    /** Whether the batches are filled with recvmmsg(). The native structures
+     *  below are laid out for 64-bit Linux. */
+    public static final boolean NATIVE_RECVMMSG = hasRecvmmsg();
+
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    private static final int IOVEC_SIZE = 16;
+    private static final int MMSGHDR_SIZE = 64;
+    private static final int MSG_IOV_OFFSET = 16;
+    private static final int MSG_IOVLEN_OFFSET = 24;
+    private static final int MSG_LEN_OFFSET = 56;
+
+    private final ByteBuffer[] buffers;
+    private final Memory headers;
+    private final Memory iovecs;
+
+    private int size = 0;
+    private int bytes = 0;
+
+    public DatagramBatch(int capacity, int bufferSize) {
+        buffers = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            buffers[i] = BytesUtil.instance.allocateDirect(bufferSize);
+
+        if (NATIVE_RECVMMSG) {
+            headers = new Memory(capacity * MMSGHDR_SIZE);
+            iovecs = new Memory(capacity * IOVEC_SIZE);
+            headers.clear();
+            for (int i = 0; i < capacity; i++) {
+                iovecs.setPointer(i * IOVEC_SIZE,
+                                  Native.getDirectBufferPointer(buffers[i]));
+                iovecs.setLong(i * IOVEC_SIZE + 8, bufferSize);
+                headers.setPointer(i * MMSGHDR_SIZE + MSG_IOV_OFFSET,
+                                   iovecs.share(i * IOVEC_SIZE));
+                headers.setLong(i * MMSGHDR_SIZE + MSG_IOVLEN_OFFSET, 1);
+            }
+        } else {
+            headers = null;
+            iovecs = null;
+        }
+    }
+
+    /** The maximum number of datagrams this batch holds. */
+    public int capacity() {
+        return buffers.length;
+    }
+
+    /** The number of datagrams received by the last read. */
+    public int size() {
+        return size;
+    }
+
+    /** The number of bytes received by the last read. */
+    public int bytes() {
+        return bytes;
+    }
+
+    /** The i-th datagram received by the last read, ready to be read from
+     *  its start. */
+    public ByteBuffer get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        return buffers[i];
+    }
+
+    void reset() {
+        size = 0;
+        bytes = 0;
+    }
+
+    /** Clears and returns the buffer for the next datagram, which must be
+     *  flipped and accounted for with added() once filled. */
+    ByteBuffer next() {
+        ByteBuffer buf = buffers[size];
+        buf.clear();
+        return buf;
+    }
+
+    void added(int nbytes) {
+        size++;
+        bytes += nbytes;
+    }
+
+    /**
+     * Receives up to max datagrams from the given socket with a single
+     * recvmmsg() call that never blocks. Returns the number of datagrams
+     * received, or an IOStatus code.
+     */
+    int receive(int fd, int max) throws IOException {
+        reset();
+        int n = cLibrary.lib.recvmmsg(fd, headers,
+                                      Math.min(max, buffers.length),
+                                      cLibrary.MSG_DONTWAIT, null);
+        if (n < 0) {
+            int errno = Native.getLastError();
+            if (errno == EAGAIN)
+                return IOStatus.UNAVAILABLE;
+            if (errno == EINTR)
+                return IOStatus.INTERRUPTED;
+            throw new IOException("recvmmsg() failed: " +
+                                  cLibrary.lib.strerror(errno));
+        }
+
+        for (int i = 0; i < n; i++) {
+            int len = headers.getInt(i * MMSGHDR_SIZE + MSG_LEN_OFFSET);
+            buffers[i].clear();
+            buffers[i].limit(len);
+            added(len);
+        }
+        return n;
+    }
+
+    private static boolean hasRecvmmsg() {
+        if (!Platform.isLinux() || Native.POINTER_SIZE != 8)
+            return false;
+        try {
+            NativeLibrary.getInstance("c").getFunction("recvmmsg");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+}
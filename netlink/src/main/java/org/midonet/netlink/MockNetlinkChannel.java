@@ -48,4 +48,9 @@ public class MockNetlinkChannel extends NetlinkChannel {
     protected void closeFileDescriptor() {
     }
 
+    @Override
+    public int read(DatagramBatch batch, int max) throws IOException {
+        return readEach(batch, max);
+    }
+
 }
@@ -61,8 +61,10 @@ public abstract class NetlinkRequest implements Runnable {
         this.userCallback = callback;
         this.reader = reader;
         this.outBuffer = data;
-        this.expirationTimeNanos = System.nanoTime() +
-            TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // Nothing waits for the requests without callbacks, which never
+        // enter the expiration queue.
+        this.expirationTimeNanos = (callback == null) ? Long.MAX_VALUE :
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
     }
 
     public boolean hasCallback() {
@@ -71,6 +73,11 @@ public abstract class NetlinkRequest implements Runnable {
 
     abstract public void addAnswerFragment(ByteBuffer buf);
 
+    /** The size of the request payload, or zero once it's released. */
+    public int requestPayloadSize() {
+        return outBuffer == null ? 0 : outBuffer.remaining();
+    }
+
     public ByteBuffer releaseRequestPayload() {
         ByteBuffer payload = outBuffer;
         outBuffer = null;
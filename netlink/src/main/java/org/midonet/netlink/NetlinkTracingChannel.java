@@ -82,4 +82,9 @@ public class NetlinkTracingChannel extends NetlinkChannelImpl {
 
         return read;
     }
+
+    @Override
+    public int read(DatagramBatch batch, int max) throws IOException {
+        return readEach(batch, max);
+    }
 }
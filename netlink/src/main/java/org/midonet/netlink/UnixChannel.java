@@ -206,6 +206,54 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         }
     }
 
+    /**
+     * Reads up to max datagrams, one into each buffer of the given batch, and
+     * returns how many were read. Where available, all the datagrams are
+     * received with a single non-blocking recvmmsg() call, otherwise with one
+     * read() each. Meant for non-blocking channels: on a blocking channel
+     * the fallback blocks until max datagrams are read.
+     */
+    public int read(DatagramBatch batch, int max) throws IOException {
+        if (!DatagramBatch.NATIVE_RECVMMSG)
+            return readEach(batch, max);
+
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            try {
+                if (!prepareRead())
+                    return n;
+                do {
+                    n = batch.receive(fdVal, max);
+                } while ((n == IOStatus.INTERRUPTED) && isOpen());
+                int datagrams = IOStatus.normalize(n);
+                rxBytes += batch.bytes();
+                return datagrams;
+            } finally {
+                finishRead(n);
+            }
+        }
+    }
+
+    /**
+     * Fills the given batch with one read() per datagram, for subclasses that
+     * don't read from a native socket, or that need to see each read.
+     */
+    protected final int readEach(DatagramBatch batch, int max)
+            throws IOException {
+        batch.reset();
+        max = Math.min(max, batch.capacity());
+        while (batch.size() < max) {
+            ByteBuffer buf = batch.next();
+            int n = read(buf);
+            if (n <= 0)
+                return batch.size() > 0 ? batch.size() : n;
+            buf.flip();
+            batch.added(n);
+        }
+        return batch.size();
+    }
+
     private boolean prepareWrite() {
         begin();
         if (isOpen()) {
@@ -19,6 +19,7 @@ import java.nio.ByteBuffer;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.ByValue;
 import com.sun.jna.ptr.IntByReference;
@@ -84,6 +85,8 @@ public interface cLibrary extends Library {
     public static final int NETLINK_BROADCAST_ERROR = 4;
     public static final int NETLINK_NO_ENOBUFS = 5;
 
+    public static final int MSG_DONTWAIT = 0x40;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
@@ -108,6 +111,8 @@ public interface cLibrary extends Library {
 
     int recv(int fd, ByteBuffer buf, int len, int flags);
 
+    int recvmmsg(int fd, Pointer msgvec, int vlen, int flags, Pointer timeout);
+
     int getpagesize();
 
     int close(long l);
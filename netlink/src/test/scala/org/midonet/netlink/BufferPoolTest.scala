@@ -15,7 +15,9 @@
  */
 package org.midonet.netlink;
 
-import java.nio.ByteBuffer
+import java.lang.management.ManagementFactory
+import java.nio.{ByteBuffer, ByteOrder}
+import javax.management.ObjectName
 import scala.collection.mutable.ListBuffer
 
 import org.junit.runner.RunWith
@@ -100,6 +102,86 @@ class BufferPoolTest extends FunSpec with Matchers {
                     pool.available shouldBe 10
                 }
             }
+
+            it("should not take foreign direct buffers of the same size") {
+                val pool = new BufferPool(10,20,128)
+                pool release ByteBuffer.allocateDirect(128)
+                pool.available shouldBe 10
+            }
+
+            it("should not take temporary buffers back") {
+                val pool = new BufferPool(1,1,128)
+                val buf = pool.take
+                val tmp = pool.take
+                tmp.isDirect shouldBe false
+                pool release tmp
+                pool.available shouldBe 0
+                pool release buf
+                pool.available shouldBe 1
+            }
+        }
+
+        describe("when carving buffers") {
+            it("should hand out distinct direct buffers in native order") {
+                val pool = new BufferPool(0,64,100)
+                val bufs = List.fill(64) { pool.take }
+                bufs foreach { b =>
+                    b.isDirect shouldBe true
+                    b.capacity shouldBe 100
+                    b.order shouldBe ByteOrder.nativeOrder
+                }
+                bufs.zipWithIndex foreach { case (b, i) => b.putInt(0, i) }
+                bufs.zipWithIndex foreach { case (b, i) => b.getInt(0) shouldBe i }
+                bufs foreach { b => buffers += b; pool release b }
+                pool.available shouldBe 64
+            }
+
+            it("should span buffers over several slabs") {
+                val pool = new BufferPool(0,40,64*1024)
+                val bufs = List.fill(40) { pool.take }
+                bufs foreach { b => b.isDirect shouldBe true; pool release b }
+                pool.available shouldBe 40
+                pool.allocated shouldBe 40
+            }
+        }
+
+        describe("statistics") {
+            it("should track the buffers in use and their high water mark") {
+                val pool = new BufferPool(2,4,128)
+                val bufs = List.fill(3) { pool.take }
+                pool.getInUse shouldBe 3
+                bufs foreach { b => buffers += b; pool release b }
+                pool.getInUse shouldBe 0
+                pool.getHighWaterMark shouldBe 3
+                buffers += pool.take
+                pool.getHighWaterMark shouldBe 3
+            }
+
+            it("should count the fallbacks to heap buffers") {
+                val pool = new BufferPool(1,2,128)
+                (1 to 5) foreach { _ => buffers += pool.take }
+                pool.getHeapFallbacks shouldBe 3
+                pool.getAllocationFailures shouldBe 0
+                pool.getInUse shouldBe 2
+            }
+
+            it("should be exported through JMX") {
+                val pool = new BufferPool(1,2,128)
+                val name = new ObjectName(BufferPoolMXBean.NAME + ",name=" +
+                                          ObjectName.quote("test-pool"))
+                val server = ManagementFactory.getPlatformMBeanServer
+                pool.registerAsMXBean("test-pool") shouldBe true
+                pool.registerAsMXBean("test-pool") shouldBe false
+                new BufferPool(1,1,1).registerAsMXBean("test-pool") shouldBe false
+                try {
+                    buffers += pool.take
+                    server.getAttribute(name, "InUse") shouldBe 1
+                    server.getAttribute(name, "BufferSize") shouldBe 128
+                } finally {
+                    pool.unregisterAsMXBean()
+                }
+                server.isRegistered(name) shouldBe false
+            }
         }
 
         describe("when serving multiple clients") {
@@ -118,8 +200,9 @@ class BufferPoolTest extends FunSpec with Matchers {
                 }
                 clients foreach { _.start }
                 clients foreach { _.join }
-                pool.available() shouldBe 20
-                pool.allocated() shouldBe 20
+                pool.allocated() should (be >= 10 and be <= 20)
+                pool.available() shouldBe pool.allocated()
+                pool.getInUse shouldBe 0
             }
         }
 
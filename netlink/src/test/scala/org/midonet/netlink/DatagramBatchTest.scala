@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink
+
+import java.nio.{ByteBuffer, ByteOrder}
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.{FunSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.util.{BatchCollector, Bucket}
+
+@RunWith(classOf[JUnitRunner])
+class DatagramBatchTest extends FunSpec with Matchers {
+
+    /** A channel replaying queued datagrams, one per read. */
+    class ReplayChannel extends MockNetlinkChannel(Netlink.selectorProvider(),
+                                                   NetlinkProtocol.NETLINK_GENERIC) {
+        val datagrams = mutable.Queue[Array[Byte]]()
+        var reads = 0
+
+        override def read(dst: ByteBuffer): Int = {
+            reads += 1
+            if (datagrams.isEmpty) {
+                0
+            } else {
+                val datagram = datagrams.dequeue()
+                dst.put(datagram)
+                datagram.length
+            }
+        }
+    }
+
+    class Connection(channel: NetlinkChannel)
+            extends AbstractNetlinkConnection(channel, new BufferPool(1, 1, 1)) {
+        val notifications = mutable.ArrayBuffer[Int]()
+        var batches = 0
+
+        setCallbackDispatcher(new BatchCollector[Runnable] {
+            override def submit(r: Runnable): Unit = r.run()
+            override def endBatch(): Unit = batches += 1
+        })
+
+        override protected def handleNotification(`type`: Short, cmd: Byte,
+                                                  seq: Int, pid: Int,
+                                                  buf: ByteBuffer): Unit =
+            notifications += buf.getInt
+    }
+
+    /** A datagram carrying `count` notifications, numbered from `first`,
+      * padded to `size` bytes at least. */
+    def datagram(first: Int, count: Int = 1, size: Int = 0): Array[Byte] = {
+        val msgLen = math.max(24, size / count)
+        val buf = ByteBuffer.allocate(msgLen * count)
+                            .order(ByteOrder.nativeOrder())
+        for (i <- 0 until count) {
+            buf.putInt(msgLen).putShort(0x20).putShort(0)
+               .putInt(0).putInt(0)                        // seq, pid
+               .put(1: Byte).put(1: Byte).putShort(0)      // genl header
+               .putInt(first + i)
+            buf.position((i + 1) * msgLen)
+        }
+        buf.array()
+    }
+
+    def connection(datagramsPerRead: Int) = {
+        val channel = new ReplayChannel
+        val conn = new Connection(channel)
+        conn.setDatagramsPerRead(datagramsPerRead)
+        (channel, conn)
+    }
+
+    describe("A netlink connection") {
+
+        it("drains every datagram in a single wakeup") {
+            val (channel, conn) = connection(8)
+            for (i <- 0 until 20)
+                channel.datagrams += datagram(2 * i, count = 2)
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            conn.notifications shouldBe (0 until 40)
+            conn.batches shouldBe 1
+            channel.datagrams shouldBe empty
+        }
+
+        it("reads no more datagrams than its budget per wakeup") {
+            val (channel, conn) = connection(4)
+            conn.setMaxBatchIoOps(10)
+            for (i <- 0 until 25)
+                channel.datagrams += datagram(i)
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            conn.notifications shouldBe (0 until 10)
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            conn.notifications shouldBe (0 until 25)
+            conn.batches shouldBe 3
+        }
+
+        it("reads no more bytes than its budget per wakeup") {
+            for (datagramsPerRead <- Seq(1, 4)) {
+                val (channel, conn) = connection(datagramsPerRead)
+                conn.setMaxBatchIoBytes(1000)
+                for (i <- 0 until 10)
+                    channel.datagrams += datagram(i, size = 400)
+                conn.handleReadEvent(Bucket.BOTTOMLESS)
+                conn.notifications.size should (be >= 3 and be <= 4)
+                channel.datagrams should not be empty
+            }
+        }
+
+        it("stops reading once the channel is drained") {
+            val (channel, conn) = connection(4)
+            channel.datagrams += datagram(0)
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            conn.notifications shouldBe Seq(0)
+            channel.reads shouldBe 2
+        }
+    }
+}
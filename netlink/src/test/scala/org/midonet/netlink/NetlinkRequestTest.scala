@@ -128,9 +128,9 @@ class NetlinkRequestTest extends FunSpec with Matchers {
         describe("Request comparator") {
 
             val comp = NetlinkRequest.comparator
-            val a = requestFor(null)
-            val b = requestFor(null)
-            val c = requestFor(null)
+            val a = requestFor(new InspectableCallback)
+            val b = requestFor(new InspectableCallback)
+            val c = requestFor(new InspectableCallback)
 
             it("can order different requests") {
                 comp.compare(a,b) should be < 0
@@ -153,6 +153,12 @@ class NetlinkRequestTest extends FunSpec with Matchers {
             it("can handle two null values") {
                 comp.compare(null,null) shouldBe 0
             }
+
+            it("orders requests without a callback last") {
+                val d = requestFor(null)
+                comp.compare(c,d) should be < 0
+                comp.compare(d,c) should be > 0
+            }
         }
     }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink
+
+import java.nio.ByteBuffer
+
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.{FunSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class WriteBatchTest extends FunSpec with Matchers {
+
+    /** A channel recording the sizes of the messages in each datagram. */
+    class RecordingChannel extends MockNetlinkChannel(Netlink.selectorProvider(),
+                                                      NetlinkProtocol.NETLINK_GENERIC) {
+        val datagrams = mutable.ArrayBuffer[Seq[Int]]()
+
+        override def write(buf: ByteBuffer): Int = write(Array(buf)).toInt
+
+        override def write(bufs: Array[ByteBuffer]): Long = {
+            val sizes = bufs.map(_.remaining).toSeq
+            bufs foreach { b => b.position(b.limit()) }
+            datagrams += sizes
+            sizes.sum
+        }
+    }
+
+    val context = new NetlinkRequestContext {
+        override def commandFamily: Short = 0x20
+        override def command: Byte = 1
+        override def version: Byte = 1
+    }
+
+    class Connection(channel: NetlinkChannel)
+            extends AbstractNetlinkConnection(channel,
+                                              new BufferPool(16, 64, 0x8000)) {
+        override protected def handleNotification(`type`: Short, cmd: Byte,
+                                                  seq: Int, pid: Int,
+                                                  buf: ByteBuffer): Unit = { }
+
+        def send(size: Int): Unit = {
+            val buf = getBuffer
+            buf.position(size)
+            buf.flip()
+            sendNetlinkMessage(context, NLFlag.REQUEST, buf, null,
+                               AbstractNetlinkConnection.alwaysTrueReader, 1000)
+        }
+    }
+
+    def connection() = {
+        val channel = new RecordingChannel
+        (channel, new Connection(channel))
+    }
+
+    describe("A netlink connection") {
+
+        it("writes the requests it finds queued in a single datagram") {
+            val (channel, conn) = connection()
+            for (i <- 0 until 10)
+                conn.send(64)
+            conn.handleWriteEvent()
+            channel.datagrams shouldBe Seq(Seq.fill(10)(64))
+        }
+
+        it("holds the requests of a thread until it flushes them") {
+            val (channel, conn) = connection()
+            conn.holdWrites()
+            for (i <- 0 until 5)
+                conn.send(64)
+            conn.getSendQueue shouldBe empty
+            conn.flushWrites() shouldBe 5
+            conn.getSendQueue.size shouldBe 5
+            conn.handleWriteEvent()
+            channel.datagrams shouldBe Seq(Seq.fill(5)(64))
+
+            conn.send(64)
+            conn.getSendQueue.size shouldBe 1
+        }
+
+        it("doesn't hold the requests of other threads") {
+            val (_, conn) = connection()
+            conn.holdWrites()
+            val t = new Thread() {
+                override def run(): Unit = conn.send(64)
+            }
+            t.start()
+            t.join()
+            conn.getSendQueue.size shouldBe 1
+            conn.flushWrites() shouldBe 0
+        }
+
+        it("splits the requests that don't fit in a datagram") {
+            val (channel, conn) = connection()
+            for (i <- 0 until 8)
+                conn.send(20000)
+            conn.handleWriteEvent()
+            channel.datagrams shouldBe Seq(Seq.fill(3)(20000),
+                                           Seq.fill(3)(20000),
+                                           Seq.fill(2)(20000))
+        }
+
+        it("ends a datagram after a misaligned request") {
+            val (channel, conn) = connection()
+            conn.send(64)
+            conn.send(62)
+            conn.send(64)
+            conn.handleWriteEvent()
+            channel.datagrams shouldBe Seq(Seq(64, 62), Seq(64))
+        }
+
+        it("writes no more requests than its budget") {
+            val (channel, conn) = connection()
+            conn.setMaxBatchIoOps(4)
+            for (i <- 0 until 6)
+                conn.send(64)
+            conn.handleWriteEvent()
+            channel.datagrams shouldBe Seq(Seq.fill(4)(64))
+            conn.getSendQueue.size shouldBe 2
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.midonet.odp;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.List;
 import java.util.Objects;
 
@@ -29,14 +28,21 @@ import org.midonet.odp.OpenVSwitch.Packet.Attr;
 import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
+import org.midonet.odp.flows.FlowKeyICMP;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * The data of a packet received from the kernel is only parsed into an
+ * {@link Ethernet} the first time it is asked for, since the flow match
+ * is all that is needed to handle most upcalls. Until then, executing the
+ * packet sends the data back as received.
+ *
  * @see FlowMatch
  * @see OvsDatapathConnection#packetsExecute(Datapath, Packet)
  * @see OvsDatapathConnection#datapathsSetNotificationHandler(Datapath, Callback)
@@ -54,6 +60,7 @@ public class Packet implements AttributeHandler {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -71,11 +78,24 @@ public class Packet implements AttributeHandler {
     }
 
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            try {
+                eth = Ethernet.deserialize(data);
+            } catch (MalformedPacketException e) {
+                // the frame was checked when the data was received
+                throw new IllegalStateException(e);
+            }
+            data = null;
+        }
         return eth;
     }
 
+    /**
+     * Returns the data as received if it has not been parsed, or else the
+     * serialization of the possibly modified Ethernet.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        return (eth == null && data != null) ? data : eth.serialize();
     }
 
     public FlowMatch getMatch() {
@@ -101,11 +121,17 @@ public class Packet implements AttributeHandler {
     }
 
     public void processUserspaceKeys() {
-        FlowMatches.addUserspaceKeys(eth, match);
+        List<FlowKey> keys = match.getKeys();
+        for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i) instanceof FlowKeyICMP) {
+                FlowMatches.addUserspaceKeys(getEthernet(), match);
+                return;
+            }
+        }
     }
 
     public void generateFlowKeysFromPayload() {
-        match = FlowMatches.fromEthernetPacket(eth);
+        match = FlowMatches.fromEthernetPacket(getEthernet());
     }
 
     @Override
@@ -116,7 +142,7 @@ public class Packet implements AttributeHandler {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -124,7 +150,7 @@ public class Packet implements AttributeHandler {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -135,7 +161,7 @@ public class Packet implements AttributeHandler {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + getEthernet() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
@@ -150,7 +176,7 @@ public class Packet implements AttributeHandler {
         int datapathIndex = buf.getInt(); // ignored
         Packet packet = new Packet();
         NetlinkMessage.scanAttributes(buf, packet);
-        if (packet.eth == null)
+        if (packet.data == null)
             return null;
         return packet;
     }
@@ -159,15 +185,15 @@ public class Packet implements AttributeHandler {
         switch(NetlinkMessage.unnest(id)) {
 
             case Attr.Packet:
-                ByteOrder originalOrder = buf.order();
-                try {
-                    this.eth = new Ethernet();
-                    this.eth.deserialize(buf);
-                } catch (Exception e) {
-                    log.warn("Dropping malformed packet", e);
-                    this.eth = null;
-                } finally {
-                    buf.order(originalOrder);
+                // The receive buffer is reused once the upcall is handled, so
+                // the data is copied, but it isn't parsed until it's needed.
+                if (isWellFormed(buf)) {
+                    this.data = new byte[buf.remaining()];
+                    buf.get(this.data);
+                } else {
+                    log.warn("Dropping malformed packet of {} bytes",
+                             buf.remaining());
+                    this.data = null;
                 }
                 break;
 
@@ -181,12 +207,45 @@ public class Packet implements AttributeHandler {
         }
     }
 
+    /** Checks that an Ethernet frame has the headers that
+     *  Ethernet.deserialize() requires, without parsing it. */
+    static boolean isWellFormed(ByteBuffer buf) {
+        int pos = buf.position();
+        int end = buf.limit();
+        if (end - pos < Ethernet.MIN_HEADER_LEN)
+            return false;
+        pos += Ethernet.MIN_HEADER_LEN - 2;
+        short etherType = etherTypeAt(buf, pos);
+        while (etherType == Ethernet.VLAN_TAGGED_FRAME ||
+               etherType == Ethernet.PROVIDER_BRIDGING_TAG) {
+            if (end - pos - 2 < Ethernet.HEADER_TPID_LEN)
+                return false;
+            pos += Ethernet.HEADER_TPID_LEN;
+            etherType = etherTypeAt(buf, pos);
+        }
+        return true;
+    }
+
+    /* Reads in network order, whatever the order of the buffer */
+    private static short etherTypeAt(ByteBuffer buf, int pos) {
+        return (short) (((buf.get(pos) & 0xff) << 8) | (buf.get(pos + 1) & 0xff));
+    }
+
     /** Prepares an ovs request for executing and a packet with the given list
      *  of actions. */
     public static ByteBuffer execRequest(ByteBuffer buf, int datapathId,
                                          Iterable<FlowKey> keys,
                                          Iterable<FlowAction> actions,
                                          Ethernet packet) {
+        return execRequest(buf, datapathId, keys, actions, packet.serialize());
+    }
+
+    /** Prepares an ovs request for executing and a packet with the given list
+     *  of actions, given the packet's data. */
+    public static ByteBuffer execRequest(ByteBuffer buf, int datapathId,
+                                         Iterable<FlowKey> keys,
+                                         Iterable<FlowAction> actions,
+                                         byte[] data) {
         buf.putInt(datapathId);
         // TODO(pino): find out why ovs_packet_cmd_execute throws an
         // EINVAL if we put the PACKET attribute right after the
@@ -199,7 +258,7 @@ public class Packet implements AttributeHandler {
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions,
                                     actions, FlowActions.writer);
 
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.serialize());
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, data);
 
         buf.flip();
         return buf;
@@ -26,14 +26,48 @@ import org.midonet.odp.OpenVSwitch.FlowKey.Attr;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv6Addr;
 import org.midonet.packets.TCP;
+import org.midonet.util.collection.BoundedObjectPool;
+import org.midonet.util.collection.PermanentObjectPool;
+import org.midonet.util.collection.SharedObjectPool;
 import org.midonet.util.collection.WeakObjectPool;
 
 /**
  * Builder class to allow easier building of FlowKey instances.
  */
 public class FlowKeys {
-    private static WeakObjectPool<FlowKey> FLOW_KEYS_POOL =
-        new WeakObjectPool<>();
+
+    /**
+     * How cached flow keys are shared.
+     *
+     * WEAK keeps every key that is referenced from outside of the pool, at
+     * the cost of a weak reference per new key. BOUNDED keeps the keys with
+     * few different values forever, and the latest BOUNDED_POOL_SIZE keys
+     * of the other kinds, such as ports and addresses, without allocating.
+     */
+    public enum Interning { WEAK, BOUNDED }
+
+    public static final int BOUNDED_POOL_SIZE = 1 << 14;
+
+    private static volatile SharedObjectPool<FlowKey> FLOW_KEYS_POOL;
+    private static volatile SharedObjectPool<FlowKey> FEW_VALUED_FLOW_KEYS_POOL;
+
+    static {
+        useInterning(Interning.WEAK);
+    }
+
+    /** Selects how cached flow keys are shared from now on. Keys shared
+     *  before the call are not shared with the ones interned after it. */
+    public static void useInterning(Interning interning) {
+        switch (interning) {
+            case BOUNDED:
+                FEW_VALUED_FLOW_KEYS_POOL = new PermanentObjectPool<>();
+                FLOW_KEYS_POOL = new BoundedObjectPool<>(BOUNDED_POOL_SIZE);
+                break;
+            default:
+                FLOW_KEYS_POOL = new WeakObjectPool<>();
+                FEW_VALUED_FLOW_KEYS_POOL = FLOW_KEYS_POOL;
+        }
+    }
 
     public static <T extends FlowKey> T intern(T flowKey) {
         if (flowKey instanceof CachedFlowKey)
@@ -43,8 +77,11 @@ public class FlowKeys {
     }
 
     public static <T extends FlowKey> T sharedReferenceOf(T flowKey) {
+        SharedObjectPool<FlowKey> pool =
+            (flowKey instanceof FlowKeyEtherType || flowKey instanceof FlowKeyVLAN)
+                ? FEW_VALUED_FLOW_KEYS_POOL : FLOW_KEYS_POOL;
         @SuppressWarnings("unchecked")
-        T shared = (T) FLOW_KEYS_POOL.sharedRef(flowKey);
+        T shared = (T) pool.sharedRef(flowKey);
         return shared;
     }
 
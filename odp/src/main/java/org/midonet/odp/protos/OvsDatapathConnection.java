@@ -62,6 +62,30 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
 
     public final FuturesApi futures = new FuturesApi();
 
+    // Only written by the thread reading from the channel
+    private volatile long flowCreateErrors = 0;
+    private volatile long packetExecuteErrors = 0;
+
+    /** The number of flow creations sent without a callback that the
+     *  datapath rejected. */
+    public long flowCreateErrors() {
+        return flowCreateErrors;
+    }
+
+    /** The number of packet executions sent without a callback that the
+     *  datapath rejected. */
+    public long packetExecuteErrors() {
+        return packetExecuteErrors;
+    }
+
+    protected void flowCreateFailed() {
+        flowCreateErrors++;
+    }
+
+    protected void packetExecuteFailed() {
+        packetExecuteErrors++;
+    }
+
     protected OvsDatapathConnection(NetlinkChannel channel, BufferPool sendPool) {
         super(channel, sendPool);
     }
@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import javax.annotation.Nonnull;
@@ -29,6 +28,7 @@ import org.midonet.netlink.BufferPool;
 import org.midonet.netlink.Callback;
 import org.midonet.netlink.NLFlag;
 import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.clib.cLibrary;
 import org.midonet.netlink.exceptions.NetlinkException;
 import org.midonet.odp.OpenVSwitch;
 import org.midonet.odp.Datapath;
@@ -83,6 +83,26 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         }
     }
 
+    /* The fire-and-forget flow creations and packet executions aren't
+     * tracked, so their failures are only known from the type and command
+     * the kernel echoes back in the error replies. */
+    @Override
+    protected void handleUntrackedError(short type, byte cmd, int errno) {
+        if (flowFamily != null &&
+                flowFamily.contextNew.commandFamily() == type &&
+                flowFamily.contextNew.command() == cmd) {
+            flowCreateFailed();
+            log.debug("Failed to create flow: {}", cLibrary.lib.strerror(errno));
+        } else if (packetFamily != null && packetFamily.familyId == type &&
+                packetFamily.contextExec.command() == cmd) {
+            packetExecuteFailed();
+            log.debug("Failed to execute packet: {}",
+                      cLibrary.lib.strerror(errno));
+        } else {
+            super.handleUntrackedError(type, cmd, errno);
+        }
+    }
+
     @Override
     protected void _doDatapathsSetNotificationHandler(@Nonnull BatchCollector<Packet> notificationHandler) {
         this.notificationHandler = notificationHandler;
@@ -351,14 +371,6 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             return;
         }
 
-        // allows to see failing flow create requests if debug logging is on.
-        if (callback == null && log.isDebugEnabled()) {
-            callback = new LoggingCallback<Flow>() {
-                public String requestString() { return "flow create"; }
-                public String dataString() { return flow.toString(); }
-            };
-        }
-
         short flags = NLFlag.REQUEST | NLFlag.New.CREATE;
         if (callback != null) {
             flags |= NLFlag.ECHO;
@@ -512,18 +524,6 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             return;
         }
 
-        // allows to see failing packet execute requests if debug logging is on.
-        if (callback == null && log.isDebugEnabled()) {
-            callback = new LoggingCallback<Boolean>() {
-                public String requestString() {
-                    return "packet execute";
-                }
-                public String dataString() {
-                    return Arrays.toString(actions.toArray()) + " on " + packet;
-                }
-            };
-        }
-
         short flags = NLFlag.REQUEST;
         if (callback != null) {
             flags |= NLFlag.ACK;
@@ -533,7 +533,7 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             packetFamily.contextExec,
             flags,
             Packet.execRequest(getBuffer(), datapathId, keys,
-                               actions, packet.getEthernet()),
+                               actions, packet.getData()),
             callback,
             alwaysTrueReader,
             timeoutMillis);
@@ -640,15 +640,4 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
                 statusCallback.onError(ex);
         }
     }
-
-    /** Used for debugging failing requests that do not register callbacks. */
-    private static abstract class LoggingCallback<T> implements Callback<T> {
-        public abstract String requestString();
-        public abstract String dataString();
-        public void onSuccess(T any) { }
-        public void onError(NetlinkException ex) {
-            log.debug(requestString() + " request for " +
-                      dataString() + " failed", ex);
-        }
-    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.netlink._
+
+object DatapathWriteBenchmark {
+
+    /** The packets in a batch handed to a packet processing thread. */
+    final val PACKETS = 64
+
+    val FLOW_CREATE_SIZE = 256
+    val PACKET_EXECUTE_SIZE = 640
+
+    /** Counts the writes made to it, which would each be a sendmsg(). */
+    class CountingChannel extends MockNetlinkChannel(Netlink.selectorProvider(),
+                                                     NetlinkProtocol.NETLINK_GENERIC) {
+        var writes = 0L
+
+        override def write(buf: ByteBuffer): Int = {
+            writes += 1
+            val n = buf.remaining()
+            buf.position(buf.limit())
+            n
+        }
+
+        override def write(bufs: Array[ByteBuffer]): Long = {
+            writes += 1
+            var n = 0L
+            var i = 0
+            while (i < bufs.length) {
+                n += bufs(i).remaining()
+                bufs(i).position(bufs(i).limit())
+                i += 1
+            }
+            n
+        }
+    }
+
+    val context = new NetlinkRequestContext {
+        override def commandFamily: Short = 0x20
+        override def command: Byte = 1
+        override def version: Byte = 1
+    }
+
+    class Connection(channel: NetlinkChannel)
+            extends AbstractNetlinkConnection(channel,
+                                              new BufferPool(512, 512, 0x1000)) {
+        override protected def handleNotification(`type`: Short, cmd: Byte,
+                                                  seq: Int, pid: Int,
+                                                  buf: ByteBuffer): Unit = { }
+
+        def send(size: Int): Unit = {
+            val buf = getBuffer
+            buf.position(size)
+            buf.flip()
+            sendNetlinkMessage(context, NLFlag.REQUEST, buf, null, null, 0)
+        }
+    }
+}
+
+/**
+ * Writes the flow creations and packet executions of a batch of PACKETS
+ * packets through a netlink connection: one write per request, as when the
+ * writing thread keeps up with a packet processing thread that queues the
+ * requests as it goes, or a single write per batch, as when the packet
+ * processing thread holds its requests until the end of the batch.
+ *
+ * The channel counts the writes instead of making system calls; the writes
+ * per packet are printed at the end of each trial.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class DatapathWriteBenchmark {
+    import DatapathWriteBenchmark._
+
+    var channel: CountingChannel = _
+    var conn: Connection = _
+    var packets = 0L
+
+    @Setup
+    def setup(): Unit = {
+        channel = new CountingChannel
+        conn = new Connection(channel)
+        conn.setMaxBatchIoOps(2 * PACKETS)
+    }
+
+    @TearDown
+    def teardown(): Unit =
+        println(s"\n${channel.writes.toDouble / packets} writes per packet")
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    def writeEachRequest(): Unit = {
+        var i = 0
+        while (i < PACKETS) {
+            conn.send(FLOW_CREATE_SIZE)
+            conn.handleWriteEvent()
+            conn.send(PACKET_EXECUTE_SIZE)
+            conn.handleWriteEvent()
+            i += 1
+        }
+        packets += PACKETS
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    def writeHeldRequests(): Unit = {
+        conn.holdWrites()
+        var i = 0
+        while (i < PACKETS) {
+            conn.send(FLOW_CREATE_SIZE)
+            conn.send(PACKET_EXECUTE_SIZE)
+            i += 1
+        }
+        conn.flushWrites()
+        conn.handleWriteEvent()
+        packets += PACKETS
+    }
+}
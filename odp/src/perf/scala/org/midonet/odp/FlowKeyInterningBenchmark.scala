@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.odp.flows.{FlowKey, FlowKeys}
+import org.midonet.packets.MAC
+
+object FlowKeyInterningBenchmark {
+
+    @State(Scope.Thread)
+    class Upcalls {
+        val macs = Array.fill(1024)(MAC.random.getAddress)
+        var i = 0
+
+        def next(): Int = {
+            i += 1
+            i
+        }
+    }
+}
+
+/**
+ * Interns flow keys as the datapath connection does when it reads the flow
+ * matches of a stream of upcalls: the ethertype takes a couple of values,
+ * while the ports and addresses take `hosts` values. Each thread sees its
+ * own addresses.
+ *
+ * Run with `-prof gc` to compare the allocation rates and GC counts of the
+ * interning strategies.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@Threads(4)
+@State(Scope.Benchmark)
+class FlowKeyInterningBenchmark {
+    import FlowKeyInterningBenchmark._
+
+    @Param(Array("WEAK", "BOUNDED"))
+    var interning: String = _
+
+    @Param(Array("1000", "1000000"))
+    var hosts: Int = _
+
+    @Setup
+    def setup(): Unit =
+        FlowKeys.useInterning(FlowKeys.Interning.valueOf(interning))
+
+    @TearDown
+    def teardown(): Unit =
+        FlowKeys.useInterning(FlowKeys.Interning.WEAK)
+
+    @Benchmark
+    def inPort(upcalls: Upcalls): FlowKey =
+        FlowKeys.inPort(upcalls.next() % hosts)
+
+    @Benchmark
+    def ethernet(upcalls: Upcalls): FlowKey = {
+        val i = upcalls.next() % hosts
+        FlowKeys.ethernet(upcalls.macs(i & 1023), upcalls.macs((i >> 10) & 1023))
+    }
+
+    @Benchmark
+    def etherType(upcalls: Upcalls): FlowKey =
+        FlowKeys.etherType(if ((upcalls.next() & 7) == 0) 0x0806.toShort
+                           else 0x0800.toShort)
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+/**
+ * Builds a Packet out of an upcall carrying a typical TCP, UDP or ARP frame,
+ * as the datapath connection does for every upcall. buildFromAndParse also
+ * parses the frame, as when the packet is simulated.
+ *
+ * Run with `-prof gc` to compare the allocation rates.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class PacketParsingBenchmark {
+
+    @Param(Array("tcp", "udp", "arp"))
+    var frame: String = _
+
+    val buf = BytesUtil.instance allocate 2048
+    var upcallEnd: Int = _
+
+    @Setup
+    def setup(): Unit = {
+        val srcIp = IPv4Addr.random
+        val dstIp = IPv4Addr.random
+        val ethernet: Ethernet = frame match {
+            case "tcp" =>
+                { eth src MAC.random dst MAC.random } <<
+                { ip4 src srcIp dst dstIp } <<
+                { tcp src 10000 dst 80 } << payload(new Array[Byte](512))
+            case "udp" =>
+                { eth src MAC.random dst MAC.random } <<
+                { ip4 src srcIp dst dstIp } <<
+                { udp src 10000 dst 53 } << payload(new Array[Byte](64))
+            case "arp" =>
+                { eth src MAC.random dst eth_bcast } <<
+                { arp.req mac MAC.random -> eth_zero ip srcIp --> dstIp }
+        }
+        buf.putInt(1)
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, ethernet.serialize())
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key,
+                                    FlowMatches.fromEthernetPacket(ethernet).getKeys,
+                                    FlowKeys.writer)
+        upcallEnd = buf.position()
+    }
+
+    private def upcall(): ByteBuffer = {
+        buf.limit(upcallEnd).position(0)
+        buf
+    }
+
+    @Benchmark
+    def buildFrom(): Packet = Packet.buildFrom(upcall())
+
+    @Benchmark
+    def buildFromAndParse(): Ethernet = Packet.buildFrom(upcall()).getEthernet
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import org.midonet.netlink._
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.util.Bucket
+
+object UpcallReadBenchmark {
+
+    val UPCALLS = 200
+
+    /** Replays recorded upcall datagrams, one per read. */
+    class ReplayChannel(datagrams: Array[Array[Byte]])
+            extends MockNetlinkChannel(Netlink.selectorProvider(),
+                                       NetlinkProtocol.NETLINK_GENERIC) {
+        var next = 0
+
+        override def read(dst: ByteBuffer): Int =
+            if (next == datagrams.length) {
+                0
+            } else {
+                val datagram = datagrams(next)
+                next += 1
+                dst.put(datagram)
+                datagram.length
+            }
+    }
+
+    class UpcallConnection(channel: NetlinkChannel)
+            extends AbstractNetlinkConnection(channel, new BufferPool(1, 1, 1)) {
+        var last: Packet = _
+
+        override protected def handleNotification(`type`: Short, cmd: Byte,
+                                                  seq: Int, pid: Int,
+                                                  buf: ByteBuffer): Unit =
+            last = Packet.buildFrom(buf)
+    }
+}
+
+/**
+ * Replays UPCALLS recorded upcall datagrams, each carrying a TCP packet and
+ * its flow match, through a netlink connection, reading them one by one or
+ * in batches of msgsPerRead datagrams per read, as a selector wakeup does.
+ *
+ * The replaying channel makes no system calls, so this measures the
+ * connection's own per-datagram costs; the system calls that recvmmsg()
+ * saves only show against a live datapath.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Benchmark)
+class UpcallReadBenchmark {
+    import UpcallReadBenchmark._
+
+    @Param(Array("1", "16", "64"))
+    var msgsPerRead: Int = _
+
+    var channel: ReplayChannel = _
+    var conn: UpcallConnection = _
+
+    @Setup
+    def setup(): Unit = {
+        val datagrams = Array.fill(UPCALLS)(upcall())
+        channel = new ReplayChannel(datagrams)
+        conn = new UpcallConnection(channel)
+        conn.setMaxBatchIoOps(UPCALLS)
+        conn.setDatagramsPerRead(msgsPerRead)
+    }
+
+    private def upcall(): Array[Byte] = {
+        val ethernet = { eth src MAC.random dst MAC.random } <<
+                       { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                       { tcp src 10000 dst 80 } << payload(new Array[Byte](512))
+        val buf = BytesUtil.instance allocate 2048
+        buf.position(20)                            // nlmsghdr
+        buf.put(1: Byte).put(1: Byte).putShort(0)   // genl header
+        buf.putInt(1)                               // datapath index
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, ethernet.serialize())
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key,
+                                    FlowMatches.fromEthernetPacket(ethernet).getKeys,
+                                    FlowKeys.writer)
+        val len = buf.position()
+        buf.putInt(0, len).putShort(4, 0x20).putShort(6, 0)
+           .putInt(8, 0).putInt(12, 0)              // seq and pid of an upcall
+        java.util.Arrays.copyOf(buf.array(), len)
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(200)
+    def readUpcalls(): Packet = {
+        channel.next = 0
+        conn.handleReadEvent(Bucket.BOTTOMLESS)
+        conn.last
+    }
+}
@@ -82,6 +82,7 @@ public class FlowKeyInterningTest {
     public void tearDown() throws InterruptedException {
         testSlaves.shutdown();
         testSlaves.awaitTermination(500, TimeUnit.MILLISECONDS);
+        FlowKeys.useInterning(FlowKeys.Interning.WEAK);
     }
 
     @Test
@@ -110,6 +111,21 @@ public class FlowKeyInterningTest {
         }
     }
 
+    @Test
+    public void testBoundedInterningOfFlowKeys() throws Exception {
+        FlowKeys.useInterning(FlowKeys.Interning.BOUNDED);
+        for (Callable<FlowKey> fk : flowKeys) {
+            verifyInterning(fk);
+        }
+
+        FlowKey etherType = FlowKeys.etherType((short) 1234);
+        for (int i = 0; i < 2 * FlowKeys.BOUNDED_POOL_SIZE; ++i) {
+            FlowKeys.inPort(i);
+            FlowKeys.etherType((short) i);
+        }
+        Assert.assertSame(etherType, FlowKeys.etherType((short) 1234));
+    }
+
     private WeakReference<FlowKey> verifyInterning(Callable<FlowKey> c) {
         try {
             FlowKey original = c.call();
@@ -15,6 +15,8 @@
  */
 package org.midonet.odp.protos;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
@@ -22,6 +24,7 @@ import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.midonet.netlink.NLMessageType;
 import org.midonet.odp.Datapath;
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
@@ -29,6 +32,8 @@ import org.midonet.odp.flows.*;
 import org.midonet.packets.IPv6Addr;
 import org.midonet.packets.Net;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.midonet.odp.flows.FlowActions.output;
 import static org.midonet.odp.flows.FlowKeyEtherType.Type;
 import static org.midonet.odp.flows.FlowKeys.*;
@@ -52,6 +57,48 @@ public class OvsFlowsCreateTest extends AbstractNetlinkProtocolTest {
         // multi containing the datapaths data
         exchangeMessage();
 
+        Future<Flow> flowFuture =
+            connection.futures.flowsCreate(dpFuture.get(), flow());
+
+        // multi containing the ports data
+        exchangeMessage();
+    }
+
+    @Test
+    public void testFireAndForgetFlowsCreateFailure() throws Exception {
+
+        initializeConnection(connection.futures.initialize(), 6);
+
+        Future<Datapath> dpFuture = connection.futures.datapathsGet("test");
+        exchangeMessage();
+
+        connection.flowsCreate(dpFuture.get(), flow());
+        ByteBuffer request = waitWrite().get();
+
+        // the datapath rejects the flow
+        responses[7] = errorReply(request, -17 /* EEXIST */);
+        fireReply();
+
+        assertThat(connection.flowCreateErrors(), is(1L));
+        assertThat(connection.packetExecuteErrors(), is(0L));
+    }
+
+    private byte[] errorReply(ByteBuffer request, int error) {
+        ByteBuffer reply = ByteBuffer.allocate(40)
+                                     .order(ByteOrder.nativeOrder());
+        reply.putInt(40)
+             .putShort(NLMessageType.ERROR)
+             .putShort((short) 0)
+             .putInt(request.getInt(8))
+             .putInt(uplinkPid())
+             .putInt(error);
+        // echoes the request's netlink and genl headers
+        for (int i = 0; i < 20; i++)
+            reply.put(request.get(i));
+        return reply.array();
+    }
+
+    private Flow flow() {
         List<FlowKey> keys = new ArrayList<>();
         keys.add(inPort(1));
         keys.add(inPort(0));
@@ -68,13 +115,7 @@ public class OvsFlowsCreateTest extends AbstractNetlinkProtocolTest {
         List<FlowAction> actions = new ArrayList<>();
         actions.add(output(1));
 
-        Flow flow = new Flow(new FlowMatch(keys), actions);
-
-        Future<Flow> flowFuture =
-            connection.futures.flowsCreate(dpFuture.get(), flow);
-
-        // multi containing the ports data
-        exchangeMessage();
+        return new Flow(new FlowMatch(keys), actions);
     }
 
     final byte[][] responses = {
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink._
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.{Ethernet, ICMP, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class PacketTest extends FunSpec with Matchers {
+
+    val tcpFrame = ({ eth src MAC.random dst MAC.random } <<
+                    { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                    { tcp src 10000 dst 80 } << payload("payload")).packet
+
+    val icmpFrame = ({ eth src MAC.random dst MAC.random } <<
+                     { ip4 src IPv4Addr.random dst IPv4Addr.random } <<
+                     { icmp.echo request }).packet
+
+    def upcall(data: Array[Byte], eth: Ethernet): ByteBuffer = {
+        val buf = BytesUtil.instance allocate 1024
+        buf.putInt(1)
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, data)
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key,
+                                    FlowMatches.fromEthernetPacket(eth).getKeys,
+                                    FlowKeys.writer)
+        buf.flip()
+        buf
+    }
+
+    def upcall(eth: Ethernet): ByteBuffer = upcall(eth.serialize(), eth)
+
+    describe("Packet") {
+
+        describe("built from an upcall") {
+
+            it("should keep the data as received") {
+                val packet = Packet buildFrom upcall(tcpFrame)
+                packet.getData shouldBe tcpFrame.serialize()
+                packet.getMatch shouldBe FlowMatches.fromEthernetPacket(tcpFrame)
+            }
+
+            it("should parse the data when asked for the ethernet frame") {
+                val packet = Packet buildFrom upcall(tcpFrame)
+                packet.getEthernet shouldBe tcpFrame
+                packet.getEthernet should be theSameInstanceAs packet.getEthernet
+                packet.getData shouldBe tcpFrame.serialize()
+            }
+
+            it("should serialize the ethernet frame once it's parsed") {
+                val packet = Packet buildFrom upcall(tcpFrame)
+                val src = MAC.random
+                packet.getEthernet.setSourceMACAddress(src)
+                Ethernet.deserialize(packet.getData).getSourceMACAddress shouldBe src
+            }
+
+            it("should add the userspace keys of icmp packets") {
+                val packet = Packet buildFrom upcall(icmpFrame)
+                packet.processUserspaceKeys()
+                packet.getMatch.isUserSpaceOnly shouldBe true
+                packet.getEthernet.getPayload.getPayload shouldBe an [ICMP]
+            }
+
+            it("should be dropped if malformed") {
+                val truncated = java.util.Arrays.copyOf(tcpFrame.serialize(), 10)
+                Packet buildFrom upcall(truncated, tcpFrame) shouldBe null
+            }
+
+            it("should be dropped if its vlan tags are truncated") {
+                val vlanFrame = ({ eth src MAC.random dst MAC.random vlan 10 } <<
+                                 { ip4 src IPv4Addr.random dst IPv4Addr.random }).packet
+                val truncated = java.util.Arrays.copyOf(vlanFrame.serialize(), 16)
+                Packet buildFrom upcall(truncated, vlanFrame) shouldBe null
+            }
+        }
+    }
+}